@@ -227,12 +227,7 @@ public class SoomlaStore {
                                 }
 
                                 // collect subscriptionVG list
-                                List<VirtualGood> subscriptions = new ArrayList<VirtualGood>();
-                                for (VirtualGood good : StoreInfo.getGoods()) {
-                                    if ((good.getPurchaseType() instanceof PurchaseWithMarket) && ((PurchaseWithMarket)good.getPurchaseType()).isSubscription()) {
-                                        subscriptions.add(good);
-                                    }
-                                }
+                                List<VirtualGood> subscriptions = StoreInfo.getCatalog().getSubscriptionGoods();
 
                                 // give unset subscriptions and take expired
                                 for (VirtualGood subscription : subscriptions) {
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soomla.store;
+
+import java.util.HashMap;
+
+/**
+ * A utility class that defines interfaces for passing callbacks to the asynchronous
+ * operations of {@link StoreInventory}. Callbacks are always called on the main thread.
+ */
+public class StoreCallbacks {
+
+    /**
+     * Listens for an operation that doesn't return anything.
+     */
+    public interface OnCompletionListener {
+
+        /**
+         * Performs the following function when the operation has finished.
+         */
+        public void success();
+
+        /**
+         * Performs the following function when the operation has failed.
+         *
+         * @param e the reason for the failure
+         */
+        public void fail(Exception e);
+    }
+
+    /**
+     * Listens for an operation that retrieves the balance of a virtual item.
+     */
+    public interface OnBalanceListener {
+
+        /**
+         * Performs the following function with the retrieved balance.
+         *
+         * @param balance the balance of the virtual item
+         */
+        public void success(int balance);
+
+        /**
+         * Performs the following function when the operation has failed.
+         *
+         * @param e the reason for the failure
+         */
+        public void fail(Exception e);
+    }
+
+    /**
+     * Listens for an operation that retrieves the state of all virtual items.
+     */
+    public interface OnItemsBalancesListener {
+
+        /**
+         * Performs the following function with the retrieved state.
+         *
+         * @param itemsBalances itemId -> the item's state, see
+         *                      {@link StoreInventory#allItemsBalances()}
+         */
+        public void success(HashMap<String, HashMap<String, Object>> itemsBalances);
+
+        /**
+         * Performs the following function when the operation has failed.
+         *
+         * @param e the reason for the failure
+         */
+        public void fail(Exception e);
+    }
+}
@@ -18,20 +18,23 @@ package com.soomla.store;
 
 import android.text.TextUtils;
 import com.soomla.SoomlaUtils;
-import com.soomla.data.KeyValueStorage;
+import com.soomla.store.data.KeyValueBalanceStore;
 import com.soomla.store.data.StorageManager;
+import com.soomla.store.data.StoreExecutor;
 import com.soomla.store.data.StoreInfo;
-import com.soomla.store.data.VirtualCurrencyStorage;
-import com.soomla.store.data.VirtualGoodsStorage;
 import com.soomla.store.domain.PurchasableVirtualItem;
 import com.soomla.store.domain.VirtualItem;
 import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrencyPack;
 import com.soomla.store.domain.virtualGoods.EquippableVG;
+import com.soomla.store.domain.virtualGoods.SingleUsePackVG;
 import com.soomla.store.domain.virtualGoods.UpgradeVG;
 import com.soomla.store.domain.virtualGoods.VirtualGood;
 import com.soomla.store.exceptions.InsufficientFundsException;
 import com.soomla.store.exceptions.NotEnoughGoodsException;
 import com.soomla.store.exceptions.VirtualItemNotFoundException;
+import com.soomla.store.purchaseTypes.PurchaseType;
+import com.soomla.store.purchaseTypes.PurchaseWithVirtualItem;
 
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -74,6 +77,21 @@ public class StoreInventory {
         return StorageManager.getVirtualItemStorage(item).getBalance(item.getItemId());
     }
 
+    /**
+     * Retrieves the balance of the virtual item with the given <code>ordinal</code>.
+     * Unlike {@link #getVirtualItemBalance(String)} this doesn't hash the itemId, so it's the
+     * one to use in hot loops (for example, checking ammo every frame).
+     *
+     * @param ordinal ordinal of the virtual item to be fetched, see
+     *                {@link VirtualItem#getOrdinal()}
+     * @return balance of the virtual item with the given <code>ordinal</code>.
+     * @throws VirtualItemNotFoundException
+     */
+    public static int getVirtualItemBalance(int ordinal) throws VirtualItemNotFoundException {
+        VirtualItem item = StoreInfo.getVirtualItem(ordinal);
+        return StorageManager.getVirtualItemStorage(item).getBalance(ordinal);
+    }
+
     /**
      * Gives your user the given amount of the virtual item with the given <code>itemId</code>.
      * For example, when your user plays your game for the first time you GIVE him/her 1000 gems.
@@ -92,6 +110,21 @@ public class StoreInventory {
         item.give(amount);
     }
 
+    /**
+     * Gives your user the given amount of the virtual item with the given <code>ordinal</code>.
+     *
+     * @param ordinal ordinal of the virtual item to be given, see
+     *                {@link VirtualItem#getOrdinal()}
+     * @param amount amount of the item to be given
+     * @throws VirtualItemNotFoundException
+     * @see #giveVirtualItem(String, int)
+     */
+    public static void giveVirtualItem(int ordinal, int amount)
+            throws VirtualItemNotFoundException  {
+        VirtualItem item = StoreInfo.getVirtualItem(ordinal);
+        item.give(amount);
+    }
+
     /**
      * Takes from your user the given amount of the virtual item with the given <code>itemId</code>.
      * For example, when your user requests a refund you need to TAKE the item he/she is returning.
@@ -106,6 +139,22 @@ public class StoreInventory {
         item.take(amount);
     }
 
+    /**
+     * Takes from your user the given amount of the virtual item with the given
+     * <code>ordinal</code>.
+     *
+     * @param ordinal ordinal of the virtual item to be taken, see
+     *                {@link VirtualItem#getOrdinal()}
+     * @param amount amount of the item to be taken
+     * @throws VirtualItemNotFoundException
+     * @see #takeVirtualItem(String, int)
+     */
+    public static void takeVirtualItem(int ordinal, int amount)
+            throws VirtualItemNotFoundException  {
+        VirtualItem item = StoreInfo.getVirtualItem(ordinal);
+        item.take(amount);
+    }
+
     /** VIRTUAL GOODS **/
 
     /**
@@ -180,26 +229,7 @@ public class StoreInventory {
      */
     public static int getGoodUpgradeLevel(String goodItemId) throws VirtualItemNotFoundException {
         VirtualGood good = (VirtualGood) StoreInfo.getVirtualItem(goodItemId);
-        String upgradeVGItemId = StorageManager.getVirtualGoodsStorage().getCurrentUpgrade(good.getItemId());
-        UpgradeVG upgradeVG = null;
-        try {
-            upgradeVG = (UpgradeVG) StoreInfo.getVirtualItem(upgradeVGItemId);
-        } catch (VirtualItemNotFoundException e) {
-            SoomlaUtils.LogError("SOOMLA StoreInventory", "This is BAD! Can't find the current upgrade (" + upgradeVGItemId + ") of: " + good.getItemId());
-            return 0;
-        }
-        if (upgradeVG == null) {
-            return 0; //no upgrade
-        }
-
-        UpgradeVG first = StoreInfo.getGoodFirstUpgrade(goodItemId);
-        int level = 1;
-        while (!first.equals(upgradeVG)) {
-            first = (UpgradeVG) StoreInfo.getVirtualItem(first.getNextItemId());
-            level++;
-        }
-
-        return level;
+        return StorageManager.getVirtualGoodsStorage().getCurrentUpgradeLevel(good.getItemId());
     }
 
     /**
@@ -215,17 +245,7 @@ public class StoreInventory {
         VirtualGood good = (VirtualGood) StoreInfo.getVirtualItem(goodItemId);
 
         String upgradeVGItemId = StorageManager.getVirtualGoodsStorage().getCurrentUpgrade(good.getItemId());
-        UpgradeVG upgradeVG = null;
-        try {
-            upgradeVG = (UpgradeVG) StoreInfo.getVirtualItem(upgradeVGItemId);
-        } catch (VirtualItemNotFoundException e) {
-            SoomlaUtils.LogDebug("SOOMLA StoreInventory", "This is BAD! Can't find the current upgrade (" + upgradeVGItemId + ") of: " + good.getItemId());
-        }
-
-        if (upgradeVG == null) {
-            return "";
-        }
-        return upgradeVG.getItemId();
+        return upgradeVGItemId == null ? "" : upgradeVGItemId;
     }
 
     /**
@@ -245,26 +265,10 @@ public class StoreInventory {
             throws VirtualItemNotFoundException, InsufficientFundsException {
         VirtualGood good = (VirtualGood) StoreInfo.getVirtualItem(goodItemId);
 
-        String upgradeVGItemId = StorageManager.getVirtualGoodsStorage().getCurrentUpgrade(good.getItemId());
-        UpgradeVG upgradeVG = null;
-        try {
-            upgradeVG = (UpgradeVG) StoreInfo.getVirtualItem(upgradeVGItemId);
-        } catch (VirtualItemNotFoundException e) {
-            SoomlaUtils.LogDebug("SOOMLA StoreInventory", "This is BAD! Can't find the current upgrade (" + upgradeVGItemId + ") of: " + good.getItemId());
-        }
-
-        if (upgradeVG != null) {
-            String nextItemId = upgradeVG.getNextItemId();
-            if (TextUtils.isEmpty(nextItemId)) {
-                return;
-            }
-            UpgradeVG vgu = (UpgradeVG) StoreInfo.getVirtualItem(nextItemId);
-            vgu.buy("");
-        } else {
-            UpgradeVG first = StoreInfo.getGoodFirstUpgrade(goodItemId);
-            if (first != null) {
-                first.buy("");
-            }
+        int level = StorageManager.getVirtualGoodsStorage().getCurrentUpgradeLevel(good.getItemId());
+        UpgradeVG next = StoreInfo.getGoodUpgradeAt(goodItemId, level + 1);
+        if (next != null) {
+            next.buy("");
         }
     }
 
@@ -419,16 +423,224 @@ public class StoreInventory {
         return false;
     }
 
-    private static void clearCurrentState() {
-        List<String> allKeys = KeyValueStorage.getEncryptedKeys();
+    /** ASYNCHRONOUS OPERATIONS **/
 
-        for (String key : allKeys) {
-            if (key.startsWith(StoreInfo.DB_NONCONSUMABLE_KEY_PREFIX) ||
-                    key.startsWith(VirtualCurrencyStorage.DB_CURRENCY_KEY_PREFIX) ||
-                    key.startsWith(VirtualGoodsStorage.DB_KEY_GOOD_PREFIX)) {
-                KeyValueStorage.deleteKeyValue(key);
+    /**
+     * Works like {@link #buy(String, String)}, but runs on the store's background executor
+     * and calls the given listener on the main thread when it's done.
+     * The purchase runs in the order it was called with the operations on the item, on the
+     * virtual item it's paid with, and on what it gives (a pack's currency or good, an
+     * upgrade's good).
+     *
+     * @param itemId id of item to be purchased
+     * @param payload a string you want to be assigned to the purchase
+     * @param listener the listener to call when the purchase is done, may be null
+     */
+    public static void buyAsync(final String itemId, final String payload,
+                                final StoreCallbacks.OnCompletionListener listener) {
+        StoreExecutor.execute(itemsTouchedByBuy(itemId), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    buy(itemId, payload);
+                    notifyCompletion(listener, null);
+                } catch (Exception e) {
+                    notifyCompletion(listener, e);
+                }
             }
+        });
+    }
+
+    /**
+     * Works like {@link #getVirtualItemBalance(String)}, but runs on the store's background
+     * executor and calls the given listener with the balance on the main thread.
+     * The balance includes every change made to the item by operations called before.
+     *
+     * @param itemId id of the virtual item to be fetched
+     * @param listener the listener to call with the balance, may be null
+     */
+    public static void getVirtualItemBalanceAsync(final String itemId,
+                                                  final StoreCallbacks.OnBalanceListener listener) {
+        StoreExecutor.execute(itemId, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final int balance = getVirtualItemBalance(itemId);
+                    if (listener == null) {
+                        return;
+                    }
+                    StoreExecutor.postToMainThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.success(balance);
+                        }
+                    });
+                } catch (final Exception e) {
+                    if (listener == null) {
+                        logFailure(e);
+                        return;
+                    }
+                    StoreExecutor.postToMainThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.fail(e);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Works like {@link #giveVirtualItem(String, int)}, but runs on the store's background
+     * executor and calls the given listener on the main thread when it's done.
+     *
+     * @param itemId id of the virtual item to be given
+     * @param amount amount of the item to be given
+     * @param listener the listener to call when the item was given, may be null
+     */
+    public static void giveVirtualItemAsync(final String itemId, final int amount,
+                                            final StoreCallbacks.OnCompletionListener listener) {
+        StoreExecutor.execute(itemId, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    giveVirtualItem(itemId, amount);
+                    notifyCompletion(listener, null);
+                } catch (Exception e) {
+                    notifyCompletion(listener, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Works like {@link #takeVirtualItem(String, int)}, but runs on the store's background
+     * executor and calls the given listener on the main thread when it's done.
+     *
+     * @param itemId id of the virtual item to be taken
+     * @param amount amount of the item to be taken
+     * @param listener the listener to call when the item was taken, may be null
+     */
+    public static void takeVirtualItemAsync(final String itemId, final int amount,
+                                            final StoreCallbacks.OnCompletionListener listener) {
+        StoreExecutor.execute(itemId, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    takeVirtualItem(itemId, amount);
+                    notifyCompletion(listener, null);
+                } catch (Exception e) {
+                    notifyCompletion(listener, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Works like {@link #allItemsBalances()}, but runs on the store's background executor and
+     * calls the given listener with the result on the main thread.
+     * The result includes every change made by asynchronous operations called before, on any
+     * item.
+     *
+     * @param listener the listener to call with the state of all items, may be null
+     */
+    public static void allItemsBalancesAsync(
+            final StoreCallbacks.OnItemsBalancesListener listener) {
+        StoreExecutor.executeOnAllLanes(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final HashMap<String, HashMap<String, Object>> itemsBalances =
+                            allItemsBalances();
+                    if (listener == null) {
+                        return;
+                    }
+                    StoreExecutor.postToMainThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.success(itemsBalances);
+                        }
+                    });
+                } catch (final Exception e) {
+                    if (listener == null) {
+                        logFailure(e);
+                        return;
+                    }
+                    StoreExecutor.postToMainThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.fail(e);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private static void notifyCompletion(final StoreCallbacks.OnCompletionListener listener,
+                                         final Exception e) {
+        if (listener == null) {
+            if (e != null) {
+                logFailure(e);
+            }
+            return;
         }
+
+        StoreExecutor.postToMainThread(new Runnable() {
+            @Override
+            public void run() {
+                if (e == null) {
+                    listener.success();
+                } else {
+                    listener.fail(e);
+                }
+            }
+        });
+    }
+
+    private static void logFailure(Exception e) {
+        SoomlaUtils.LogError(TAG, "Asynchronous store operation failed: " + e.getMessage());
+    }
+
+    /**
+     * Lists the virtual items buying the given item changes or depends on: the item itself,
+     * the virtual item it's paid with, and the currency or good it gives if it's a pack or an
+     * upgrade.
+     */
+    private static List<String> itemsTouchedByBuy(String itemId) {
+        List<String> itemIds = new ArrayList<String>();
+        itemIds.add(itemId);
+
+        VirtualItem item;
+        try {
+            item = StoreInfo.getVirtualItem(itemId);
+        } catch (VirtualItemNotFoundException e) {
+            // the purchase fails without touching anything
+            return itemIds;
+        }
+
+        if (item instanceof PurchasableVirtualItem) {
+            PurchaseType purchaseType = ((PurchasableVirtualItem) item).getPurchaseType();
+            if (purchaseType instanceof PurchaseWithVirtualItem) {
+                itemIds.add(((PurchaseWithVirtualItem) purchaseType).getTargetItemId());
+            }
+        }
+        if (item instanceof VirtualCurrencyPack) {
+            itemIds.add(((VirtualCurrencyPack) item).getCurrencyItemId());
+        } else if (item instanceof SingleUsePackVG) {
+            itemIds.add(((SingleUsePackVG) item).getGoodItemId());
+        } else if (item instanceof UpgradeVG) {
+            itemIds.add(((UpgradeVG) item).getGoodItemId());
+        }
+        return itemIds;
+    }
+
+    private static void clearCurrentState() {
+        // nonconsumables predate the balance stores and are always kept in KeyValueStorage
+        new KeyValueBalanceStore().deleteKeys(StoreInfo.DB_NONCONSUMABLE_KEY_PREFIX);
+
+        StorageManager.clearInventory();
     }
 
     private static final String TAG = "SOOMLA StoreInventory"; //used for Log messages
@@ -0,0 +1,399 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soomla.store.data;
+
+import com.soomla.SoomlaUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Persists inventory changes by appending them to a journal file instead of rewriting them in
+ * the database. Appending to a file is a lot cheaper than updating SQLite rows, especially on
+ * low-end devices.
+ *
+ * The journal sits on top of an {@link InventorySnapshot}: every batch of changes is applied
+ * to the snapshot in memory and appended to the journal as one record. On startup the journal
+ * is replayed on top of the last saved snapshot. Compaction saves the snapshot and empties the
+ * journal; it runs in the background every <code>compactionIntervalMillis</code> and whenever
+ * the journal grows beyond <code>maxJournalBytes</code>.
+ *
+ * Every record is forced to the disk before its changes are applied, and carries a checksum,
+ * so a record that was only partly written when the app died is detected on replay and dropped
+ * together with anything after it. A record that failed to be written is cut off right away.
+ * Records also carry the time they were written, so between compactions the journal is an
+ * audit trail of the inventory's changes.
+ *
+ * Use {@link StorageManager#enableBalanceJournal(long, long)} to turn this mode on.
+ */
+public class BalanceJournal {
+
+    /**
+     * Constructor
+     *
+     * @param file the journal file
+     * @param snapshot the snapshot the journal is replayed on and compacted into
+     * @param compactionIntervalMillis time between periodic compactions, 0 or less to disable
+     * @param maxJournalBytes journal size that triggers a compaction, 0 or less to disable
+     */
+    public BalanceJournal(File file, InventorySnapshot snapshot, long compactionIntervalMillis,
+                          long maxJournalBytes) {
+        mFile = file;
+        mSnapshot = snapshot;
+        mCompactionIntervalMillis = compactionIntervalMillis;
+        mMaxJournalBytes = maxJournalBytes;
+    }
+
+    /**
+     * Opens the journal file, replays it on top of the snapshot and starts the periodic
+     * compactions.
+     *
+     * @throws IOException if the journal file can't be opened or read
+     */
+    public synchronized void open() throws IOException {
+        if (mChannel != null) {
+            return;
+        }
+
+        mChannel = new RandomAccessFile(mFile, "rw").getChannel();
+        try {
+            replay();
+        } catch (IOException e) {
+            mChannel.close();
+            mChannel = null;
+            throw e;
+        }
+
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SOOMLA BalanceJournal");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (mCompactionIntervalMillis > 0) {
+            mPeriodicCompaction = mExecutor.scheduleWithFixedDelay(mCompactRunnable,
+                    mCompactionIntervalMillis, mCompactionIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Compacts the journal one last time and closes it.
+     */
+    public synchronized void close() {
+        if (mChannel == null) {
+            return;
+        }
+
+        if (mPeriodicCompaction != null) {
+            mPeriodicCompaction.cancel(false);
+            mPeriodicCompaction = null;
+        }
+        mExecutor.shutdown();
+        mExecutor = null;
+
+        compact();
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            SoomlaUtils.LogError(TAG, "Couldn't close the journal: " + e.getMessage());
+        }
+        mChannel = null;
+    }
+
+    /**
+     * Applies the given inventory keys to the snapshot and appends them to the journal as one
+     * record. Once the journal is closed, the keys are saved in the snapshot directly instead,
+     * for writers that got hold of the journal before it was turned off.
+     *
+     * @param values key -> value to write, a null value means the key is to be deleted
+     * @throws IllegalStateException if the record couldn't be written
+     */
+    public synchronized void append(Map<String, String> values) {
+        if (values.isEmpty()) {
+            return;
+        }
+        if (mChannel == null) {
+            mSnapshot.setValues(values);
+            return;
+        }
+
+        ByteBuffer record;
+        try {
+            record = encodeRecord(values);
+        } catch (IOException e) {
+            // can't happen, we only write to memory
+            throw new IllegalStateException(e);
+        }
+
+        try {
+            // drops what's left of a record an earlier append failed in the middle of
+            if (mChannel.size() != mEnd) {
+                mChannel.truncate(mEnd);
+            }
+            mChannel.position(mEnd);
+            while (record.hasRemaining()) {
+                mChannel.write(record);
+            }
+
+            // the change only counts as saved once the record is on the disk
+            mChannel.force(false);
+            mEnd = mChannel.position();
+        } catch (IOException e) {
+            truncateToEnd();
+            throw new IllegalStateException("Couldn't append to the journal: "
+                    + e.getMessage(), e);
+        }
+        mSnapshot.applyValues(values);
+
+        if (mMaxJournalBytes > 0 && !mCompactionRequested) {
+            try {
+                if (mChannel.size() >= mMaxJournalBytes) {
+                    mCompactionRequested = true;
+                    mExecutor.execute(mCompactRunnable);
+                }
+            } catch (IOException e) {
+                SoomlaUtils.LogError(TAG, "Couldn't check the journal's size: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Saves the snapshot and empties the journal. The journal is only emptied once the saved
+     * snapshot was read back from the database, so the changes are never only in memory.
+     * If the app dies in between, replaying the journal on the saved snapshot is harmless since
+     * records hold final values.
+     */
+    public synchronized void compact() {
+        mCompactionRequested = false;
+        if (mChannel == null) {
+            return;
+        }
+
+        try {
+            if (mChannel.size() == 0) {
+                return;
+            }
+
+            SoomlaUtils.LogDebug(TAG, "compacting " + mChannel.size() + " journal bytes");
+
+            if (!mSnapshot.saveVerified()) {
+                SoomlaUtils.LogError(TAG, "Couldn't save the inventory snapshot, keeping the "
+                        + "journal");
+                return;
+            }
+            mChannel.truncate(0);
+            mChannel.position(0);
+            mChannel.force(true);
+            mEnd = 0;
+        } catch (IOException e) {
+            SoomlaUtils.LogError(TAG, "Couldn't compact the journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Empties the journal without saving anything, for when the inventory is cleared.
+     */
+    public synchronized void clear() {
+        if (mChannel == null) {
+            return;
+        }
+
+        try {
+            mChannel.truncate(0);
+            mChannel.position(0);
+            mChannel.force(true);
+            mEnd = 0;
+        } catch (IOException e) {
+            SoomlaUtils.LogError(TAG, "Couldn't clear the journal: " + e.getMessage());
+        }
+    }
+
+
+    /** Setters and Getters */
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public long getCompactionIntervalMillis() {
+        return mCompactionIntervalMillis;
+    }
+
+    public long getMaxJournalBytes() {
+        return mMaxJournalBytes;
+    }
+
+    /**
+     * Reads all complete records from the journal and applies them to the snapshot. The journal
+     * is cut right after the last good record, dropping a record torn by a crash.
+     */
+    private void replay() throws IOException {
+        mEnd = 0;
+        long size = mChannel.size();
+        if (size == 0) {
+            return;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        mChannel.position(0);
+        while (buffer.hasRemaining() && mChannel.read(buffer) >= 0) {
+            // keep reading
+        }
+        buffer.flip();
+
+        int records = 0;
+        int goodEnd = 0;
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            int length = buffer.getInt();
+            long checksum = buffer.getInt() & 0xFFFFFFFFL;
+            if (length < 0 || length > buffer.remaining()) {
+                break;
+            }
+
+            byte[] payload = new byte[length];
+            buffer.get(payload);
+            crc.reset();
+            crc.update(payload, 0, length);
+            if (crc.getValue() != checksum) {
+                break;
+            }
+
+            mSnapshot.applyValues(decodePayload(payload));
+            records++;
+            goodEnd = buffer.position();
+        }
+
+        if (goodEnd < size) {
+            SoomlaUtils.LogError(TAG, "Dropping " + (size - goodEnd) + " bytes of an incomplete "
+                    + "journal record");
+            mChannel.truncate(goodEnd);
+        }
+        mChannel.position(goodEnd);
+        mEnd = goodEnd;
+
+        SoomlaUtils.LogDebug(TAG, "replayed " + records + " journal records");
+    }
+
+    /**
+     * Cuts the journal back to the end of the last complete record, after an append failed in
+     * the middle. If this fails too, the next append tries again before writing.
+     */
+    private void truncateToEnd() {
+        try {
+            mChannel.truncate(mEnd);
+            mChannel.position(mEnd);
+        } catch (IOException e) {
+            SoomlaUtils.LogError(TAG, "Couldn't drop an incomplete journal record: "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Encodes a record: payload length, payload CRC32, then the payload - the time it was
+     * written, the number of keys, and for each key whether it's set or deleted, the key and
+     * the value.
+     */
+    private static ByteBuffer encodeRecord(Map<String, String> values) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * values.size());
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(System.currentTimeMillis());
+        out.writeInt(values.size());
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            out.writeBoolean(entry.getValue() != null);
+            out.writeUTF(entry.getKey());
+            if (entry.getValue() != null) {
+                out.writeUTF(entry.getValue());
+            }
+        }
+        out.flush();
+        byte[] payload = bytes.toByteArray();
+
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+        record.putInt(payload.length);
+        record.putInt((int) crc.getValue());
+        record.put(payload);
+        record.flip();
+        return record;
+    }
+
+    private static Map<String, String> decodePayload(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        in.readLong(); // time of the change, only useful when auditing the journal
+
+        int count = in.readInt();
+        Map<String, String> values = new LinkedHashMap<String, String>();
+        for (int i = 0; i < count; i++) {
+            boolean set = in.readBoolean();
+            String key = in.readUTF();
+            values.put(key, set ? in.readUTF() : null);
+        }
+        return values;
+    }
+
+
+    /** Private Members */
+
+    private static final String TAG = "SOOMLA BalanceJournal"; //used for Log messages
+
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private final File mFile;
+    private final InventorySnapshot mSnapshot;
+    private final long mCompactionIntervalMillis;
+    private final long mMaxJournalBytes;
+
+    private FileChannel mChannel;
+
+    // the end of the last complete record
+    private long mEnd = 0;
+    private boolean mCompactionRequested = false;
+    private ScheduledExecutorService mExecutor;
+    private ScheduledFuture<?> mPeriodicCompaction;
+
+    private final Runnable mCompactRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                compact();
+            } catch (Exception e) {
+                SoomlaUtils.LogError(TAG, "compaction failed: " + e.getMessage());
+            }
+        }
+    };
+}
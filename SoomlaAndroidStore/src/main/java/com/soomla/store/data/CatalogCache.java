@@ -0,0 +1,750 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soomla.store.data;
+
+import com.soomla.SoomlaUtils;
+import com.soomla.store.domain.MarketItem;
+import com.soomla.store.domain.PurchasableVirtualItem;
+import com.soomla.store.domain.VirtualCategory;
+import com.soomla.store.domain.VirtualItem;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrencyPack;
+import com.soomla.store.domain.virtualGoods.EquippableVG;
+import com.soomla.store.domain.virtualGoods.LifetimeVG;
+import com.soomla.store.domain.virtualGoods.SingleUsePackVG;
+import com.soomla.store.domain.virtualGoods.SingleUseVG;
+import com.soomla.store.domain.virtualGoods.UpgradeVG;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+import com.soomla.store.purchaseTypes.PurchaseType;
+import com.soomla.store.purchaseTypes.PurchaseWithMarket;
+import com.soomla.store.purchaseTypes.PurchaseWithVirtualItem;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps a compiled copy of the store's metadata in a binary file, so warm starts don't have to
+ * decrypt the metadata, parse its JSON and build every item through the <code>JSONObject</code>
+ * constructors.
+ *
+ * The file starts with a header holding the SHA-1 hash of its body. The same hash is kept in
+ * the database, next to the metadata it was compiled from; a file whose header hash, format
+ * version or length doesn't match is ignored, and the metadata is loaded the usual way. The
+ * body itself isn't hashed again on load: the file is only renamed into place once it was
+ * fully written, and a damaged record fails to decode instead of being read as another item.
+ * The file is deleted before the metadata is changed in the database, and compiled again after
+ * the next full load or save.
+ *
+ * The body starts with a table of all distinct strings, each one length-prefixed, followed by
+ * one length-prefixed record per item and category that refers to strings by their index in
+ * the table. The file is read through a memory-mapped <code>ByteBuffer</code>.
+ *
+ * Goods can be loaded lazily (see {@link StoreInfo#enableLazyItems()}): only their itemIds and
+ * product ids are read, and the rest of each record is read from the mapped file when the good
+ * is first retrieved. A good whose record can't be read then throws, and the file is deleted
+ * so the next start loads the metadata the usual way.
+ *
+ * Use {@link StoreInfo#enableCatalogCache()} to turn the cache on.
+ */
+final class CatalogCache {
+
+    /**
+     * Constructor
+     *
+     * @param file the cache file
+     */
+    CatalogCache(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Reads the cached catalog into the given builder.
+     *
+     * @param catalog the builder to add the items and categories to
+     * @param itemRecords true if the metadata is stored as item records, false if it's stored
+     *                    as JSON. A cache compiled while the metadata was in the other format is
+     *                    ignored, so the metadata gets converted on the usual load.
+     * @param lazy true to add goods (other than upgrades) as lazy items that are read from
+     *             the cache when they're first retrieved
+     * @return true if the whole catalog was read, false if there's no valid cache
+     */
+    synchronized boolean load(StoreCatalog.Builder catalog, boolean itemRecords, boolean lazy) {
+        if (!mFile.exists()) {
+            return false;
+        }
+        return load(catalog, itemRecords, lazy, DATABASE.getValue(KEY_HASH));
+    }
+
+    /**
+     * Compiles the given catalog into the cache file, and keeps its hash in the database.
+     * The file is written aside and renamed into place, so a half written file is never read.
+     *
+     * @param catalog the catalog to compile
+     * @param itemRecords true if the metadata is stored as item records, false if it's stored
+     *                    as JSON
+     */
+    synchronized void write(StoreCatalog catalog, boolean itemRecords) {
+        String hash = compile(catalog, itemRecords);
+        if (hash != null) {
+            DATABASE.setValue(KEY_HASH, hash);
+        }
+    }
+
+    /**
+     * Deletes the cache file, so it isn't loaded until it's written again. Call this before
+     * changing the metadata in the database.
+     */
+    synchronized void invalidate() {
+        mFile.delete();
+    }
+
+    /**
+     * Deletes the cache file and its hash.
+     */
+    synchronized void delete() {
+        mFile.delete();
+        DATABASE.deleteKeyValue(KEY_HASH);
+    }
+
+    /**
+     * Reads the cached catalog into the given builder, if the cache file has the given hash.
+     *
+     * @param expectedHash the hash kept in the database for the cache file
+     * @see #load(StoreCatalog.Builder, boolean, boolean)
+     */
+    synchronized boolean load(StoreCatalog.Builder catalog, boolean itemRecords, boolean lazy,
+                              String expectedHash) {
+        if (expectedHash == null || !mFile.exists()) {
+            return false;
+        }
+
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "r");
+            FileChannel channel = file.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+                SoomlaUtils.LogDebug(TAG, "not a catalog cache, ignoring it.");
+                return false;
+            }
+            int version = buffer.get();
+            if (version != FORMAT_VERSION) {
+                SoomlaUtils.LogDebug(TAG, "unknown catalog cache version " + version
+                        + ", ignoring it.");
+                return false;
+            }
+            if ((buffer.get() == SOURCE_ITEM_RECORDS) != itemRecords) {
+                SoomlaUtils.LogDebug(TAG, "the catalog cache is of the other metadata format, "
+                        + "ignoring it.");
+                return false;
+            }
+            byte[] hash = new byte[HASH_SIZE];
+            buffer.get(hash);
+            int bodyLength = buffer.getInt();
+            if (bodyLength != buffer.remaining()) {
+                SoomlaUtils.LogDebug(TAG, "the catalog cache is truncated, ignoring it.");
+                return false;
+            }
+
+            if (!toHex(hash).equals(expectedHash)) {
+                SoomlaUtils.LogDebug(TAG, "the catalog cache is stale, ignoring it.");
+                return false;
+            }
+
+            ByteBuffer body = buffer.slice();
+
+            decode(body, catalog, lazy);
+            return true;
+        } catch (IOException e) {
+            SoomlaUtils.LogError(TAG, "Couldn't read the catalog cache: " + e.getMessage());
+        } catch (BufferUnderflowException e) {
+            SoomlaUtils.LogError(TAG, "The catalog cache ends in the middle of a record.");
+        } catch (IndexOutOfBoundsException e) {
+            SoomlaUtils.LogError(TAG, "The catalog cache refers to a missing string.");
+        } finally {
+            closeQuietly(file);
+        }
+        return false;
+    }
+
+    /**
+     * Compiles the given catalog into the cache file, without keeping its hash in the
+     * database. The file is written aside and renamed into place, so a half written file is
+     * never read.
+     *
+     * @return the hash of the file, or null if it couldn't be written
+     * @see #write(StoreCatalog, boolean)
+     */
+    synchronized String compile(StoreCatalog catalog, boolean itemRecords) {
+        File tmp = new File(mFile.getPath() + TMP_SUFFIX);
+        FileOutputStream out = null;
+        try {
+            byte[] body = encode(catalog);
+            byte[] hash = sha1(ByteBuffer.wrap(body));
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC);
+            header.put(FORMAT_VERSION);
+            header.put(itemRecords ? SOURCE_ITEM_RECORDS : SOURCE_JSON);
+            header.put(hash);
+            header.putInt(body.length);
+
+            out = new FileOutputStream(tmp);
+            out.write(header.array());
+            out.write(body);
+            out.getFD().sync();
+            out.close();
+            out = null;
+
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("can't rename " + tmp + " to " + mFile);
+            }
+            return toHex(hash);
+        } catch (IOException e) {
+            SoomlaUtils.LogError(TAG, "Couldn't write the catalog cache: " + e.getMessage());
+            closeQuietly(out);
+            tmp.delete();
+            mFile.delete();
+        }
+        return null;
+    }
+
+
+    /**
+     * Encodes the given catalog into the body of a cache file. Equal catalogs always get the
+     * same bytes.
+     *
+     * @param catalog the catalog to encode
+     * @return the body
+     * @throws IOException never, the body is written in memory
+     */
+    static byte[] encode(StoreCatalog catalog) throws IOException {
+        Map<String, Integer> strings = new HashMap<String, Integer>();
+        List<String> table = new ArrayList<String>();
+
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(records);
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(recordBytes);
+
+        List<VirtualItem> items = new ArrayList<VirtualItem>();
+        items.addAll(catalog.getCurrencies());
+        items.addAll(catalog.getCurrencyPacks());
+        items.addAll(catalog.getGoods());
+
+        out.writeInt(items.size() + catalog.getCategories().size());
+        for (VirtualItem item : items) {
+            byte type = typeOf(item);
+            if (type == TYPE_NONE) {
+                SoomlaUtils.LogError(TAG, "Can't cache " + item.getItemId()
+                        + ", its type can't be compiled.");
+                throw new IOException("unknown item type " + item.getClass().getName());
+            }
+
+            recordBytes.reset();
+            record.writeByte(type);
+            writeString(record, item.getName(), strings, table);
+            writeString(record, item.getDescription(), strings, table);
+            writeString(record, item.getItemId(), strings, table);
+
+            if (item instanceof PurchasableVirtualItem) {
+                writePurchaseType(record, ((PurchasableVirtualItem) item).getPurchaseType(),
+                        strings, table);
+            }
+
+            if (item instanceof VirtualCurrencyPack) {
+                VirtualCurrencyPack pack = (VirtualCurrencyPack) item;
+                record.writeInt(pack.getCurrencyAmount());
+                writeString(record, pack.getCurrencyItemId(), strings, table);
+            } else if (item instanceof SingleUsePackVG) {
+                SingleUsePackVG pack = (SingleUsePackVG) item;
+                writeString(record, pack.getGoodItemId(), strings, table);
+                record.writeInt(pack.getGoodAmount());
+            } else if (item instanceof UpgradeVG) {
+                UpgradeVG upgrade = (UpgradeVG) item;
+                writeString(record, upgrade.getGoodItemId(), strings, table);
+                writeString(record, upgrade.getPrevItemId(), strings, table);
+                writeString(record, upgrade.getNextItemId(), strings, table);
+            } else if (item instanceof EquippableVG) {
+                writeString(record, ((EquippableVG) item).getEquippingModel().toString(),
+                        strings, table);
+            }
+
+            record.flush();
+            out.writeInt(recordBytes.size());
+            recordBytes.writeTo(out);
+        }
+
+        for (VirtualCategory category : catalog.getCategories()) {
+            recordBytes.reset();
+            record.writeByte(TYPE_CATEGORY);
+            writeString(record, category.getName(), strings, table);
+            List<String> goodsItemIds = category.getGoodsItemIds();
+            record.writeInt(goodsItemIds.size());
+            for (String goodItemId : goodsItemIds) {
+                writeString(record, goodItemId, strings, table);
+            }
+
+            record.flush();
+            out.writeInt(recordBytes.size());
+            recordBytes.writeTo(out);
+        }
+        out.flush();
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream(records.size() + table.size() * 16);
+        DataOutputStream bodyOut = new DataOutputStream(body);
+        bodyOut.writeInt(table.size());
+        for (String s : table) {
+            byte[] utf8 = s.getBytes(UTF_8);
+            bodyOut.writeInt(utf8.length);
+            bodyOut.write(utf8);
+        }
+        records.writeTo(bodyOut);
+        bodyOut.flush();
+        return body.toByteArray();
+    }
+
+    private void decode(ByteBuffer body, StoreCatalog.Builder catalog, boolean lazy)
+            throws IOException {
+        StringTable table = new StringTable(body);
+
+        int count = body.getInt();
+        for (int i = 0; i < count; i++) {
+            int length = body.getInt();
+            int start = body.position();
+            int end = start + length;
+            if (length < 1 || end > body.limit()) {
+                throw new IOException("bad catalog cache record length");
+            }
+
+            byte type = body.get(start);
+            if (lazy && isLazyType(type)) {
+                catalog.addLazyGood(readLazyGood(body, start, table));
+                body.position(end);
+                continue;
+            }
+
+            body.get();
+            if (type == TYPE_CATEGORY) {
+                String name = readString(body, table);
+                int goodsCount = body.getInt();
+                ArrayList<String> goodsItemIds = new ArrayList<String>(goodsCount);
+                for (int j = 0; j < goodsCount; j++) {
+                    goodsItemIds.add(readString(body, table));
+                }
+                catalog.addCategory(new VirtualCategory(name, goodsItemIds));
+            } else {
+                VirtualItem item = readItem(type, body, table);
+                if (item instanceof VirtualCurrency) {
+                    catalog.addCurrency((VirtualCurrency) item);
+                } else if (item instanceof VirtualCurrencyPack) {
+                    catalog.addCurrencyPack((VirtualCurrencyPack) item);
+                } else {
+                    catalog.addGood((VirtualGood) item);
+                }
+            }
+
+            if (body.position() != end) {
+                throw new IOException("bad catalog cache record length");
+            }
+        }
+    }
+
+    /**
+     * Reads only what the catalog needs to index a good, its itemId and product id, and
+     * leaves the rest of the record to be read when the good is first retrieved.
+     */
+    private LazyItem readLazyGood(ByteBuffer body, int start, StringTable table)
+            throws IOException {
+        ByteBuffer in = body.duplicate();
+        in.position(start);
+        byte type = in.get();
+        in.getInt(); // name
+        in.getInt(); // description
+        String itemId = readString(in, table);
+
+        Class<? extends PurchaseType> purchaseClass;
+        String productId = null;
+        String priceItemId = null;
+        long marketPriceMicros = -1;
+        int virtualPrice = -1;
+        byte purchase = in.get();
+        if (purchase == PURCHASE_MARKET) {
+            purchaseClass = PurchaseWithMarket.class;
+            productId = readString(in, table);
+            double price = in.getDouble();
+            in.getInt(); // market price and currency
+            in.getInt(); // market title
+            in.getInt(); // market description
+            in.getInt(); // market currency code
+            marketPriceMicros = ItemTraits.marketPriceMicros(price, in.getLong());
+        } else if (purchase == PURCHASE_VIRTUAL_ITEM) {
+            purchaseClass = PurchaseWithVirtualItem.class;
+            priceItemId = readString(in, table);
+            virtualPrice = in.getInt();
+        } else {
+            throw new IOException("unknown catalog cache purchase type " + purchase);
+        }
+
+        Class<? extends VirtualGood> itemClass;
+        EquippableVG.EquippingModel equippingModel = null;
+        switch (type) {
+            case TYPE_SINGLE_USE:
+                itemClass = SingleUseVG.class;
+                break;
+            case TYPE_LIFETIME:
+                itemClass = LifetimeVG.class;
+                break;
+            case TYPE_EQUIPPABLE:
+                itemClass = EquippableVG.class;
+                equippingModel = EquippableVG.EquippingModel.fromString(readString(in, table));
+                break;
+            case TYPE_SINGLE_USE_PACK:
+                itemClass = SingleUsePackVG.class;
+                break;
+            default:
+                throw new IOException("catalog cache record type " + type + " can't be lazy");
+        }
+
+        // the subscription flag isn't part of the stored metadata, same as in its JSON
+        ItemTraits traits = new ItemTraits(itemClass, purchaseClass, productId, priceItemId,
+                marketPriceMicros, virtualPrice, false, equippingModel);
+        return new CachedGood(mFile, itemId, traits, body, start, table);
+    }
+
+    private static VirtualItem readItem(byte type, ByteBuffer body, StringTable table)
+            throws IOException {
+        String name = readString(body, table);
+        String description = readString(body, table);
+        String itemId = readString(body, table);
+
+        if (type == TYPE_CURRENCY) {
+            return new VirtualCurrency(name, description, itemId);
+        }
+
+        PurchaseType purchaseType = readPurchaseType(body, table);
+        if (type == TYPE_CURRENCY_PACK) {
+            int amount = body.getInt();
+            String currencyItemId = readString(body, table);
+            return new VirtualCurrencyPack(name, description, itemId, amount, currencyItemId,
+                    purchaseType);
+        }
+        return readGood(type, name, description, itemId, purchaseType, body, table);
+    }
+
+    private static VirtualGood readGood(byte type, String name, String description, String itemId,
+                                        PurchaseType purchaseType, ByteBuffer body,
+                                        StringTable table) throws IOException {
+        switch (type) {
+            case TYPE_SINGLE_USE:
+                return new SingleUseVG(name, description, itemId, purchaseType);
+            case TYPE_LIFETIME:
+                return new LifetimeVG(name, description, itemId, purchaseType);
+            case TYPE_EQUIPPABLE:
+                EquippableVG.EquippingModel model =
+                        EquippableVG.EquippingModel.fromString(readString(body, table));
+                return new EquippableVG(model, name, description, itemId, purchaseType);
+            case TYPE_SINGLE_USE_PACK:
+                String goodItemId = readString(body, table);
+                int amount = body.getInt();
+                return new SingleUsePackVG(goodItemId, amount, name, description, itemId,
+                        purchaseType);
+            case TYPE_UPGRADE:
+                String upgradedItemId = readString(body, table);
+                String prevItemId = readString(body, table);
+                String nextItemId = readString(body, table);
+                return new UpgradeVG(upgradedItemId, prevItemId, nextItemId, name, description,
+                        itemId, purchaseType);
+            default:
+                throw new IOException("unknown catalog cache record type " + type);
+        }
+    }
+
+    private static void writePurchaseType(DataOutputStream out, PurchaseType purchaseType,
+                                          Map<String, Integer> strings, List<String> table)
+            throws IOException {
+        if (purchaseType instanceof PurchaseWithMarket) {
+            MarketItem marketItem = ((PurchaseWithMarket) purchaseType).getMarketItem();
+            out.writeByte(PURCHASE_MARKET);
+            writeString(out, marketItem.getProductId(), strings, table);
+            out.writeDouble(marketItem.getPrice());
+            writeString(out, marketItem.getMarketPriceAndCurrency(), strings, table);
+            writeString(out, marketItem.getMarketTitle(), strings, table);
+            writeString(out, marketItem.getMarketDescription(), strings, table);
+            writeString(out, marketItem.getMarketCurrencyCode(), strings, table);
+            out.writeLong(marketItem.getMarketPriceMicros());
+        } else if (purchaseType instanceof PurchaseWithVirtualItem) {
+            PurchaseWithVirtualItem withItem = (PurchaseWithVirtualItem) purchaseType;
+            out.writeByte(PURCHASE_VIRTUAL_ITEM);
+            writeString(out, withItem.getTargetItemId(), strings, table);
+            out.writeInt(withItem.getAmount());
+        } else {
+            throw new IOException("unknown purchase type " + purchaseType);
+        }
+    }
+
+    private static PurchaseType readPurchaseType(ByteBuffer body, StringTable table)
+            throws IOException {
+        byte purchase = body.get();
+        if (purchase == PURCHASE_MARKET) {
+            MarketItem marketItem = new MarketItem(readString(body, table), body.getDouble());
+            String priceAndCurrency = readString(body, table);
+            String title = readString(body, table);
+            String description = readString(body, table);
+            String currencyCode = readString(body, table);
+            marketItem.setMarketInformation(priceAndCurrency, title, description, currencyCode,
+                    body.getLong());
+            return new PurchaseWithMarket(marketItem);
+        } else if (purchase == PURCHASE_VIRTUAL_ITEM) {
+            return new PurchaseWithVirtualItem(readString(body, table), body.getInt());
+        }
+        throw new IOException("unknown catalog cache purchase type " + purchase);
+    }
+
+    private static void writeString(DataOutputStream out, String s, Map<String, Integer> strings,
+                                    List<String> table) throws IOException {
+        if (s == null) {
+            out.writeInt(NULL_STRING);
+            return;
+        }
+
+        Integer index = strings.get(s);
+        if (index == null) {
+            index = table.size();
+            strings.put(s, index);
+            table.add(s);
+        }
+        out.writeInt(index);
+    }
+
+    private static String readString(ByteBuffer body, StringTable table) {
+        return table.get(body.getInt());
+    }
+
+    private static boolean isLazyType(byte type) {
+        return type == TYPE_SINGLE_USE || type == TYPE_LIFETIME || type == TYPE_EQUIPPABLE
+                || type == TYPE_SINGLE_USE_PACK;
+    }
+
+    private static byte typeOf(VirtualItem item) {
+        if (item instanceof VirtualCurrency) {
+            return TYPE_CURRENCY;
+        } else if (item instanceof VirtualCurrencyPack) {
+            return TYPE_CURRENCY_PACK;
+        } else if (item instanceof SingleUseVG) {
+            return TYPE_SINGLE_USE;
+        } else if (item instanceof UpgradeVG) {
+            return TYPE_UPGRADE;
+        } else if (item instanceof EquippableVG) {
+            return TYPE_EQUIPPABLE;
+        } else if (item instanceof SingleUsePackVG) {
+            return TYPE_SINGLE_USE_PACK;
+        } else if (item instanceof LifetimeVG) {
+            return TYPE_LIFETIME;
+        }
+        return TYPE_NONE;
+    }
+
+    private static byte[] sha1(ByteBuffer bytes) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(bytes.duplicate());
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-1 isn't available");
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The string table at the start of the cache body. Strings are decoded the first time
+     * they're needed, so strings of goods that are never built are never decoded.
+     */
+    private static final class StringTable {
+
+        /**
+         * Constructor
+         * Reads the offsets of the strings and leaves the given buffer right after the table.
+         *
+         * @param body the cache body, positioned at the string table
+         */
+        StringTable(ByteBuffer body) {
+            mBody = body.duplicate();
+            int count = body.getInt();
+            mOffsets = new int[count];
+            mStrings = new String[count];
+            for (int i = 0; i < count; i++) {
+                mOffsets[i] = body.position();
+                int length = body.getInt();
+                body.position(body.position() + length);
+            }
+        }
+
+        synchronized String get(int index) {
+            if (index == NULL_STRING) {
+                return null;
+            }
+
+            String s = mStrings[index];
+            if (s == null) {
+                byte[] utf8 = new byte[mBody.getInt(mOffsets[index])];
+                mBody.position(mOffsets[index] + 4);
+                mBody.get(utf8);
+                s = new String(utf8, UTF_8);
+                mStrings[index] = s;
+            }
+            return s;
+        }
+
+        private final ByteBuffer mBody;
+        private final int[] mOffsets;
+        private final String[] mStrings;
+    }
+
+    /**
+     * A good whose record is read from the cache the first time it's retrieved.
+     */
+    private static final class CachedGood extends LazyItem {
+
+        /**
+         * Constructor
+         *
+         * @param file the cache file, deleted if the record can't be read
+         * @param itemId see parent
+         * @param traits see parent
+         * @param body the cache body
+         * @param offset the offset of the good's record in the body
+         * @param table the string table of the body
+         */
+        CachedGood(File file, String itemId, ItemTraits traits, ByteBuffer body, int offset,
+                   StringTable table) {
+            super(itemId, traits);
+            mFile = file;
+            mBody = body;
+            mOffset = offset;
+            mTable = table;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected VirtualItem materialize() {
+            ByteBuffer in = mBody.duplicate();
+            in.position(mOffset);
+            try {
+                return readItem(in.get(), in, mTable);
+            } catch (IOException e) {
+                SoomlaUtils.LogError(TAG, "Couldn't read " + getItemId() + " from the catalog "
+                        + "cache: " + e.getMessage());
+            } catch (BufferUnderflowException e) {
+                SoomlaUtils.LogError(TAG, "The record of " + getItemId() + " in the catalog "
+                        + "cache is truncated.");
+            } catch (IndexOutOfBoundsException e) {
+                SoomlaUtils.LogError(TAG, "The record of " + getItemId() + " in the catalog "
+                        + "cache refers to a missing string.");
+            }
+            // not through invalidate(), which would wait on a cache that may be compiling the
+            // catalog this good is in
+            mFile.delete();
+            return null;
+        }
+
+        private final File mFile;
+        private final ByteBuffer mBody;
+        private final int mOffset;
+        private final StringTable mTable;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // nothing to do, the file was already read or is about to be deleted
+        }
+    }
+
+
+    /** Private Members */
+
+    private static final String TAG = "SOOMLA CatalogCache"; //used for Log messages
+
+    // the metadata is kept in the database, written through a balance store so its key
+    // index stays up to date
+    private static final IBalanceStore DATABASE = new KeyValueBalanceStore();
+
+    // the hash of the cache body, kept next to the metadata it was compiled from
+    private static final String KEY_HASH = "meta.catalog.hash";
+
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int MAGIC = 0x53434154; // "SCAT"
+    private static final byte FORMAT_VERSION = 1;
+    private static final int HASH_SIZE = 20;
+    private static final int HEADER_SIZE = 4 + 1 + 1 + HASH_SIZE + 4;
+
+    // the format of the metadata in the database when the cache was compiled
+    private static final byte SOURCE_JSON = 0;
+    private static final byte SOURCE_ITEM_RECORDS = 1;
+
+    private static final int NULL_STRING = -1;
+
+    private static final byte TYPE_NONE = 0;
+    private static final byte TYPE_CURRENCY = 1;
+    private static final byte TYPE_CURRENCY_PACK = 2;
+    private static final byte TYPE_SINGLE_USE = 3;
+    private static final byte TYPE_LIFETIME = 4;
+    private static final byte TYPE_EQUIPPABLE = 5;
+    private static final byte TYPE_SINGLE_USE_PACK = 6;
+    private static final byte TYPE_UPGRADE = 7;
+    private static final byte TYPE_CATEGORY = 8;
+
+    private static final byte PURCHASE_MARKET = 1;
+    private static final byte PURCHASE_VIRTUAL_ITEM = 2;
+
+    private final File mFile;
+}
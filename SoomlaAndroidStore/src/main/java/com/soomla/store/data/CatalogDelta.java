@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soomla.store.data;
+
+import com.soomla.store.domain.VirtualCategory;
+import com.soomla.store.domain.VirtualItem;
+import com.soomla.store.domain.virtualGoods.UpgradeVG;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A set of changes to the store's metadata: virtual items and categories to add, replace or
+ * remove. Applied with {@link StoreInfo#applyDelta(CatalogDelta)}, it updates the live catalog
+ * and the stored metadata in place, without reloading the metadata or touching balances.
+ *
+ * Changes are keyed by itemId (or category name), so a later change to the same item replaces
+ * an earlier one in the same delta.
+ *
+ * Removing a good also removes its upgrades and takes it out of its category. A delta that
+ * would leave other items referring to an item that's gone, e.g. goods priced in a removed
+ * currency, is rejected as a whole.
+ *
+ * How to use:
+ * <pre>
+ * StoreInfo.applyDelta(new CatalogDelta()
+ *         .putItem(new SingleUseVG(...))
+ *         .removeItem("old_item_id")
+ *         .putCategory(new VirtualCategory(...)));
+ * </pre>
+ */
+public final class CatalogDelta {
+
+    /**
+     * Constructor
+     * Starts an empty delta.
+     */
+    public CatalogDelta() {
+        mItems = new LinkedHashMap<String, VirtualItem>();
+        mCategories = new LinkedHashMap<String, VirtualCategory>();
+    }
+
+    /**
+     * Adds the given virtual item, or replaces the one with the same itemId.
+     *
+     * @param item the virtual item to add or replace
+     * @return this delta
+     */
+    public CatalogDelta putItem(VirtualItem item) {
+        mItems.remove(item.getItemId());
+        mItems.put(item.getItemId(), item);
+        return this;
+    }
+
+    /**
+     * Removes the virtual item with the given itemId. Its balance is kept in the database, so
+     * it comes back if the item is added again.
+     *
+     * @param itemId the itemId of the virtual item to remove
+     * @return this delta
+     */
+    public CatalogDelta removeItem(String itemId) {
+        mItems.remove(itemId);
+        mItems.put(itemId, null);
+        return this;
+    }
+
+    /**
+     * Adds the given category, or replaces the one with the same name.
+     *
+     * @param category the category to add or replace
+     * @return this delta
+     */
+    public CatalogDelta putCategory(VirtualCategory category) {
+        mCategories.remove(category.getName());
+        mCategories.put(category.getName(), category);
+        return this;
+    }
+
+    /**
+     * Removes the category with the given name.
+     *
+     * @param name the name of the category to remove
+     * @return this delta
+     */
+    public CatalogDelta removeCategory(String name) {
+        mCategories.remove(name);
+        mCategories.put(name, null);
+        return this;
+    }
+
+    public boolean isEmpty() {
+        return mItems.isEmpty() && mCategories.isEmpty();
+    }
+
+
+    /**
+     * Retrieves a copy of this delta with the changes that removing items calls for in the
+     * given catalog: the upgrades of a removed good are removed with it, and removed goods are
+     * taken out of the categories that list them.
+     *
+     * @param catalog the catalog the delta is to be applied to
+     * @return the delta with the follow-up changes, this delta is not changed
+     */
+    CatalogDelta cascade(StoreCatalog catalog) {
+        CatalogDelta cascaded = new CatalogDelta();
+        cascaded.mItems.putAll(mItems);
+        cascaded.mCategories.putAll(mCategories);
+
+        Set<String> removed = new HashSet<String>();
+        for (Map.Entry<String, VirtualItem> entry : mItems.entrySet()) {
+            if (entry.getValue() != null) {
+                continue;
+            }
+            removed.add(entry.getKey());
+
+            List<UpgradeVG> upgrades = catalog.getGoodUpgrades(entry.getKey());
+            if (upgrades == null) {
+                continue;
+            }
+            for (UpgradeVG upgradeVG : upgrades) {
+                if (!mItems.containsKey(upgradeVG.getItemId())) {
+                    cascaded.mItems.put(upgradeVG.getItemId(), null);
+                    removed.add(upgradeVG.getItemId());
+                }
+            }
+        }
+        if (removed.isEmpty()) {
+            return cascaded;
+        }
+
+        List<VirtualCategory> categories = new ArrayList<VirtualCategory>();
+        for (VirtualCategory category : catalog.getCategories()) {
+            if (!mCategories.containsKey(category.getName())) {
+                categories.add(category);
+            }
+        }
+        for (VirtualCategory category : mCategories.values()) {
+            if (category != null) {
+                categories.add(category);
+            }
+        }
+        for (VirtualCategory category : categories) {
+            ArrayList<String> goodsItemIds = new ArrayList<String>(category.getGoodsItemIds());
+            if (goodsItemIds.removeAll(removed)) {
+                cascaded.mCategories.put(category.getName(),
+                        new VirtualCategory(category.getName(), goodsItemIds));
+            }
+        }
+        return cascaded;
+    }
+
+
+    /** Setters and Getters */
+
+    /**
+     * Retrieves the item changes in the order they were made.
+     *
+     * @return itemId -> the new item, or null if the item is removed
+     */
+    Map<String, VirtualItem> getItems() {
+        return mItems;
+    }
+
+    /**
+     * Retrieves the category changes in the order they were made.
+     *
+     * @return category name -> the new category, or null if the category is removed
+     */
+    Map<String, VirtualCategory> getCategories() {
+        return mCategories;
+    }
+
+
+    /** Private Members */
+
+    private final LinkedHashMap<String, VirtualItem> mItems;
+    private final LinkedHashMap<String, VirtualCategory> mCategories;
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soomla.store.data;
+
+import com.soomla.SoomlaUtils;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes and keeps the fingerprint of the store assets the metadata was last built from. The
+ * fingerprint is a SHA-1 hash of the assets' content, so when the assets didn't change since
+ * the last run the stored metadata can be used as is, whatever version they have, and when they
+ * did change the metadata is updated even if the version wasn't bumped.
+ *
+ * The assets are hashed in the compact binary form of the {@link CatalogCache}, which is much
+ * cheaper to produce on every launch than the JSON of each item. Neither the assets version
+ * nor the number of items can stand in for the fingerprint, since an item can change while
+ * both stay the same.
+ *
+ * @see StoreInfo#enableContentHash()
+ */
+final class CatalogFingerprint {
+
+    /**
+     * Computes the fingerprint of the given catalog, built from the store assets, from all its
+     * items and categories in order.
+     *
+     * @param catalog the catalog built from the store assets
+     * @return the fingerprint, or null if it can't be computed on this device
+     */
+    static String of(StoreCatalog catalog) {
+        MessageDigest digest = newDigest();
+        if (digest == null) {
+            return null;
+        }
+
+        try {
+            digest.update(CatalogCache.encode(catalog));
+        } catch (IOException e) {
+            SoomlaUtils.LogError(TAG, "Couldn't encode the assets: " + e.getMessage());
+            return null;
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Computes the fingerprint of the given store metadata JSON.
+     *
+     * @param storeMetaJSON the store metadata JSON
+     * @return the fingerprint, or null if it can't be computed on this device
+     */
+    static String of(String storeMetaJSON) {
+        MessageDigest digest = newDigest();
+        if (digest == null) {
+            return null;
+        }
+
+        update(digest, storeMetaJSON);
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Retrieves the fingerprint of the assets the stored metadata was built from.
+     *
+     * @return the stored fingerprint, or null if there's none
+     */
+    static String stored() {
+        return DATABASE.getValue(KEY_FINGERPRINT);
+    }
+
+    /**
+     * Keeps the given fingerprint as the one the stored metadata was built from. Call this only
+     * after the metadata was written, so a run that stops in between builds it again.
+     *
+     * @param fingerprint the fingerprint of the assets
+     */
+    static void store(String fingerprint) {
+        DATABASE.setValue(KEY_FINGERPRINT, fingerprint);
+    }
+
+    /**
+     * Deletes the stored fingerprint.
+     */
+    static void delete() {
+        DATABASE.deleteKeyValue(KEY_FINGERPRINT);
+    }
+
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            SoomlaUtils.LogError(TAG, "SHA-1 isn't available, can't fingerprint the assets.");
+            return null;
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        try {
+            digest.update(value.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+
+    /** Private Members */
+
+    private static final String TAG = "SOOMLA CatalogFingerprint"; //used for Log messages
+
+    // the metadata is kept in the database, written through a balance store so its key
+    // index stays up to date
+    private static final IBalanceStore DATABASE = new KeyValueBalanceStore();
+
+    private static final String KEY_FINGERPRINT = "meta.catalog.fingerprint";
+}
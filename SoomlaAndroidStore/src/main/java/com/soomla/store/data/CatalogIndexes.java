@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soomla.store.data;
+
+import com.soomla.store.domain.virtualGoods.EquippableVG;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
+
+/**
+ * Secondary indexes over the items of a catalog: by concrete class, by purchase type, by the
+ * virtual item they're priced in, subscription goods and equippable goods by equipping model.
+ * Each index holds the ordinals of its items in catalog order, so a query returns its result
+ * without going over the whole catalog, and only builds the lazy items it returns.
+ *
+ * The indexes are worked out from the items' {@link ItemTraits} in one pass when the catalog
+ * is first queried. The orders {@link CatalogQuery} sorts all goods by are worked out the first
+ * time each one is needed. When a catalog is changed, e.g. by
+ * {@link StoreInfo#applyDelta(CatalogDelta)}, the new catalog's indexes are updated from the
+ * old ones for the changed items only.
+ */
+final class CatalogIndexes {
+
+    /**
+     * Constructor
+     * Indexes all the given items.
+     *
+     * @param items the items to index
+     */
+    CatalogIndexes(CatalogItems items) {
+        mItems = items;
+        mTraits = new ItemTraits[items.size()];
+
+        Postings postings = new Postings();
+        for (int ordinal = 0; ordinal < items.size(); ordinal++) {
+            ItemTraits traits = items.getTraits(ordinal);
+            if (traits != null) {
+                mTraits[ordinal] = traits;
+                postings.add(traits, ordinal);
+            }
+        }
+
+        mByClass = toArrays(postings.byClass);
+        mByPurchaseType = toArrays(postings.byPurchaseType);
+        mByPriceItem = toArrays(postings.byPriceItem);
+        mByEquippingModel = toArrays(postings.byEquippingModel);
+        mSubscriptionGoods = toArray(postings.subscriptions);
+        mGoods = toArray(postings.goods);
+        mSortedGoods = new int[CatalogQuery.Sort.values().length * 2][];
+        mGoodRanks = new int[mSortedGoods.length][];
+    }
+
+    /**
+     * Constructor
+     * Indexes the given items by updating the indexes of a previous version of them, in which
+     * only the items with the given ordinals were different. Only the indexes those items are
+     * (or were) in are copied and changed, the others are shared with the previous version.
+     *
+     * @param base the indexes of the previous version of the items
+     * @param items the items to index
+     * @param changed the ordinals of the items that were added, replaced or removed
+     */
+    CatalogIndexes(CatalogIndexes base, CatalogItems items, BitSet changed) {
+        mItems = items;
+        mTraits = Arrays.copyOf(base.mTraits, items.size());
+
+        Postings removed = new Postings();
+        Postings added = new Postings();
+        for (int ordinal = changed.nextSetBit(0); ordinal >= 0;
+             ordinal = changed.nextSetBit(ordinal + 1)) {
+            if (ordinal < base.mTraits.length && base.mTraits[ordinal] != null) {
+                removed.add(base.mTraits[ordinal], ordinal);
+            }
+            ItemTraits traits = items.getTraits(ordinal);
+            mTraits[ordinal] = traits;
+            if (traits != null) {
+                added.add(traits, ordinal);
+            }
+        }
+
+        mByClass = patch(base.mByClass, removed.byClass, added.byClass, changed);
+        mByPurchaseType = patch(base.mByPurchaseType, removed.byPurchaseType,
+                added.byPurchaseType, changed);
+        mByPriceItem = patch(base.mByPriceItem, removed.byPriceItem, added.byPriceItem,
+                changed);
+        mByEquippingModel = patch(base.mByEquippingModel, removed.byEquippingModel,
+                added.byEquippingModel, changed);
+        mSubscriptionGoods = removed.subscriptions.isEmpty() && added.subscriptions.isEmpty()
+                ? base.mSubscriptionGoods
+                : patch(base.mSubscriptionGoods, changed, toArray(added.subscriptions));
+
+        int[][] sortedGoods;
+        synchronized (base) {
+            sortedGoods = base.mSortedGoods.clone();
+        }
+        if (removed.goods.isEmpty() && added.goods.isEmpty()) {
+            mGoods = base.mGoods;
+        } else {
+            int[] addedGoods = toArray(added.goods);
+            mGoods = patch(base.mGoods, changed, addedGoods);
+
+            // the orders worked out so far only need the changed goods taken out and put in
+            for (CatalogQuery.Sort sort : CatalogQuery.Sort.values()) {
+                for (int direction = 0; direction < 2; direction++) {
+                    int slot = sort.ordinal() * 2 + direction;
+                    if (sortedGoods[slot] != null) {
+                        sortedGoods[slot] = CatalogQuery.merge(this,
+                                patch(sortedGoods[slot], changed, new int[0]),
+                                CatalogQuery.sort(this, addedGoods, sort, direction == 1),
+                                sort, direction == 1);
+                    }
+                }
+            }
+        }
+        mSortedGoods = sortedGoods;
+        mGoodRanks = new int[sortedGoods.length][];
+    }
+
+    <T> List<T> byClass(Class<T> itemClass) {
+        return view(mByClass.get(itemClass));
+    }
+
+    <T> List<T> byPurchaseType(Class<?> purchaseClass) {
+        return view(mByPurchaseType.get(purchaseClass));
+    }
+
+    <T> List<T> byPriceItem(String itemId) {
+        return view(mByPriceItem.get(itemId));
+    }
+
+    List<EquippableVG> byEquippingModel(EquippableVG.EquippingModel equippingModel) {
+        return view(mByEquippingModel.get(equippingModel));
+    }
+
+    List<VirtualGood> subscriptionGoods() {
+        return view(mSubscriptionGoods);
+    }
+
+    /**
+     * Retrieves the ordinals of the items of exactly the given class, in catalog order.
+     *
+     * @param itemClass the concrete class of the items
+     * @return the ordinals of the items, not to be changed
+     */
+    int[] ordinalsOfClass(Class<?> itemClass) {
+        int[] ordinals = mByClass.get(itemClass);
+        return ordinals == null ? new int[0] : ordinals;
+    }
+
+    /**
+     * Retrieves the ordinals of all goods, in catalog order.
+     *
+     * @return the ordinals of the goods, not to be changed
+     */
+    int[] goods() {
+        return mGoods;
+    }
+
+    /**
+     * Retrieves the ordinals of all goods in the given order.
+     *
+     * @param sort what to sort the goods by
+     * @param descending true for the highest first
+     * @return the ordinals of the goods, not to be changed
+     */
+    synchronized int[] sortedGoods(CatalogQuery.Sort sort, boolean descending) {
+        int slot = sort.ordinal() * 2 + (descending ? 1 : 0);
+        if (mSortedGoods[slot] == null) {
+            mSortedGoods[slot] = CatalogQuery.sort(this, mGoods, sort, descending);
+        }
+        return mSortedGoods[slot];
+    }
+
+    /**
+     * Retrieves the position of each good in the given order, as returned by
+     * {@link #sortedGoods(CatalogQuery.Sort, boolean)}.
+     *
+     * @param sort what the goods are sorted by
+     * @param descending true for the highest first
+     * @return ordinal -> position of the good in the order, or -1 for ordinals that aren't of
+     * goods. Not to be changed.
+     */
+    synchronized int[] goodRanks(CatalogQuery.Sort sort, boolean descending) {
+        int slot = sort.ordinal() * 2 + (descending ? 1 : 0);
+        if (mGoodRanks[slot] == null) {
+            int[] sorted = sortedGoods(sort, descending);
+            int[] ranks = new int[mTraits.length];
+            Arrays.fill(ranks, -1);
+            for (int rank = 0; rank < sorted.length; rank++) {
+                ranks[sorted[rank]] = rank;
+            }
+            mGoodRanks[slot] = ranks;
+        }
+        return mGoodRanks[slot];
+    }
+
+    ItemTraits traits(int ordinal) {
+        return mTraits[ordinal];
+    }
+
+
+    private class ItemsView<T> extends AbstractList<T> implements RandomAccess {
+
+        ItemsView(int[] ordinals) {
+            mOrdinals = ordinals;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T get(int index) {
+            if (index < 0 || index >= mOrdinals.length) {
+                throw new IndexOutOfBoundsException("Index: " + index
+                        + ", Size: " + mOrdinals.length);
+            }
+            return (T) mItems.get(mOrdinals[index]);
+        }
+
+        @Override
+        public int size() {
+            return mOrdinals.length;
+        }
+
+        private final int[] mOrdinals;
+    }
+
+    private <T> List<T> view(int[] ordinals) {
+        if (ordinals == null || ordinals.length == 0) {
+            return Collections.emptyList();
+        }
+        return new ItemsView<T>(ordinals);
+    }
+
+    /**
+     * The ordinals of some items, under the keys of each index they belong in.
+     */
+    private static final class Postings {
+
+        void add(ItemTraits traits, int ordinal) {
+            CatalogIndexes.add(byClass, traits.getItemClass(), ordinal);
+            if (traits.getPurchaseClass() != null) {
+                CatalogIndexes.add(byPurchaseType, traits.getPurchaseClass(), ordinal);
+            }
+            if (traits.getPriceItemId() != null) {
+                CatalogIndexes.add(byPriceItem, traits.getPriceItemId(), ordinal);
+            }
+            if (traits.getEquippingModel() != null) {
+                CatalogIndexes.add(byEquippingModel, traits.getEquippingModel(), ordinal);
+            }
+            if (VirtualGood.class.isAssignableFrom(traits.getItemClass())) {
+                goods.add(ordinal);
+                if (traits.isSubscription()) {
+                    subscriptions.add(ordinal);
+                }
+            }
+        }
+
+        final Map<Class<?>, List<Integer>> byClass = new HashMap<Class<?>, List<Integer>>();
+        final Map<Class<?>, List<Integer>> byPurchaseType =
+                new HashMap<Class<?>, List<Integer>>();
+        final Map<String, List<Integer>> byPriceItem = new HashMap<String, List<Integer>>();
+        final Map<EquippableVG.EquippingModel, List<Integer>> byEquippingModel =
+                new HashMap<EquippableVG.EquippingModel, List<Integer>>();
+        final List<Integer> subscriptions = new ArrayList<Integer>();
+        final List<Integer> goods = new ArrayList<Integer>();
+    }
+
+    private static <K> void add(Map<K, List<Integer>> index, K key, int ordinal) {
+        List<Integer> ordinals = index.get(key);
+        if (ordinals == null) {
+            ordinals = new ArrayList<Integer>();
+            index.put(key, ordinals);
+        }
+        ordinals.add(ordinal);
+    }
+
+    private static <K> Map<K, int[]> toArrays(Map<K, List<Integer>> index) {
+        Map<K, int[]> arrays = new HashMap<K, int[]>(index.size() * 2);
+        for (Map.Entry<K, List<Integer>> entry : index.entrySet()) {
+            arrays.put(entry.getKey(), toArray(entry.getValue()));
+        }
+        return arrays;
+    }
+
+    /**
+     * Copies the given index, updating only the keys the changed items were or are under.
+     */
+    private static <K> Map<K, int[]> patch(Map<K, int[]> base, Map<K, List<Integer>> removed,
+                                           Map<K, List<Integer>> added, BitSet changed) {
+        if (removed.isEmpty() && added.isEmpty()) {
+            return base;
+        }
+
+        Map<K, int[]> index = new HashMap<K, int[]>(base);
+        Set<K> keys = new HashSet<K>(removed.keySet());
+        keys.addAll(added.keySet());
+        for (K key : keys) {
+            List<Integer> addedOrdinals = added.get(key);
+            int[] ordinals = patch(base.get(key), changed, addedOrdinals == null
+                    ? new int[0] : toArray(addedOrdinals));
+            if (ordinals.length == 0) {
+                index.remove(key);
+            } else {
+                index.put(key, ordinals);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Takes the changed ordinals out of the given ones, and merges in the added ones. Both
+     * arrays must be in ascending order, or the added ones must be empty.
+     */
+    private static int[] patch(int[] ordinals, BitSet changed, int[] added) {
+        if (ordinals == null) {
+            return added;
+        }
+
+        int[] patched = new int[ordinals.length + added.length];
+        int size = 0;
+        int next = 0;
+        for (int ordinal : ordinals) {
+            if (changed.get(ordinal)) {
+                continue;
+            }
+            while (next < added.length && added[next] < ordinal) {
+                patched[size++] = added[next++];
+            }
+            patched[size++] = ordinal;
+        }
+        while (next < added.length) {
+            patched[size++] = added[next++];
+        }
+        return size == patched.length ? patched : Arrays.copyOf(patched, size);
+    }
+
+    private static int[] toArray(List<Integer> ordinals) {
+        int[] array = new int[ordinals.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = ordinals.get(i);
+        }
+        return array;
+    }
+
+    /** Private Members */
+
+    private final CatalogItems mItems;
+
+    private final Map<Class<?>, int[]> mByClass;
+    private final Map<Class<?>, int[]> mByPurchaseType;
+    private final Map<String, int[]> mByPriceItem;
+    private final Map<EquippableVG.EquippingModel, int[]> mByEquippingModel;
+    private final int[] mSubscriptionGoods;
+    private final int[] mGoods;
+
+    // ordinal -> traits of the item
+    private final ItemTraits[] mTraits;
+
+    // goods sorted by each sort and direction, worked out on first use
+    private final int[][] mSortedGoods;
+
+    // ordinal -> position in the matching order of mSortedGoods, worked out on first use
+    private final int[][] mGoodRanks;
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soomla.store.data;
+
+import com.soomla.store.domain.VirtualItem;
+
+import java.util.ArrayList;
+
+/**
+ * The virtual items of a catalog, indexed by their ordinals. A slot holds either the item
+ * itself or a {@link LazyItem} that builds it on first access. The slot of a removed item is
+ * left empty, so the ordinals of the other items don't change.
+ */
+final class CatalogItems {
+
+    /**
+     * Constructor
+     */
+    CatalogItems() {
+        mSlots = new ArrayList<Object>();
+    }
+
+    /**
+     * Constructor
+     * Starts a copy of the given items. Lazy slots are shared with the copy, so an item is
+     * only built once.
+     *
+     * @param other the items to copy
+     */
+    CatalogItems(CatalogItems other) {
+        mSlots = new ArrayList<Object>(other.mSlots);
+    }
+
+    /**
+     * Adds the given item with the next ordinal.
+     *
+     * @param item the item to add
+     * @return the ordinal of the item
+     */
+    int add(VirtualItem item) {
+        int ordinal = mSlots.size();
+        mSlots.add(item);
+        item.setOrdinal(ordinal);
+        return ordinal;
+    }
+
+    /**
+     * Adds an item that's built on first access, with the next ordinal.
+     *
+     * @param item the stand-in for the item
+     * @return the ordinal of the item
+     */
+    int addLazy(LazyItem item) {
+        int ordinal = mSlots.size();
+        mSlots.add(item);
+        return ordinal;
+    }
+
+    /**
+     * Puts the given item in place of the one with the given ordinal.
+     *
+     * @param ordinal the ordinal of the item to replace
+     * @param item the new item
+     */
+    void set(int ordinal, VirtualItem item) {
+        mSlots.set(ordinal, item);
+        item.setOrdinal(ordinal);
+    }
+
+    /**
+     * Empties the slot of the item with the given ordinal. The ordinal isn't given to another
+     * item.
+     *
+     * @param ordinal the ordinal of the item to remove
+     */
+    void remove(int ordinal) {
+        mSlots.set(ordinal, null);
+    }
+
+    /**
+     * Retrieves the item with the given ordinal, building it if it's lazy.
+     *
+     * @param ordinal the ordinal of the required item
+     * @return the item, or null if it was removed
+     * @throws IllegalStateException if the item is lazy and can't be built
+     */
+    VirtualItem get(int ordinal) {
+        Object slot = mSlots.get(ordinal);
+        return slot instanceof LazyItem ? ((LazyItem) slot).get(ordinal) : (VirtualItem) slot;
+    }
+
+    /**
+     * Retrieves the itemId of the item with the given ordinal without building it.
+     *
+     * @param ordinal the ordinal of the required item
+     * @return the itemId of the item, or null if it was removed
+     */
+    String getItemId(int ordinal) {
+        Object slot = mSlots.get(ordinal);
+        if (slot == null) {
+            return null;
+        }
+        return slot instanceof LazyItem ? ((LazyItem) slot).getItemId()
+                : ((VirtualItem) slot).getItemId();
+    }
+
+    /**
+     * Retrieves the traits of the item with the given ordinal without building it.
+     *
+     * @param ordinal the ordinal of the required item
+     * @return the traits of the item, or null if it was removed
+     */
+    ItemTraits getTraits(int ordinal) {
+        Object slot = mSlots.get(ordinal);
+        if (slot == null) {
+            return null;
+        }
+        return slot instanceof LazyItem ? ((LazyItem) slot).getTraits()
+                : ItemTraits.of((VirtualItem) slot);
+    }
+
+    int size() {
+        return mSlots.size();
+    }
+
+
+    /** Private Members */
+
+    // ordinal -> VirtualItem or LazyItem, null once the item is removed
+    private final ArrayList<Object> mSlots;
+}
@@ -0,0 +1,519 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soomla.store.data;
+
+import com.soomla.store.domain.VirtualCategory;
+import com.soomla.store.domain.VirtualItem;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A query over the goods of the store catalog, for shop screens that list many goods. A query
+ * filters the goods by category, class, whether they're affordable and whether they're owned,
+ * sorts them, and returns them a page at a time.
+ *
+ * Candidates are taken from the catalog's indexes (see {@link StoreCatalog#getItemsOfClass})
+ * and the sort orders are worked out once per catalog, so a page costs about as much as the
+ * goods it passes over, and only the goods it returns are built when lazy items are on.
+ * Balances are read from the balance caches.
+ *
+ * Pages are linked by cursors that hold the sort key and ordinal of the last good of a page,
+ * and the generation of the catalog the page was taken from. A cursor is only valid for that
+ * catalog: once the catalog is replaced, e.g. after the market prices are refreshed or a
+ * {@link CatalogDelta} is applied, goods may have moved, and the query has to start over from
+ * the first page.
+ *
+ * How to use:
+ * <pre>
+ * CatalogQuery query = new CatalogQuery()
+ *         .inCategory("Hats")
+ *         .affordable(true)
+ *         .sortBy(CatalogQuery.Sort.VIRTUAL_PRICE, false);
+ * CatalogQuery.Page page = query.run(null, 20);
+ * ...
+ * page = query.run(page.getNextCursor(), 20);
+ * </pre>
+ */
+public final class CatalogQuery {
+
+    /**
+     * What goods are sorted by. Goods that don't have the sort's kind of price come last,
+     * in catalog order, whatever the direction.
+     */
+    public static enum Sort {
+        /** The order the goods were added to the catalog in. */
+        CATALOG_ORDER,
+        /** The market price, by <code>MarketItem.getMarketPriceMicros()</code>. */
+        MARKET_PRICE,
+        /** The amount of the virtual item a good is bought with. */
+        VIRTUAL_PRICE
+    }
+
+    /**
+     * Constructor
+     * Starts a query for all goods, in catalog order.
+     */
+    public CatalogQuery() {
+    }
+
+    /**
+     * Keeps only the goods in the category with the given name.
+     *
+     * @param categoryName the name of the category
+     * @return this query
+     */
+    public CatalogQuery inCategory(String categoryName) {
+        mCategoryName = categoryName;
+        return this;
+    }
+
+    /**
+     * Keeps only the goods of exactly the given class (not its subclasses).
+     *
+     * @param goodClass the concrete class of the goods, e.g. <code>EquippableVG.class</code>
+     * @return this query
+     */
+    public CatalogQuery ofClass(Class<? extends VirtualGood> goodClass) {
+        mGoodClass = goodClass;
+        return this;
+    }
+
+    /**
+     * Keeps only the goods the user can afford with their current balances, or only those they
+     * can't. Goods sold in the market are always affordable.
+     *
+     * @param affordable true for affordable goods, false for the others
+     * @return this query
+     */
+    public CatalogQuery affordable(boolean affordable) {
+        mAffordable = affordable;
+        return this;
+    }
+
+    /**
+     * Keeps only the goods the user has (a balance above 0), or only those they don't.
+     *
+     * @param owned true for owned goods, false for the others
+     * @return this query
+     */
+    public CatalogQuery owned(boolean owned) {
+        mOwned = owned;
+        return this;
+    }
+
+    /**
+     * Sets the order of the results.
+     *
+     * @param sort what to sort by
+     * @param descending true for the highest first
+     * @return this query
+     */
+    public CatalogQuery sortBy(Sort sort, boolean descending) {
+        mSort = sort;
+        mDescending = descending;
+        return this;
+    }
+
+    /**
+     * Runs the query on the current catalog.
+     *
+     * @param cursor the cursor of the previous page, or null for the first page
+     * @param limit the maximum number of goods to return
+     * @return the page of results
+     * @throws IllegalArgumentException if the cursor is malformed or was taken from a catalog
+     *                                  that was replaced since, or the limit isn't positive
+     */
+    public Page run(String cursor, int limit) {
+        return run(StoreInfo.getCatalog(), cursor, limit);
+    }
+
+    /**
+     * Runs the query on the given catalog.
+     *
+     * @param catalog the catalog to query
+     * @param cursor the cursor of the previous page, or null for the first page
+     * @param limit the maximum number of goods to return
+     * @return the page of results
+     * @throws IllegalArgumentException if the cursor is malformed or was taken from another
+     *                                  catalog, or the limit isn't positive
+     */
+    public Page run(StoreCatalog catalog, String cursor, int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("The page limit must be positive, got " + limit);
+        }
+
+        String[] position = null;
+        if (cursor != null) {
+            position = cursor.split(String.valueOf(CURSOR_SEPARATOR), -1);
+            if (position.length != 3) {
+                throw new IllegalArgumentException("Bad catalog query cursor: " + cursor);
+            }
+            if (parseLong(position[0], cursor) != catalog.getGeneration()) {
+                throw new IllegalArgumentException("The catalog query cursor " + cursor
+                        + " is of a catalog that was replaced, start from the first page");
+            }
+        }
+
+        CatalogIndexes indexes = catalog.indexes();
+        int[] candidates = candidates(catalog, indexes);
+
+        int start = 0;
+        if (position != null) {
+            start = firstAfter(indexes, candidates, parseLong(position[1], cursor),
+                    parseOrdinal(position[2], cursor));
+        }
+
+        List<VirtualGood> goods = new ArrayList<VirtualGood>(Math.min(limit, 64));
+        int last = -1;
+        int i = start;
+        for (; i < candidates.length && goods.size() < limit; i++) {
+            int ordinal = candidates[i];
+            if (!matchesBalances(catalog, indexes, ordinal)) {
+                continue;
+            }
+            VirtualItem good = catalog.getVirtualItem(ordinal);
+            if (good != null) {
+                goods.add((VirtualGood) good);
+                last = ordinal;
+            }
+        }
+
+        String nextCursor = null;
+        if (i < candidates.length && last >= 0) {
+            nextCursor = String.valueOf(catalog.getGeneration()) + CURSOR_SEPARATOR
+                    + sortKey(indexes.traits(last), mSort) + CURSOR_SEPARATOR + last;
+        }
+        return new Page(Collections.unmodifiableList(goods), nextCursor);
+    }
+
+    /**
+     * A page of query results.
+     */
+    public static final class Page {
+
+        /**
+         * Constructor
+         *
+         * @param goods the goods of the page
+         * @param nextCursor the cursor of the next page, or null if this is the last page
+         */
+        Page(List<VirtualGood> goods, String nextCursor) {
+            mGoods = goods;
+            mNextCursor = nextCursor;
+        }
+
+
+        /** Setters and Getters */
+
+        public List<VirtualGood> getGoods() {
+            return mGoods;
+        }
+
+        /**
+         * Retrieves the cursor to pass to the next run of the query. A page that isn't the
+         * last one may be followed by an empty page, when none of the remaining goods match.
+         *
+         * @return the cursor of the next page, or null if this is the last page
+         */
+        public String getNextCursor() {
+            return mNextCursor;
+        }
+
+        public boolean hasMore() {
+            return mNextCursor != null;
+        }
+
+
+        /** Private Members */
+
+        private final List<VirtualGood> mGoods;
+        private final String mNextCursor;
+    }
+
+
+    /**
+     * Sorts the given ordinals of goods.
+     *
+     * @param indexes the indexes of the catalog the goods are in
+     * @param ordinals the ordinals to sort, not changed
+     * @param sort what to sort by
+     * @param descending true for the highest first
+     * @return the sorted ordinals
+     */
+    static int[] sort(final CatalogIndexes indexes, int[] ordinals, final Sort sort,
+                      final boolean descending) {
+        Integer[] boxed = new Integer[ordinals.length];
+        for (int i = 0; i < ordinals.length; i++) {
+            boxed[i] = ordinals[i];
+        }
+        Arrays.sort(boxed, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return CatalogQuery.compare(sort, descending, sortKey(indexes.traits(a), sort), a,
+                        sortKey(indexes.traits(b), sort), b);
+            }
+        });
+
+        int[] sorted = new int[boxed.length];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = boxed[i];
+        }
+        return sorted;
+    }
+
+    /**
+     * Merges two sorted arrays of ordinals of goods into one.
+     *
+     * @param indexes the indexes of the catalog the goods are in
+     * @param a ordinals sorted by the given sort
+     * @param b other ordinals sorted by the given sort
+     * @param sort what the ordinals are sorted by
+     * @param descending true if the highest are first
+     * @return the ordinals of both arrays, sorted
+     */
+    static int[] merge(CatalogIndexes indexes, int[] a, int[] b, Sort sort,
+                       boolean descending) {
+        if (b.length == 0) {
+            return a;
+        }
+
+        int[] merged = new int[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        for (int k = 0; k < merged.length; k++) {
+            if (j == b.length || (i < a.length && compare(sort, descending,
+                    sortKey(indexes.traits(a[i]), sort), a[i],
+                    sortKey(indexes.traits(b[j]), sort), b[j]) < 0)) {
+                merged[k] = a[i++];
+            } else {
+                merged[k] = b[j++];
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Takes the candidates from the indexes: all goods, or the goods of the category and class,
+     * in the order of the results.
+     */
+    private int[] candidates(StoreCatalog catalog, CatalogIndexes indexes) {
+        int[] candidates = null;
+        if (mCategoryName != null) {
+            candidates = categoryGoods(catalog);
+        }
+        if (mGoodClass != null) {
+            int[] ofClass = indexes.ordinalsOfClass(mGoodClass);
+            candidates = candidates == null ? ofClass : intersect(candidates, ofClass);
+        }
+
+        if (candidates == null) {
+            return mSort == Sort.CATALOG_ORDER && !mDescending
+                    ? indexes.goods() : indexes.sortedGoods(mSort, mDescending);
+        }
+        if (mSort == Sort.CATALOG_ORDER && !mDescending) {
+            return candidates;
+        }
+        return inSortedOrder(indexes, candidates);
+    }
+
+    /**
+     * Puts the given candidates in the order of the results by their positions in the
+     * catalog's sorted goods, so they don't have to be compared with each other.
+     */
+    private int[] inSortedOrder(CatalogIndexes indexes, int[] candidates) {
+        int[] sorted = indexes.sortedGoods(mSort, mDescending);
+        int[] ranks = indexes.goodRanks(mSort, mDescending);
+
+        int[] positions = new int[candidates.length];
+        int count = 0;
+        for (int ordinal : candidates) {
+            if (ranks[ordinal] >= 0) {
+                positions[count++] = ranks[ordinal];
+            }
+        }
+        Arrays.sort(positions, 0, count);
+
+        int[] ordered = new int[count];
+        for (int i = 0; i < count; i++) {
+            ordered[i] = sorted[positions[i]];
+        }
+        return ordered;
+    }
+
+    private int[] categoryGoods(StoreCatalog catalog) {
+        for (VirtualCategory category : catalog.getCategories()) {
+            if (!mCategoryName.equals(category.getName())) {
+                continue;
+            }
+
+            List<String> goodsItemIds = category.getGoodsItemIds();
+            int[] ordinals = new int[goodsItemIds.size()];
+            int count = 0;
+            for (String goodItemId : goodsItemIds) {
+                int ordinal = catalog.getItemOrdinal(goodItemId);
+                if (ordinal >= 0) {
+                    ordinals[count++] = ordinal;
+                }
+            }
+            ordinals = Arrays.copyOf(ordinals, count);
+            Arrays.sort(ordinals);
+            return ordinals;
+        }
+        return new int[0];
+    }
+
+    /**
+     * Checks the balance filters. The balances are read by itemId, so lazy goods that are
+     * filtered out aren't built.
+     */
+    private boolean matchesBalances(StoreCatalog catalog, CatalogIndexes indexes, int ordinal) {
+        if (mOwned != null) {
+            int balance = StorageManager.getVirtualGoodsStorage()
+                    .getBalance(catalog.getItemId(ordinal));
+            if ((balance > 0) != mOwned) {
+                return false;
+            }
+        }
+
+        if (mAffordable != null) {
+            ItemTraits traits = indexes.traits(ordinal);
+            boolean affordable = true;
+            if (traits.getPriceItemId() != null) {
+                int priceOrdinal = catalog.getItemOrdinal(traits.getPriceItemId());
+                if (priceOrdinal < 0) {
+                    affordable = false;
+                } else {
+                    VirtualItemStorage storage = VirtualCurrency.class.isAssignableFrom(
+                            indexes.traits(priceOrdinal).getItemClass())
+                            ? StorageManager.getVirtualCurrencyStorage()
+                            : StorageManager.getVirtualGoodsStorage();
+                    affordable = storage.getBalance(traits.getPriceItemId())
+                            >= traits.getVirtualPrice();
+                }
+            }
+            if (affordable != mAffordable) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the first candidate that comes after the given position. The candidates are in
+     * the order of the results, so this is a binary search.
+     */
+    private int firstAfter(CatalogIndexes indexes, int[] candidates, long key, int ordinal) {
+        int low = 0;
+        int high = candidates.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int candidate = candidates[mid];
+            if (compare(mSort, mDescending, sortKey(indexes.traits(candidate), mSort), candidate,
+                    key, ordinal) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static long sortKey(ItemTraits traits, Sort sort) {
+        switch (sort) {
+            case MARKET_PRICE:
+                return traits.getMarketPriceMicros();
+            case VIRTUAL_PRICE:
+                return traits.getVirtualPrice();
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Compares two goods by their sort keys, and then by their ordinals so the order is total.
+     * A key of -1 means the good has no price of the sort's kind, and such goods come last.
+     */
+    private static int compare(Sort sort, boolean descending, long keyA, int ordinalA,
+                               long keyB, int ordinalB) {
+        if ((keyA < 0) != (keyB < 0)) {
+            return keyA < 0 ? 1 : -1;
+        }
+        if (keyA != keyB) {
+            int byKey = keyA < keyB ? -1 : 1;
+            return descending ? -byKey : byKey;
+        }
+        if (ordinalA != ordinalB) {
+            int byOrdinal = ordinalA < ordinalB ? -1 : 1;
+            return descending && sort == Sort.CATALOG_ORDER ? -byOrdinal : byOrdinal;
+        }
+        return 0;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] both = new int[Math.min(a.length, b.length)];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                both[count++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(both, count);
+    }
+
+    private static long parseLong(String part, String cursor) {
+        try {
+            return Long.parseLong(part);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad catalog query cursor: " + cursor);
+        }
+    }
+
+    private static int parseOrdinal(String part, String cursor) {
+        try {
+            return Integer.parseInt(part);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad catalog query cursor: " + cursor);
+        }
+    }
+
+
+    /** Private Members */
+
+    private static final char CURSOR_SEPARATOR = ':';
+
+    private String mCategoryName;
+    private Class<? extends VirtualGood> mGoodClass;
+    private Boolean mAffordable;
+    private Boolean mOwned;
+    private Sort mSort = Sort.CATALOG_ORDER;
+    private boolean mDescending = false;
+}
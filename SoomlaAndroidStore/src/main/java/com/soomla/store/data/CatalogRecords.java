@@ -0,0 +1,531 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soomla.store.data;
+
+import com.soomla.SoomlaUtils;
+import com.soomla.store.domain.VirtualCategory;
+import com.soomla.store.domain.VirtualItem;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrencyPack;
+import com.soomla.store.domain.virtualGoods.EquippableVG;
+import com.soomla.store.domain.virtualGoods.LifetimeVG;
+import com.soomla.store.domain.virtualGoods.SingleUsePackVG;
+import com.soomla.store.domain.virtualGoods.SingleUseVG;
+import com.soomla.store.domain.virtualGoods.UpgradeVG;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Persists the store's metadata as one record per item instead of one JSON document. Each
+ * virtual item and category is kept under its own key, and a manifest lists the records in
+ * catalog order with the type of each item. Changing an item rewrites only its record, and the
+ * manifest only when the list of records changes.
+ *
+ * A full load reads the manifest and then each record once, in order, building the catalog as
+ * it goes. Large catalogs can instead be read and parsed on several threads and then added to
+ * the catalog in manifest order, so both ways build the same catalog.
+ *
+ * @see StoreInfo#enableItemRecords()
+ * @see StoreInfo#enableParallelLoad()
+ */
+final class CatalogRecords {
+
+    /**
+     * Checks if the metadata is stored as records.
+     *
+     * @return true if there's a manifest in the database
+     */
+    static boolean exists() {
+        return DATABASE.getValue(KEY_MANIFEST) != null;
+    }
+
+    /**
+     * Reads all records listed in the manifest into the given builder.
+     *
+     * @param catalog the builder to add the items and categories to
+     * @param parallel true to read and parse large catalogs on several threads
+     * @return true if the whole catalog was read, false if the manifest or a record is missing
+     * @throws JSONException if the manifest or a record can't be parsed
+     */
+    static boolean load(StoreCatalog.Builder catalog, boolean parallel) throws JSONException {
+        return load(catalog, parallel, DATABASE);
+    }
+
+    /**
+     * Reads all records listed in the manifest kept in the given store into the given builder.
+     *
+     * @param catalog the builder to add the items and categories to
+     * @param parallel true to read and parse large catalogs on several threads
+     * @param store the store the records are kept in
+     * @return true if the whole catalog was read, false if the manifest or a record is missing
+     * @throws JSONException if the manifest or a record can't be parsed
+     */
+    static boolean load(StoreCatalog.Builder catalog, boolean parallel, IBalanceStore store)
+            throws JSONException {
+        String manifest = read(store, KEY_MANIFEST);
+        if (manifest == null) {
+            return false;
+        }
+
+        JSONArray entries = new JSONObject(manifest).getJSONArray(MANIFEST_RECORDS);
+        int count = entries.length();
+        String[] types = new String[count];
+        String[] ids = new String[count];
+        for (int i = 0; i < count; i++) {
+            String entry = entries.getString(i);
+            int separator = entry.indexOf(TYPE_SEPARATOR);
+            if (separator <= 0) {
+                throw new JSONException("Bad catalog manifest entry: " + entry);
+            }
+            types[i] = entry.substring(0, separator);
+            ids[i] = entry.substring(separator + 1);
+        }
+
+        Object[] records = null;
+        if (parallel && count >= MIN_PARALLEL_RECORDS) {
+            records = readAllParallel(store, types, ids);
+        }
+
+        // ordinals, list order and upgrade levels follow the order items are added in, so
+        // records are always added in manifest order, however they were read
+        for (int i = 0; i < count; i++) {
+            Object record = records != null
+                    ? records[i] : readRecord(store, types[i], ids[i]);
+            if (record == null) {
+                SoomlaUtils.LogError(TAG, "The record of " + ids[i]
+                        + " is missing from the catalog.");
+                return false;
+            }
+            add(catalog, record);
+        }
+        return true;
+    }
+
+    /**
+     * Writes the records of all items and categories of the given catalog, and its manifest.
+     *
+     * @param catalog the catalog to write
+     */
+    static void writeAll(StoreCatalog catalog) {
+        writeAll(catalog, DATABASE);
+    }
+
+    /**
+     * Writes the records of all items and categories of the given catalog, and its manifest,
+     * to the given store.
+     *
+     * @param catalog the catalog to write
+     * @param store the store to keep the records in
+     */
+    static void writeAll(StoreCatalog catalog, IBalanceStore store) {
+        write(store, valuesOf(catalog));
+        writeManifest(store, catalog);
+    }
+
+    /**
+     * Writes the records of the given items as they are in the given catalog. The manifest is
+     * written after the records, so it never lists a record that wasn't written yet.
+     *
+     * @param catalog the catalog the items belong to
+     * @param items the items whose records changed
+     * @param manifestChanged true if items were added or changed type, so the manifest has to
+     *                        be written too
+     */
+    static void writeItems(StoreCatalog catalog, List<VirtualItem> items,
+                           boolean manifestChanged) {
+        Map<String, String> values = new HashMap<String, String>();
+        for (VirtualItem item : items) {
+            VirtualItem current = catalog.getVirtualItem(item.getItemId());
+            if (current != null) {
+                values.put(keyItem(current.getItemId()), current.toJSONObject().toString());
+            }
+        }
+
+        write(DATABASE, values);
+        if (manifestChanged) {
+            writeManifest(DATABASE, catalog);
+        }
+    }
+
+    /**
+     * Writes the records of the items and categories the given delta put, as they are in the
+     * given catalog, and deletes the records of the ones it removed. The manifest is written
+     * after the new records and before the old ones are deleted.
+     *
+     * @param catalog the catalog the delta was applied to
+     * @param delta the applied delta
+     * @param manifestChanged true if records were added, removed or changed type
+     */
+    static void writeDelta(StoreCatalog catalog, CatalogDelta delta, boolean manifestChanged) {
+        Map<String, String> values = new HashMap<String, String>();
+        List<String> removed = new ArrayList<String>();
+        for (Map.Entry<String, VirtualItem> entry : delta.getItems().entrySet()) {
+            VirtualItem current = entry.getValue() == null
+                    ? null : catalog.getVirtualItem(entry.getKey());
+            if (current != null) {
+                values.put(keyItem(entry.getKey()), current.toJSONObject().toString());
+            } else {
+                removed.add(keyItem(entry.getKey()));
+            }
+        }
+        for (Map.Entry<String, VirtualCategory> entry : delta.getCategories().entrySet()) {
+            if (entry.getValue() != null) {
+                values.put(keyCategory(entry.getKey()),
+                        entry.getValue().toJSONObject().toString());
+            } else {
+                removed.add(keyCategory(entry.getKey()));
+            }
+        }
+
+        write(DATABASE, values);
+        if (manifestChanged) {
+            writeManifest(DATABASE, catalog);
+        }
+        for (String key : removed) {
+            DATABASE.deleteKeyValue(key);
+        }
+    }
+
+    /**
+     * Brings the records of the old catalog up to the new one, writing only the records that
+     * are new or changed and deleting the ones that are gone. The manifest is written only if
+     * the list of records changed, after the new records and before the old ones are deleted.
+     *
+     * @param old the catalog the records were written from
+     * @param current the catalog to write
+     * @return the number of records written or deleted
+     */
+    static int writeChanges(StoreCatalog old, StoreCatalog current) {
+        return writeChanges(old, current, DATABASE);
+    }
+
+    /**
+     * Brings the records of the old catalog in the given store up to the new one.
+     *
+     * @param old the catalog the records were written from
+     * @param current the catalog to write
+     * @param store the store the records are kept in
+     * @return the number of records written or deleted
+     * @see #writeChanges(StoreCatalog, StoreCatalog)
+     */
+    static int writeChanges(StoreCatalog old, StoreCatalog current, IBalanceStore store) {
+        Map<String, String> oldValues = valuesOf(old);
+        Map<String, String> values = valuesOf(current);
+
+        Map<String, String> changed = new HashMap<String, String>();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            if (!entry.getValue().equals(oldValues.get(entry.getKey()))) {
+                changed.put(entry.getKey(), entry.getValue());
+            }
+        }
+        List<String> removed = new ArrayList<String>();
+        for (String key : oldValues.keySet()) {
+            if (!values.containsKey(key)) {
+                removed.add(key);
+            }
+        }
+
+        write(store, changed);
+        if (!manifestOf(old).toString().equals(manifestOf(current).toString())) {
+            writeManifest(store, current);
+        }
+        for (String key : removed) {
+            store.deleteKeyValue(key);
+        }
+        return changed.size() + removed.size();
+    }
+
+    /**
+     * Deletes the manifest and all records it lists.
+     */
+    static void deleteAll() {
+        String manifest = DATABASE.getValue(KEY_MANIFEST);
+        if (manifest == null) {
+            return;
+        }
+
+        // the manifest goes first, so a half deleted catalog is never loaded
+        DATABASE.deleteKeyValue(KEY_MANIFEST);
+        try {
+            JSONArray entries = new JSONObject(manifest).getJSONArray(MANIFEST_RECORDS);
+            for (int i = 0; i < entries.length(); i++) {
+                String entry = entries.getString(i);
+                int separator = entry.indexOf(TYPE_SEPARATOR);
+                String type = entry.substring(0, Math.max(separator, 0));
+                String id = entry.substring(separator + 1);
+                DATABASE.deleteKeyValue(StoreJSONConsts.STORE_CATEGORIES.equals(type)
+                        ? keyCategory(id) : keyItem(id));
+            }
+        } catch (JSONException e) {
+            SoomlaUtils.LogError(TAG, "Couldn't parse the catalog manifest, its records are left "
+                    + "in the database: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Retrieves the record type of the given item, which is the name of the list it goes
+     * under in the store's JSON.
+     *
+     * @param item the item
+     * @return the record type of the item
+     */
+    static String typeOf(VirtualItem item) {
+        if (item instanceof VirtualCurrency) {
+            return StoreJSONConsts.STORE_CURRENCIES;
+        } else if (item instanceof VirtualCurrencyPack) {
+            return StoreJSONConsts.STORE_CURRENCYPACKS;
+        } else if (item instanceof SingleUseVG) {
+            return StoreJSONConsts.STORE_GOODS_SU;
+        } else if (item instanceof UpgradeVG) {
+            return StoreJSONConsts.STORE_GOODS_UP;
+        } else if (item instanceof EquippableVG) {
+            return StoreJSONConsts.STORE_GOODS_EQ;
+        } else if (item instanceof SingleUsePackVG) {
+            return StoreJSONConsts.STORE_GOODS_PA;
+        } else if (item instanceof LifetimeVG) {
+            return StoreJSONConsts.STORE_GOODS_LT;
+        }
+        return null;
+    }
+
+
+    private static Map<String, String> valuesOf(StoreCatalog catalog) {
+        Map<String, String> values = new HashMap<String, String>();
+        for (VirtualCurrency currency : catalog.getCurrencies()) {
+            values.put(keyItem(currency.getItemId()), currency.toJSONObject().toString());
+        }
+        for (VirtualCurrencyPack pack : catalog.getCurrencyPacks()) {
+            values.put(keyItem(pack.getItemId()), pack.toJSONObject().toString());
+        }
+        for (VirtualGood good : catalog.getGoods()) {
+            values.put(keyItem(good.getItemId()), good.toJSONObject().toString());
+        }
+        for (VirtualCategory category : catalog.getCategories()) {
+            values.put(keyCategory(category.getName()), category.toJSONObject().toString());
+        }
+        return values;
+    }
+
+    private static JSONArray manifestOf(StoreCatalog catalog) {
+        JSONArray entries = new JSONArray();
+        addEntries(entries, catalog.getCurrencies());
+        addEntries(entries, catalog.getCurrencyPacks());
+        addEntries(entries, catalog.getGoods());
+        for (VirtualCategory category : catalog.getCategories()) {
+            entries.put(StoreJSONConsts.STORE_CATEGORIES + TYPE_SEPARATOR + category.getName());
+        }
+        return entries;
+    }
+
+    private static void writeManifest(IBalanceStore store, StoreCatalog catalog) {
+        JSONObject manifest = new JSONObject();
+        try {
+            manifest.put(MANIFEST_RECORDS, manifestOf(catalog));
+        } catch (JSONException e) {
+            SoomlaUtils.LogError(TAG, "An error occurred while generating the catalog manifest.");
+            return;
+        }
+
+        Map<String, String> values = new HashMap<String, String>();
+        values.put(KEY_MANIFEST, manifest.toString());
+        write(store, values);
+    }
+
+    private static void addEntries(JSONArray entries, List<? extends VirtualItem> items) {
+        for (VirtualItem item : items) {
+            String type = typeOf(item);
+            if (type == null) {
+                SoomlaUtils.LogError(TAG, "Can't store " + item.getItemId()
+                        + ", its type has no catalog record.");
+                continue;
+            }
+            entries.put(type + TYPE_SEPARATOR + item.getItemId());
+        }
+    }
+
+    /**
+     * Reads and parses the given records on a short-lived pool of threads, each one working on
+     * contiguous runs of the manifest. The records are independent of each other until they
+     * are added to the builder, so only the merge has to be in order.
+     *
+     * @return the records by their manifest position (null where a record is missing), or
+     * null if this device has a single core
+     */
+    private static Object[] readAllParallel(final IBalanceStore store, final String[] types,
+                                            final String[] ids) throws JSONException {
+        int threads = Math.min(MAX_LOAD_THREADS, Runtime.getRuntime().availableProcessors());
+        if (threads < 2) {
+            return null;
+        }
+
+        final Object[] records = new Object[types.length];
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int mCount = 0;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SOOMLA CatalogRecords-" + mCount++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            int chunk = Math.max(1, (types.length + threads * CHUNKS_PER_THREAD - 1)
+                    / (threads * CHUNKS_PER_THREAD));
+            List<Future<Void>> chunks = new ArrayList<Future<Void>>();
+            for (int start = 0; start < types.length; start += chunk) {
+                final int from = start;
+                final int to = Math.min(types.length, start + chunk);
+                chunks.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws JSONException {
+                        for (int i = from; i < to; i++) {
+                            records[i] = readRecord(store, types[i], ids[i]);
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            // Future.get() also makes the records written by the pool visible to this thread
+            for (Future<Void> future : chunks) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof JSONException) {
+                throw (JSONException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JSONException("Interrupted while reading the catalog records.");
+        } finally {
+            pool.shutdownNow();
+        }
+        return records;
+    }
+
+    private static Object readRecord(IBalanceStore store, String type, String id)
+            throws JSONException {
+        boolean isCategory = StoreJSONConsts.STORE_CATEGORIES.equals(type);
+        String record = read(store, isCategory ? keyCategory(id) : keyItem(id));
+        if (record == null) {
+            return null;
+        }
+
+        JSONObject o = new JSONObject(record);
+        if (isCategory) {
+            return new VirtualCategory(o);
+        } else if (StoreJSONConsts.STORE_CURRENCIES.equals(type)) {
+            return new VirtualCurrency(o);
+        } else if (StoreJSONConsts.STORE_CURRENCYPACKS.equals(type)) {
+            return new VirtualCurrencyPack(o);
+        } else if (StoreJSONConsts.STORE_GOODS_SU.equals(type)) {
+            return new SingleUseVG(o);
+        } else if (StoreJSONConsts.STORE_GOODS_LT.equals(type)) {
+            return new LifetimeVG(o);
+        } else if (StoreJSONConsts.STORE_GOODS_EQ.equals(type)) {
+            return new EquippableVG(o);
+        } else if (StoreJSONConsts.STORE_GOODS_PA.equals(type)) {
+            return new SingleUsePackVG(o);
+        } else if (StoreJSONConsts.STORE_GOODS_UP.equals(type)) {
+            return new UpgradeVG(o);
+        }
+        throw new JSONException("Unknown catalog record type: " + type);
+    }
+
+    private static void add(StoreCatalog.Builder catalog, Object record) {
+        if (record instanceof VirtualCategory) {
+            catalog.addCategory((VirtualCategory) record);
+        } else if (record instanceof VirtualCurrency) {
+            catalog.addCurrency((VirtualCurrency) record);
+        } else if (record instanceof VirtualCurrencyPack) {
+            catalog.addCurrencyPack((VirtualCurrencyPack) record);
+        } else {
+            catalog.addGood((VirtualGood) record);
+        }
+    }
+
+    private static String read(IBalanceStore store, String key) {
+        long start = System.nanoTime();
+        String val = store.getValue(key);
+        if (StorageStats.isEnabled()) {
+            StorageStats.recordRead(key, val, System.nanoTime() - start);
+        }
+        return val;
+    }
+
+    private static void write(IBalanceStore store, Map<String, String> values) {
+        long start = System.nanoTime();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            store.setValue(entry.getKey(), entry.getValue());
+        }
+        if (StorageStats.isEnabled() && !values.isEmpty()) {
+            StorageStats.recordWrites(values, System.nanoTime() - start);
+        }
+    }
+
+    private static String keyItem(String itemId) {
+        return KEY_ITEM_PREFIX + itemId;
+    }
+
+    private static String keyCategory(String name) {
+        return KEY_CATEGORY_PREFIX + name;
+    }
+
+
+    /** Private Members */
+
+    private static final String TAG = "SOOMLA CatalogRecords"; //used for Log messages
+
+    // the records are kept in the database, next to the balances
+    private static final IBalanceStore DATABASE = new KeyValueBalanceStore();
+
+    private static final String KEY_MANIFEST = "meta.catalog";
+    private static final String KEY_ITEM_PREFIX = "meta.catalog.item.";
+    private static final String KEY_CATEGORY_PREFIX = "meta.catalog.category.";
+
+    private static final String MANIFEST_RECORDS = "records";
+
+    // separates the record type from the itemId (or category name) in manifest entries
+    private static final char TYPE_SEPARATOR = ':';
+
+    // below this many records, starting threads costs more than it saves
+    private static final int MIN_PARALLEL_RECORDS = 64;
+    private static final int MAX_LOAD_THREADS = 4;
+
+    // more chunks than threads, so a thread that got cheap records picks up more work
+    private static final int CHUNKS_PER_THREAD = 4;
+}
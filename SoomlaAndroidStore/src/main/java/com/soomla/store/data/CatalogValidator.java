@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soomla.store.data;
+
+import android.text.TextUtils;
+import com.soomla.store.domain.PurchasableVirtualItem;
+import com.soomla.store.domain.VirtualCategory;
+import com.soomla.store.domain.VirtualItem;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrencyPack;
+import com.soomla.store.domain.virtualGoods.SingleUsePackVG;
+import com.soomla.store.domain.virtualGoods.UpgradeVG;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+import com.soomla.store.purchaseTypes.PurchaseType;
+import com.soomla.store.purchaseTypes.PurchaseWithVirtualItem;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks that a catalog a {@link CatalogDelta} was applied to is consistent: every item the
+ * delta put refers only to items that exist and are of the right kind, no item refers to an
+ * item the delta removed or changed the kind of, categories list only goods, and no two items
+ * are sold with the same product id.
+ *
+ * Only the changed items and the items that refer to them are looked at, so checking a small
+ * delta doesn't go over the whole catalog, and lazy goods are only built when they may refer
+ * to a changed item.
+ */
+final class CatalogValidator {
+
+    /**
+     * Checks the given catalog, which is the given base catalog with the given delta applied.
+     *
+     * @param base the catalog the delta was applied to
+     * @param catalog the catalog with the delta applied
+     * @param delta the applied delta, including the changes it cascaded to
+     * @throws IllegalArgumentException describing the first inconsistency found
+     */
+    static void validate(StoreCatalog base, StoreCatalog catalog, CatalogDelta delta) {
+        Map<String, String> productIds = new HashMap<String, String>();
+        for (Map.Entry<String, VirtualItem> entry : delta.getItems().entrySet()) {
+            VirtualItem item = entry.getValue();
+            if (item != null) {
+                checkReferences(catalog, item);
+                checkProductId(base, catalog, delta, item, productIds);
+            }
+
+            ItemTraits oldTraits = base.getTraits(entry.getKey());
+            if (oldTraits != null) {
+                checkReferrers(base, catalog, entry.getKey(), oldTraits.getItemClass());
+            }
+        }
+
+        for (VirtualCategory category : delta.getCategories().values()) {
+            if (category == null) {
+                continue;
+            }
+            for (String goodItemId : category.getGoodsItemIds()) {
+                if (!isOfClass(catalog, goodItemId, VirtualGood.class)) {
+                    throw new IllegalArgumentException("Category " + category.getName()
+                            + " lists " + goodItemId + ", which isn't a virtual good");
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks that the items the given item refers to exist and are of the right kind.
+     */
+    private static void checkReferences(StoreCatalog catalog, VirtualItem item) {
+        String itemId = item.getItemId();
+        if (item instanceof PurchasableVirtualItem) {
+            PurchaseType purchaseType = ((PurchasableVirtualItem) item).getPurchaseType();
+            if (purchaseType instanceof PurchaseWithVirtualItem) {
+                String targetItemId = ((PurchaseWithVirtualItem) purchaseType).getTargetItemId();
+                if (catalog.getItemOrdinal(targetItemId) < 0) {
+                    throw dangling(itemId, "is priced in", targetItemId);
+                }
+            }
+        }
+
+        if (item instanceof VirtualCurrencyPack) {
+            String currencyItemId = ((VirtualCurrencyPack) item).getCurrencyItemId();
+            if (!isOfClass(catalog, currencyItemId, VirtualCurrency.class)) {
+                throw dangling(itemId, "gives the currency", currencyItemId);
+            }
+        }
+
+        if (item instanceof SingleUsePackVG) {
+            String goodItemId = ((SingleUsePackVG) item).getGoodItemId();
+            if (!isOfClass(catalog, goodItemId, VirtualGood.class)) {
+                throw dangling(itemId, "gives the good", goodItemId);
+            }
+        }
+
+        if (item instanceof UpgradeVG) {
+            UpgradeVG upgradeVG = (UpgradeVG) item;
+            if (!isOfClass(catalog, upgradeVG.getGoodItemId(), VirtualGood.class)) {
+                throw dangling(itemId, "upgrades the good", upgradeVG.getGoodItemId());
+            }
+            checkUpgradeLink(catalog, upgradeVG, upgradeVG.getPrevItemId());
+            checkUpgradeLink(catalog, upgradeVG, upgradeVG.getNextItemId());
+        }
+    }
+
+    private static void checkUpgradeLink(StoreCatalog catalog, UpgradeVG upgradeVG,
+                                         String linkedItemId) {
+        if (TextUtils.isEmpty(linkedItemId)) {
+            return;
+        }
+        if (!isOfClass(catalog, linkedItemId, UpgradeVG.class)) {
+            throw dangling(upgradeVG.getItemId(), "is linked to the upgrade", linkedItemId);
+        }
+    }
+
+    /**
+     * Checks that the product id of the given item isn't used by another item, either one the
+     * delta put or one that was already in the catalog and keeps its product id.
+     */
+    private static void checkProductId(StoreCatalog base, StoreCatalog catalog,
+                                       CatalogDelta delta, VirtualItem item,
+                                       Map<String, String> productIds) {
+        String productId = ItemTraits.of(item).getProductId();
+        if (productId == null) {
+            return;
+        }
+
+        String other = productIds.put(productId, item.getItemId());
+        if (other == null) {
+            PurchasableVirtualItem owner = base.getPurchasableItem(productId);
+            if (owner != null && !delta.getItems().containsKey(owner.getItemId())) {
+                other = owner.getItemId();
+            }
+        }
+        if (other != null && !other.equals(item.getItemId())) {
+            throw new IllegalArgumentException(item.getItemId() + " and " + other
+                    + " are both sold with the product id " + productId);
+        }
+    }
+
+    /**
+     * Checks that no item still refers to the item with the given itemId as what it was
+     * before, if it was removed or is now of another kind.
+     */
+    private static void checkReferrers(StoreCatalog base, StoreCatalog catalog, String itemId,
+                                       Class<? extends VirtualItem> oldClass) {
+        ItemTraits traits = catalog.getTraits(itemId);
+        Class<? extends VirtualItem> itemClass = traits == null ? null : traits.getItemClass();
+        if (itemClass == oldClass) {
+            return;
+        }
+
+        if (itemClass == null) {
+            List<PurchasableVirtualItem> priced = catalog.getItemsPricedIn(itemId);
+            if (!priced.isEmpty()) {
+                throw dangling(priced.get(0).getItemId(), "is priced in", itemId);
+            }
+        }
+
+        if (VirtualCurrency.class.isAssignableFrom(oldClass) && !isCurrency(itemClass)) {
+            for (VirtualCurrencyPack pack : catalog.getCurrencyPacks()) {
+                if (itemId.equals(pack.getCurrencyItemId())) {
+                    throw dangling(pack.getItemId(), "gives the currency", itemId);
+                }
+            }
+        }
+
+        if (VirtualGood.class.isAssignableFrom(oldClass) && !isGood(itemClass)) {
+            for (SingleUsePackVG pack : catalog.getItemsOfClass(SingleUsePackVG.class)) {
+                if (itemId.equals(pack.getGoodItemId())) {
+                    throw dangling(pack.getItemId(), "gives the good", itemId);
+                }
+            }
+            if (catalog.hasUpgrades(itemId)) {
+                throw dangling(catalog.getGoodUpgrades(itemId).get(0).getItemId(),
+                        "upgrades the good", itemId);
+            }
+            if (catalog.getCategory(itemId) != null) {
+                throw new IllegalArgumentException("Category "
+                        + catalog.getCategory(itemId).getName() + " lists " + itemId
+                        + ", which isn't a virtual good");
+            }
+        }
+
+        if (UpgradeVG.class.isAssignableFrom(oldClass)
+                && (itemClass == null || !UpgradeVG.class.isAssignableFrom(itemClass))) {
+            // upgrades are never lazy, so this doesn't build anything
+            String goodItemId = ((UpgradeVG) base.getVirtualItem(itemId)).getGoodItemId();
+            List<UpgradeVG> upgrades = catalog.getGoodUpgrades(goodItemId);
+            if (upgrades != null) {
+                for (UpgradeVG upgradeVG : upgrades) {
+                    if (itemId.equals(upgradeVG.getPrevItemId())
+                            || itemId.equals(upgradeVG.getNextItemId())) {
+                        throw dangling(upgradeVG.getItemId(), "is linked to the upgrade",
+                                itemId);
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean isOfClass(StoreCatalog catalog, String itemId,
+                                     Class<? extends VirtualItem> itemClass) {
+        ItemTraits traits = itemId == null ? null : catalog.getTraits(itemId);
+        return traits != null && itemClass.isAssignableFrom(traits.getItemClass());
+    }
+
+    private static boolean isCurrency(Class<? extends VirtualItem> itemClass) {
+        return itemClass != null && VirtualCurrency.class.isAssignableFrom(itemClass);
+    }
+
+    private static boolean isGood(Class<? extends VirtualItem> itemClass) {
+        return itemClass != null && VirtualGood.class.isAssignableFrom(itemClass);
+    }
+
+    private static IllegalArgumentException dangling(String itemId, String reference,
+                                                     String targetItemId) {
+        return new IllegalArgumentException(itemId + " " + reference + " " + targetItemId
+                + ", which isn't in the catalog or is of another kind");
+    }
+}
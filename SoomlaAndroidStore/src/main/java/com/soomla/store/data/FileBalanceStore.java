@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soomla.store.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An {@link IBalanceStore} that keeps all values in memory and saves them to a single file.
+ * The file is rewritten as a whole for every write (or batch of writes), to a temporary file
+ * that then replaces it, so the file always holds either the old or the new values.
+ *
+ * Since every write costs as much as writing all the values, this store is meant to be used
+ * with write-behind persistence (see {@link StorageManager#enableWriteBehind(long, int)}),
+ * which turns many changes into one batch and so into one rewrite of the file.
+ *
+ * Values of any length can be kept, including the serialized store metadata and the
+ * inventory snapshot.
+ *
+ * NOTE: Unlike <code>KeyValueStorage</code>, the file is not encrypted. It doesn't depend on
+ * Android, so it can also be used on a plain JVM.
+ */
+public class FileBalanceStore implements IBalanceStore {
+
+    /**
+     * Constructor
+     * Loads the values saved in the given file, if it exists.
+     *
+     * @param file the file to keep the values in
+     * @throws IOException if the file exists but can't be read
+     */
+    public FileBalanceStore(File file) throws IOException {
+        mFile = file;
+        mTempFile = new File(file.getPath() + ".tmp");
+        load();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized String getValue(String key) {
+        return mValues.get(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void setValue(String key, String val) {
+        if (val == null) {
+            deleteKeyValue(key);
+            return;
+        }
+        mValues.put(key, val);
+        save();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void deleteKeyValue(String key) {
+        if (mValues.remove(key) != null) {
+            save();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void setValues(Map<String, String> values) {
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            if (entry.getValue() == null) {
+                mValues.remove(entry.getKey());
+            } else {
+                mValues.put(entry.getKey(), entry.getValue());
+            }
+        }
+        save();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isBatchAtomic() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized List<String> getKeys() {
+        return new ArrayList<String>(mValues.keySet());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized List<String> getKeys(String prefix) {
+        return new ArrayList<String>(mValues.subMap(prefix, prefix + Character.MAX_VALUE)
+                .keySet());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void deleteKeys(String prefix) {
+        Map<String, String> range = mValues.subMap(prefix, prefix + Character.MAX_VALUE);
+        if (!range.isEmpty()) {
+            range.clear();
+            save();
+        }
+    }
+
+
+    /** Setters and Getters */
+
+    public File getFile() {
+        return mFile;
+    }
+
+    private void load() throws IOException {
+        if (!mFile.exists()) {
+            return;
+        }
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(mFile)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("not a balance store file: " + mFile);
+            }
+            int version = in.readByte();
+            if (version < 1 || version > FORMAT_VERSION) {
+                throw new IOException("unknown balance store file version " + version);
+            }
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                if (version == 1) {
+                    String key = in.readUTF();
+                    mValues.put(key, in.readUTF());
+                } else {
+                    String key = readString(in);
+                    mValues.put(key, readString(in));
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes all values to the temporary file and moves it over the real one, in the following
+     * format (version 2): magic number, format version, the number of keys, then each key
+     * followed by its value. Keys and values are written as their length and their UTF-8
+     * bytes, so unlike in version 1 they aren't limited to 64KB.
+     *
+     * @throws IllegalStateException if the file couldn't be written
+     */
+    private void save() {
+        try {
+            FileOutputStream fileOut = new FileOutputStream(mTempFile);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            try {
+                out.writeInt(MAGIC);
+                out.writeByte(FORMAT_VERSION);
+                out.writeInt(mValues.size());
+                for (Map.Entry<String, String> entry : mValues.entrySet()) {
+                    writeString(out, entry.getKey());
+                    writeString(out, entry.getValue());
+                }
+                out.flush();
+                fileOut.getFD().sync();
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Couldn't write " + mTempFile + ": "
+                    + e.getMessage(), e);
+        }
+
+        if (!mTempFile.renameTo(mFile)) {
+            throw new IllegalStateException("Couldn't replace " + mFile);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String str) throws IOException {
+        byte[] bytes = str.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("bad string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+
+    /** Private Members */
+
+    private static final int MAGIC = 0x53424C53; // "SBLS"
+    private static final int FORMAT_VERSION = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File mFile;
+    private final File mTempFile;
+
+    // sorted, so a prefix is a contiguous range of keys
+    private final TreeMap<String, String> mValues = new TreeMap<String, String>();
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soomla.store.data;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This interface defines the backend the store's storages keep their values in: balances,
+ * equipped goods, upgrades and the store's own bookkeeping keys.
+ * <code>StorageManager</code> uses {@link KeyValueBalanceStore} unless another backend is set
+ * with {@link StorageManager#setBalanceStore(IBalanceStore)}.
+ *
+ * Implementations must be safe to call from several threads.
+ */
+public interface IBalanceStore {
+
+    /**
+     * Retrieves the value of the given key.
+     *
+     * @param key the key to retrieve
+     * @return the value of the given key, or null if it doesn't exist
+     */
+    String getValue(String key);
+
+    /**
+     * Sets the given key to the given value.
+     *
+     * @param key the key to set
+     * @param val the value to set
+     */
+    void setValue(String key, String val);
+
+    /**
+     * Deletes the given key.
+     *
+     * @param key the key to delete
+     */
+    void deleteKeyValue(String key);
+
+    /**
+     * Sets (or deletes, for null values) all the given keys.
+     *
+     * @param values key -> value to write, a null value means the key is to be deleted
+     */
+    void setValues(Map<String, String> values);
+
+    /**
+     * Checks if {@link #setValues(Map)} writes either all of its keys or none of them, even if
+     * the app dies in the middle. If not, <code>StorageManager</code> protects batches with a
+     * journal of its own.
+     *
+     * @return true if batches are written atomically, false otherwise
+     */
+    boolean isBatchAtomic();
+
+    /**
+     * Retrieves all keys in this store.
+     *
+     * @return the list of keys
+     */
+    List<String> getKeys();
+
+    /**
+     * Retrieves the keys in this store that start with the given prefix, without going over
+     * the rest of the keys where possible.
+     *
+     * @param prefix the prefix of the keys to retrieve, e.g. <code>good.</code>
+     * @return the list of keys, sorted
+     */
+    List<String> getKeys(String prefix);
+
+    /**
+     * Deletes all keys that start with the given prefix, as one batch.
+     *
+     * @param prefix the prefix of the keys to delete
+     */
+    void deleteKeys(String prefix);
+}
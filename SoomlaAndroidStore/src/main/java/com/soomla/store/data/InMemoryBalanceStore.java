@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soomla.store.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An {@link IBalanceStore} that keeps everything in memory and persists nothing.
+ * It doesn't depend on Android, which makes it useful for running the store's economy logic
+ * in tests and benchmarks on a plain JVM, and for games that keep the inventory on their own
+ * server.
+ */
+public class InMemoryBalanceStore implements IBalanceStore {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized String getValue(String key) {
+        return mValues.get(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void setValue(String key, String val) {
+        mValues.put(key, val);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void deleteKeyValue(String key) {
+        mValues.remove(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void setValues(Map<String, String> values) {
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            if (entry.getValue() == null) {
+                mValues.remove(entry.getKey());
+            } else {
+                mValues.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isBatchAtomic() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized List<String> getKeys() {
+        return new ArrayList<String>(mValues.keySet());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized List<String> getKeys(String prefix) {
+        return new ArrayList<String>(mValues.subMap(prefix, prefix + Character.MAX_VALUE)
+                .keySet());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void deleteKeys(String prefix) {
+        mValues.subMap(prefix, prefix + Character.MAX_VALUE).clear();
+    }
+
+    /**
+     * Deletes all keys.
+     */
+    public synchronized void clear() {
+        mValues.clear();
+    }
+
+
+    /** Private Members */
+
+    // sorted, so a prefix is a contiguous range of keys
+    private final TreeMap<String, String> mValues = new TreeMap<String, String>();
+}
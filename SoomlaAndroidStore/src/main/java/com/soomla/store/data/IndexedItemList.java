@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soomla.store.data;
+
+import com.soomla.store.domain.VirtualItem;
+
+import java.util.AbstractList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * A list of virtual items that keeps their insertion order and finds or replaces an item by
+ * its itemId in O(1). Used by {@link StoreCatalog.Builder} for the catalog's item lists.
+ *
+ * The list holds the ordinals of its items and reads the items themselves from
+ * {@link CatalogItems}, so lazy items are only built when they're read from the list.
+ *
+ * @param <T> the type of the items
+ */
+final class IndexedItemList<T extends VirtualItem> {
+
+    /**
+     * Constructor
+     *
+     * @param items the catalog items the ordinals refer to
+     */
+    IndexedItemList(CatalogItems items) {
+        mItems = items;
+        mOrdinals = new int[INITIAL_CAPACITY];
+        mPositions = new HashMap<String, Integer>();
+    }
+
+    /**
+     * Constructor
+     * Starts a copy of the given list.
+     *
+     * @param other the list to copy
+     * @param items the catalog items the ordinals of the copy refer to
+     */
+    IndexedItemList(IndexedItemList<T> other, CatalogItems items) {
+        mItems = items;
+        mOrdinals = other.mOrdinals.clone();
+        mSize = other.mSize;
+        mPositions = new HashMap<String, Integer>(other.mPositions);
+    }
+
+    /**
+     * Adds the item with the given itemId and ordinal at the end of the list, unless the list
+     * already has an item with this itemId. A replaced item keeps its ordinal, so its place in
+     * the list doesn't change.
+     *
+     * @param itemId the itemId of the item
+     * @param ordinal the ordinal of the item
+     */
+    void put(String itemId, int ordinal) {
+        Integer position = mPositions.get(itemId);
+        if (position != null) {
+            mOrdinals[position] = ordinal;
+            return;
+        }
+
+        if (mSize == mOrdinals.length) {
+            int[] grown = new int[mSize * 2];
+            System.arraycopy(mOrdinals, 0, grown, 0, mSize);
+            mOrdinals = grown;
+        }
+        mPositions.put(itemId, mSize);
+        mOrdinals[mSize++] = ordinal;
+    }
+
+    /**
+     * Removes the item with the given itemId, moving the items after it one place up.
+     *
+     * @param itemId the itemId of the item to remove
+     * @return true if the list had an item with this itemId
+     */
+    boolean remove(String itemId) {
+        Integer position = mPositions.remove(itemId);
+        if (position == null) {
+            return false;
+        }
+
+        System.arraycopy(mOrdinals, position + 1, mOrdinals, position, mSize - position - 1);
+        mSize--;
+        for (int i = position; i < mSize; i++) {
+            mPositions.put(mItems.getItemId(mOrdinals[i]), i);
+        }
+        return true;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Retrieves a read-only view of the items, in order. The view reflects later changes to
+     * this list, so it should only be handed out once the list stops changing.
+     *
+     * @return a read-only view of the items
+     */
+    List<T> asList() {
+        return mView;
+    }
+
+    /**
+     * Retrieves a read-only view of the itemIds of the items, in order. Unlike
+     * {@link #asList()}, reading it doesn't build lazy items.
+     *
+     * @return a read-only view of the itemIds
+     */
+    List<String> itemIds() {
+        return mItemIdsView;
+    }
+
+
+    private class ItemsView extends AbstractList<T> implements RandomAccess {
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T get(int index) {
+            checkIndex(index);
+            return (T) mItems.get(mOrdinals[index]);
+        }
+
+        @Override
+        public int size() {
+            return mSize;
+        }
+    }
+
+    private class ItemIdsView extends AbstractList<String> implements RandomAccess {
+
+        @Override
+        public String get(int index) {
+            checkIndex(index);
+            return mItems.getItemId(mOrdinals[index]);
+        }
+
+        @Override
+        public int size() {
+            return mSize;
+        }
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + mSize);
+        }
+    }
+
+
+    /** Private Members */
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private final CatalogItems mItems;
+
+    private int[] mOrdinals;
+    private int mSize;
+
+    // itemId -> position in mOrdinals
+    private final HashMap<String, Integer> mPositions;
+
+    private final List<T> mView = new ItemsView();
+    private final List<String> mItemIdsView = new ItemIdsView();
+}
@@ -0,0 +1,549 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soomla.store.data;
+
+import com.soomla.SoomlaUtils;
+import com.soomla.keeva.Base64;
+import com.soomla.keeva.Base64DecoderException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the whole inventory (the balances of all goods and currencies, which goods are
+ * equipped and which upgrade each good has) in one versioned binary blob, stored under a
+ * single key of the {@link IBalanceStore}.
+ *
+ * By default every balance is a decimal string under its own key and (with
+ * {@link KeyValueBalanceStore}) is encrypted on its own.
+ * With thousands of items, loading the inventory means thousands of decrypt-and-parse
+ * operations. The blob is decrypted and parsed once when it's loaded and encrypted once per
+ * write.
+ *
+ * The blob is rewritten as a whole on every write, so this format works best together with
+ * write-behind persistence (see {@link StorageManager#enableWriteBehind(long, int)}), which
+ * turns many changes into one write.
+ *
+ * Items are stored by itemId, so the blob stays valid when items are added to or removed from
+ * the store's metadata.
+ *
+ * Use {@link StorageManager#enableInventorySnapshot()} to turn this format on.
+ */
+public class InventorySnapshot {
+
+    /**
+     * Constructor
+     *
+     * @param store the store to keep the snapshot in, and to migrate per-item keys from
+     */
+    public InventorySnapshot(IBalanceStore store) {
+        mStore = store;
+    }
+
+    /**
+     * Checks if the given key is one of the inventory keys kept by this snapshot:
+     * <code>good.[itemId].balance</code>, <code>good.equipped.all</code> (the equipped goods),
+     * <code>good.[itemId].equipped</code>, <code>good.[itemId].upgradeLevel</code>,
+     * <code>good.[itemId].currentUpgrade</code> or <code>currency.[itemId].balance</code>.
+     *
+     * @param key the key to check
+     * @return true if the key is an inventory key, false otherwise
+     */
+    public static boolean isInventoryKey(String key) {
+        return keyType(key) != KEY_NONE;
+    }
+
+    /**
+     * Loads the snapshot from the database. If there's no snapshot yet, it's created from the
+     * existing per-item keys, which are deleted once the snapshot is saved.
+     *
+     * @return true if the snapshot was loaded, false if it was written in a newer format this
+     *     version can't read
+     */
+    public synchronized boolean load() {
+        String blob = mStore.getValue(KEY_INVENTORY);
+        if (blob == null) {
+            migrateFromKeys();
+            return true;
+        }
+
+        try {
+            decode(Base64.decode(blob));
+            SoomlaUtils.LogDebug(TAG, "loaded inventory snapshot with "
+                    + (mGoodBalances.size() + mCurrencyBalances.size()) + " balances");
+            adoptEquippedGoods();
+            return true;
+        } catch (IOException e) {
+            SoomlaUtils.LogError(TAG, "Couldn't read the inventory snapshot: " + e.getMessage());
+            return false;
+        } catch (Base64DecoderException e) {
+            SoomlaUtils.LogError(TAG, "Couldn't decode the inventory snapshot: "
+                    + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Retrieves the value the given inventory key would have in the per-item format.
+     *
+     * @param key an inventory key
+     * @return the value of the given key, or null if it doesn't exist
+     */
+    public synchronized String getValue(String key) {
+        String itemId = itemIdOf(key);
+        switch (keyType(key)) {
+            case KEY_GOOD_BALANCE:
+                Integer goodBalance = mGoodBalances.get(itemId);
+                return goodBalance == null ? null : goodBalance.toString();
+            case KEY_CURRENCY_BALANCE:
+                Integer currencyBalance = mCurrencyBalances.get(itemId);
+                return currencyBalance == null ? null : currencyBalance.toString();
+            case KEY_GOOD_EQUIPPED:
+                return mEquipped.contains(itemId) ? "" : null;
+            case KEY_EQUIPPED_GOODS:
+                return VirtualGoodsStorage.encodeEquipped(mEquipped);
+            case KEY_GOOD_UPGRADE:
+                return mUpgrades.get(itemId);
+            case KEY_GOOD_UPGRADE_LEVEL:
+                Integer level = mUpgradeLevels.get(itemId);
+                return level == null ? null : level.toString();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Applies the given inventory keys to the snapshot and saves it once.
+     *
+     * @param values key -> value to write, a null value means the key is to be deleted
+     */
+    public synchronized void setValues(Map<String, String> values) {
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+        save();
+    }
+
+    /**
+     * Applies the given inventory keys to the snapshot in memory only. Used by
+     * {@link BalanceJournal}, which persists the changes itself until the next {@link #save()}.
+     *
+     * @param values key -> value to apply, a null value means the key is to be deleted
+     */
+    public synchronized void applyValues(Map<String, String> values) {
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Saves the snapshot to the database.
+     */
+    public synchronized void save() {
+        mStore.setValue(KEY_INVENTORY, encodeBlob());
+    }
+
+    /**
+     * Saves the snapshot to the database and reads it back, for callers that drop another
+     * copy of the changes once they're in the snapshot, like {@link BalanceJournal}.
+     *
+     * @return true if the database holds the snapshot as it was saved
+     */
+    public synchronized boolean saveVerified() {
+        String blob = encodeBlob();
+        mStore.setValue(KEY_INVENTORY, blob);
+        return blob != null && blob.equals(mStore.getValue(KEY_INVENTORY));
+    }
+
+    /**
+     * Deletes everything in the snapshot.
+     */
+    public synchronized void clear() {
+        mGoodBalances.clear();
+        mCurrencyBalances.clear();
+        mEquipped.clear();
+        mUpgrades.clear();
+        mUpgradeLevels.clear();
+        mStore.deleteKeyValue(KEY_INVENTORY);
+    }
+
+    /**
+     * Writes the snapshot back as per-item keys and deletes the blob, for when this format is
+     * turned off.
+     */
+    public synchronized void exportToKeys() {
+        Map<String, String> values = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, Integer> entry : mGoodBalances.entrySet()) {
+            values.put(VirtualGoodsStorage.keyGoodBalance(entry.getKey()),
+                    entry.getValue().toString());
+        }
+        for (Map.Entry<String, Integer> entry : mCurrencyBalances.entrySet()) {
+            values.put(VirtualCurrencyStorage.keyCurrencyBalance(entry.getKey()),
+                    entry.getValue().toString());
+        }
+        values.put(VirtualGoodsStorage.KEY_EQUIPPED_GOODS,
+                VirtualGoodsStorage.encodeEquipped(mEquipped));
+        for (Map.Entry<String, String> entry : mUpgrades.entrySet()) {
+            values.put(VirtualGoodsStorage.keyGoodUpgrade(entry.getKey()), entry.getValue());
+        }
+        for (Map.Entry<String, Integer> entry : mUpgradeLevels.entrySet()) {
+            values.put(VirtualGoodsStorage.keyGoodUpgradeLevel(entry.getKey()),
+                    entry.getValue().toString());
+        }
+        mStore.setValues(values);
+        mStore.deleteKeyValue(KEY_INVENTORY);
+    }
+
+    /**
+     * Builds the snapshot from the existing per-item keys, saves it, and only then deletes the
+     * per-item keys. If the app dies in between, the leftover keys are ignored from now on.
+     */
+    private void migrateFromKeys() {
+        List<String> candidates = new ArrayList<String>();
+        candidates.addAll(mStore.getKeys(VirtualGoodsStorage.DB_KEY_GOOD_PREFIX));
+        candidates.addAll(mStore.getKeys(VirtualCurrencyStorage.DB_CURRENCY_KEY_PREFIX));
+
+        List<String> legacyKeys = new ArrayList<String>();
+        String equippedGoods = null;
+        for (String key : candidates) {
+            if (key.equals(VirtualGoodsStorage.KEY_EQUIPPED_GOODS)) {
+                equippedGoods = mStore.getValue(key);
+                legacyKeys.add(key);
+            } else if (isInventoryKey(key)) {
+                put(key, mStore.getValue(key));
+                legacyKeys.add(key);
+            }
+        }
+
+        // the equipped goods replaced the per-good keys, so any that are left are stale
+        if (equippedGoods != null) {
+            put(VirtualGoodsStorage.KEY_EQUIPPED_GOODS, equippedGoods);
+        }
+
+        SoomlaUtils.LogDebug(TAG, "migrating " + legacyKeys.size() + " keys to an inventory "
+                + "snapshot");
+
+        save();
+
+        Map<String, String> deletions = new LinkedHashMap<String, String>();
+        for (String key : legacyKeys) {
+            deletions.put(key, null);
+        }
+        mStore.setValues(deletions);
+    }
+
+    /**
+     * Takes over the equipped goods from the store, where they were saved while their key
+     * wasn't part of the snapshot, and deletes them there.
+     */
+    private void adoptEquippedGoods() {
+        String val = mStore.getValue(VirtualGoodsStorage.KEY_EQUIPPED_GOODS);
+        if (val == null) {
+            return;
+        }
+
+        SoomlaUtils.LogDebug(TAG, "moving the equipped goods into the inventory snapshot");
+
+        put(VirtualGoodsStorage.KEY_EQUIPPED_GOODS, val);
+        save();
+        mStore.deleteKeyValue(VirtualGoodsStorage.KEY_EQUIPPED_GOODS);
+    }
+
+    private void put(String key, String val) {
+        String itemId = itemIdOf(key);
+        switch (keyType(key)) {
+            case KEY_GOOD_BALANCE:
+                putBalance(mGoodBalances, itemId, val);
+                break;
+            case KEY_CURRENCY_BALANCE:
+                putBalance(mCurrencyBalances, itemId, val);
+                break;
+            case KEY_GOOD_EQUIPPED:
+                if (val == null) {
+                    mEquipped.remove(itemId);
+                } else {
+                    mEquipped.add(itemId);
+                }
+                break;
+            case KEY_EQUIPPED_GOODS:
+                mEquipped.clear();
+                if (val != null) {
+                    mEquipped.addAll(VirtualGoodsStorage.decodeEquipped(val));
+                }
+                break;
+            case KEY_GOOD_UPGRADE:
+                if (val == null) {
+                    mUpgrades.remove(itemId);
+                } else {
+                    mUpgrades.put(itemId, val);
+                }
+                break;
+            case KEY_GOOD_UPGRADE_LEVEL:
+                putBalance(mUpgradeLevels, itemId, val);
+                break;
+            default:
+                SoomlaUtils.LogError(TAG, "Not an inventory key: " + key);
+        }
+    }
+
+    private static void putBalance(Map<String, Integer> balances, String itemId, String val) {
+        if (val == null) {
+            balances.remove(itemId);
+        } else {
+            balances.put(itemId, Integer.parseInt(val));
+        }
+    }
+
+    private String encodeBlob() {
+        try {
+            return Base64.encode(encode());
+        } catch (IOException e) {
+            // can't happen, we only write to memory
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Writes the snapshot in the following format (version 2):
+     *  1. magic number and format version
+     *  2. item table: the number of items, then for each item its kind (good or currency) and
+     *     itemId. Everything below refers to items by their index in this table.
+     *  3. balance bitmap (which items have a balance) followed by those balances
+     *  4. equipped bitmap
+     *  5. upgrades: their number, then pairs of good index and upgrade index
+     *  6. upgrade levels: their number, then pairs of good index and level (added in
+     *     version 2)
+     */
+    private byte[] encode() throws IOException {
+        List<String> itemIds = new ArrayList<String>();
+        List<Byte> kinds = new ArrayList<Byte>();
+        Map<String, Integer> goodIndexes = new HashMap<String, Integer>();
+        Map<String, Integer> currencyIndexes = new HashMap<String, Integer>();
+
+        for (String itemId : mCurrencyBalances.keySet()) {
+            indexOf(itemId, KIND_CURRENCY, currencyIndexes, itemIds, kinds);
+        }
+        for (String itemId : mGoodBalances.keySet()) {
+            indexOf(itemId, KIND_GOOD, goodIndexes, itemIds, kinds);
+        }
+        for (String itemId : mEquipped) {
+            indexOf(itemId, KIND_GOOD, goodIndexes, itemIds, kinds);
+        }
+        for (Map.Entry<String, String> entry : mUpgrades.entrySet()) {
+            indexOf(entry.getKey(), KIND_GOOD, goodIndexes, itemIds, kinds);
+            indexOf(entry.getValue(), KIND_GOOD, goodIndexes, itemIds, kinds);
+        }
+        for (String itemId : mUpgradeLevels.keySet()) {
+            indexOf(itemId, KIND_GOOD, goodIndexes, itemIds, kinds);
+        }
+
+        int count = itemIds.size();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + count * 24);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(MAGIC);
+        out.writeByte(FORMAT_VERSION);
+
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            out.writeByte(kinds.get(i));
+            out.writeUTF(itemIds.get(i));
+        }
+
+        byte[] hasBalance = new byte[(count + 7) / 8];
+        byte[] equipped = new byte[(count + 7) / 8];
+        for (int i = 0; i < count; i++) {
+            Map<String, Integer> balances =
+                    kinds.get(i) == KIND_CURRENCY ? mCurrencyBalances : mGoodBalances;
+            if (balances.containsKey(itemIds.get(i))) {
+                hasBalance[i >> 3] |= 1 << (i & 7);
+            }
+            if (kinds.get(i) == KIND_GOOD && mEquipped.contains(itemIds.get(i))) {
+                equipped[i >> 3] |= 1 << (i & 7);
+            }
+        }
+
+        out.write(hasBalance);
+        for (int i = 0; i < count; i++) {
+            if ((hasBalance[i >> 3] & (1 << (i & 7))) != 0) {
+                Map<String, Integer> balances =
+                        kinds.get(i) == KIND_CURRENCY ? mCurrencyBalances : mGoodBalances;
+                out.writeInt(balances.get(itemIds.get(i)));
+            }
+        }
+
+        out.write(equipped);
+
+        out.writeInt(mUpgrades.size());
+        for (Map.Entry<String, String> entry : mUpgrades.entrySet()) {
+            out.writeInt(goodIndexes.get(entry.getKey()));
+            out.writeInt(goodIndexes.get(entry.getValue()));
+        }
+
+        out.writeInt(mUpgradeLevels.size());
+        for (Map.Entry<String, Integer> entry : mUpgradeLevels.entrySet()) {
+            out.writeInt(goodIndexes.get(entry.getKey()));
+            out.writeInt(entry.getValue());
+        }
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private void decode(byte[] blob) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(blob));
+
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not an inventory snapshot");
+        }
+        int version = in.readByte();
+        if (version < 1 || version > FORMAT_VERSION) {
+            throw new IOException("unknown inventory snapshot version " + version);
+        }
+
+        int count = in.readInt();
+        String[] itemIds = new String[count];
+        byte[] kinds = new byte[count];
+        for (int i = 0; i < count; i++) {
+            kinds[i] = in.readByte();
+            itemIds[i] = in.readUTF();
+        }
+
+        byte[] hasBalance = new byte[(count + 7) / 8];
+        in.readFully(hasBalance);
+        for (int i = 0; i < count; i++) {
+            if ((hasBalance[i >> 3] & (1 << (i & 7))) != 0) {
+                Map<String, Integer> balances =
+                        kinds[i] == KIND_CURRENCY ? mCurrencyBalances : mGoodBalances;
+                balances.put(itemIds[i], in.readInt());
+            }
+        }
+
+        byte[] equipped = new byte[(count + 7) / 8];
+        in.readFully(equipped);
+        for (int i = 0; i < count; i++) {
+            if ((equipped[i >> 3] & (1 << (i & 7))) != 0) {
+                mEquipped.add(itemIds[i]);
+            }
+        }
+
+        int upgrades = in.readInt();
+        for (int i = 0; i < upgrades; i++) {
+            String goodItemId = itemIds[in.readInt()];
+            mUpgrades.put(goodItemId, itemIds[in.readInt()]);
+        }
+
+        if (version >= 2) {
+            int levels = in.readInt();
+            for (int i = 0; i < levels; i++) {
+                String goodItemId = itemIds[in.readInt()];
+                mUpgradeLevels.put(goodItemId, in.readInt());
+            }
+        }
+    }
+
+    private static int indexOf(String itemId, byte kind, Map<String, Integer> indexes,
+                               List<String> itemIds, List<Byte> kinds) {
+        Integer index = indexes.get(itemId);
+        if (index == null) {
+            index = itemIds.size();
+            indexes.put(itemId, index);
+            itemIds.add(itemId);
+            kinds.add(kind);
+        }
+        return index;
+    }
+
+    private static int keyType(String key) {
+        if (key.equals(VirtualGoodsStorage.KEY_EQUIPPED_GOODS)) {
+            return KEY_EQUIPPED_GOODS;
+        }
+        if (key.startsWith(VirtualGoodsStorage.DB_KEY_GOOD_PREFIX)) {
+            if (key.endsWith(SUFFIX_BALANCE)) {
+                return KEY_GOOD_BALANCE;
+            }
+            if (key.endsWith(SUFFIX_EQUIPPED)) {
+                return KEY_GOOD_EQUIPPED;
+            }
+            if (key.endsWith(SUFFIX_UPGRADE)) {
+                return KEY_GOOD_UPGRADE;
+            }
+            if (key.endsWith(SUFFIX_UPGRADE_LEVEL)) {
+                return KEY_GOOD_UPGRADE_LEVEL;
+            }
+        } else if (key.startsWith(VirtualCurrencyStorage.DB_CURRENCY_KEY_PREFIX)
+                && key.endsWith(SUFFIX_BALANCE)) {
+            return KEY_CURRENCY_BALANCE;
+        }
+        return KEY_NONE;
+    }
+
+    private static String itemIdOf(String key) {
+        int start = key.indexOf('.') + 1;
+        int end = key.lastIndexOf('.');
+        return end > start ? key.substring(start, end) : "";
+    }
+
+
+    /** Private Members */
+
+    private static final String TAG = "SOOMLA InventorySnapshot"; //used for Log messages
+
+    private static final String KEY_INVENTORY = "meta.inventory";
+
+    private static final int MAGIC = 0x534F494E; // "SOIN"
+    private static final int FORMAT_VERSION = 2;
+
+    private static final byte KIND_GOOD = 0;
+    private static final byte KIND_CURRENCY = 1;
+
+    private static final String SUFFIX_BALANCE = ".balance";
+    private static final String SUFFIX_EQUIPPED = ".equipped";
+    private static final String SUFFIX_UPGRADE = ".currentUpgrade";
+    private static final String SUFFIX_UPGRADE_LEVEL = ".upgradeLevel";
+
+    private static final int KEY_NONE = 0;
+    private static final int KEY_GOOD_BALANCE = 1;
+    private static final int KEY_CURRENCY_BALANCE = 2;
+    private static final int KEY_GOOD_EQUIPPED = 3;
+    private static final int KEY_GOOD_UPGRADE = 4;
+    private static final int KEY_GOOD_UPGRADE_LEVEL = 5;
+    private static final int KEY_EQUIPPED_GOODS = 6;
+
+    private final IBalanceStore mStore;
+
+    private final Map<String, Integer> mGoodBalances = new LinkedHashMap<String, Integer>();
+    private final Map<String, Integer> mCurrencyBalances = new LinkedHashMap<String, Integer>();
+    private final Set<String> mEquipped = new LinkedHashSet<String>();
+
+    // good itemId -> itemId of its current upgrade
+    private final Map<String, String> mUpgrades = new LinkedHashMap<String, String>();
+
+    // good itemId -> its current upgrade level
+    private final Map<String, Integer> mUpgradeLevels = new LinkedHashMap<String, Integer>();
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soomla.store.data;
+
+import com.soomla.store.domain.PurchasableVirtualItem;
+import com.soomla.store.domain.VirtualItem;
+import com.soomla.store.domain.virtualGoods.EquippableVG;
+import com.soomla.store.purchaseTypes.PurchaseType;
+import com.soomla.store.purchaseTypes.PurchaseWithMarket;
+import com.soomla.store.purchaseTypes.PurchaseWithVirtualItem;
+
+/**
+ * The facts about a virtual item the catalog indexes it by: its class, how it's purchased and
+ * for how much, and its equipping model. They can be worked out without building the item, so lazy items are
+ * indexed without being built.
+ *
+ * @see CatalogIndexes
+ */
+final class ItemTraits {
+
+    /**
+     * Constructor
+     *
+     * @param itemClass the concrete class of the item
+     * @param purchaseClass the class of the item's purchase type, or null if it isn't
+     *                      purchasable
+     * @param productId the product id of the item in the market, or null if it isn't sold
+     *                  there
+     * @param priceItemId the itemId of the virtual item the item is bought with, or null if
+     *                    it isn't bought with one
+     * @param marketPriceMicros the market price of the item in micros, or -1 if it isn't sold
+     *                          in the market
+     * @param virtualPrice the amount of the virtual item the item is bought with, or -1 if it
+     *                     isn't bought with one
+     * @param subscription true if the item is a market subscription
+     * @param equippingModel the equipping model of the item, or null if it isn't equippable
+     */
+    ItemTraits(Class<? extends VirtualItem> itemClass, Class<? extends PurchaseType> purchaseClass,
+               String productId, String priceItemId, long marketPriceMicros, int virtualPrice,
+               boolean subscription, EquippableVG.EquippingModel equippingModel) {
+        mItemClass = itemClass;
+        mPurchaseClass = purchaseClass;
+        mProductId = productId;
+        mPriceItemId = priceItemId;
+        mMarketPriceMicros = marketPriceMicros;
+        mVirtualPrice = virtualPrice;
+        mSubscription = subscription;
+        mEquippingModel = equippingModel;
+    }
+
+    /**
+     * Works out the traits of the given item.
+     *
+     * @param item the item
+     * @return the traits of the item
+     */
+    static ItemTraits of(VirtualItem item) {
+        Class<? extends PurchaseType> purchaseClass = null;
+        String productId = null;
+        String priceItemId = null;
+        long marketPriceMicros = -1;
+        int virtualPrice = -1;
+        boolean subscription = false;
+        if (item instanceof PurchasableVirtualItem) {
+            PurchaseType purchaseType = ((PurchasableVirtualItem) item).getPurchaseType();
+            if (purchaseType != null) {
+                purchaseClass = purchaseType.getClass();
+            }
+            if (purchaseType instanceof PurchaseWithMarket) {
+                PurchaseWithMarket withMarket = (PurchaseWithMarket) purchaseType;
+                productId = withMarket.getMarketItem().getProductId();
+                marketPriceMicros = marketPriceMicros(withMarket.getMarketItem().getPrice(),
+                        withMarket.getMarketItem().getMarketPriceMicros());
+                subscription = withMarket.isSubscription();
+            } else if (purchaseType instanceof PurchaseWithVirtualItem) {
+                PurchaseWithVirtualItem withItem = (PurchaseWithVirtualItem) purchaseType;
+                priceItemId = withItem.getTargetItemId();
+                virtualPrice = withItem.getAmount();
+            }
+        }
+
+        EquippableVG.EquippingModel equippingModel = item instanceof EquippableVG
+                ? ((EquippableVG) item).getEquippingModel() : null;
+
+        return new ItemTraits(item.getClass(), purchaseClass, productId, priceItemId,
+                marketPriceMicros, virtualPrice, subscription, equippingModel);
+    }
+
+    /**
+     * Works out the market price of an item in micros. Until the market details are fetched
+     * the micros are 0, so the price the item was declared with is used instead.
+     *
+     * @param price the price the item was declared with
+     * @param marketPriceMicros the price in micros from the market, 0 if not fetched yet
+     * @return the market price in micros
+     */
+    static long marketPriceMicros(double price, long marketPriceMicros) {
+        return marketPriceMicros > 0 ? marketPriceMicros : Math.round(price * 1000000);
+    }
+
+
+    /** Setters and Getters */
+
+    Class<? extends VirtualItem> getItemClass() {
+        return mItemClass;
+    }
+
+    Class<? extends PurchaseType> getPurchaseClass() {
+        return mPurchaseClass;
+    }
+
+    String getProductId() {
+        return mProductId;
+    }
+
+    String getPriceItemId() {
+        return mPriceItemId;
+    }
+
+    long getMarketPriceMicros() {
+        return mMarketPriceMicros;
+    }
+
+    int getVirtualPrice() {
+        return mVirtualPrice;
+    }
+
+    boolean isSubscription() {
+        return mSubscription;
+    }
+
+    EquippableVG.EquippingModel getEquippingModel() {
+        return mEquippingModel;
+    }
+
+
+    /** Private Members */
+
+    private final Class<? extends VirtualItem> mItemClass;
+    private final Class<? extends PurchaseType> mPurchaseClass;
+    private final String mProductId;
+    private final String mPriceItemId;
+    private final long mMarketPriceMicros;
+    private final int mVirtualPrice;
+    private final boolean mSubscription;
+    private final EquippableVG.EquippingModel mEquippingModel;
+}
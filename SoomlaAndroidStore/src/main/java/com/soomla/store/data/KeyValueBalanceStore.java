@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soomla.store.data;
+
+import com.soomla.data.KeyValueStorage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * The default {@link IBalanceStore}: keeps every value encrypted in the core's
+ * <code>KeyValueStorage</code> database.
+ *
+ * Since keys are encrypted in the database, they can't be looked up by prefix there. Instead,
+ * the keys are read once, on the first prefix lookup, into a sorted in-memory index that is
+ * kept up to date by every write made through this class. The store's own metadata is written
+ * through it too. Keys written directly to <code>KeyValueStorage</code> by others (e.g. other
+ * SOOMLA modules) may be missing from the index, so {@link #deleteKeys(String)} reads the keys
+ * from the database again before it deletes.
+ */
+public class KeyValueBalanceStore implements IBalanceStore {
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getValue(String key) {
+        return KeyValueStorage.getValue(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setValue(String key, String val) {
+        synchronized (KeyValueBalanceStore.class) {
+            KeyValueStorage.setValue(key, val);
+            if (mKeyIndex != null) {
+                mKeyIndex.add(key);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void deleteKeyValue(String key) {
+        synchronized (KeyValueBalanceStore.class) {
+            KeyValueStorage.deleteKeyValue(key);
+            if (mKeyIndex != null) {
+                mKeyIndex.remove(key);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setValues(Map<String, String> values) {
+        synchronized (KeyValueBalanceStore.class) {
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                if (entry.getValue() == null) {
+                    KeyValueStorage.deleteKeyValue(entry.getKey());
+                    if (mKeyIndex != null) {
+                        mKeyIndex.remove(entry.getKey());
+                    }
+                } else {
+                    KeyValueStorage.setValue(entry.getKey(), entry.getValue());
+                    if (mKeyIndex != null) {
+                        mKeyIndex.add(entry.getKey());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * <code>KeyValueStorage</code> has no transactions, so batches are written key by key.
+     *
+     * @return false
+     */
+    @Override
+    public boolean isBatchAtomic() {
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getKeys() {
+        return KeyValueStorage.getEncryptedKeys();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<String> getKeys(String prefix) {
+        synchronized (KeyValueBalanceStore.class) {
+            return new ArrayList<String>(keyRange(prefix));
+        }
+    }
+
+    /**
+     * Deletes all keys that start with the given prefix. The index is built again first, so
+     * keys written around this class are deleted too, and the keys are deleted one by one since
+     * <code>KeyValueStorage</code> has no range delete.
+     *
+     * @param prefix the prefix of the keys to delete
+     */
+    @Override
+    public void deleteKeys(String prefix) {
+        synchronized (KeyValueBalanceStore.class) {
+            mKeyIndex = null;
+            SortedSet<String> range = keyRange(prefix);
+            for (String key : range) {
+                KeyValueStorage.deleteKeyValue(key);
+            }
+            range.clear();
+        }
+    }
+
+    /**
+     * Retrieves the indexed keys that start with the given prefix, building the index first if
+     * needed. Must be called while holding the class lock.
+     */
+    private static SortedSet<String> keyRange(String prefix) {
+        if (mKeyIndex == null) {
+            mKeyIndex = new TreeSet<String>(KeyValueStorage.getEncryptedKeys());
+        }
+        return mKeyIndex.subSet(prefix, prefix + Character.MAX_VALUE);
+    }
+
+
+    /** Private Members */
+
+    // all keys in KeyValueStorage, sorted, null until first needed. Shared by all instances
+    // since they all write to the same database.
+    private static TreeSet<String> mKeyIndex;
+}
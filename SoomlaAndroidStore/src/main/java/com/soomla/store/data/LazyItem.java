@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soomla.store.data;
+
+import com.soomla.SoomlaUtils;
+import com.soomla.store.domain.VirtualItem;
+
+/**
+ * A lightweight stand-in for a catalog item that hasn't been built yet. It knows the item's
+ * itemId and traits, which is all the catalog needs to index it, and builds the item the
+ * first time it's asked for. The built item is kept, so every catalog sharing this entry
+ * returns the same object.
+ */
+abstract class LazyItem {
+
+    /**
+     * Constructor
+     *
+     * @param itemId the itemId of the item
+     * @param traits the traits of the item
+     */
+    LazyItem(String itemId, ItemTraits traits) {
+        mItemId = itemId;
+        mTraits = traits;
+    }
+
+    /**
+     * Retrieves the item, building it if this is the first time it's needed.
+     *
+     * @param ordinal the ordinal of the item in the catalog
+     * @return the item
+     * @throws IllegalStateException if the item can't be built, since the catalog already
+     *                               lists it and callers don't expect it to be missing
+     */
+    final synchronized VirtualItem get(int ordinal) {
+        if (mItem == null) {
+            VirtualItem item = materialize();
+            if (item == null || !mItemId.equals(item.getItemId())) {
+                SoomlaUtils.LogError(TAG, "Couldn't build " + mItemId);
+                throw new IllegalStateException("Couldn't build the virtual item " + mItemId
+                        + " of the catalog");
+            }
+            item.setOrdinal(ordinal);
+            mItem = item;
+        }
+        return mItem;
+    }
+
+
+    /** Setters and Getters */
+
+    final String getItemId() {
+        return mItemId;
+    }
+
+    final String getProductId() {
+        return mTraits.getProductId();
+    }
+
+    final ItemTraits getTraits() {
+        return mTraits;
+    }
+
+
+    /**
+     * Builds the item.
+     *
+     * @return the item, or null if it can't be built
+     */
+    protected abstract VirtualItem materialize();
+
+
+    /** Private Members */
+
+    private static final String TAG = "SOOMLA LazyItem"; //used for Log messages
+
+    private final String mItemId;
+    private final ItemTraits mTraits;
+
+    private VirtualItem mItem;
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soomla.store.data;
+
+import com.soomla.SoomlaUtils;
+import com.soomla.store.domain.VirtualItem;
+import com.soomla.store.domain.virtualGoods.LifetimeVG;
+import com.soomla.store.exceptions.InsufficientFundsException;
+import com.soomla.store.exceptions.VirtualItemNotFoundException;
+import com.soomla.store.purchaseTypes.PurchaseWithMarket;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Converts the <code>nonconsumable.[itemId].exists</code> keys of old versions into a balance
+ * of 1 of the matching <code>LifetimeVG</code>, and deletes them.
+ *
+ * Keys are visited in sorted order, so the cursor is the last key of the previous batch.
+ * Crediting a <code>LifetimeVG</code> never takes its balance above 1, so repeating a batch is
+ * harmless.
+ *
+ * The balances are given without posting events: the goods were already owned, and the
+ * migration runs on a background thread while event handlers expect the main thread.
+ */
+class NonConsumableMigration extends StoreMigration {
+
+    /**
+     * Constructor
+     */
+    NonConsumableMigration() {
+        // nonconsumables were always kept in KeyValueStorage
+        this(new KeyValueBalanceStore());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param legacyStore the store that holds the nonconsumable keys
+     */
+    NonConsumableMigration(IBalanceStore legacyStore) {
+        super(1, "nonconsumables to LifetimeVGs");
+        mLegacyStore = legacyStore;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String migrateBatch(String cursor, int batchSize) {
+        List<String> batch = new ArrayList<String>(batchSize);
+        for (String key : mLegacyStore.getKeys(StoreInfo.DB_NONCONSUMABLE_KEY_PREFIX)) {
+            if (cursor != null && key.compareTo(cursor) <= 0) {
+                continue;
+            }
+            batch.add(key);
+            if (batch.size() == batchSize) {
+                break;
+            }
+        }
+        if (batch.isEmpty()) {
+            return null;
+        }
+
+        StorageTransaction transaction = new StorageTransaction();
+        List<String> migratedKeys = new ArrayList<String>();
+        for (String key : batch) {
+            if (!key.endsWith(SUFFIX_EXISTS)) {
+                continue;
+            }
+            String itemId = key.substring(StoreInfo.DB_NONCONSUMABLE_KEY_PREFIX.length(),
+                    key.length() - SUFFIX_EXISTS.length());
+            try {
+                VirtualItem item = StoreInfo.getVirtualItem(itemId);
+                if (item instanceof LifetimeVG
+                        && ((LifetimeVG) item).getPurchaseType() instanceof PurchaseWithMarket) {
+                    item.give(1, transaction);
+                    migratedKeys.add(key);
+                }
+            } catch (VirtualItemNotFoundException e) {
+                SoomlaUtils.LogDebug(TAG, "No LifetimeVG for nonconsumable: " + itemId);
+            }
+        }
+
+        try {
+            transaction.commit(false);
+        } catch (InsufficientFundsException e) {
+            // can't happen, nothing is debited
+            throw new IllegalStateException(e);
+        }
+
+        // deleted only after the balances were written, so a repeated batch finds them again.
+        // With write-behind they may still be pending, so they are flushed first.
+        StorageManager.flush();
+        for (String key : migratedKeys) {
+            mLegacyStore.deleteKeyValue(key);
+        }
+
+        SoomlaUtils.LogDebug(TAG, "migrated " + migratedKeys.size() + " nonconsumables");
+
+        return batch.get(batch.size() - 1);
+    }
+
+
+    /** Private Members */
+
+    private static final String TAG = "SOOMLA NonConsumableMigration"; //used for Log messages
+
+    private static final String SUFFIX_EXISTS = ".exists";
+
+    private final IBalanceStore mLegacyStore;
+}
@@ -16,18 +16,57 @@
 
 package com.soomla.store.data;
 
+import com.soomla.SoomlaApp;
+import com.soomla.SoomlaUtils;
 import com.soomla.store.domain.VirtualItem;
 import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
 import com.soomla.store.domain.virtualGoods.VirtualGood;
 
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 /**
  * In this class all the relevant storage classes are created.
  * This class contains static methods for you to retrieve the various storage bases.
  */
 public class StorageManager {
 
+    /**
+     * Sets the backend all storages keep their values in. The default is
+     * {@link KeyValueBalanceStore}.
+     * Call this before initializing <code>SoomlaStore</code>, and before turning on the
+     * inventory snapshot or the balance journal.
+     *
+     * @param store the backend to use
+     * @throws IllegalStateException if the inventory snapshot is already on
+     */
+    public static synchronized void setBalanceStore(IBalanceStore store) {
+        if (mInventorySnapshot != null) {
+            throw new IllegalStateException("The balance store must be set before the "
+                    + "inventory snapshot is enabled");
+        }
+
+        flush();
+        mBalanceStore = store;
+
+        // cached balances came from the previous backend
+        clearBalanceCaches();
+    }
+
+
     /** Setters and Getters **/
 
+    public static IBalanceStore getBalanceStore() {
+        return mBalanceStore;
+    }
+
     public static VirtualCurrencyStorage getVirtualCurrencyStorage() {
 
         return mVirtualCurrencyStorage;
@@ -54,15 +93,461 @@ public class StorageManager {
         return storage;
     }
 
+    /**
+     * Loads the balances of all currencies and goods in <code>StoreInfo</code> into the
+     * in-memory balance caches.
+     * This is called automatically after <code>StoreInfo</code> is loaded.
+     */
+    public static void warmBalanceCaches() {
+        // by itemIds, so lazy catalog items aren't built just to load their balances
+        StoreCatalog catalog = StoreInfo.getCatalog();
+        mVirtualCurrencyStorage.warmBalanceCacheByItemIds(catalog.getCurrencyItemIds());
+        mVirtualGoodsStorage.warmBalanceCacheByItemIds(catalog.getGoodItemIds());
+    }
+
+    /**
+     * Turns on write-behind persistence: storage changes are kept in memory and written to
+     * the database in batches instead of one write per change. Pending changes are always
+     * flushed when the application goes to the background.
+     *
+     * @param flushIntervalMillis time between periodic flushes, 0 or less to disable them
+     * @param flushThreshold number of pending keys that triggers a flush, 0 or less to disable
+     * @see WriteBehindQueue
+     */
+    public static synchronized void enableWriteBehind(long flushIntervalMillis,
+                                                      int flushThreshold) {
+        disableWriteBehind();
+
+        WriteBehindQueue queue = new WriteBehindQueue(flushIntervalMillis, flushThreshold);
+        queue.start();
+        mWriteBehindQueue = queue;
+    }
+
+    /**
+     * Turns off write-behind persistence, flushing everything that is still pending.
+     * From now on every storage change is written to the database right away.
+     */
+    public static synchronized void disableWriteBehind() {
+        WriteBehindQueue queue = mWriteBehindQueue;
+        if (queue == null) {
+            return;
+        }
+
+        mWriteBehindQueue = null;
+        queue.stop();
+    }
+
+    /**
+     * Writes all pending storage changes to the database. Does nothing unless write-behind
+     * persistence is enabled.
+     */
+    public static void flush() {
+        WriteBehindQueue queue = mWriteBehindQueue;
+        if (queue != null) {
+            queue.flush();
+        }
+    }
+
+    /**
+     * Turns on the inventory snapshot format: all balances, equipped goods and upgrades are
+     * kept in one binary blob instead of one key per item. The first time this is turned on,
+     * the existing per-item keys are migrated into the blob.
+     * Call this before initializing <code>SoomlaStore</code>.
+     *
+     * @see InventorySnapshot
+     */
+    public static synchronized void enableInventorySnapshot() {
+        if (mInventorySnapshot != null) {
+            return;
+        }
+
+        // the snapshot is built from the database, so nothing may still be pending
+        flush();
+
+        InventorySnapshot snapshot = new InventorySnapshot(mBalanceStore);
+        if (snapshot.load()) {
+            mInventorySnapshot = snapshot;
+        } else {
+            SoomlaUtils.LogError(TAG, "Couldn't load the inventory snapshot, staying with "
+                    + "per-item keys.");
+        }
+    }
+
+    /**
+     * Turns off the inventory snapshot format, writing the inventory back as per-item keys.
+     * Turns off the balance journal too, since it depends on the snapshot.
+     */
+    public static synchronized void disableInventorySnapshot() {
+        InventorySnapshot snapshot = mInventorySnapshot;
+        if (snapshot == null) {
+            return;
+        }
+
+        disableBalanceJournal();
+        flush();
+        snapshot.exportToKeys();
+        mInventorySnapshot = null;
+    }
+
+    /**
+     * Turns on the balance journal: inventory changes are appended to a journal file and only
+     * folded into the inventory snapshot by periodic compactions. Turns on the inventory
+     * snapshot format if it's not on yet.
+     * Call this before initializing <code>SoomlaStore</code>, in every run of the app, so the
+     * journal left by the previous run is replayed before anything else changes.
+     *
+     * @param compactionIntervalMillis time between periodic compactions, 0 or less to disable
+     * @param maxJournalBytes journal size that triggers a compaction, 0 or less to disable
+     * @see BalanceJournal
+     */
+    public static synchronized void enableBalanceJournal(long compactionIntervalMillis,
+                                                         long maxJournalBytes) {
+        enableBalanceJournal(new File(SoomlaApp.getAppContext().getFilesDir(),
+                JOURNAL_FILE_NAME), compactionIntervalMillis, maxJournalBytes);
+    }
+
+    /**
+     * Works like {@link #enableBalanceJournal(long, long)} with the given journal file.
+     */
+    static synchronized void enableBalanceJournal(File file, long compactionIntervalMillis,
+                                                  long maxJournalBytes) {
+        if (mBalanceJournal != null) {
+            return;
+        }
+
+        enableInventorySnapshot();
+        InventorySnapshot snapshot = mInventorySnapshot;
+        if (snapshot == null) {
+            return;
+        }
+
+        flush();
+
+        BalanceJournal journal = new BalanceJournal(file, snapshot, compactionIntervalMillis,
+                maxJournalBytes);
+        try {
+            journal.open();
+            mBalanceJournal = journal;
+        } catch (IOException e) {
+            SoomlaUtils.LogError(TAG, "Couldn't open the balance journal, staying with the "
+                    + "inventory snapshot alone: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Turns off the balance journal, compacting it into the inventory snapshot first.
+     */
+    public static synchronized void disableBalanceJournal() {
+        BalanceJournal journal = mBalanceJournal;
+        if (journal == null) {
+            return;
+        }
+
+        flush();
+        mBalanceJournal = null;
+        journal.close();
+    }
+
+    /**
+     * Deletes the balances, equipped state and upgrades of all items from the database and
+     * drops the in-memory balance caches.
+     */
+    public static void clearInventory() {
+        // pending changes must not resurrect the keys we're about to delete
+        flush();
+
+        mBalanceStore.deleteKeys(VirtualCurrencyStorage.DB_CURRENCY_KEY_PREFIX);
+        mBalanceStore.deleteKeys(VirtualGoodsStorage.DB_KEY_GOOD_PREFIX);
+
+        BalanceJournal journal = mBalanceJournal;
+        if (journal != null) {
+            journal.clear();
+        }
+
+        InventorySnapshot snapshot = mInventorySnapshot;
+        if (snapshot != null) {
+            snapshot.clear();
+        }
+
+        // balances were deleted behind the storages' back
+        clearBalanceCaches();
+    }
+
+    /**
+     * Drops the in-memory balance caches of all storages.
+     */
+    public static void clearBalanceCaches() {
+        mVirtualCurrencyStorage.clearBalanceCache();
+        mVirtualGoodsStorage.clearBalanceCache();
+    }
+
+
+    /**
+     * Retrieves the value of the given key, including changes that are not flushed yet.
+     */
+    static String getValue(String key) {
+        WriteBehindQueue queue = mWriteBehindQueue;
+        return queue != null ? queue.getValue(key) : getStoredValue(key);
+    }
+
+    /**
+     * Retrieves the value of the given key as it is in the database, ignoring pending changes.
+     */
+    static String getStoredValue(String key) {
+        boolean timed = StorageStats.isEnabled();
+        long start = timed ? System.nanoTime() : 0;
+
+        String val;
+        InventorySnapshot snapshot = mInventorySnapshot;
+        if (snapshot != null && InventorySnapshot.isInventoryKey(key)) {
+            val = snapshot.getValue(key);
+        } else {
+            val = mBalanceStore.getValue(key);
+        }
+
+        if (timed) {
+            StorageStats.recordRead(key, val, System.nanoTime() - start);
+        }
+        return val;
+    }
+
+    /**
+     * Sets the given key, either right away or on the next flush.
+     */
+    static void setValue(String key, String val) {
+        WriteBehindQueue queue = mWriteBehindQueue;
+        if (queue != null) {
+            queue.setValue(key, val);
+        } else {
+            applyBatch(Collections.singletonMap(key, val));
+        }
+    }
+
+    /**
+     * Deletes the given key, either right away or on the next flush.
+     */
+    static void deleteKeyValue(String key) {
+        WriteBehindQueue queue = mWriteBehindQueue;
+        if (queue != null) {
+            queue.deleteKeyValue(key);
+        } else {
+            applyBatch(Collections.singletonMap(key, (String) null));
+        }
+    }
+
+    /**
+     * Sets (or deletes, for null values) all the given keys together: either on the next
+     * flush, or right away as one batch.
+     */
+    static void setValues(Map<String, String> values) {
+        WriteBehindQueue queue = mWriteBehindQueue;
+        if (queue != null) {
+            queue.setValues(values);
+        } else {
+            writeBatch(values);
+        }
+    }
+
+    /**
+     * Writes the given keys to the balance store so that either all of them or none of them end
+     * up in the database.
+     * If the store can't write them atomically (<code>KeyValueStorage</code> has no
+     * transactions), the batch is first saved as a single value and only then applied key by
+     * key. If the process dies in the middle, the saved batch is applied again by
+     * {@link #recoverInterruptedBatch()}.
+     * Batches are written one at a time, since they all share the same saved batch key.
+     *
+     * @param values key -> value to write, a null value means the key is to be deleted
+     */
+    static void writeBatch(Map<String, String> values) {
+        if (values.isEmpty()) {
+            return;
+        }
+        synchronized (mBatchLock) {
+            writeBatchLocked(values);
+        }
+    }
+
+    /**
+     * Finishes a batch that was interrupted by the process dying in the middle of
+     * {@link #writeBatch(Map)}. Rewriting the keys that did make it is harmless since the batch
+     * holds final values.
+     * <code>StoreInfo</code> calls this before any balance is cached.
+     */
+    static void recoverInterruptedBatch() {
+        synchronized (mBatchLock) {
+            recoverInterruptedBatchLocked();
+        }
+    }
+
+    private static void writeBatchLocked(Map<String, String> values) {
+        if (countWrites(values) == 1) {
+            // a single write is atomic by itself
+            applyBatch(values);
+            return;
+        }
+
+        JSONObject batchJSON = new JSONObject();
+        try {
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                batchJSON.put(entry.getKey(),
+                        entry.getValue() == null ? JSONObject.NULL : entry.getValue());
+            }
+        } catch (JSONException e) {
+            SoomlaUtils.LogError(TAG, "Couldn't serialize a storage batch, writing it without "
+                    + "a journal: " + e.getMessage());
+            applyBatch(values);
+            return;
+        }
+
+        IBalanceStore store = mBalanceStore;
+        String batchStr = batchJSON.toString();
+        boolean timed = StorageStats.isEnabled();
+        long start = timed ? System.nanoTime() : 0;
+        store.setValue(KEY_PENDING_BATCH, batchStr);
+        if (timed) {
+            StorageStats.recordWrites(Collections.singletonMap(KEY_PENDING_BATCH, batchStr),
+                    System.nanoTime() - start);
+        }
+
+        applyBatch(values);
+
+        start = timed ? System.nanoTime() : 0;
+        store.deleteKeyValue(KEY_PENDING_BATCH);
+        if (timed) {
+            StorageStats.recordWrites(Collections.singletonMap(KEY_PENDING_BATCH, (String) null),
+                    System.nanoTime() - start);
+        }
+    }
+
+    private static void recoverInterruptedBatchLocked() {
+        IBalanceStore store = mBalanceStore;
+        String batchStr = store.getValue(KEY_PENDING_BATCH);
+        if (batchStr == null) {
+            return;
+        }
+
+        SoomlaUtils.LogDebug(TAG, "found an interrupted storage batch, applying it again");
+
+        try {
+            JSONObject batchJSON = new JSONObject(batchStr);
+            Map<String, String> values = new LinkedHashMap<String, String>();
+            Iterator<String> keys = batchJSON.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                values.put(key, batchJSON.isNull(key) ? null : batchJSON.getString(key));
+            }
+            applyBatch(values);
+        } catch (JSONException e) {
+            SoomlaUtils.LogError(TAG, "Couldn't parse the interrupted storage batch, dropping it: "
+                    + e.getMessage());
+        }
+
+        store.deleteKeyValue(KEY_PENDING_BATCH);
+    }
+
+    private static void applyBatch(Map<String, String> values) {
+        boolean timed = StorageStats.isEnabled();
+        long start = timed ? System.nanoTime() : 0;
+
+        dispatchBatch(values);
+
+        if (timed) {
+            StorageStats.recordWrites(values, System.nanoTime() - start);
+        }
+    }
+
+    private static void dispatchBatch(Map<String, String> values) {
+        InventorySnapshot snapshot = mInventorySnapshot;
+        if (snapshot == null) {
+            mBalanceStore.setValues(values);
+            return;
+        }
+
+        Map<String, String> inventoryValues = null;
+        Map<String, String> storeValues = null;
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            if (InventorySnapshot.isInventoryKey(entry.getKey())) {
+                if (inventoryValues == null) {
+                    inventoryValues = new LinkedHashMap<String, String>();
+                }
+                inventoryValues.put(entry.getKey(), entry.getValue());
+            } else {
+                if (storeValues == null) {
+                    storeValues = new LinkedHashMap<String, String>();
+                }
+                storeValues.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        if (storeValues != null) {
+            mBalanceStore.setValues(storeValues);
+        }
+
+        if (inventoryValues != null) {
+            BalanceJournal journal = mBalanceJournal;
+            if (journal != null) {
+                journal.append(inventoryValues);
+            } else {
+                snapshot.setValues(inventoryValues);
+            }
+        }
+    }
+
+    /**
+     * Counts the separate writes <code>applyBatch</code> makes for the given keys: one per key,
+     * except that all inventory keys together make a single snapshot write, and all other keys
+     * a single write if the balance store writes batches atomically.
+     */
+    private static int countWrites(Map<String, String> values) {
+        InventorySnapshot snapshot = mInventorySnapshot;
+        boolean storeBatchAtomic = mBalanceStore.isBatchAtomic();
+
+        int storeWrites = 0;
+        boolean snapshotWrite = false;
+        for (String key : values.keySet()) {
+            if (snapshot != null && InventorySnapshot.isInventoryKey(key)) {
+                snapshotWrite = true;
+            } else {
+                storeWrites++;
+            }
+        }
+
+        if (storeBatchAtomic && storeWrites > 0) {
+            storeWrites = 1;
+        }
+        return snapshotWrite ? storeWrites + 1 : storeWrites;
+    }
 
     /** Private Members **/
 
     private static final String TAG = "SOOMLA StorageManager"; //used for Log messages
 
+    // holds a batch while it's being written, see writeBatch
+    private static final String KEY_PENDING_BATCH = "meta.pendingbatch";
+
+    // held while a batch is saved, applied and cleared, so batches never share the saved batch
+    // key; it's the innermost lock, taken under the transaction and flush locks
+    private static final Object mBatchLock = new Object();
+
+    private static final String JOURNAL_FILE_NAME = "soomla_store.journal";
+
+    // the backend all values are kept in
+    private static volatile IBalanceStore mBalanceStore = new KeyValueBalanceStore();
+
     // storage of all virtual goods
     private static VirtualGoodsStorage mVirtualGoodsStorage = new VirtualGoodsStorage();
 
     // storage of all virtual currencies
     private static VirtualCurrencyStorage mVirtualCurrencyStorage = new VirtualCurrencyStorage();
 
+    // batches storage writes when write-behind is enabled, null otherwise
+    private static volatile WriteBehindQueue mWriteBehindQueue;
+
+    // holds the inventory when the snapshot format is enabled, null otherwise
+    private static volatile InventorySnapshot mInventorySnapshot;
+
+    // appends inventory changes to a file when the journal is enabled, null otherwise
+    private static volatile BalanceJournal mBalanceJournal;
+
 }
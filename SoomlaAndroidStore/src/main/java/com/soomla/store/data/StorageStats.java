@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soomla.store.data;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class counts the storage reads and writes the store makes, broken down by key family
+ * (see the <code>FAMILY_*</code> constants): how many, how many bytes, how long they took, and
+ * how often the in-memory caches answered without going to storage.
+ *
+ * Recording is off by default. Turn it on with {@link #setEnabled(boolean)} and read the
+ * numbers with {@link #getSnapshot()}, e.g. to send them to your telemetry.
+ *
+ * NOTE: A batch of writes is timed once. Each key family the batch touches gets the batch's
+ * time as one latency sample, while its write and byte counts are per key.
+ */
+public class StorageStats {
+
+    public static final String FAMILY_GOOD_BALANCE = "good.*.balance";
+    public static final String FAMILY_GOOD_EQUIPPED = "good.*.equipped";
+    public static final String FAMILY_GOOD_UPGRADE = "good.*.upgrade";
+    public static final String FAMILY_CURRENCY = "currency.*";
+    public static final String FAMILY_META_STOREINFO = "meta.storeinfo";
+    public static final String FAMILY_META = "meta.*";
+    public static final String FAMILY_OTHER = "other";
+
+    /**
+     * Turns recording on or off. Numbers recorded so far are kept.
+     *
+     * @param enabled true to record
+     */
+    public static void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Retrieves the upper bounds, in microseconds, of the latency histogram buckets. The last
+     * bucket has no upper bound.
+     *
+     * @return a copy of the bucket bounds
+     */
+    public static long[] getLatencyBucketBoundsMicros() {
+        return LATENCY_BOUNDS_MICROS.clone();
+    }
+
+    /**
+     * Retrieves the numbers recorded so far for every key family.
+     *
+     * @return key family -> its numbers, in the order of the <code>FAMILY_*</code> constants
+     */
+    public static Map<String, FamilyStats> getSnapshot() {
+        Map<String, FamilyStats> snapshot = new LinkedHashMap<String, FamilyStats>();
+        for (int i = 0; i < FAMILIES.length; i++) {
+            snapshot.put(FAMILIES[i], mCounters[i].snapshot(FAMILIES[i]));
+        }
+        return snapshot;
+    }
+
+    /**
+     * Sets all numbers back to zero.
+     */
+    public static void reset() {
+        for (Counters counters : mCounters) {
+            counters.clear();
+        }
+    }
+
+    /**
+     * Finds the key family of the given key.
+     *
+     * @param key a storage key
+     * @return one of the <code>FAMILY_*</code> constants
+     */
+    public static String familyOf(String key) {
+        return FAMILIES[familyIndex(key)];
+    }
+
+    /**
+     * The numbers recorded for one key family.
+     */
+    public static class FamilyStats {
+
+        FamilyStats(String family, long reads, long readBytes, long[] readLatencies,
+                    long writes, long writtenBytes, long[] writeLatencies, long cacheHits,
+                    long cacheMisses) {
+            mFamily = family;
+            mReads = reads;
+            mReadBytes = readBytes;
+            mReadLatencies = readLatencies;
+            mWrites = writes;
+            mWrittenBytes = writtenBytes;
+            mWriteLatencies = writeLatencies;
+            mCacheHits = cacheHits;
+            mCacheMisses = cacheMisses;
+        }
+
+        /**
+         * Calculates the share of lookups the cache answered.
+         *
+         * @return cache hits / (cache hits + cache misses), or 0 if there were no lookups
+         */
+        public double getCacheHitRatio() {
+            long lookups = mCacheHits + mCacheMisses;
+            return lookups == 0 ? 0 : (double) mCacheHits / lookups;
+        }
+
+        @Override
+        public String toString() {
+            return mFamily + ": reads=" + mReads + " (" + mReadBytes + "B), writes=" + mWrites
+                    + " (" + mWrittenBytes + "B), cacheHitRatio=" + getCacheHitRatio();
+        }
+
+        /** Setters and Getters */
+
+        public String getFamily() {
+            return mFamily;
+        }
+
+        public long getReads() {
+            return mReads;
+        }
+
+        public long getReadBytes() {
+            return mReadBytes;
+        }
+
+        /**
+         * Retrieves the number of reads in each latency bucket.
+         *
+         * @return the read counts, see {@link StorageStats#getLatencyBucketBoundsMicros()}
+         */
+        public long[] getReadLatencyHistogram() {
+            return mReadLatencies.clone();
+        }
+
+        public long getWrites() {
+            return mWrites;
+        }
+
+        public long getWrittenBytes() {
+            return mWrittenBytes;
+        }
+
+        /**
+         * Retrieves the number of write samples in each latency bucket.
+         *
+         * @return the write sample counts, see
+         *     {@link StorageStats#getLatencyBucketBoundsMicros()}
+         */
+        public long[] getWriteLatencyHistogram() {
+            return mWriteLatencies.clone();
+        }
+
+        public long getCacheHits() {
+            return mCacheHits;
+        }
+
+        public long getCacheMisses() {
+            return mCacheMisses;
+        }
+
+
+        /** Private Members */
+
+        private final String mFamily;
+        private final long mReads;
+        private final long mReadBytes;
+        private final long[] mReadLatencies;
+        private final long mWrites;
+        private final long mWrittenBytes;
+        private final long[] mWriteLatencies;
+        private final long mCacheHits;
+        private final long mCacheMisses;
+    }
+
+
+    /**
+     * Records a read of the given key that took the given time.
+     */
+    static void recordRead(String key, String val, long nanos) {
+        Counters counters = mCounters[familyIndex(key)];
+        counters.reads.incrementAndGet();
+        counters.readBytes.addAndGet(bytesOf(key, val));
+        counters.readLatencies.incrementAndGet(bucketOf(nanos));
+    }
+
+    /**
+     * Records a batch write of the given keys that took the given time.
+     */
+    static void recordWrites(Map<String, String> values, long nanos) {
+        boolean[] touched = new boolean[FAMILIES.length];
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            int family = familyIndex(entry.getKey());
+            touched[family] = true;
+            mCounters[family].writes.incrementAndGet();
+            mCounters[family].writtenBytes.addAndGet(bytesOf(entry.getKey(), entry.getValue()));
+        }
+
+        int bucket = bucketOf(nanos);
+        for (int i = 0; i < touched.length; i++) {
+            if (touched[i]) {
+                mCounters[i].writeLatencies.incrementAndGet(bucket);
+            }
+        }
+    }
+
+    /**
+     * Records a lookup of the given key family in an in-memory cache.
+     *
+     * @param family one of the <code>FAMILY_*</code> constants
+     * @param hit true if the cache had the value
+     */
+    static void recordCacheLookup(String family, boolean hit) {
+        for (int i = 0; i < FAMILIES.length; i++) {
+            if (FAMILIES[i].equals(family)) {
+                if (hit) {
+                    mCounters[i].cacheHits.incrementAndGet();
+                } else {
+                    mCounters[i].cacheMisses.incrementAndGet();
+                }
+                return;
+            }
+        }
+    }
+
+    private static int familyIndex(String key) {
+        if (key.startsWith(VirtualGoodsStorage.DB_KEY_GOOD_PREFIX)) {
+            if (key.endsWith(".balance")) {
+                return 0;
+            }
+            if (key.endsWith(".equipped") || key.contains(".equipped.")) {
+                return 1;
+            }
+            if (key.endsWith(".currentUpgrade") || key.endsWith(".upgradeLevel")) {
+                return 2;
+            }
+            return 6;
+        }
+        if (key.startsWith(VirtualCurrencyStorage.DB_CURRENCY_KEY_PREFIX)) {
+            return 3;
+        }
+        if (key.equals(FAMILY_META_STOREINFO)) {
+            return 4;
+        }
+        if (key.startsWith("meta.")) {
+            return 5;
+        }
+        return 6;
+    }
+
+    private static long bytesOf(String key, String val) {
+        return key.length() + (val == null ? 0 : val.length());
+    }
+
+    private static int bucketOf(long nanos) {
+        long micros = nanos / 1000;
+        for (int i = 0; i < LATENCY_BOUNDS_MICROS.length; i++) {
+            if (micros < LATENCY_BOUNDS_MICROS[i]) {
+                return i;
+            }
+        }
+        return LATENCY_BOUNDS_MICROS.length;
+    }
+
+    private static class Counters {
+
+        FamilyStats snapshot(String family) {
+            return new FamilyStats(family, reads.get(), readBytes.get(), toArray(readLatencies),
+                    writes.get(), writtenBytes.get(), toArray(writeLatencies), cacheHits.get(),
+                    cacheMisses.get());
+        }
+
+        void clear() {
+            reads.set(0);
+            readBytes.set(0);
+            writes.set(0);
+            writtenBytes.set(0);
+            cacheHits.set(0);
+            cacheMisses.set(0);
+            for (int i = 0; i < readLatencies.length(); i++) {
+                readLatencies.set(i, 0);
+                writeLatencies.set(i, 0);
+            }
+        }
+
+        private static long[] toArray(AtomicLongArray histogram) {
+            long[] counts = new long[histogram.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = histogram.get(i);
+            }
+            return counts;
+        }
+
+        final AtomicLong reads = new AtomicLong();
+        final AtomicLong readBytes = new AtomicLong();
+        final AtomicLongArray readLatencies = new AtomicLongArray(LATENCY_BOUNDS_MICROS.length + 1);
+        final AtomicLong writes = new AtomicLong();
+        final AtomicLong writtenBytes = new AtomicLong();
+        final AtomicLongArray writeLatencies =
+                new AtomicLongArray(LATENCY_BOUNDS_MICROS.length + 1);
+        final AtomicLong cacheHits = new AtomicLong();
+        final AtomicLong cacheMisses = new AtomicLong();
+    }
+
+
+    /** Private Members */
+
+    // in the order of the indexes returned by familyIndex
+    private static final String[] FAMILIES = {
+            FAMILY_GOOD_BALANCE, FAMILY_GOOD_EQUIPPED, FAMILY_GOOD_UPGRADE, FAMILY_CURRENCY,
+            FAMILY_META_STOREINFO, FAMILY_META, FAMILY_OTHER
+    };
+
+    private static final long[] LATENCY_BOUNDS_MICROS = {
+            50, 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 100000
+    };
+
+    // one per family, never replaced so recording needs no lock
+    private static final Counters[] mCounters = new Counters[FAMILIES.length];
+    static {
+        for (int i = 0; i < FAMILIES.length; i++) {
+            mCounters[i] = new Counters();
+        }
+    }
+
+    private static volatile boolean mEnabled = false;
+}
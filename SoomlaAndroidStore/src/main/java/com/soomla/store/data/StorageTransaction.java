@@ -0,0 +1,443 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soomla.store.data;
+
+import com.soomla.BusProvider;
+import com.soomla.SoomlaUtils;
+import com.soomla.store.domain.VirtualItem;
+import com.soomla.store.events.GoodEquippedEvent;
+import com.soomla.store.events.GoodUnEquippedEvent;
+import com.soomla.store.events.GoodUpgradeEvent;
+import com.soomla.store.exceptions.InsufficientFundsException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Stages changes to the balances, equipped state and upgrades of virtual items and writes them
+ * to the database together, so that either all of them are saved or none of them are.
+ * Events are posted only after everything is saved.
+ *
+ * Real Game Example: Buying a 'Sword' for 100 'Gems' debits the gems and credits the sword in
+ * one transaction. If the app is killed in the middle, the user never ends up paying for a
+ * sword he/she didn't get.
+ *
+ * A transaction is meant to be used once, from a single thread:
+ * <pre>
+ *   StorageTransaction transaction = new StorageTransaction();
+ *   transaction.debit(gems, 100);
+ *   sword.give(1, transaction);
+ *   transaction.commit();
+ * </pre>
+ *
+ * NOTE: With write-behind persistence enabled (see
+ * {@link StorageManager#enableWriteBehind(long, int)}) the whole transaction is queued at once
+ * and saved by a single flush.
+ */
+public class StorageTransaction {
+
+    /**
+     * Constructor
+     */
+    public StorageTransaction() {
+    }
+
+    /**
+     * Stages taking the given amount of the given virtual item. The transaction fails on
+     * commit if the user doesn't have enough of it at that time.
+     *
+     * @param item the virtual item to take
+     * @param amount the amount to take
+     */
+    public void debit(VirtualItem item, int amount) {
+        stageBalance(item, BalanceOp.DEBIT, amount, 0);
+    }
+
+    /**
+     * Stages giving the given amount of the given virtual item.
+     *
+     * @param item the virtual item to give
+     * @param amount the amount to give
+     */
+    public void credit(VirtualItem item, int amount) {
+        stageBalance(item, BalanceOp.CREDIT, amount, 0);
+    }
+
+    /**
+     * Stages giving the given amount of the given virtual item without raising its balance
+     * above <code>maxBalance</code>. A balance that is already at or above
+     * <code>maxBalance</code> is left as is.
+     * For example, a <code>LifetimeVG</code> is credited with a maximum balance of 1.
+     *
+     * @param item the virtual item to give
+     * @param amount the amount to give
+     * @param maxBalance the highest balance the item may reach
+     */
+    public void credit(VirtualItem item, int amount, int maxBalance) {
+        stageBalance(item, BalanceOp.CREDIT_UP_TO, amount, maxBalance);
+    }
+
+    /**
+     * Stages equipping the given <code>EquippableVG</code>.
+     *
+     * @param goodItemId the <code>EquippableVG</code> to equip
+     */
+    public void equip(String goodItemId) {
+        mGoodOps.put(VirtualGoodsStorage.keyGoodEquipped(goodItemId),
+                new GoodOp(goodItemId, GoodOp.EQUIP, null));
+    }
+
+    /**
+     * Stages unequipping the given <code>EquippableVG</code>.
+     *
+     * @param goodItemId the <code>EquippableVG</code> to unequip
+     */
+    public void unequip(String goodItemId) {
+        mGoodOps.put(VirtualGoodsStorage.keyGoodEquipped(goodItemId),
+                new GoodOp(goodItemId, GoodOp.UNEQUIP, null));
+    }
+
+    /**
+     * Stages assigning the given upgrade to the given virtual good.
+     *
+     * @param goodItemId the virtual good to upgrade
+     * @param upgradeVGItemId the upgrade to assign
+     */
+    public void assignCurrentUpgrade(String goodItemId, String upgradeVGItemId) {
+        mGoodOps.put(VirtualGoodsStorage.keyGoodUpgrade(goodItemId),
+                new GoodOp(goodItemId, GoodOp.UPGRADE, upgradeVGItemId));
+    }
+
+    /**
+     * Stages removing any upgrade of the given virtual good.
+     *
+     * @param goodItemId the virtual good to remove the upgrade from
+     */
+    public void removeUpgrades(String goodItemId) {
+        mGoodOps.put(VirtualGoodsStorage.keyGoodUpgrade(goodItemId),
+                new GoodOp(goodItemId, GoodOp.UPGRADE, null));
+    }
+
+    /**
+     * Saves all staged changes and posts their events.
+     *
+     * @throws InsufficientFundsException if a debited item's balance is too low, in which case
+     *     nothing is saved
+     */
+    public void commit() throws InsufficientFundsException {
+        commit(true);
+    }
+
+    /**
+     * Saves all staged changes, and if notify is true posts their events once everything is
+     * saved.
+     *
+     * @param notify if true posts the events of the changes to the bus
+     * @throws InsufficientFundsException if a debited item's balance is too low, in which case
+     *     nothing is saved
+     */
+    public void commit(boolean notify) throws InsufficientFundsException {
+        if (mCommitted) {
+            throw new IllegalStateException("This transaction was already committed");
+        }
+        mCommitted = true;
+
+        SoomlaUtils.LogDebug(TAG, "committing " + mBalanceOps.size() + " balance changes and "
+                + mGoodOps.size() + " goods changes");
+
+        List<ReentrantLock> locks = stripeLocks();
+        for (ReentrantLock lock : locks) {
+            lock.lock();
+        }
+
+        VirtualGoodsStorage goods = StorageManager.getVirtualGoodsStorage();
+        List<BalanceChange> changes;
+        List<GoodOp> goodChanges;
+        try {
+            changes = computeBalances();
+
+            Map<String, String> values = new LinkedHashMap<String, String>();
+            for (BalanceChange change : changes) {
+                values.put(change.storage.keyBalance(change.ordinal, change.itemId),
+                        "" + change.balance);
+            }
+
+            // the equipped state of all goods is saved as one value and upgrade levels are
+            // cached, so no one else may change them between staging and applying
+            synchronized (goods.getStateLock()) {
+                Map<String, Boolean> equippedChanges = new LinkedHashMap<String, Boolean>();
+                goodChanges = collectGoodChanges(values, equippedChanges);
+                if (!equippedChanges.isEmpty()) {
+                    goods.stageEquipped(equippedChanges, values);
+                }
+
+                StorageManager.setValues(values);
+
+                goods.applyEquipped(equippedChanges);
+                for (GoodOp op : goodChanges) {
+                    if (op.type == GoodOp.UPGRADE) {
+                        goods.cacheUpgradeLevel(op.goodItemId, op.level);
+                    }
+                }
+            }
+
+            for (BalanceChange change : changes) {
+                change.storage.cacheBalance(change.ordinal, change.balance);
+            }
+        } finally {
+            for (int i = locks.size() - 1; i >= 0; i--) {
+                locks.get(i).unlock();
+            }
+        }
+
+        if (notify) {
+            postEvents(changes, goodChanges);
+        }
+    }
+
+    private void stageBalance(VirtualItem item, int type, int amount, int maxBalance) {
+        VirtualItemStorage storage = StorageManager.getVirtualItemStorage(item);
+        if (storage == null) {
+            throw new IllegalArgumentException("No storage for virtual item: "
+                    + item.getItemId());
+        }
+        if (mCommitted) {
+            throw new IllegalStateException("This transaction was already committed");
+        }
+
+        mBalanceOps.add(new BalanceOp(storage, item.getOrdinal(), item.getItemId(), type,
+                amount, maxBalance));
+    }
+
+    /**
+     * Retrieves the stripe locks of all debited and credited items, in the one order every
+     * transaction takes them in: currencies first, then goods, each by stripe index.
+     */
+    private List<ReentrantLock> stripeLocks() {
+        VirtualItemStorage currencies = StorageManager.getVirtualCurrencyStorage();
+
+        TreeSet<Integer> currencyStripes = new TreeSet<Integer>();
+        TreeSet<Integer> goodStripes = new TreeSet<Integer>();
+        for (BalanceOp op : mBalanceOps) {
+            // done before any lock is taken, since it may have to grow the storage's table
+            int stripe = op.storage.stripeIndex(op.ordinal, op.itemId);
+            if (op.storage == currencies) {
+                currencyStripes.add(stripe);
+            } else {
+                goodStripes.add(stripe);
+            }
+        }
+
+        List<ReentrantLock> locks = new ArrayList<ReentrantLock>();
+        for (Integer stripe : currencyStripes) {
+            locks.add(currencies.getStripe(stripe));
+        }
+        for (Integer stripe : goodStripes) {
+            locks.add(StorageManager.getVirtualGoodsStorage().getStripe(stripe));
+        }
+        return locks;
+    }
+
+    /**
+     * Applies the staged balance operations, in order, to the current balances.
+     * Must be called while holding all stripe locks.
+     */
+    private List<BalanceChange> computeBalances() throws InsufficientFundsException {
+        Map<String, BalanceChange> changes = new LinkedHashMap<String, BalanceChange>();
+        for (BalanceOp op : mBalanceOps) {
+            String changeKey = op.storage.keyBalance(op.ordinal, op.itemId);
+            BalanceChange change = changes.get(changeKey);
+            if (change == null) {
+                int balance = op.storage.loadBalance(op.ordinal, op.itemId);
+                change = new BalanceChange(op.storage, op.ordinal, op.itemId, balance);
+                changes.put(changeKey, change);
+            }
+
+            switch (op.type) {
+                case BalanceOp.DEBIT:
+                    if (change.balance < op.amount) {
+                        throw new InsufficientFundsException(op.itemId);
+                    }
+                    change.balance -= op.amount;
+                    break;
+                case BalanceOp.CREDIT:
+                    change.balance = Math.max(0, change.balance + op.amount);
+                    break;
+                case BalanceOp.CREDIT_UP_TO:
+                    if (change.balance < op.maxBalance) {
+                        change.balance = Math.min(op.maxBalance, change.balance + op.amount);
+                    }
+                    break;
+            }
+        }
+
+        List<BalanceChange> changed = new ArrayList<BalanceChange>();
+        for (BalanceChange change : changes.values()) {
+            if (change.balance != change.oldBalance) {
+                changed.add(change);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Collects the staged equip and upgrade changes that actually change something: upgrades
+     * go to the given values, equipped state changes to the given equipped changes.
+     */
+    private List<GoodOp> collectGoodChanges(Map<String, String> values,
+                                            Map<String, Boolean> equippedChanges) {
+        VirtualGoodsStorage goods = StorageManager.getVirtualGoodsStorage();
+
+        List<GoodOp> changed = new ArrayList<GoodOp>();
+        for (Map.Entry<String, GoodOp> entry : mGoodOps.entrySet()) {
+            GoodOp op = entry.getValue();
+            switch (op.type) {
+                case GoodOp.EQUIP:
+                    if (goods.isEquipped(op.goodItemId)) {
+                        continue;
+                    }
+                    equippedChanges.put(op.goodItemId, true);
+                    break;
+                case GoodOp.UNEQUIP:
+                    if (!goods.isEquipped(op.goodItemId)) {
+                        continue;
+                    }
+                    equippedChanges.put(op.goodItemId, false);
+                    break;
+                case GoodOp.UPGRADE:
+                    if (op.upgradeVGItemId != null) {
+                        op.level = StoreInfo.getUpgradeLevel(op.upgradeVGItemId);
+                        if (op.level == 0) {
+                            SoomlaUtils.LogError(TAG, "Can't assign " + op.upgradeVGItemId
+                                    + " to " + op.goodItemId + ". It's not part of its "
+                                    + "upgrade chain.");
+                            continue;
+                        }
+                    }
+                    // an upgrade outside the good's chain is at level 0 but still removed
+                    if (goods.loadUpgradeLevel(op.goodItemId) == op.level
+                            && (op.level != 0 || StorageManager.getValue(entry.getKey()) == null)) {
+                        continue;
+                    }
+                    values.put(entry.getKey(), op.upgradeVGItemId);
+                    break;
+            }
+            changed.add(op);
+        }
+        return changed;
+    }
+
+    private void postEvents(List<BalanceChange> changes, List<GoodOp> goodChanges) {
+        for (BalanceChange change : changes) {
+            change.storage.postBalanceChangeEvent(change.itemId, change.balance,
+                    change.balance - change.oldBalance);
+        }
+
+        for (GoodOp op : goodChanges) {
+            switch (op.type) {
+                case GoodOp.EQUIP:
+                    BusProvider.getInstance().post(new GoodEquippedEvent(op.goodItemId));
+                    break;
+                case GoodOp.UNEQUIP:
+                    BusProvider.getInstance().post(new GoodUnEquippedEvent(op.goodItemId));
+                    break;
+                case GoodOp.UPGRADE:
+                    BusProvider.getInstance().post(
+                            new GoodUpgradeEvent(op.goodItemId, op.upgradeVGItemId));
+                    break;
+            }
+        }
+    }
+
+    private static class BalanceOp {
+
+        static final int DEBIT = 0;
+        static final int CREDIT = 1;
+        static final int CREDIT_UP_TO = 2;
+
+        BalanceOp(VirtualItemStorage storage, int ordinal, String itemId, int type, int amount,
+                  int maxBalance) {
+            this.storage = storage;
+            this.ordinal = ordinal;
+            this.itemId = itemId;
+            this.type = type;
+            this.amount = amount;
+            this.maxBalance = maxBalance;
+        }
+
+        final VirtualItemStorage storage;
+        final int ordinal;
+        final String itemId;
+        final int type;
+        final int amount;
+        final int maxBalance;
+    }
+
+    private static class BalanceChange {
+
+        BalanceChange(VirtualItemStorage storage, int ordinal, String itemId, int balance) {
+            this.storage = storage;
+            this.ordinal = ordinal;
+            this.itemId = itemId;
+            this.oldBalance = balance;
+            this.balance = balance;
+        }
+
+        final VirtualItemStorage storage;
+        final int ordinal;
+        final String itemId;
+        final int oldBalance;
+        int balance;
+    }
+
+    private static class GoodOp {
+
+        static final int EQUIP = 0;
+        static final int UNEQUIP = 1;
+        static final int UPGRADE = 2;
+
+        GoodOp(String goodItemId, int type, String upgradeVGItemId) {
+            this.goodItemId = goodItemId;
+            this.type = type;
+            this.upgradeVGItemId = upgradeVGItemId;
+        }
+
+        final String goodItemId;
+        final int type;
+        final String upgradeVGItemId;
+
+        // the level of the upgrade, resolved on commit
+        int level;
+    }
+
+
+    /** Private Members */
+
+    private static final String TAG = "SOOMLA StorageTransaction"; //used for Log messages
+
+    private final List<BalanceOp> mBalanceOps = new ArrayList<BalanceOp>();
+
+    // key -> the last staged change of that key, later changes of the same key replace it
+    private final Map<String, GoodOp> mGoodOps = new LinkedHashMap<String, GoodOp>();
+
+    private boolean mCommitted = false;
+}
@@ -0,0 +1,797 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soomla.store.data;
+
+import android.text.TextUtils;
+import com.soomla.SoomlaUtils;
+import com.soomla.store.domain.PurchasableVirtualItem;
+import com.soomla.store.domain.VirtualCategory;
+import com.soomla.store.domain.VirtualItem;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrencyPack;
+import com.soomla.store.domain.virtualGoods.EquippableVG;
+import com.soomla.store.domain.virtualGoods.UpgradeVG;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+import com.soomla.store.purchaseTypes.PurchaseType;
+import com.soomla.store.purchaseTypes.PurchaseWithMarket;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An immutable snapshot of the store's metadata: its currencies, currency packs, goods and
+ * categories, and the lookup tables derived from them.
+ *
+ * <code>StoreInfo</code> publishes the current catalog through a single volatile reference and
+ * replaces it as a whole whenever the metadata changes, so a catalog retrieved with
+ * {@link StoreInfo#getCatalog()} stays consistent no matter what other threads do. Use it when
+ * you need several lookups to agree with each other.
+ *
+ * NOTE: The catalog itself can't change, but the virtual items in it are the same objects the
+ * rest of the store works with, e.g. a <code>MarketItem</code>'s price is updated in place
+ * when the market details are refreshed. Goods loaded lazily (see
+ * {@link StoreInfo#enableLazyItems()}) are built the first time they're retrieved, and are
+ * the same objects in every catalog from then on.
+ */
+public final class StoreCatalog {
+
+    /**
+     * Constructor
+     * Freezes the given builder's state; the builder is not used afterwards.
+     */
+    private StoreCatalog(Builder builder) {
+        mGeneration = mLastGeneration.incrementAndGet();
+        mOrdinals = builder.mOrdinals;
+        mItems = builder.mItems;
+        mPurchasableOrdinals = builder.mPurchasableOrdinals;
+        mGoodsCategories = Collections.unmodifiableMap(builder.mGoodsCategories);
+        mGoodsUpgrades = Collections.unmodifiableMap(builder.mGoodsUpgrades);
+        mCurrencies = builder.mCurrencies;
+        mCurrencyPacks = builder.mCurrencyPacks;
+        mGoods = builder.mGoods;
+        mCategories = Collections.unmodifiableList(builder.mCategories);
+
+        StoreCatalog base = builder.mBase;
+        if (base == null) {
+            Map<String, UpgradeVG[]> upgradeChains = new HashMap<String, UpgradeVG[]>();
+            Map<String, Integer> upgradeLevels = new HashMap<String, Integer>();
+            for (String goodItemId : mGoodsUpgrades.keySet()) {
+                buildUpgradeChain(goodItemId, upgradeChains, upgradeLevels);
+            }
+            mUpgradeChains = upgradeChains;
+            mUpgradeLevels = upgradeLevels;
+            return;
+        }
+
+        // only the chains and indexes of the changed items are worked out again
+        Map<String, UpgradeVG[]> upgradeChains = new HashMap<String, UpgradeVG[]>(
+                base.mUpgradeChains);
+        Map<String, Integer> upgradeLevels = new HashMap<String, Integer>(base.mUpgradeLevels);
+        for (String goodItemId : builder.mChangedUpgrades) {
+            UpgradeVG[] chain = upgradeChains.remove(goodItemId);
+            if (chain != null) {
+                for (UpgradeVG upgradeVG : chain) {
+                    upgradeLevels.remove(upgradeVG.getItemId());
+                }
+            }
+        }
+        for (String goodItemId : builder.mChangedUpgrades) {
+            if (mGoodsUpgrades.containsKey(goodItemId)) {
+                buildUpgradeChain(goodItemId, upgradeChains, upgradeLevels);
+            }
+        }
+        mUpgradeChains = upgradeChains;
+        mUpgradeLevels = upgradeLevels;
+
+        CatalogIndexes baseIndexes = base.mIndexes;
+        if (baseIndexes != null) {
+            mIndexes = new CatalogIndexes(baseIndexes, mItems, builder.mChangedOrdinals);
+        }
+    }
+
+    /**
+     * Retrieves the <code>VirtualItem</code> with the given itemId.
+     *
+     * @param itemId the itemId of the required <code>VirtualItem</code>
+     * @return the virtual item, or null if there's none with the given itemId
+     */
+    public VirtualItem getVirtualItem(String itemId) {
+        Integer ordinal = mOrdinals.get(itemId);
+        return ordinal == null ? null : mItems.get(ordinal);
+    }
+
+    /**
+     * Retrieves the <code>VirtualItem</code> with the given ordinal.
+     *
+     * @param ordinal the ordinal of the required <code>VirtualItem</code>
+     * @return the virtual item, or null if there's none with the given ordinal
+     */
+    public VirtualItem getVirtualItem(int ordinal) {
+        return ordinal >= 0 && ordinal < mItems.size() ? mItems.get(ordinal) : null;
+    }
+
+    /**
+     * Retrieves the ordinal of the <code>VirtualItem</code> with the given itemId, without
+     * building the item if it's lazy.
+     *
+     * @param itemId the itemId of the required <code>VirtualItem</code>
+     * @return the ordinal of the item, or -1 if there's none with the given itemId
+     */
+    public int getItemOrdinal(String itemId) {
+        Integer ordinal = mOrdinals.get(itemId);
+        return ordinal == null ? -1 : ordinal;
+    }
+
+    /**
+     * Retrieves the itemId of the <code>VirtualItem</code> with the given ordinal, without
+     * building the item if it's lazy.
+     *
+     * @param ordinal the ordinal of the required <code>VirtualItem</code>
+     * @return the itemId of the item, or null if there's none with the given ordinal
+     */
+    public String getItemId(int ordinal) {
+        return ordinal >= 0 && ordinal < mItems.size() ? mItems.getItemId(ordinal) : null;
+    }
+
+    /**
+     * Retrieves the <code>PurchasableVirtualItem</code> sold in the market with the given
+     * product id.
+     *
+     * @param productId the product id of the required item
+     * @return the purchasable item, or null if there's none with the given product id
+     */
+    public PurchasableVirtualItem getPurchasableItem(String productId) {
+        Integer ordinal = mPurchasableOrdinals.get(productId);
+        return ordinal == null ? null : (PurchasableVirtualItem) mItems.get(ordinal);
+    }
+
+    /**
+     * Retrieves the <code>VirtualCategory</code> the given virtual good belongs to.
+     *
+     * @param goodItemId the itemId of the virtual good
+     * @return the category, or null if the good isn't in any category
+     */
+    public VirtualCategory getCategory(String goodItemId) {
+        return mGoodsCategories.get(goodItemId);
+    }
+
+    /**
+     * Checks if the given virtual good has upgrades.
+     *
+     * @param goodItemId the itemId of the virtual good
+     * @return true if the good has upgrades, false otherwise
+     */
+    public boolean hasUpgrades(String goodItemId) {
+        return mGoodsUpgrades.containsKey(goodItemId);
+    }
+
+    /**
+     * Retrieves the upgrades of the given virtual good, in the order they were added.
+     *
+     * @param goodItemId the itemId of the virtual good
+     * @return the upgrades of the good, or null if it has none
+     */
+    public List<UpgradeVG> getGoodUpgrades(String goodItemId) {
+        IndexedItemList<UpgradeVG> upgrades = mGoodsUpgrades.get(goodItemId);
+        return upgrades == null ? null : upgrades.asList();
+    }
+
+    /**
+     * Retrieves the <code>UpgradeVG</code> at the given level of the upgrade chain of the
+     * given virtual good. Level 1 is the first upgrade.
+     *
+     * @param goodItemId the itemId of the virtual good
+     * @param level the level of the upgrade
+     * @return the upgrade at the given level, or null if there's no such level
+     */
+    public UpgradeVG getGoodUpgradeAt(String goodItemId, int level) {
+        UpgradeVG[] chain = mUpgradeChains.get(goodItemId);
+        return chain != null && level >= 1 && level <= chain.length ? chain[level - 1] : null;
+    }
+
+    /**
+     * Retrieves the number of upgrades in the upgrade chain of the given virtual good.
+     *
+     * @param goodItemId the itemId of the virtual good
+     * @return the number of upgrade levels, 0 if the good has no upgrades
+     */
+    public int getGoodUpgradesCount(String goodItemId) {
+        UpgradeVG[] chain = mUpgradeChains.get(goodItemId);
+        return chain == null ? 0 : chain.length;
+    }
+
+    /**
+     * Retrieves the level of the given <code>UpgradeVG</code> in the upgrade chain of its
+     * virtual good. Level 1 is the first upgrade.
+     *
+     * @param upgradeItemId the itemId of the <code>UpgradeVG</code>
+     * @return the level of the upgrade, or 0 if it isn't part of an upgrade chain
+     */
+    public int getUpgradeLevel(String upgradeItemId) {
+        Integer level = mUpgradeLevels.get(upgradeItemId);
+        return level == null ? 0 : level;
+    }
+
+    /**
+     * Retrieves the items of exactly the given class, in catalog order. Items of its
+     * subclasses aren't included, e.g. asking for <code>LifetimeVG</code> doesn't return
+     * <code>EquippableVG</code>s.
+     *
+     * @param itemClass the concrete class of the required items
+     * @param <T> the type of the items
+     * @return a read-only list of the items of the given class
+     */
+    public <T extends VirtualItem> List<T> getItemsOfClass(Class<T> itemClass) {
+        return indexes().byClass(itemClass);
+    }
+
+    /**
+     * Retrieves the items bought with the given purchase type, in catalog order.
+     *
+     * @param purchaseClass the class of the purchase type, e.g.
+     *                      <code>PurchaseWithVirtualItem.class</code>
+     * @return a read-only list of the items bought with the given purchase type
+     */
+    public List<PurchasableVirtualItem> getItemsByPurchaseType(
+            Class<? extends PurchaseType> purchaseClass) {
+        return indexes().byPurchaseType(purchaseClass);
+    }
+
+    /**
+     * Retrieves the items bought with the given virtual item (usually a currency), in catalog
+     * order.
+     *
+     * @param itemId the itemId of the virtual item the required items are priced in
+     * @return a read-only list of the items priced in the given virtual item
+     */
+    public List<PurchasableVirtualItem> getItemsPricedIn(String itemId) {
+        return indexes().byPriceItem(itemId);
+    }
+
+    /**
+     * Retrieves the goods sold in the market as subscriptions, in catalog order.
+     *
+     * @return a read-only list of the subscription goods
+     */
+    public List<VirtualGood> getSubscriptionGoods() {
+        return indexes().subscriptionGoods();
+    }
+
+    /**
+     * Retrieves the equippable goods with the given equipping model, in catalog order.
+     *
+     * @param equippingModel the equipping model of the required goods
+     * @return a read-only list of the equippable goods with the given equipping model
+     */
+    public List<EquippableVG> getEquippableGoods(EquippableVG.EquippingModel equippingModel) {
+        return indexes().byEquippingModel(equippingModel);
+    }
+
+
+    /** Setters and Getters */
+
+    public int getVirtualItemsCount() {
+        return mItems.size();
+    }
+
+    public List<VirtualCurrency> getCurrencies() {
+        return mCurrencies.asList();
+    }
+
+    public List<VirtualCurrencyPack> getCurrencyPacks() {
+        return mCurrencyPacks.asList();
+    }
+
+    public List<VirtualGood> getGoods() {
+        return mGoods.asList();
+    }
+
+    public List<String> getCurrencyItemIds() {
+        return mCurrencies.itemIds();
+    }
+
+    public List<String> getGoodItemIds() {
+        return mGoods.itemIds();
+    }
+
+    public List<VirtualCategory> getCategories() {
+        return mCategories;
+    }
+
+    public List<String> getAllProductIds() {
+        return new ArrayList<String>(mPurchasableOrdinals.keySet());
+    }
+
+
+    /**
+     * Retrieves the traits of the <code>VirtualItem</code> with the given itemId, without
+     * building the item if it's lazy.
+     *
+     * @param itemId the itemId of the required <code>VirtualItem</code>
+     * @return the traits of the item, or null if there's none with the given itemId
+     */
+    ItemTraits getTraits(String itemId) {
+        Integer ordinal = mOrdinals.get(itemId);
+        return ordinal == null ? null : mItems.getTraits(ordinal);
+    }
+
+    /**
+     * Retrieves the secondary indexes of this catalog, building them on first use. Two
+     * threads may both build them at first, which is harmless since they'd be the same.
+     */
+    CatalogIndexes indexes() {
+        CatalogIndexes indexes = mIndexes;
+        if (indexes == null) {
+            indexes = new CatalogIndexes(mItems);
+            mIndexes = indexes;
+        }
+        return indexes;
+    }
+
+    /**
+     * Retrieves the generation of this catalog, which is different for every catalog built in
+     * this run of the app, including the ones built from another catalog.
+     *
+     * @return the generation of this catalog
+     */
+    long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Orders the upgrades of the given good into an array, from the first upgrade (the one with
+     * no previous upgrade) following the next links, so a level can be mapped to its upgrade
+     * and back without walking the chain. Upgrades that can't be reached from the first one
+     * aren't part of the chain.
+     */
+    private void buildUpgradeChain(String goodItemId, Map<String, UpgradeVG[]> upgradeChains,
+                                   Map<String, Integer> upgradeLevels) {
+        List<UpgradeVG> upgrades = mGoodsUpgrades.get(goodItemId).asList();
+
+        UpgradeVG current = null;
+        for (UpgradeVG upgradeVG : upgrades) {
+            if (TextUtils.isEmpty(upgradeVG.getPrevItemId())) {
+                current = upgradeVG;
+                break;
+            }
+        }
+
+        List<UpgradeVG> chain = new ArrayList<UpgradeVG>(upgrades.size());
+        while (current != null && chain.size() < upgrades.size()
+                && !upgradeLevels.containsKey(current.getItemId())) {
+            chain.add(current);
+            upgradeLevels.put(current.getItemId(), chain.size());
+
+            VirtualItem next = TextUtils.isEmpty(current.getNextItemId())
+                    ? null : getVirtualItem(current.getNextItemId());
+            current = next instanceof UpgradeVG ? (UpgradeVG) next : null;
+        }
+
+        if (chain.size() < upgrades.size()) {
+            SoomlaUtils.LogError(TAG, "Only " + chain.size() + " of the " + upgrades.size()
+                    + " upgrades of " + goodItemId + " are linked from its first upgrade.");
+        }
+        upgradeChains.put(goodItemId, chain.toArray(new UpgradeVG[chain.size()]));
+    }
+
+    /**
+     * Collects the items of a new catalog. Items get their ordinals as they're added, in
+     * order. A builder created from an existing catalog starts with a copy of it, and items
+     * replacing existing ones keep their ordinals and their places in the lists.
+     *
+     * Goods can also be added as {@link LazyItem}s, which are only built when they're first
+     * retrieved. Upgrades are always added as built items, since their upgrade chains are
+     * worked out when the catalog is built.
+     *
+     * A builder created from an existing catalog keeps track of the items it changes, and the
+     * catalog it builds takes the upgrade chains and indexes of the other items from the
+     * existing one.
+     */
+    static final class Builder {
+
+        /**
+         * Constructor
+         * Starts an empty catalog with new ordinals.
+         */
+        Builder() {
+            mBase = null;
+            mOrdinals = new HashMap<String, Integer>();
+            mItems = new CatalogItems();
+            mPurchasableOrdinals = new HashMap<String, Integer>();
+            mGoodsCategories = new HashMap<String, VirtualCategory>();
+            mGoodsUpgrades = new HashMap<String, IndexedItemList<UpgradeVG>>();
+            mCurrencies = new IndexedItemList<VirtualCurrency>(mItems);
+            mCurrencyPacks = new IndexedItemList<VirtualCurrencyPack>(mItems);
+            mGoods = new IndexedItemList<VirtualGood>(mItems);
+            mCategories = new ArrayList<VirtualCategory>();
+        }
+
+        /**
+         * Constructor
+         * Starts a copy of the given catalog.
+         *
+         * @param base the catalog to copy
+         */
+        Builder(StoreCatalog base) {
+            mBase = base;
+            mOrdinals = new HashMap<String, Integer>(base.mOrdinals);
+            mItems = new CatalogItems(base.mItems);
+            mPurchasableOrdinals = new HashMap<String, Integer>(base.mPurchasableOrdinals);
+            mGoodsCategories = new HashMap<String, VirtualCategory>(base.mGoodsCategories);
+            mGoodsUpgrades = new HashMap<String, IndexedItemList<UpgradeVG>>();
+            for (Map.Entry<String, IndexedItemList<UpgradeVG>> entry
+                    : base.mGoodsUpgrades.entrySet()) {
+                mGoodsUpgrades.put(entry.getKey(),
+                        new IndexedItemList<UpgradeVG>(entry.getValue(), mItems));
+            }
+            mCurrencies = new IndexedItemList<VirtualCurrency>(base.mCurrencies, mItems);
+            mCurrencyPacks = new IndexedItemList<VirtualCurrencyPack>(base.mCurrencyPacks,
+                    mItems);
+            mGoods = new IndexedItemList<VirtualGood>(base.mGoods, mItems);
+            mCategories = new ArrayList<VirtualCategory>(base.mCategories);
+        }
+
+        void addCurrency(VirtualCurrency currency) {
+            mCurrencies.put(currency.getItemId(), indexVirtualItem(currency));
+        }
+
+        void addCurrencyPack(VirtualCurrencyPack pack) {
+            int ordinal = indexVirtualItem(pack);
+            mCurrencyPacks.put(pack.getItemId(), ordinal);
+            indexPurchasable(pack, ordinal);
+        }
+
+        void addGood(VirtualGood good) {
+            int ordinal = indexVirtualItem(good);
+            mGoods.put(good.getItemId(), ordinal);
+            indexPurchasable(good, ordinal);
+            if (good instanceof UpgradeVG) {
+                indexUpgrade((UpgradeVG) good, ordinal);
+            }
+        }
+
+        /**
+         * Adds a good that's only built when it's first retrieved. The good must not be an
+         * <code>UpgradeVG</code>.
+         *
+         * @param good the stand-in for the good
+         */
+        void addLazyGood(LazyItem good) {
+            if (mOrdinals.containsKey(good.getItemId())) {
+                SoomlaUtils.LogError(TAG, "Found a duplicate of " + good.getItemId()
+                        + ", keeping the first one.");
+                return;
+            }
+
+            int ordinal = mItems.addLazy(good);
+            mChangedOrdinals.set(ordinal);
+            mOrdinals.put(good.getItemId(), ordinal);
+            mGoods.put(good.getItemId(), ordinal);
+            if (good.getProductId() != null) {
+                mPurchasableOrdinals.put(good.getProductId(), ordinal);
+            }
+        }
+
+        void addCategory(VirtualCategory category) {
+            mCategories.add(category);
+            for (String goodItemId : category.getGoodsItemIds()) {
+                mGoodsCategories.put(goodItemId, category);
+            }
+        }
+
+        /**
+         * Replaces the item with the same itemId as the given one, or adds the given item if
+         * there's none. The new item keeps the old one's ordinal and its place in the lists it
+         * stays in, and is taken out of the lists it no longer belongs to, e.g. when a good is
+         * replaced by a currency pack.
+         *
+         * @param virtualItem the virtual item that replaces the old one if exists
+         */
+        void replaceVirtualItem(VirtualItem virtualItem) {
+            Integer previous = mOrdinals.get(virtualItem.getItemId());
+            if (previous != null) {
+                unindexVirtualItem(virtualItem.getItemId(), previous, virtualItem);
+            }
+
+            int ordinal = indexVirtualItem(virtualItem);
+
+            if (virtualItem instanceof VirtualCurrency) {
+                mCurrencies.put(virtualItem.getItemId(), ordinal);
+            }
+
+            if (virtualItem instanceof VirtualCurrencyPack) {
+                VirtualCurrencyPack vcp = (VirtualCurrencyPack) virtualItem;
+                indexPurchasable(vcp, ordinal);
+                mCurrencyPacks.put(vcp.getItemId(), ordinal);
+            }
+
+            if (virtualItem instanceof VirtualGood) {
+                VirtualGood vg = (VirtualGood) virtualItem;
+                if (vg instanceof UpgradeVG) {
+                    indexUpgrade((UpgradeVG) vg, ordinal);
+                }
+                indexPurchasable(vg, ordinal);
+                mGoods.put(vg.getItemId(), ordinal);
+            }
+        }
+
+        /**
+         * Removes the item with the given itemId from the catalog. Its ordinal isn't given to
+         * another item, so the other items keep theirs. Upgrades of a removed good and
+         * categories listing it aren't changed, see {@link CatalogDelta#cascade(StoreCatalog)}.
+         *
+         * @param itemId the itemId of the item to remove
+         * @return true if there was an item with the given itemId
+         */
+        boolean removeVirtualItem(String itemId) {
+            Integer ordinal = mOrdinals.remove(itemId);
+            if (ordinal == null) {
+                return false;
+            }
+
+            unindexVirtualItem(itemId, ordinal, null);
+            mItems.remove(ordinal);
+            mChangedOrdinals.set(ordinal);
+            return true;
+        }
+
+        /**
+         * Applies the given changes, in order. Nothing else is changed, so the delta should
+         * already include what its changes cascade to, see
+         * {@link CatalogDelta#cascade(StoreCatalog)}.
+         *
+         * @param delta the changes to apply
+         * @return true if items or categories were added, removed or changed class
+         */
+        boolean applyDelta(CatalogDelta delta) {
+            boolean manifestChanged = false;
+            for (Map.Entry<String, VirtualItem> entry : delta.getItems().entrySet()) {
+                VirtualItem virtualItem = entry.getValue();
+                if (virtualItem == null) {
+                    manifestChanged |= removeVirtualItem(entry.getKey());
+                    continue;
+                }
+
+                Integer ordinal = mOrdinals.get(entry.getKey());
+                manifestChanged |= ordinal == null
+                        || mItems.getTraits(ordinal).getItemClass() != virtualItem.getClass();
+                replaceVirtualItem(virtualItem);
+            }
+            for (Map.Entry<String, VirtualCategory> entry : delta.getCategories().entrySet()) {
+                if (entry.getValue() == null) {
+                    manifestChanged |= removeCategory(entry.getKey());
+                } else {
+                    manifestChanged |= replaceCategory(entry.getValue());
+                }
+            }
+            return manifestChanged;
+        }
+
+        /**
+         * Replaces the category with the same name as the given one, in its place, or adds the
+         * given category if there's none.
+         *
+         * @param category the category that replaces the old one if exists
+         * @return true if the category was added
+         */
+        boolean replaceCategory(VirtualCategory category) {
+            int position = removeCategoryGoods(category.getName());
+            if (position < 0) {
+                addCategory(category);
+                return true;
+            }
+
+            mCategories.set(position, category);
+            for (String goodItemId : category.getGoodsItemIds()) {
+                mGoodsCategories.put(goodItemId, category);
+            }
+            return false;
+        }
+
+        /**
+         * Removes the category with the given name.
+         *
+         * @param name the name of the category to remove
+         * @return true if there was a category with the given name
+         */
+        boolean removeCategory(String name) {
+            int position = removeCategoryGoods(name);
+            if (position < 0) {
+                return false;
+            }
+            mCategories.remove(position);
+            return true;
+        }
+
+        StoreCatalog build() {
+            return new StoreCatalog(this);
+        }
+
+        /**
+         * Unmaps the goods of the category with the given name from it.
+         *
+         * @return the position of the category, or -1 if there's none with the given name
+         */
+        private int removeCategoryGoods(String name) {
+            for (int i = 0; i < mCategories.size(); i++) {
+                VirtualCategory category = mCategories.get(i);
+                if (!category.getName().equals(name)) {
+                    continue;
+                }
+
+                for (String goodItemId : category.getGoodsItemIds()) {
+                    if (mGoodsCategories.get(goodItemId) == category) {
+                        mGoodsCategories.remove(goodItemId);
+                    }
+                }
+                return i;
+            }
+            return -1;
+        }
+
+        /**
+         * Takes the item with the given ordinal out of the lists and tables the given
+         * replacement isn't in, and out of the product ids, which the replacement indexes
+         * again. A null replacement takes it out of all of them.
+         */
+        private void unindexVirtualItem(String itemId, int ordinal, VirtualItem replacement) {
+            ItemTraits traits = mItems.getTraits(ordinal);
+            Class<? extends VirtualItem> itemClass = traits.getItemClass();
+            if (VirtualCurrency.class.isAssignableFrom(itemClass)
+                    && !(replacement instanceof VirtualCurrency)) {
+                mCurrencies.remove(itemId);
+            }
+            if (VirtualCurrencyPack.class.isAssignableFrom(itemClass)
+                    && !(replacement instanceof VirtualCurrencyPack)) {
+                mCurrencyPacks.remove(itemId);
+            }
+            if (VirtualGood.class.isAssignableFrom(itemClass)
+                    && !(replacement instanceof VirtualGood)) {
+                mGoods.remove(itemId);
+            }
+
+            String productId = traits.getProductId();
+            if (productId != null
+                    && Integer.valueOf(ordinal).equals(mPurchasableOrdinals.get(productId))) {
+                mPurchasableOrdinals.remove(productId);
+            }
+
+            if (UpgradeVG.class.isAssignableFrom(itemClass)) {
+                // upgrades are never lazy, so this doesn't build anything
+                String goodItemId = ((UpgradeVG) mItems.get(ordinal)).getGoodItemId();
+                if (replacement instanceof UpgradeVG
+                        && goodItemId.equals(((UpgradeVG) replacement).getGoodItemId())) {
+                    return;
+                }
+                IndexedItemList<UpgradeVG> upgrades = mGoodsUpgrades.get(goodItemId);
+                if (upgrades != null) {
+                    mChangedUpgrades.add(goodItemId);
+                    upgrades.remove(itemId);
+                    if (upgrades.size() == 0) {
+                        mGoodsUpgrades.remove(goodItemId);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Adds the given virtual item to the catalog items and assigns it an ordinal. An item
+         * that replaces an existing one with the same itemId keeps the existing ordinal.
+         *
+         * @return the ordinal of the item
+         */
+        private int indexVirtualItem(VirtualItem item) {
+            Integer ordinal = mOrdinals.get(item.getItemId());
+            if (ordinal != null) {
+                mItems.set(ordinal, item);
+            } else {
+                ordinal = mItems.add(item);
+                mOrdinals.put(item.getItemId(), ordinal);
+            }
+            mChangedOrdinals.set(ordinal);
+            return ordinal;
+        }
+
+        private void indexPurchasable(PurchasableVirtualItem item, int ordinal) {
+            PurchaseType purchaseType = item.getPurchaseType();
+            if (purchaseType instanceof PurchaseWithMarket) {
+                mPurchasableOrdinals.put(((PurchaseWithMarket) purchaseType).getMarketItem()
+                        .getProductId(), ordinal);
+            }
+        }
+
+        private void indexUpgrade(UpgradeVG upgrade, int ordinal) {
+            IndexedItemList<UpgradeVG> upgrades = mGoodsUpgrades.get(upgrade.getGoodItemId());
+            if (upgrades == null) {
+                upgrades = new IndexedItemList<UpgradeVG>(mItems);
+                mGoodsUpgrades.put(upgrade.getGoodItemId(), upgrades);
+            }
+            upgrades.put(upgrade.getItemId(), ordinal);
+            mChangedUpgrades.add(upgrade.getGoodItemId());
+        }
+
+        // the catalog this one starts from, null for a new catalog
+        private final StoreCatalog mBase;
+
+        // ordinals of the items added, replaced or removed since the builder was created
+        private final BitSet mChangedOrdinals = new BitSet();
+
+        // itemIds of the goods whose upgrades were added, replaced or removed
+        private final Set<String> mChangedUpgrades = new HashSet<String>();
+
+        private final HashMap<String, Integer> mOrdinals;
+        private final CatalogItems mItems;
+        private final HashMap<String, Integer> mPurchasableOrdinals;
+        private final HashMap<String, VirtualCategory> mGoodsCategories;
+        private final HashMap<String, IndexedItemList<UpgradeVG>> mGoodsUpgrades;
+        private final IndexedItemList<VirtualCurrency> mCurrencies;
+        private final IndexedItemList<VirtualCurrencyPack> mCurrencyPacks;
+        private final IndexedItemList<VirtualGood> mGoods;
+        private final List<VirtualCategory> mCategories;
+    }
+
+
+    /** Private Members */
+
+    private static final String TAG = "SOOMLA StoreCatalog"; //used for Log messages
+
+    // the generation of the last catalog built, declared before EMPTY so it's set when that's
+    // built
+    private static final AtomicLong mLastGeneration = new AtomicLong();
+
+    // the catalog before any metadata is loaded
+    static final StoreCatalog EMPTY = new Builder().build();
+
+    private final long mGeneration;
+
+    // itemId -> ordinal of the virtual item
+    private final Map<String, Integer> mOrdinals;
+
+    // all virtual items, indexed by their ordinals
+    private final CatalogItems mItems;
+
+    // productId -> ordinal of the purchasable virtual item
+    private final Map<String, Integer> mPurchasableOrdinals;
+
+    // convenient hash of goods-categories
+    private final Map<String, VirtualCategory> mGoodsCategories;
+
+    // convenient hash of good-upgrades
+    private final Map<String, IndexedItemList<UpgradeVG>> mGoodsUpgrades;
+
+    // good itemId -> its upgrades ordered by level
+    private final Map<String, UpgradeVG[]> mUpgradeChains;
+
+    // upgrade itemId -> its level in the chain of its good
+    private final Map<String, Integer> mUpgradeLevels;
+
+    private final IndexedItemList<VirtualCurrency> mCurrencies;
+    private final IndexedItemList<VirtualCurrencyPack> mCurrencyPacks;
+    private final IndexedItemList<VirtualGood> mGoods;
+    private final List<VirtualCategory> mCategories;
+
+    // secondary indexes by class, purchase type and so on, built on first use
+    private volatile CatalogIndexes mIndexes;
+}
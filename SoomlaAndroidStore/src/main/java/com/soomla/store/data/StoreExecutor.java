@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soomla.store.data;
+
+import android.os.Handler;
+import android.os.Looper;
+import com.soomla.SoomlaUtils;
+
+import java.util.Collection;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs storage operations off the calling thread (usually the UI thread), so frame time is
+ * never spent on database I/O.
+ *
+ * Operations run on a small set of lanes, each a single background thread. Every virtual item
+ * is always handled by the same lane, so the operations on one item run in the order they
+ * were submitted, while operations on different items can run in parallel.
+ *
+ * Results are delivered back on the main thread with {@link #postToMainThread(Runnable)}.
+ */
+public class StoreExecutor {
+
+    /**
+     * Runs the given task on the lane of the given virtual item.
+     *
+     * @param itemId the virtual item the task operates on
+     * @param task the task to run
+     */
+    public static void execute(String itemId, Runnable task) {
+        lanes()[laneOf(itemId)].execute(task);
+    }
+
+    /**
+     * Runs the given task for an operation on several virtual items, once the lanes of all of
+     * them have finished the tasks submitted to them before. Tasks submitted later to any of
+     * these lanes run after it, so the operation is ordered with the operations on each of its
+     * items.
+     *
+     * @param itemIds the virtual items the task operates on
+     * @param task the task to run
+     */
+    public static void execute(Collection<String> itemIds, Runnable task) {
+        SortedSet<Integer> laneIndexes = new TreeSet<Integer>();
+        for (String itemId : itemIds) {
+            laneIndexes.add(laneOf(itemId));
+        }
+        executeOnLanes(laneIndexes, task);
+    }
+
+    /**
+     * Runs the given task once every lane has finished the tasks submitted to it before. The
+     * task sees the result of every operation submitted before it, on any item.
+     *
+     * @param task the task to run
+     */
+    public static void executeOnAllLanes(Runnable task) {
+        SortedSet<Integer> laneIndexes = new TreeSet<Integer>();
+        for (int i = 0; i < lanes().length; i++) {
+            laneIndexes.add(i);
+        }
+        executeOnLanes(laneIndexes, task);
+    }
+
+    /**
+     * Runs the given task on the main thread.
+     *
+     * @param task the task to run
+     */
+    public static void postToMainThread(Runnable task) {
+        Handler handler;
+        synchronized (StoreExecutor.class) {
+            if (mMainHandler == null) {
+                mMainHandler = new Handler(Looper.getMainLooper());
+            }
+            handler = mMainHandler;
+        }
+        handler.post(task);
+    }
+
+    /**
+     * Runs the given task on the first of the given lanes once all of them are done with the
+     * tasks submitted to them before. The other lanes park until the task is done, so nothing
+     * submitted to them later overtakes it.
+     * Tasks spanning several lanes are submitted one at a time, so they're queued in the same
+     * order on every lane and never wait for each other in a cycle.
+     */
+    private static void executeOnLanes(SortedSet<Integer> laneIndexes, final Runnable task) {
+        ExecutorService[] lanes = lanes();
+        if (laneIndexes.size() == 1) {
+            lanes[laneIndexes.first()].execute(task);
+            return;
+        }
+
+        final CountDownLatch arrived = new CountDownLatch(laneIndexes.size() - 1);
+        final CountDownLatch done = new CountDownLatch(1);
+        synchronized (mSubmitLock) {
+            for (int lane : laneIndexes.tailSet(laneIndexes.first() + 1)) {
+                lanes[lane].execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        arrived.countDown();
+                        awaitUninterruptibly(done);
+                    }
+                });
+            }
+            lanes[laneIndexes.first()].execute(new Runnable() {
+                @Override
+                public void run() {
+                    awaitUninterruptibly(arrived);
+                    try {
+                        task.run();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+    }
+
+    private static synchronized ExecutorService[] lanes() {
+        if (mLanes == null) {
+            int count = Math.max(MIN_LANES,
+                    Math.min(MAX_LANES, Runtime.getRuntime().availableProcessors()));
+            mLanes = new ExecutorService[count];
+            for (int i = 0; i < count; i++) {
+                final String name = "SOOMLA StoreExecutor-" + i;
+                mLanes[i] = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, name);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            SoomlaUtils.LogDebug(TAG, "started " + count + " store executor lanes");
+        }
+        return mLanes;
+    }
+
+    private static int laneOf(String itemId) {
+        int laneCount = lanes().length;
+        int ordinal = StoreInfo.getItemOrdinal(itemId);
+        if (ordinal >= 0) {
+            return ordinal % laneCount;
+        }
+
+        int h = itemId.hashCode();
+        h ^= (h >>> 16);
+        return (h & Integer.MAX_VALUE) % laneCount;
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /** Private Members */
+
+    private static final String TAG = "SOOMLA StoreExecutor"; //used for Log messages
+
+    private static final int MIN_LANES = 2;
+    private static final int MAX_LANES = 4;
+
+    // held while a task spanning several lanes is submitted to them
+    private static final Object mSubmitLock = new Object();
+
+    private static ExecutorService[] mLanes;
+    private static Handler mMainHandler;
+}
@@ -23,7 +23,6 @@ import com.soomla.BusProvider;
 import com.soomla.SoomlaApp;
 import com.soomla.SoomlaConfig;
 import com.soomla.SoomlaUtils;
-import com.soomla.data.KeyValueStorage;
 import com.soomla.store.IStoreAssets;
 import com.soomla.store.StoreConfig;
 import com.soomla.store.domain.PurchasableVirtualItem;
@@ -39,19 +38,17 @@ import com.soomla.store.domain.virtualGoods.UpgradeVG;
 import com.soomla.store.domain.virtualGoods.VirtualGood;
 import com.soomla.store.events.UnexpectedStoreErrorEvent;
 import com.soomla.store.exceptions.VirtualItemNotFoundException;
-import com.soomla.store.purchaseTypes.PurchaseType;
 import com.soomla.store.purchaseTypes.PurchaseWithMarket;
 import com.soomla.store.purchaseTypes.PurchaseWithVirtualItem;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.StringReader;
 import java.lang.IllegalArgumentException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 
 /**
@@ -73,7 +70,8 @@ public class StoreInfo {
      * IMPORTANT: If you want to override the current <code>StoreInfo</code>, you'll have to bump
      * the version of your implementation of <code>IStoreAssets</code> in order to remove the
      * metadata when the application loads. Bumping the version is done by returning a higher number
-     * in {@link IStoreAssets#getVersion()}.
+     * in {@link IStoreAssets#getVersion()}. With {@link #enableContentHash()} there's no need to,
+     * changed assets are detected by their content.
      */
     public static void setStoreAssets(IStoreAssets storeAssets) {
         try {
@@ -82,12 +80,22 @@ public class StoreInfo {
 
             //checkAndResetMetadata();
 
-            // we always initialize from the database, unless this is the first time the game is
-            // loaded - in that case we initialize with setStoreAssets.
-            // BUT we don't need to load from DB if metadata was reset.
-            if (!loadFromDB()) {
+            if (mContentHash) {
+                StoreCatalog catalog = buildCatalog(storeAssets);
+                String fingerprint = CatalogFingerprint.of(catalog);
+                if (!loadIfUnchanged(fingerprint)) {
+                    updateFromAssets(catalog, fingerprint);
+                }
+            } else if (!loadFromDB()) {
+                // we always initialize from the database, unless this is the first time the
+                // game is loaded - in that case we initialize with setStoreAssets.
+                // BUT we don't need to load from DB if metadata was reset.
                 initializeWithStoreAssets(storeAssets);
             }
+
+            StorageManager.recoverInterruptedBatch();
+            StorageManager.warmBalanceCaches();
+            StoreMigrator.start();
         } catch (IllegalArgumentException invalidStoreAssetsException) {
             SoomlaUtils.LogError(TAG, invalidStoreAssetsException.getMessage());
         }
@@ -112,12 +120,24 @@ public class StoreInfo {
 
 //        checkAndResetMetadata();
 
-        // we always initialize from the database, unless this is the first time the game is
-        // loaded - in that case we initialize with setStoreAssets.
-        if (!loadFromDB()) {
+        if (mContentHash) {
+            String fingerprint = CatalogFingerprint.of(storeMetaJSON);
+            if (!loadIfUnchanged(fingerprint)) {
+                try {
+                    updateFromAssets(StoreJsonParser.parse(new StringReader(storeMetaJSON)),
+                            fingerprint);
+                } catch (JSONException e) {
+                    SoomlaUtils.LogError(TAG, "Can't parse store metadata json. That's a major issue." + storeMetaJSON);
+                    BusProvider.getInstance().post(
+                            new UnexpectedStoreErrorEvent(UnexpectedStoreErrorEvent.ErrorCode.GENERAL));
+                }
+            }
+        } else if (!loadFromDB()) {
+            // we always initialize from the database, unless this is the first time the game is
+            // loaded - in that case we initialize with setStoreAssets.
             SoomlaUtils.LogDebug(TAG, "didn't find anything in DB to load. continuing with store assets json.");
             try {
-                fromJSONObject(new JSONObject(storeMetaJSON));
+                fromJSONString(storeMetaJSON);
                 save();
             } catch (JSONException e) {
                 SoomlaUtils.LogError(TAG, "Can't parse store metadata json. That's a major issue." + storeMetaJSON);
@@ -125,6 +145,10 @@ public class StoreInfo {
                         new UnexpectedStoreErrorEvent(UnexpectedStoreErrorEvent.ErrorCode.GENERAL));
             }
         }
+
+        StorageManager.recoverInterruptedBatch();
+        StorageManager.warmBalanceCaches();
+        StoreMigrator.start();
     }
 
     /**
@@ -137,8 +161,26 @@ public class StoreInfo {
     public static boolean loadFromDB() {
         checkAndResetMetadata();
 
+        CatalogCache cache = mCatalogCache;
+        if (cache != null) {
+            StoreCatalog.Builder catalog = new StoreCatalog.Builder();
+            if (cache.load(catalog, mItemRecords, mLazyItems)) {
+                SoomlaUtils.LogDebug(TAG, "the metadata was loaded from the catalog cache.");
+                publishNewCatalog(catalog.build());
+                return true;
+            }
+        }
+
+        if (CatalogRecords.exists()) {
+            return loadFromRecords();
+        }
+
         String key = keyMetaStoreInfo();
-        String val = KeyValueStorage.getValue(key);
+        long start = System.nanoTime();
+        String val = DATABASE.getValue(key);
+        if (StorageStats.isEnabled()) {
+            StorageStats.recordRead(key, val, System.nanoTime() - start);
+        }
 
         if (val == null || TextUtils.isEmpty(val)) {
             SoomlaUtils.LogDebug(TAG, "store json is not in DB yet.");
@@ -150,14 +192,22 @@ public class StoreInfo {
         if (val.contains("jsonType")) {
             SoomlaUtils.LogDebug(TAG, "the StoreInfo JSON is from an older version. " +
                     "we need to delete and let it be recreated.");
-            KeyValueStorage.deleteKeyValue(key);
+            DATABASE.deleteKeyValue(key);
             return false;
         }
 
         SoomlaUtils.LogDebug(TAG, "the metadata-economy json (from DB) is " + val);
 
         try {
-            fromJSONObject(new JSONObject(val));
+            fromJSONString(val);
+
+            if (mItemRecords) {
+                SoomlaUtils.LogDebug(TAG, "moving the metadata from JSON to item records.");
+                save();
+                DATABASE.deleteKeyValue(key);
+            } else {
+                writeCatalogCache();
+            }
 
             // everything went well... StoreInfo is initialized from the local DB.
             // it's ok to return now.
@@ -180,7 +230,7 @@ public class StoreInfo {
      * <code>goodItemId</code>, otherwise false.
      */
     public static boolean hasUpgrades(String goodItemId) {
-        return mGoodsUpgrades.containsKey(goodItemId);
+        return mCatalog.hasUpgrades(goodItemId);
     }
 
     /**
@@ -193,9 +243,134 @@ public class StoreInfo {
         return ((pvi instanceof LifetimeVG) && (pvi.getPurchaseType() instanceof PurchaseWithMarket));
     }
 
+    /**
+     * Turns on item records: the metadata is saved as one record per item plus a manifest,
+     * instead of one JSON document, so saving a changed item rewrites only that item. The
+     * first time this is turned on, the existing JSON document is moved into records.
+     * Call this before initializing <code>SoomlaStore</code>, in every run of the app.
+     *
+     * @see CatalogRecords
+     */
+    public static void enableItemRecords() {
+        mItemRecords = true;
+    }
+
+    /**
+     * Turns off item records. The next time the metadata is loaded, the records are moved
+     * back into one JSON document.
+     */
+    public static void disableItemRecords() {
+        mItemRecords = false;
+    }
+
+    /**
+     * Turns on parallel loading: when the metadata is loaded from item records, large catalogs
+     * are read and parsed on several threads. The items are still added in the same order, so
+     * the catalog is the same as with a sequential load.
+     * Call this before initializing <code>SoomlaStore</code>.
+     *
+     * Parallel loading is off by default, so loads run on the calling thread and start no
+     * threads. Each parallel load starts a short-lived pool of up to 4 threads, and only for
+     * catalogs of 64 records or more on devices with more than one core. Turn it on only if it
+     * measurably shortens the cold start on your target devices.
+     *
+     * @see #enableItemRecords()
+     */
+    public static void enableParallelLoad() {
+        mParallelLoad = true;
+    }
+
+    /**
+     * Turns off parallel loading.
+     */
+    public static void disableParallelLoad() {
+        mParallelLoad = false;
+    }
+
+    /**
+     * Turns on content hashing: the store assets are fingerprinted by their content instead of
+     * relying on {@link IStoreAssets#getVersion()}. When the fingerprint didn't change since
+     * the last run, the stored metadata is loaded as is. When it did, the metadata is updated
+     * to the new assets, and with item records only the records of the items that changed are
+     * rewritten.
+     * Call this before initializing <code>SoomlaStore</code>, in every run of the app.
+     *
+     * @see CatalogFingerprint
+     */
+    public static void enableContentHash() {
+        mContentHash = true;
+    }
+
+    /**
+     * Turns off content hashing, going back to resetting the metadata when the assets version
+     * is bumped.
+     */
+    public static void disableContentHash() {
+        mContentHash = false;
+    }
+
+    /**
+     * Turns on the catalog cache: a compiled binary copy of the metadata is kept in a file and
+     * loaded on warm starts instead of parsing the metadata from the database.
+     * Call this before initializing <code>SoomlaStore</code>, in every run of the app.
+     *
+     * @see CatalogCache
+     */
+    public static synchronized void enableCatalogCache() {
+        if (mCatalogCache == null) {
+            mCatalogCache = new CatalogCache(new File(SoomlaApp.getAppContext().getFilesDir(),
+                    CATALOG_CACHE_FILE_NAME));
+        }
+    }
+
+    /**
+     * Turns off the catalog cache and deletes its file. Turns off lazy items too, since they
+     * depend on the cache.
+     */
+    public static synchronized void disableCatalogCache() {
+        mLazyItems = false;
+        if (mCatalogCache != null) {
+            mCatalogCache.delete();
+            mCatalogCache = null;
+        }
+    }
+
+    /**
+     * Turns on lazy items: when the metadata is loaded from the catalog cache, goods (other
+     * than upgrades) are only indexed by their itemId and product id, and each one is built
+     * the first time it's retrieved. This cuts the startup time and memory of catalogs with
+     * many goods that most sessions never touch. Turns on the catalog cache if it's not on
+     * yet.
+     * Call this before initializing <code>SoomlaStore</code>, in every run of the app.
+     *
+     * NOTE: Anything that goes over all goods, like {@link #getGoods()}, builds them all.
+     */
+    public static synchronized void enableLazyItems() {
+        enableCatalogCache();
+        mLazyItems = true;
+    }
+
+    /**
+     * Turns off lazy items. Goods that were loaded lazily stay that way until the metadata
+     * is loaded again.
+     */
+    public static synchronized void disableLazyItems() {
+        mLazyItems = false;
+    }
+
 
     /** Setters and Getters */
 
+    /**
+     * Retrieves the current catalog. Unlike separate calls to <code>StoreInfo</code>, lookups
+     * on the returned catalog always agree with each other, since it never changes.
+     *
+     * @return the current catalog
+     */
+    public static StoreCatalog getCatalog() {
+        return mCatalog;
+    }
+
     /**
      * Retrieves a single <code>VirtualItem</code> that resides in the metadata.
      *
@@ -205,7 +380,7 @@ public class StoreInfo {
      *                                      <code>itemId</code> was found.
      */
     public static VirtualItem getVirtualItem(String itemId) throws VirtualItemNotFoundException {
-        VirtualItem item = mVirtualItems.get(itemId);
+        VirtualItem item = mCatalog.getVirtualItem(itemId);
         if (item == null) {
             throw new VirtualItemNotFoundException("itemId", itemId);
         }
@@ -213,6 +388,56 @@ public class StoreInfo {
         return item;
     }
 
+    /**
+     * Retrieves a single <code>VirtualItem</code> by the ordinal it was assigned when the
+     * metadata was loaded.
+     *
+     * @param ordinal the ordinal of the required <code>VirtualItem</code>
+     * @return virtual item with the given <code>ordinal</code>
+     * @throws VirtualItemNotFoundException if no <code>VirtualItem</code> has the given
+     *                                      <code>ordinal</code>.
+     */
+    public static VirtualItem getVirtualItem(int ordinal) throws VirtualItemNotFoundException {
+        VirtualItem item = mCatalog.getVirtualItem(ordinal);
+        if (item == null) {
+            throw new VirtualItemNotFoundException("ordinal", String.valueOf(ordinal));
+        }
+
+        return item;
+    }
+
+    /**
+     * Retrieves the ordinal of the <code>VirtualItem</code> with the given <code>itemId</code>.
+     *
+     * @param itemId the itemId of the required <code>VirtualItem</code>
+     * @return the item's ordinal, or -1 if no <code>VirtualItem</code> with the given
+     * <code>itemId</code> was found.
+     */
+    public static int getItemOrdinal(String itemId) {
+        return mCatalog.getItemOrdinal(itemId);
+    }
+
+    /**
+     * Retrieves the itemId of the <code>VirtualItem</code> with the given ordinal.
+     *
+     * @param ordinal the ordinal of the required <code>VirtualItem</code>
+     * @return the item's itemId, or null if no <code>VirtualItem</code> has the given ordinal.
+     */
+    public static String getItemIdByOrdinal(int ordinal) {
+        return mCatalog.getItemId(ordinal);
+    }
+
+    /**
+     * Retrieves the number of ordinals assigned so far, which is the number of virtual items
+     * (currencies, currency packs and goods) in the metadata, plus the items removed by
+     * {@link #applyDelta(CatalogDelta)} since it was loaded.
+     *
+     * @return the number of assigned ordinals
+     */
+    public static int getVirtualItemsCount() {
+        return mCatalog.getVirtualItemsCount();
+    }
+
     /**
      * Retrieves a single <code>PurchasableVirtualItem</code> that resides in the metadata.
      * IMPORTANT: The retrieved <code>PurchasableVirtualItem</code> has a <code>PurchaseType</code>
@@ -225,7 +450,7 @@ public class StoreInfo {
      */
     public static PurchasableVirtualItem getPurchasableItem(String productId)
             throws VirtualItemNotFoundException {
-        PurchasableVirtualItem item = mPurchasableItems.get(productId);
+        PurchasableVirtualItem item = mCatalog.getPurchasableItem(productId);
         if (item == null) {
             throw new VirtualItemNotFoundException("productId", productId);
         }
@@ -243,7 +468,7 @@ public class StoreInfo {
      */
     public static VirtualCategory getCategory(String goodItemId)
             throws VirtualItemNotFoundException {
-        VirtualCategory item = mGoodsCategories.get(goodItemId);
+        VirtualCategory item = mCatalog.getCategory(goodItemId);
         if (item == null) {
             throw new VirtualItemNotFoundException("goodItemId", goodItemId);
         }
@@ -260,15 +485,7 @@ public class StoreInfo {
      * null if it has no upgrades.
      */
     public static UpgradeVG getGoodFirstUpgrade(String goodItemId) {
-        List<UpgradeVG> upgrades = mGoodsUpgrades.get(goodItemId);
-        if (upgrades != null) {
-            for (UpgradeVG upgradeVG : upgrades) {
-                if (TextUtils.isEmpty(upgradeVG.getPrevItemId())) {
-                    return upgradeVG;
-                }
-            }
-        }
-        return null;
+        return mCatalog.getGoodUpgradeAt(goodItemId, 1);
     }
 
     /**
@@ -280,15 +497,32 @@ public class StoreInfo {
      * if there are no upgrades.
      */
     public static UpgradeVG getGoodLastUpgrade(String goodItemId) {
-        List<UpgradeVG> upgrades = mGoodsUpgrades.get(goodItemId);
-        if (upgrades != null) {
-            for (UpgradeVG upgradeVG : upgrades) {
-                if (TextUtils.isEmpty(upgradeVG.getNextItemId())) {
-                    return upgradeVG;
-                }
-            }
-        }
-        return null;
+        StoreCatalog catalog = mCatalog;
+        return catalog.getGoodUpgradeAt(goodItemId, catalog.getGoodUpgradesCount(goodItemId));
+    }
+
+    /**
+     * Retrieves the <code>UpgradeVG</code> at the given level of the upgrade chain of the
+     * given <code>goodItemId</code>. Level 1 is the first upgrade.
+     *
+     * @param goodItemId The item id of the <code>VirtualGood</code> whose upgrade we are looking
+     *                   for.
+     * @param level the level of the upgrade
+     * @return The upgrade at the given level, or null if there's no such level.
+     */
+    public static UpgradeVG getGoodUpgradeAt(String goodItemId, int level) {
+        return mCatalog.getGoodUpgradeAt(goodItemId, level);
+    }
+
+    /**
+     * Retrieves the level of the given <code>UpgradeVG</code> in the upgrade chain of its
+     * virtual good. Level 1 is the first upgrade.
+     *
+     * @param upgradeItemId the item id of the <code>UpgradeVG</code>
+     * @return the level of the upgrade, or 0 if it isn't part of an upgrade chain
+     */
+    public static int getUpgradeLevel(String upgradeItemId) {
+        return mCatalog.getUpgradeLevel(upgradeItemId);
     }
 
     /**
@@ -300,30 +534,28 @@ public class StoreInfo {
      * @return list of all UpgradeVGs for the virtual good with the given <code>goodItemId</code>
      */
     public static List<UpgradeVG> getGoodUpgrades(String goodItemId) {
-        if (mGoodsUpgrades == null) {
-            return new LinkedList<UpgradeVG>();
-        }
-        return mGoodsUpgrades.get(goodItemId);
+        List<UpgradeVG> upgrades = mCatalog.getGoodUpgrades(goodItemId);
+        return upgrades != null ? upgrades : Collections.<UpgradeVG>emptyList();
     }
 
     public static List<VirtualCurrency> getCurrencies() {
-        return mCurrencies;
+        return mCatalog.getCurrencies();
     }
 
     public static List<VirtualCurrencyPack> getCurrencyPacks() {
-        return mCurrencyPacks;
+        return mCatalog.getCurrencyPacks();
     }
 
     public static List<VirtualGood> getGoods() {
-        return mGoods;
+        return mCatalog.getGoods();
     }
 
     public static List<VirtualCategory> getCategories() {
-        return mCategories;
+        return mCatalog.getCategories();
     }
 
     public static List<String> getAllProductIds() {
-        return new ArrayList<String>(mPurchasableItems.keySet());
+        return mCatalog.getAllProductIds();
     }
 
 
@@ -373,150 +605,14 @@ public class StoreInfo {
     }
 
     /**
-     * Transforms given jsonObject to StoreInfo
+     * Transforms the given store metadata JSON to StoreInfo. The JSON is streamed through
+     * {@link StoreJsonParser}, so no <code>JSONObject</code> tree of the whole store is built.
      *
-     * @param jsonObject
+     * @param json the store metadata JSON
      * @throws JSONException
      */
-    private static void fromJSONObject(JSONObject jsonObject) throws JSONException {
-
-        mVirtualItems = new HashMap<String, VirtualItem>();
-        mPurchasableItems = new HashMap<String, PurchasableVirtualItem>();
-        mGoodsCategories = new HashMap<String, VirtualCategory>();
-        mGoodsUpgrades = new HashMap<String, List<UpgradeVG>>();
-        mCurrencyPacks = new LinkedList<VirtualCurrencyPack>();
-        mGoods = new LinkedList<VirtualGood>();
-        mCategories = new LinkedList<VirtualCategory>();
-        mCurrencies = new LinkedList<VirtualCurrency>();
-
-        if (jsonObject.has(StoreJSONConsts.STORE_CURRENCIES)) {
-            JSONArray virtualCurrencies = jsonObject.getJSONArray(StoreJSONConsts.STORE_CURRENCIES);
-            for (int i = 0; i < virtualCurrencies.length(); i++) {
-                JSONObject o = virtualCurrencies.getJSONObject(i);
-                VirtualCurrency c = new VirtualCurrency(o);
-                mCurrencies.add(c);
-
-                mVirtualItems.put(c.getItemId(), c);
-            }
-        }
-
-        if (jsonObject.has(StoreJSONConsts.STORE_CURRENCYPACKS)) {
-            JSONArray currencyPacks = jsonObject.getJSONArray(StoreJSONConsts.STORE_CURRENCYPACKS);
-            for (int i = 0; i < currencyPacks.length(); i++) {
-                JSONObject o = currencyPacks.getJSONObject(i);
-                VirtualCurrencyPack pack = new VirtualCurrencyPack(o);
-                mCurrencyPacks.add(pack);
-
-                mVirtualItems.put(pack.getItemId(), pack);
-
-                PurchaseType purchaseType = pack.getPurchaseType();
-                if (purchaseType instanceof PurchaseWithMarket) {
-                    mPurchasableItems.put(((PurchaseWithMarket) purchaseType)
-                            .getMarketItem().getProductId(), pack);
-                }
-            }
-        }
-
-        // The order in which VirtualGoods are created matters!
-        // For example: VGU and VGP depend on other VGs
-        if (jsonObject.has(StoreJSONConsts.STORE_GOODS)) {
-            JSONObject virtualGoods = jsonObject.getJSONObject(StoreJSONConsts.STORE_GOODS);
-
-            if (virtualGoods.has(StoreJSONConsts.STORE_GOODS_SU)) {
-                JSONArray suGoods = virtualGoods.getJSONArray(StoreJSONConsts.STORE_GOODS_SU);
-                for (int i = 0; i < suGoods.length(); i++) {
-                    JSONObject o = suGoods.getJSONObject(i);
-                    SingleUseVG g = new SingleUseVG(o);
-                    addVG(g);
-                }
-            }
-
-
-            if (virtualGoods.has(StoreJSONConsts.STORE_GOODS_LT)) {
-                JSONArray ltGoods = virtualGoods.getJSONArray(StoreJSONConsts.STORE_GOODS_LT);
-                for (int i = 0; i < ltGoods.length(); i++) {
-                    JSONObject o = ltGoods.getJSONObject(i);
-                    LifetimeVG g = new LifetimeVG(o);
-                    addVG(g);
-                }
-            }
-
-
-            if (virtualGoods.has(StoreJSONConsts.STORE_GOODS_EQ)) {
-                JSONArray eqGoods = virtualGoods.getJSONArray(StoreJSONConsts.STORE_GOODS_EQ);
-                for (int i = 0; i < eqGoods.length(); i++) {
-                    JSONObject o = eqGoods.getJSONObject(i);
-                    EquippableVG g = new EquippableVG(o);
-                    addVG(g);
-                }
-            }
-
-            if (virtualGoods.has(StoreJSONConsts.STORE_GOODS_PA)) {
-                JSONArray paGoods = virtualGoods.getJSONArray(StoreJSONConsts.STORE_GOODS_PA);
-                for (int i = 0; i < paGoods.length(); i++) {
-                    JSONObject o = paGoods.getJSONObject(i);
-                    SingleUsePackVG g = new SingleUsePackVG(o);
-                    addVG(g);
-                }
-            }
-
-
-            if (virtualGoods.has(StoreJSONConsts.STORE_GOODS_UP)) {
-                JSONArray upGoods = virtualGoods.getJSONArray(StoreJSONConsts.STORE_GOODS_UP);
-                for (int i = 0; i < upGoods.length(); i++) {
-                    JSONObject o = upGoods.getJSONObject(i);
-                    UpgradeVG g = new UpgradeVG(o);
-                    addVG(g);
-
-                    List<UpgradeVG> upgrades = mGoodsUpgrades.get(g.getGoodItemId());
-                    if (upgrades == null) {
-                        upgrades = new ArrayList<UpgradeVG>();
-                        mGoodsUpgrades.put(g.getGoodItemId(), upgrades);
-                    }
-                    upgrades.add(g);
-                }
-            }
-
-        }
-
-        // Categories depend on virtual goods. That's why the have to be initialized after!
-        if (jsonObject.has(StoreJSONConsts.STORE_CATEGORIES)) {
-            JSONArray virtualCategories = jsonObject.getJSONArray(StoreJSONConsts.STORE_CATEGORIES);
-            for (int i = 0; i < virtualCategories.length(); i++) {
-                JSONObject o = virtualCategories.getJSONObject(i);
-                VirtualCategory category = new VirtualCategory(o);
-                mCategories.add(category);
-                for (String goodItemId : category.getGoodsItemIds()) {
-                    mGoodsCategories.put(goodItemId, category);
-                }
-            }
-        }
-
-        // This is only for NonConsumable balance migration to LifetimeVGs.
-        // Remove this code when no longer needed.
-        if (mNonConsumableMigrationNeeded) {
-            SoomlaUtils.LogDebug(TAG, "NonConsumables balance migration is required. Doing it now.");
-            nonConsBalancesToLTVGs();
-        }
-    }
-
-    /**
-     * Adds the given virtual good to <code>StoreInfo</code>'s <code>mGoods</code>,
-     * <code>mVirtualItems</code>, and if the good has purchase type <code>PurchaseWithMarket</code>
-     * then it is also added to <code>mPurchasableItems</code>.
-     *
-     * @param g virtual good to be added
-     */
-    private static void addVG(VirtualGood g) {
-        mGoods.add(g);
-
-        mVirtualItems.put(g.getItemId(), g);
-
-        PurchaseType purchaseType = g.getPurchaseType();
-        if (purchaseType instanceof PurchaseWithMarket) {
-            mPurchasableItems.put(((PurchaseWithMarket) purchaseType)
-                    .getMarketItem().getProductId(), g);
-        }
+    private static void fromJSONString(String json) throws JSONException {
+        publishNewCatalog(StoreJsonParser.parse(new StringReader(json)));
     }
 
     /**
@@ -525,14 +621,15 @@ public class StoreInfo {
      * @return a <code>JSONObject</code> representation of <code>StoreInfo</code>.
      */
     public static JSONObject toJSONObject() {
+        StoreCatalog catalog = mCatalog;
 
         JSONArray currencies = new JSONArray();
-        for (VirtualCurrency c : mCurrencies) {
+        for (VirtualCurrency c : catalog.getCurrencies()) {
             currencies.put(c.toJSONObject());
         }
 
         JSONArray currencyPacks = new JSONArray();
-        for (VirtualCurrencyPack pack : mCurrencyPacks) {
+        for (VirtualCurrencyPack pack : catalog.getCurrencyPacks()) {
             currencyPacks.put(pack.toJSONObject());
         }
 
@@ -542,7 +639,7 @@ public class StoreInfo {
         JSONArray eqGoods = new JSONArray();
         JSONArray paGoods = new JSONArray();
         JSONArray upGoods = new JSONArray();
-        for (VirtualGood good : mGoods) {
+        for (VirtualGood good : catalog.getGoods()) {
             if (good instanceof SingleUseVG) {
                 suGoods.put(good.toJSONObject());
             } else if (good instanceof UpgradeVG) {
@@ -558,7 +655,7 @@ public class StoreInfo {
 
 
         JSONArray categories = new JSONArray();
-        for (VirtualCategory cat : mCategories) {
+        for (VirtualCategory cat : catalog.getCategories()) {
             categories.put(cat.toJSONObject());
         }
 
@@ -582,13 +679,27 @@ public class StoreInfo {
     }
 
     /**
-     * Saves the store's metadata in the database as JSON.
+     * Saves the store's metadata in the database, as JSON or as item records if they're on.
      */
     public static void save() {
+        invalidateCatalogCache();
+
+        if (mItemRecords) {
+            CatalogRecords.writeAll(mCatalog);
+            writeCatalogCache();
+            return;
+        }
+
         String store_json = toJSONObject().toString();
         SoomlaUtils.LogDebug(TAG, "saving StoreInfo to DB. json is: " + store_json);
         String key = keyMetaStoreInfo();
-        KeyValueStorage.setValue(key, store_json);
+        long start = System.nanoTime();
+        DATABASE.setValue(key, store_json);
+        if (StorageStats.isEnabled()) {
+            StorageStats.recordWrites(Collections.singletonMap(key, store_json),
+                    System.nanoTime() - start);
+        }
+        writeCatalogCache();
     }
 
     /**
@@ -606,11 +717,7 @@ public class StoreInfo {
      * @param saveToDB should the store's metadata be saved.
      */
     public static void save(VirtualItem virtualItem, boolean saveToDB) {
-        replaceVirtualItem(virtualItem);
-
-        if (saveToDB) {
-            save();
-        }
+        save(Collections.singletonList(virtualItem), saveToDB);
     }
 
     /**
@@ -634,79 +741,86 @@ public class StoreInfo {
             return;
         }
 
-        for (VirtualItem virtualItem : virtualItems) {
-            replaceVirtualItem(virtualItem);
+        // replaced together, so no one sees only some of them replaced
+        boolean manifestChanged = false;
+        synchronized (StoreInfo.class) {
+            StoreCatalog base = mCatalog;
+            StoreCatalog.Builder catalog = new StoreCatalog.Builder(base);
+            for (VirtualItem virtualItem : virtualItems) {
+                VirtualItem old = base.getVirtualItem(virtualItem.getItemId());
+                manifestChanged |= old == null || old.getClass() != virtualItem.getClass();
+                catalog.replaceVirtualItem(virtualItem);
+            }
+            mCatalog = catalog.build();
         }
 
         if (saveToDB) {
-            save();
+            if (mItemRecords) {
+                invalidateCatalogCache();
+                CatalogRecords.writeItems(mCatalog, virtualItems, manifestChanged);
+            } else {
+                save();
+            }
         }
     }
 
     /**
-     * Replaces an old virtual item with a new one by doing the following:
-     * 1. Determines the type of the given virtual item.
-     * 2. Looks for the given virtual item in the relevant list, according to its type.
-     * 3. If found, removes it.
-     * 4. Adds the given virtual item.
+     * Replaces an old virtual item with a new one, in its place in the relevant list according
+     * to its type. If there's no item with the same itemId, adds the given virtual item.
      *
      * @param virtualItem the virtual item that replaces the old one if exists.
      */
     public static void replaceVirtualItem(VirtualItem virtualItem) {
-        mVirtualItems.put(virtualItem.getItemId(), virtualItem);
-
-        if (virtualItem instanceof VirtualCurrency) {
-            for (int i = 0; i < mCurrencies.size(); i++) {
-                if (mCurrencies.get(i).getItemId().equals(virtualItem.getItemId())) {
-                    mCurrencies.remove(i);
-                    break;
-                }
-            }
-            mCurrencies.add((VirtualCurrency) virtualItem);
+        synchronized (StoreInfo.class) {
+            StoreCatalog.Builder catalog = new StoreCatalog.Builder(mCatalog);
+            catalog.replaceVirtualItem(virtualItem);
+            mCatalog = catalog.build();
         }
+    }
 
-        if (virtualItem instanceof VirtualCurrencyPack) {
-            VirtualCurrencyPack vcp = (VirtualCurrencyPack) virtualItem;
-            PurchaseType purchaseType = vcp.getPurchaseType();
-            if (purchaseType instanceof PurchaseWithMarket) {
-                mPurchasableItems.put(((PurchaseWithMarket) purchaseType).getMarketItem()
-                        .getProductId(), vcp);
-            }
-
-            for (int i = 0; i < mCurrencyPacks.size(); i++) {
-                if (mCurrencyPacks.get(i).getItemId().equals(vcp.getItemId())) {
-                    mCurrencyPacks.remove(i);
-                    break;
-                }
-            }
-            mCurrencyPacks.add(vcp);
+    /**
+     * Applies the given changes to the store's metadata. Only the changed items are indexed
+     * again, and with item records only their records are written. The other items keep their
+     * ordinals, so balances aren't reloaded, and balances of removed items are kept in the
+     * database.
+     *
+     * Removing a good also removes its upgrades and takes it out of the categories that list
+     * it. The changes are checked before anything is applied, and if they would leave the
+     * metadata inconsistent none of them are.
+     *
+     * NOTE: With {@link #enableContentHash()}, the changes last until the store assets
+     * themselves change. Otherwise they last until the assets version is bumped.
+     *
+     * @param delta the changes to apply
+     * @throws IllegalArgumentException if an item would refer to one that's missing or of
+     *     another kind (e.g. goods priced in a removed currency), a category would list
+     *     something that isn't a good, or two items would have the same product id
+     */
+    public static void applyDelta(CatalogDelta delta) {
+        if (delta == null || delta.isEmpty()) {
+            return;
         }
 
-        if (virtualItem instanceof VirtualGood) {
-            VirtualGood vg = (VirtualGood) virtualItem;
-
-            if (vg instanceof UpgradeVG) {
-                List<UpgradeVG> upgrades = mGoodsUpgrades.get(((UpgradeVG) vg).getGoodItemId());
-                if (upgrades == null) {
-                    upgrades = new ArrayList<UpgradeVG>();
-                    mGoodsUpgrades.put(((UpgradeVG) vg).getGoodItemId(), upgrades);
-                }
-                upgrades.add((UpgradeVG) vg);
-            }
-
-            PurchaseType purchaseType = vg.getPurchaseType();
-            if (purchaseType instanceof PurchaseWithMarket) {
-                mPurchasableItems.put(((PurchaseWithMarket) purchaseType).getMarketItem()
-                        .getProductId(), vg);
-            }
+        // applied together, so no one sees only some of the changes
+        boolean manifestChanged = false;
+        CatalogDelta applied;
+        synchronized (StoreInfo.class) {
+            StoreCatalog base = mCatalog;
+            applied = delta.cascade(base);
+            StoreCatalog.Builder catalog = new StoreCatalog.Builder(base);
+            manifestChanged = catalog.applyDelta(applied);
+
+            StoreCatalog updated = catalog.build();
+            CatalogValidator.validate(base, updated, applied);
+            mCatalog = updated;
+        }
 
-            for (int i = 0; i < mGoods.size(); i++) {
-                if (mGoods.get(i).getItemId().equals(vg.getItemId())) {
-                    mGoods.remove(i);
-                    break;
-                }
-            }
-            mGoods.add(vg);
+        if (mItemRecords) {
+            invalidateCatalogCache();
+            CatalogRecords.writeDelta(mCatalog, applied, manifestChanged);
+            writeCatalogCache();
+        } else {
+            save();
         }
     }
 
@@ -719,63 +833,176 @@ public class StoreInfo {
     private static void initializeWithStoreAssets(IStoreAssets storeAssets) {
         // fall-back here if the json doesn't exist,
         // we load the store from the given {@link IStoreAssets}.
-        mCurrencies = new LinkedList<VirtualCurrency>(Arrays.asList(storeAssets.getCurrencies()));
-        mCurrencyPacks = new LinkedList<VirtualCurrencyPack>(Arrays.asList(storeAssets.getCurrencyPacks()));
-        mGoods = new LinkedList<VirtualGood>(Arrays.asList(storeAssets.getGoods()));
-        mCategories = new LinkedList<VirtualCategory>(Arrays.asList(storeAssets.getCategories()));
+        publishNewCatalog(buildCatalog(storeAssets));
+
+        save();
+    }
+
+    private static StoreCatalog buildCatalog(IStoreAssets storeAssets) {
+        StoreCatalog.Builder catalog = new StoreCatalog.Builder();
 
-        mVirtualItems = new HashMap<String, VirtualItem>();
-        mPurchasableItems = new HashMap<String, PurchasableVirtualItem>();
-        mGoodsCategories = new HashMap<String, VirtualCategory>();
-        mGoodsUpgrades = new HashMap<String, List<UpgradeVG>>();
+        for (VirtualCurrency vi : storeAssets.getCurrencies()) {
+            catalog.addCurrency(vi);
+        }
+
+        for (VirtualCurrencyPack vi : storeAssets.getCurrencyPacks()) {
+            catalog.addCurrencyPack(vi);
+        }
+
+        for (VirtualGood vi : storeAssets.getGoods()) {
+            catalog.addGood(vi);
+        }
 
-        for (VirtualCurrency vi : mCurrencies) {
-            mVirtualItems.put(vi.getItemId(), vi);
+        for (VirtualCategory category : storeAssets.getCategories()) {
+            catalog.addCategory(category);
         }
 
-        for (VirtualCurrencyPack vi : mCurrencyPacks) {
-            mVirtualItems.put(vi.getItemId(), vi);
+        return catalog.build();
+    }
+
+    /**
+     * Loads the metadata from the database if it was built from assets with the given
+     * fingerprint. The database isn't read at all if the assets changed.
+     *
+     * @param fingerprint the fingerprint of the current assets
+     * @return true if the stored metadata is up to date and was loaded
+     */
+    private static boolean loadIfUnchanged(String fingerprint) {
+        // a reset of the metadata deletes the stored fingerprint too
+        checkAndResetMetadata();
+        if (fingerprint == null || !fingerprint.equals(CatalogFingerprint.stored())) {
+            return false;
+        }
+        return loadFromDB();
+    }
+
+    /**
+     * Replaces the metadata with the given catalog, built from assets that changed since the
+     * metadata was stored. With item records, only the records that differ from the stored
+     * metadata are written, and the stored metadata is loaded only to find them.
+     *
+     * @param catalog the catalog built from the current assets
+     * @param fingerprint the fingerprint of the current assets
+     */
+    private static void updateFromAssets(StoreCatalog catalog, String fingerprint) {
+        StoreCatalog old = mItemRecords ? readStoredRecords() : null;
+        publishNewCatalog(catalog);
+
+        if (old != null) {
+            invalidateCatalogCache();
+            int changed = CatalogRecords.writeChanges(old, catalog);
+            SoomlaUtils.LogDebug(TAG, "the store assets changed, " + changed
+                    + " metadata records were updated.");
+            writeCatalogCache();
+        } else {
+            save();
 
-            PurchaseType purchaseType = vi.getPurchaseType();
-            if (purchaseType instanceof PurchaseWithMarket) {
-                mPurchasableItems.put(((PurchaseWithMarket) purchaseType).getMarketItem()
-                        .getProductId(), vi);
+            // the stored metadata wasn't loaded, so it may still be in the other format
+            if (mItemRecords) {
+                DATABASE.deleteKeyValue(keyMetaStoreInfo());
+            } else {
+                CatalogRecords.deleteAll();
             }
         }
 
-        for (VirtualGood vi : mGoods) {
-            mVirtualItems.put(vi.getItemId(), vi);
+        if (fingerprint != null) {
+            CatalogFingerprint.store(fingerprint);
+        }
+    }
 
-            if (vi instanceof UpgradeVG) {
-                List<UpgradeVG> upgrades = mGoodsUpgrades.get(((UpgradeVG) vi).getGoodItemId());
-                if (upgrades == null) {
-                    upgrades = new ArrayList<UpgradeVG>();
-                    mGoodsUpgrades.put(((UpgradeVG) vi).getGoodItemId(), upgrades);
-                }
-                upgrades.add((UpgradeVG) vi);
+    /**
+     * Reads the stored item records into a new catalog without publishing it, from the catalog
+     * cache if it's up to date.
+     *
+     * @return the stored catalog, or null if there are no records or they can't be read, in
+     * which case they are deleted
+     */
+    private static StoreCatalog readStoredRecords() {
+        if (!CatalogRecords.exists()) {
+            return null;
+        }
+
+        CatalogCache cache = mCatalogCache;
+        if (cache != null) {
+            StoreCatalog.Builder catalog = new StoreCatalog.Builder();
+            if (cache.load(catalog, true, false)) {
+                return catalog.build();
             }
+        }
 
-            PurchaseType purchaseType = vi.getPurchaseType();
-            if (purchaseType instanceof PurchaseWithMarket) {
-                mPurchasableItems.put(((PurchaseWithMarket) purchaseType).getMarketItem()
-                        .getProductId(), vi);
+        StoreCatalog.Builder catalog = new StoreCatalog.Builder();
+        try {
+            if (CatalogRecords.load(catalog, mParallelLoad)) {
+                return catalog.build();
             }
+        } catch (JSONException e) {
+            SoomlaUtils.LogDebug(TAG, "Can't parse the metadata records, all of them are "
+                    + "written again: " + e.getMessage());
         }
 
-        for (VirtualCategory category : mCategories) {
-            for (String goodItemId : category.getGoodsItemIds()) {
-                mGoodsCategories.put(goodItemId, category);
+        // records of items that are gone wouldn't be found once the manifest is rewritten
+        CatalogRecords.deleteAll();
+        return null;
+    }
+
+    /**
+     * Loads the metadata from item records. If item records are off, the metadata is moved
+     * back into one JSON document.
+     *
+     * @return success
+     */
+    private static boolean loadFromRecords() {
+        StoreCatalog.Builder catalog = new StoreCatalog.Builder();
+        try {
+            if (!CatalogRecords.load(catalog, mParallelLoad)) {
+                // a partial catalog is useless, let it be recreated from the assets
+                CatalogRecords.deleteAll();
+                return false;
             }
+        } catch (JSONException e) {
+            SoomlaUtils.LogDebug(TAG, "Can't parse the metadata records. Going to return false "
+                    + "and make StoreInfo load from static data: " + e.getMessage());
+            CatalogRecords.deleteAll();
+            return false;
         }
 
-        // This is only for NonConsumable balance migration to LifetimeVGs.
-        // Remove this code when no longer needed.
-        if (mNonConsumableMigrationNeeded) {
-            SoomlaUtils.LogDebug(TAG, "NonConsumables balance migration is required. Doing it now.");
-            nonConsBalancesToLTVGs();
+        publishNewCatalog(catalog.build());
+
+        if (!mItemRecords) {
+            SoomlaUtils.LogDebug(TAG, "moving the metadata from item records to JSON.");
+            save();
+            CatalogRecords.deleteAll();
+        } else {
+            writeCatalogCache();
         }
+        return true;
+    }
 
-        save();
+    /**
+     * Publishes a catalog that was built from scratch. Its items have new ordinals, so
+     * balances cached by the old ordinals are dropped.
+     *
+     * @param catalog the new catalog
+     */
+    private static void publishNewCatalog(StoreCatalog catalog) {
+        synchronized (StoreInfo.class) {
+            mCatalog = catalog;
+        }
+        StorageManager.clearBalanceCaches();
+    }
+
+    private static void writeCatalogCache() {
+        CatalogCache cache = mCatalogCache;
+        if (cache != null) {
+            cache.write(mCatalog, mItemRecords);
+        }
+    }
+
+    private static void invalidateCatalogCache() {
+        CatalogCache cache = mCatalogCache;
+        if (cache != null) {
+            cache.invalidate();
+        }
     }
 
     private static void checkAndResetMetadata() {
@@ -787,11 +1014,9 @@ public class StoreInfo {
             int mt_ver = prefs.getInt("MT_VER", 0);
             int sa_ver_old = prefs.getInt("SA_VER_OLD", -1);
 
-            if (mt_ver < StoreConfig.METADATA_VERSION) {
-                mNonConsumableMigrationNeeded = true;
-            }
-
-            resetMeta = mt_ver < StoreConfig.METADATA_VERSION || sa_ver_old < mCurrentAssetsVersion;
+            // with content hashing, changed assets are found by their fingerprint instead
+            resetMeta = mt_ver < StoreConfig.METADATA_VERSION
+                    || (!mContentHash && sa_ver_old < mCurrentAssetsVersion);
         } catch (Exception e) {
             SoomlaUtils.LogDebug(TAG, "This is probably an older (obfuscated) sharedPrefs");
             resetMeta = true;
@@ -803,26 +1028,14 @@ public class StoreInfo {
             edit.putInt("SA_VER_OLD", mCurrentAssetsVersion);
             edit.commit();
 
-            KeyValueStorage.deleteKeyValue(keyMetaStoreInfo());
-        }
-    }
-
-    /**
-     * IStoreAssets was changed and version number was bumped but we need to check if we need to do balance migration for non-consumables.
-     * The metadata in DB was deleted and we're overwriting it.
-     * We just need to set the balances of the lifetime items instead of the non-consumables.
-     */
-    private static void nonConsBalancesToLTVGs() {
-        for(VirtualGood good : mGoods) {
-            if ((good instanceof LifetimeVG) && good.getPurchaseType() instanceof PurchaseWithMarket) {
-                String keyNonConsExist = DB_NONCONSUMABLE_KEY_PREFIX + good.getItemId() + ".exists";
-                if (KeyValueStorage.getValue(keyNonConsExist) != null) {
-                    good.give(1);
-                    KeyValueStorage.deleteKeyValue(keyNonConsExist);
-                }
+            DATABASE.deleteKeyValue(keyMetaStoreInfo());
+            CatalogRecords.deleteAll();
+            CatalogFingerprint.delete();
+            CatalogCache cache = mCatalogCache;
+            if (cache != null) {
+                cache.delete();
             }
         }
-        mNonConsumableMigrationNeeded = false;
     }
 
     /**
@@ -834,33 +1047,31 @@ public class StoreInfo {
     }
 
     private static final String TAG = "SOOMLA StoreInfo"; //used for Log messages
-    public static final String DB_NONCONSUMABLE_KEY_PREFIX = "nonconsumable.";
 
-    private static boolean mNonConsumableMigrationNeeded = false;
-
-    // convenient hash of virtual items
-    private static HashMap<String, VirtualItem> mVirtualItems;
+    // the metadata is kept in the database, written through a balance store so its key
+    // index stays up to date
+    private static final IBalanceStore DATABASE = new KeyValueBalanceStore();
+    public static final String DB_NONCONSUMABLE_KEY_PREFIX = "nonconsumable.";
 
-    // convenient hash of purchasable virtual items
-    private static HashMap<String, PurchasableVirtualItem> mPurchasableItems;
+    // the current catalog, replaced as a whole whenever the metadata changes
+    private static volatile StoreCatalog mCatalog = StoreCatalog.EMPTY;
 
-    // convenient hash of goods-categories
-    private static HashMap<String, VirtualCategory> mGoodsCategories;
+    private static int mCurrentAssetsVersion = 0;
 
-    // convenient hash of good-upgrades
-    private static HashMap<String, List<UpgradeVG>> mGoodsUpgrades;
+    // true to save the metadata as item records instead of one JSON document
+    private static volatile boolean mItemRecords = false;
 
-    // list of virtual currencies
-    private static List<VirtualCurrency> mCurrencies;
+    // true to read large sets of item records on several threads
+    private static volatile boolean mParallelLoad = false;
 
-    // list of currency-packs
-    private static List<VirtualCurrencyPack> mCurrencyPacks;
+    // true to detect changed assets by their fingerprint instead of their version
+    private static volatile boolean mContentHash = false;
 
-    // list of virtual goods
-    private static List<VirtualGood> mGoods;
+    // compiled copy of the metadata for warm starts, null while the cache is off
+    private static volatile CatalogCache mCatalogCache;
 
-    // list of virtul categories
-    private static List<VirtualCategory> mCategories;
+    // true to load goods from the catalog cache lazily
+    private static volatile boolean mLazyItems = false;
 
-    private static int mCurrentAssetsVersion = 0;
+    private static final String CATALOG_CACHE_FILE_NAME = "soomla_store.catalog";
 }
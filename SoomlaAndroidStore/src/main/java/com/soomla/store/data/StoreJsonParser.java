@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soomla.store.data;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+import com.soomla.SoomlaUtils;
+import com.soomla.data.JSONConsts;
+import com.soomla.store.domain.MarketItem;
+import com.soomla.store.domain.VirtualCategory;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrencyPack;
+import com.soomla.store.domain.virtualGoods.EquippableVG;
+import com.soomla.store.domain.virtualGoods.LifetimeVG;
+import com.soomla.store.domain.virtualGoods.SingleUsePackVG;
+import com.soomla.store.domain.virtualGoods.SingleUseVG;
+import com.soomla.store.domain.virtualGoods.UpgradeVG;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+import com.soomla.store.purchaseTypes.PurchaseType;
+import com.soomla.store.purchaseTypes.PurchaseWithMarket;
+import com.soomla.store.purchaseTypes.PurchaseWithVirtualItem;
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses the store's metadata JSON with a pull parser, building the items straight from the
+ * tokens instead of going through a <code>JSONObject</code> tree first. Only one item's fields
+ * are held at a time besides the items already built.
+ *
+ * The JSON is the one produced by {@link StoreInfo#toJSONObject()}, and each item is read the
+ * same way its <code>JSONObject</code> constructor reads it: missing required fields are
+ * errors, missing optional ones get the same defaults.
+ *
+ * Items are added to the catalog in the same order {@link StoreInfo} always adds them,
+ * whatever order the sections appear in the JSON: currencies, currency packs, single use,
+ * lifetime, equippable, pack and upgrade goods, and then categories.
+ */
+final class StoreJsonParser {
+
+    /**
+     * Parses the store's metadata JSON from the given reader into a new catalog.
+     *
+     * @param in the reader to read the JSON from
+     * @return the catalog
+     * @throws JSONException if the JSON is malformed or an item is missing a required field
+     */
+    static StoreCatalog parse(Reader in) throws JSONException {
+        StoreJsonParser parser = new StoreJsonParser();
+        JsonReader reader = new JsonReader(in);
+        try {
+            parser.readStore(reader);
+        } catch (IOException e) {
+            throw new JSONException("Malformed store metadata JSON: " + e.getMessage());
+        } catch (IllegalStateException e) {
+            throw new JSONException("Unexpected token in store metadata JSON: " + e.getMessage());
+        } catch (NumberFormatException e) {
+            throw new JSONException("Bad number in store metadata JSON: " + e.getMessage());
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // the whole JSON was already read, or we're failing anyway
+            }
+        }
+
+        return parser.buildCatalog();
+    }
+
+
+    private void readStore(JsonReader reader) throws IOException, JSONException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (!nextIsArrayOrObject(reader)) {
+                reader.skipValue();
+            } else if (StoreJSONConsts.STORE_CURRENCIES.equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    mCurrencies.add((VirtualCurrency) readItem(reader, TYPE_CURRENCY));
+                }
+                reader.endArray();
+            } else if (StoreJSONConsts.STORE_CURRENCYPACKS.equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    mCurrencyPacks.add((VirtualCurrencyPack) readItem(reader, TYPE_CURRENCY_PACK));
+                }
+                reader.endArray();
+            } else if (StoreJSONConsts.STORE_GOODS.equals(name)) {
+                readGoods(reader);
+            } else if (StoreJSONConsts.STORE_CATEGORIES.equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    mCategories.add(readCategory(reader));
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private void readGoods(JsonReader reader) throws IOException, JSONException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            List<VirtualGood> goods;
+            int type;
+            if (StoreJSONConsts.STORE_GOODS_SU.equals(name)) {
+                goods = mSingleUseGoods;
+                type = TYPE_SINGLE_USE;
+            } else if (StoreJSONConsts.STORE_GOODS_LT.equals(name)) {
+                goods = mLifetimeGoods;
+                type = TYPE_LIFETIME;
+            } else if (StoreJSONConsts.STORE_GOODS_EQ.equals(name)) {
+                goods = mEquippableGoods;
+                type = TYPE_EQUIPPABLE;
+            } else if (StoreJSONConsts.STORE_GOODS_PA.equals(name)) {
+                goods = mPackGoods;
+                type = TYPE_SINGLE_USE_PACK;
+            } else if (StoreJSONConsts.STORE_GOODS_UP.equals(name)) {
+                goods = mUpgradeGoods;
+                type = TYPE_UPGRADE;
+            } else {
+                reader.skipValue();
+                continue;
+            }
+
+            reader.beginArray();
+            while (reader.hasNext()) {
+                goods.add((VirtualGood) readItem(reader, type));
+            }
+            reader.endArray();
+        }
+        reader.endObject();
+    }
+
+    /**
+     * Reads one item object. The fields are collected first, since JSON doesn't promise any
+     * order, and the item is built once its object ends.
+     */
+    private static Object readItem(JsonReader reader, int type)
+            throws IOException, JSONException {
+        String name = null;
+        String description = null;
+        String itemId = null;
+        PurchaseType purchaseType = null;
+        String equipping = null;
+        String goodItemId = null;
+        Integer goodAmount = null;
+        String prevItemId = null;
+        String nextItemId = null;
+        Integer currencyAmount = null;
+        String currencyItemId = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String field = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+            } else if (JSONConsts.SOOM_ENTITY_NAME.equals(field)) {
+                name = reader.nextString();
+            } else if (JSONConsts.SOOM_ENTITY_DESCRIPTION.equals(field)) {
+                description = reader.nextString();
+            } else if (JSONConsts.SOOM_ENTITY_ID.equals(field)) {
+                itemId = reader.nextString();
+            } else if (StoreJSONConsts.PURCHASABLE_ITEM.equals(field)) {
+                purchaseType = readPurchaseType(reader);
+            } else if (StoreJSONConsts.EQUIPPABLE_EQUIPPING.equals(field)) {
+                equipping = reader.nextString();
+            } else if (StoreJSONConsts.VGP_GOOD_ITEMID.equals(field)) {
+                goodItemId = reader.nextString();
+            } else if (StoreJSONConsts.VGP_GOOD_AMOUNT.equals(field)) {
+                goodAmount = reader.nextInt();
+            } else if (StoreJSONConsts.VGU_PREV_ITEMID.equals(field)) {
+                prevItemId = reader.nextString();
+            } else if (StoreJSONConsts.VGU_NEXT_ITEMID.equals(field)) {
+                nextItemId = reader.nextString();
+            } else if (StoreJSONConsts.CURRENCYPACK_CURRENCYAMOUNT.equals(field)) {
+                currencyAmount = reader.nextInt();
+            } else if (StoreJSONConsts.CURRENCYPACK_CURRENCYITEMID.equals(field)) {
+                currencyItemId = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        name = name == null ? "" : name;
+        description = description == null ? "" : description;
+        require(itemId, JSONConsts.SOOM_ENTITY_ID, null);
+        if (type == TYPE_CURRENCY) {
+            return new VirtualCurrency(name, description, itemId);
+        }
+
+        require(purchaseType, StoreJSONConsts.PURCHASABLE_ITEM, itemId);
+        switch (type) {
+            case TYPE_CURRENCY_PACK:
+                require(currencyAmount, StoreJSONConsts.CURRENCYPACK_CURRENCYAMOUNT, itemId);
+                require(currencyItemId, StoreJSONConsts.CURRENCYPACK_CURRENCYITEMID, itemId);
+                return new VirtualCurrencyPack(name, description, itemId, currencyAmount,
+                        currencyItemId, purchaseType);
+            case TYPE_SINGLE_USE:
+                return new SingleUseVG(name, description, itemId, purchaseType);
+            case TYPE_LIFETIME:
+                return new LifetimeVG(name, description, itemId, purchaseType);
+            case TYPE_EQUIPPABLE:
+                require(equipping, StoreJSONConsts.EQUIPPABLE_EQUIPPING, itemId);
+                return new EquippableVG(EquippableVG.EquippingModel.fromString(equipping), name,
+                        description, itemId, purchaseType);
+            case TYPE_SINGLE_USE_PACK:
+                require(goodItemId, StoreJSONConsts.VGP_GOOD_ITEMID, itemId);
+                require(goodAmount, StoreJSONConsts.VGP_GOOD_AMOUNT, itemId);
+                return new SingleUsePackVG(goodItemId, goodAmount, name, description, itemId,
+                        purchaseType);
+            default:
+                require(goodItemId, StoreJSONConsts.VGU_GOOD_ITEMID, itemId);
+                require(prevItemId, StoreJSONConsts.VGU_PREV_ITEMID, itemId);
+                require(nextItemId, StoreJSONConsts.VGU_NEXT_ITEMID, itemId);
+                return new UpgradeVG(goodItemId, prevItemId, nextItemId, name, description,
+                        itemId, purchaseType);
+        }
+    }
+
+    private static PurchaseType readPurchaseType(JsonReader reader)
+            throws IOException, JSONException {
+        String purchaseType = null;
+        MarketItem marketItem = null;
+        String targetItemId = null;
+        Integer amount = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String field = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+            } else if (StoreJSONConsts.PURCHASE_TYPE.equals(field)) {
+                purchaseType = reader.nextString();
+            } else if (StoreJSONConsts.PURCHASE_MARKET_ITEM.equals(field)) {
+                marketItem = readMarketItem(reader);
+            } else if (StoreJSONConsts.PURCHASE_VI_ITEMID.equals(field)) {
+                targetItemId = reader.nextString();
+            } else if (StoreJSONConsts.PURCHASE_VI_AMOUNT.equals(field)) {
+                amount = reader.nextInt();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        require(purchaseType, StoreJSONConsts.PURCHASE_TYPE, null);
+        if (purchaseType.equals(StoreJSONConsts.PURCHASE_TYPE_MARKET)) {
+            require(marketItem, StoreJSONConsts.PURCHASE_MARKET_ITEM, null);
+            return new PurchaseWithMarket(marketItem);
+        } else if (purchaseType.equals(StoreJSONConsts.PURCHASE_TYPE_VI)) {
+            require(targetItemId, StoreJSONConsts.PURCHASE_VI_ITEMID, null);
+            require(amount, StoreJSONConsts.PURCHASE_VI_AMOUNT, null);
+            return new PurchaseWithVirtualItem(targetItemId, amount);
+        }
+
+        SoomlaUtils.LogError(TAG, "IabPurchase type not recognized !");
+        throw new JSONException("Unknown purchase type: " + purchaseType);
+    }
+
+    private static MarketItem readMarketItem(JsonReader reader)
+            throws IOException, JSONException {
+        String androidId = null;
+        String productId = null;
+        Double price = null;
+        String marketPrice = "";
+        String marketTitle = "";
+        String marketDescription = "";
+        String marketCurrencyCode = "";
+        long marketPriceMicros = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String field = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+            } else if (StoreJSONConsts.MARKETITEM_ANDROID_ID.equals(field)) {
+                androidId = reader.nextString();
+            } else if (StoreJSONConsts.MARKETITEM_PRODUCT_ID.equals(field)) {
+                productId = reader.nextString();
+            } else if (StoreJSONConsts.MARKETITEM_PRICE.equals(field)) {
+                price = reader.nextDouble();
+            } else if (StoreJSONConsts.MARKETITEM_MARKETPRICE.equals(field)) {
+                marketPrice = reader.nextString();
+            } else if (StoreJSONConsts.MARKETITEM_MARKETTITLE.equals(field)) {
+                marketTitle = reader.nextString();
+            } else if (StoreJSONConsts.MARKETITEM_MARKETDESC.equals(field)) {
+                marketDescription = reader.nextString();
+            } else if (StoreJSONConsts.MARKETITEM_MARKETCURRENCYCODE.equals(field)) {
+                marketCurrencyCode = reader.nextString();
+            } else if (StoreJSONConsts.MARKETITEM_MARKETPRICEMICROS.equals(field)) {
+                marketPriceMicros = reader.nextLong();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        // the android id wins, like in MarketItem's JSON constructor
+        String id = androidId != null ? androidId : productId;
+        require(id, StoreJSONConsts.MARKETITEM_PRODUCT_ID, null);
+        require(price, StoreJSONConsts.MARKETITEM_PRICE, id);
+
+        MarketItem marketItem = new MarketItem(id, price);
+        marketItem.setMarketInformation(marketPrice, marketTitle, marketDescription,
+                marketCurrencyCode, marketPriceMicros);
+        return marketItem;
+    }
+
+    private static VirtualCategory readCategory(JsonReader reader)
+            throws IOException, JSONException {
+        String name = null;
+        ArrayList<String> goodsItemIds = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String field = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+            } else if (StoreJSONConsts.CATEGORY_NAME.equals(field)) {
+                name = reader.nextString();
+            } else if (StoreJSONConsts.CATEGORY_GOODSITEMIDS.equals(field)) {
+                goodsItemIds = new ArrayList<String>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    goodsItemIds.add(reader.nextString());
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        require(name, StoreJSONConsts.CATEGORY_NAME, null);
+        require(goodsItemIds, StoreJSONConsts.CATEGORY_GOODSITEMIDS, name);
+        return new VirtualCategory(name, goodsItemIds);
+    }
+
+    private StoreCatalog buildCatalog() {
+        StoreCatalog.Builder catalog = new StoreCatalog.Builder();
+        for (VirtualCurrency currency : mCurrencies) {
+            catalog.addCurrency(currency);
+        }
+        for (VirtualCurrencyPack pack : mCurrencyPacks) {
+            catalog.addCurrencyPack(pack);
+        }
+
+        // The order in which VirtualGoods are added matters!
+        // For example: VGU and VGP depend on other VGs
+        addGoods(catalog, mSingleUseGoods);
+        addGoods(catalog, mLifetimeGoods);
+        addGoods(catalog, mEquippableGoods);
+        addGoods(catalog, mPackGoods);
+        addGoods(catalog, mUpgradeGoods);
+
+        // Categories depend on virtual goods. That's why they're added after them.
+        for (VirtualCategory category : mCategories) {
+            catalog.addCategory(category);
+        }
+        return catalog.build();
+    }
+
+    private static void addGoods(StoreCatalog.Builder catalog, List<VirtualGood> goods) {
+        for (VirtualGood good : goods) {
+            catalog.addGood(good);
+        }
+    }
+
+    private static boolean nextIsArrayOrObject(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        return token == JsonToken.BEGIN_ARRAY || token == JsonToken.BEGIN_OBJECT;
+    }
+
+    private static void require(Object value, String field, String owner) throws JSONException {
+        if (value == null) {
+            throw new JSONException("No value for " + field
+                    + (owner == null ? "" : " in " + owner));
+        }
+    }
+
+
+    /** Private Members */
+
+    private static final String TAG = "SOOMLA StoreJsonParser"; //used for Log messages
+
+    private static final int TYPE_CURRENCY = 0;
+    private static final int TYPE_CURRENCY_PACK = 1;
+    private static final int TYPE_SINGLE_USE = 2;
+    private static final int TYPE_LIFETIME = 3;
+    private static final int TYPE_EQUIPPABLE = 4;
+    private static final int TYPE_SINGLE_USE_PACK = 5;
+    private static final int TYPE_UPGRADE = 6;
+
+    private final List<VirtualCurrency> mCurrencies = new ArrayList<VirtualCurrency>();
+    private final List<VirtualCurrencyPack> mCurrencyPacks = new ArrayList<VirtualCurrencyPack>();
+    private final List<VirtualGood> mSingleUseGoods = new ArrayList<VirtualGood>();
+    private final List<VirtualGood> mLifetimeGoods = new ArrayList<VirtualGood>();
+    private final List<VirtualGood> mEquippableGoods = new ArrayList<VirtualGood>();
+    private final List<VirtualGood> mPackGoods = new ArrayList<VirtualGood>();
+    private final List<VirtualGood> mUpgradeGoods = new ArrayList<VirtualGood>();
+    private final List<VirtualCategory> mCategories = new ArrayList<VirtualCategory>();
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soomla.store.data;
+
+/**
+ * A versioned migration of data saved by an older version of the store into the current
+ * layout. Migrations are run by {@link StoreMigrator} in the background, one bounded batch at a
+ * time, and the progress is saved after every batch so an interrupted migration resumes where
+ * it stopped.
+ *
+ * A batch may be repeated if the app dies before its progress is saved, so each batch must be
+ * safe to run twice.
+ */
+public abstract class StoreMigration {
+
+    /**
+     * Constructor
+     *
+     * @param version the version of this migration. Migrations run in the order of their
+     *                versions, and each version runs to completion only once.
+     * @param name a name for log messages
+     */
+    protected StoreMigration(int version, String name) {
+        mVersion = version;
+        mName = name;
+    }
+
+    /**
+     * Migrates the next batch of at most <code>batchSize</code> items.
+     *
+     * @param cursor where the previous batch stopped, or null for the first batch
+     * @param batchSize the maximum number of items to migrate in this batch
+     * @return where this batch stopped, to be passed to the next batch, or null if the
+     *     migration is done
+     */
+    public abstract String migrateBatch(String cursor, int batchSize);
+
+
+    /** Setters and Getters */
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+
+    /** Private Members */
+
+    private final int mVersion;
+
+    private final String mName;
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soomla.store.data;
+
+import com.soomla.SoomlaUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * This class runs the store's {@link StoreMigration}s on a background thread, so that
+ * converting data of older versions doesn't delay loading the store.
+ *
+ * The version of the last completed migration and the cursor of the one in progress are saved
+ * after every batch. The next run continues from there, so an interrupted migration resumes
+ * instead of starting over.
+ */
+public class StoreMigrator {
+
+    /**
+     * Starts running the pending migrations in the background, unless they're already running.
+     * Called by <code>StoreInfo</code> once the store is loaded, since migrations may need it.
+     */
+    public static synchronized void start() {
+        if (mRunning) {
+            return;
+        }
+        mRunning = true;
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    runPending();
+                } catch (RuntimeException e) {
+                    SoomlaUtils.LogError(TAG, "Migration failed, will retry on the next start: "
+                            + e.getMessage());
+                } finally {
+                    synchronized (StoreMigrator.class) {
+                        mRunning = false;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the pending migrations on the calling thread, in the order of their versions.
+     */
+    static void runPending() {
+        runPending(MIGRATIONS, BATCH_SIZE);
+    }
+
+    /**
+     * Runs the given migrations on the calling thread, in the order of their versions.
+     *
+     * @param migrations the migrations, by version
+     * @param batchSize the maximum number of items each batch migrates
+     */
+    static void runPending(List<StoreMigration> migrations, int batchSize) {
+        int completed = getCompletedVersion();
+        String cursor = StorageManager.getValue(KEY_MIGRATION_CURSOR);
+
+        for (StoreMigration migration : migrations) {
+            if (migration.getVersion() <= completed) {
+                continue;
+            }
+
+            SoomlaUtils.LogDebug(TAG, "running migration " + migration.getVersion() + " ("
+                    + migration.getName() + ")"
+                    + (cursor != null ? " from " + cursor : ""));
+
+            do {
+                cursor = migration.migrateBatch(cursor, batchSize);
+
+                Map<String, String> progress = new LinkedHashMap<String, String>();
+                if (cursor != null) {
+                    progress.put(KEY_MIGRATION_CURSOR, cursor);
+                } else {
+                    progress.put(KEY_MIGRATION_VERSION, "" + migration.getVersion());
+                    progress.put(KEY_MIGRATION_CURSOR, null);
+                }
+                StorageManager.setValues(progress);
+            } while (cursor != null);
+        }
+    }
+
+    private static int getCompletedVersion() {
+        String val = StorageManager.getValue(KEY_MIGRATION_VERSION);
+        if (val == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(val);
+        } catch (NumberFormatException e) {
+            SoomlaUtils.LogError(TAG, "Bad migration version: " + val);
+            return 0;
+        }
+    }
+
+
+    /** Private Members */
+
+    private static final String TAG = "SOOMLA StoreMigrator"; //used for Log messages
+
+    private static final String KEY_MIGRATION_VERSION = "meta.migration.version";
+    private static final String KEY_MIGRATION_CURSOR = "meta.migration.cursor";
+
+    private static final int BATCH_SIZE = 50;
+
+    // all migrations, by version
+    private static final List<StoreMigration> MIGRATIONS = new ArrayList<StoreMigration>(
+            Arrays.<StoreMigration>asList(new NonConsumableMigration()));
+
+    private static final ExecutorService mExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "SOOMLA StoreMigrator");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+
+    private static boolean mRunning = false;
+}
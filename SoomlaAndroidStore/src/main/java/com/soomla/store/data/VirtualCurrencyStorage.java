@@ -49,7 +49,7 @@ public class VirtualCurrencyStorage extends VirtualItemStorage{
                 balance, amountAdded));
     }
 
-    private static String keyCurrencyBalance(String itemId) {
+    static String keyCurrencyBalance(String itemId) {
         return DB_CURRENCY_KEY_PREFIX + itemId + ".balance";
     }
 
@@ -16,16 +16,26 @@
 
 package com.soomla.store.data;
 
-import android.text.TextUtils;
 import com.soomla.BusProvider;
 import com.soomla.SoomlaUtils;
-import com.soomla.data.KeyValueStorage;
+import com.soomla.store.domain.VirtualItem;
 import com.soomla.store.domain.virtualGoods.UpgradeVG;
 import com.soomla.store.events.GoodBalanceChangedEvent;
 import com.soomla.store.events.GoodEquippedEvent;
 import com.soomla.store.events.GoodUnEquippedEvent;
 import com.soomla.store.events.GoodUpgradeEvent;
-import com.soomla.store.exceptions.VirtualItemNotFoundException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * This class provides basic storage operations on virtual goods.
@@ -58,9 +68,12 @@ public class VirtualGoodsStorage extends VirtualItemStorage{
         SoomlaUtils.LogDebug(mTag, "Removing upgrade information from virtual good: " +
                 goodItemId);
 
-        String key = keyGoodUpgrade(goodItemId);
-
-        KeyValueStorage.deleteKeyValue(key);
+        synchronized (mStateLock) {
+            // an upgrade saved in the old format is converted first, so it can't come back
+            loadUpgradeLevel(goodItemId);
+            StorageManager.deleteKeyValue(keyGoodUpgrade(goodItemId));
+            cacheUpgradeLevel(goodItemId, 0);
+        }
 
         if (notify) {
             BusProvider.getInstance().post(new GoodUpgradeEvent(goodItemId, null));
@@ -85,27 +98,24 @@ public class VirtualGoodsStorage extends VirtualItemStorage{
      * @param notify if true post event to bus
      */
     public void assignCurrentUpgrade(String goodItemId, String upgradeVGItemId, boolean notify) {
-
-        String upgradeItemId = getCurrentUpgrade(goodItemId);
-        if (!TextUtils.isEmpty(upgradeItemId)) {
-            try {
-                UpgradeVG upgrade = (UpgradeVG) StoreInfo.getVirtualItem(upgradeItemId);
-
-                if (upgrade != null && upgrade.getItemId().equals(
-                        upgradeVGItemId)) {
-                    return;
-                }
-            } catch (VirtualItemNotFoundException ignored) {
-
-            }
+        int level = StoreInfo.getUpgradeLevel(upgradeVGItemId);
+        if (level == 0) {
+            SoomlaUtils.LogError(mTag, "Can't assign " + upgradeVGItemId + " to virtual good: "
+                    + goodItemId + ". It's not part of its upgrade chain.");
+            return;
         }
 
-        SoomlaUtils.LogDebug(mTag, "Assigning upgrade " + upgradeVGItemId + " to virtual good: "
-                + goodItemId);
+        synchronized (mStateLock) {
+            if (loadUpgradeLevel(goodItemId) == level) {
+                return;
+            }
 
-        String key = keyGoodUpgrade(goodItemId);
+            SoomlaUtils.LogDebug(mTag, "Assigning upgrade " + upgradeVGItemId
+                    + " to virtual good: " + goodItemId);
 
-        KeyValueStorage.setValue(key, upgradeVGItemId);
+            StorageManager.setValue(keyGoodUpgrade(goodItemId), upgradeVGItemId);
+            cacheUpgradeLevel(goodItemId, level);
+        }
 
         if (notify) {
             BusProvider.getInstance().post(new GoodUpgradeEvent(goodItemId, upgradeVGItemId));
@@ -119,26 +129,32 @@ public class VirtualGoodsStorage extends VirtualItemStorage{
      * @return the current upgrade for the given virtual good
      */
     public String getCurrentUpgrade(String goodItemId) {
-        SoomlaUtils.LogDebug(mTag, "Fetching upgrade to virtual good: " + goodItemId);
-
-        String key = keyGoodUpgrade(goodItemId);
-
-        String upItemId = KeyValueStorage.getValue(key);
-
-        if (upItemId == null) {
-            SoomlaUtils.LogDebug(mTag, "You tried to fetch the current upgrade of " + goodItemId
-                    + " but there's not upgrade to it.");
+        int level = getCurrentUpgradeLevel(goodItemId);
+        if (level == 0) {
             return null;
         }
 
-        try {
-            return upItemId;
-        } catch (ClassCastException e) {
-            SoomlaUtils.LogError(mTag,
-                    "The current upgrade's itemId from the DB is not an UpgradeVG.");
+        UpgradeVG upgradeVG = StoreInfo.getGoodUpgradeAt(goodItemId, level);
+        if (upgradeVG == null) {
+            SoomlaUtils.LogError(mTag, "The current upgrade level of " + goodItemId + " (" + level
+                    + ") is beyond its upgrade chain.");
+            return null;
         }
+        return upgradeVG.getItemId();
+    }
 
-        return null;
+    /**
+     * Retrieves the current upgrade level of the given virtual good: 0 if it has no upgrade,
+     * 1 for its first upgrade and so on. The upgrade is saved by its itemId, and its level in
+     * the current catalog is cached after it was first read.
+     *
+     * @param goodItemId the virtual good to retrieve the upgrade level for
+     * @return the current upgrade level of the given virtual good
+     */
+    public int getCurrentUpgradeLevel(String goodItemId) {
+        synchronized (mStateLock) {
+            return loadUpgradeLevel(goodItemId);
+        }
     }
 
     /**
@@ -151,10 +167,33 @@ public class VirtualGoodsStorage extends VirtualItemStorage{
         SoomlaUtils.LogDebug(mTag, "checking if virtual good with itemId: " + goodItemId +
                 " is equipped.");
 
-        String key = keyGoodEquipped(goodItemId);
-        String val = KeyValueStorage.getValue(key);
+        synchronized (mStateLock) {
+            boolean loaded = mEquipped != null;
+            if (!loadEquipped()) {
+                recordCacheLookup(StorageStats.FAMILY_GOOD_EQUIPPED, false);
+                return StorageManager.getValue(keyGoodEquipped(goodItemId)) != null;
+            }
+            recordCacheLookup(StorageStats.FAMILY_GOOD_EQUIPPED, loaded);
 
-        return val != null;
+            int ordinal = mEquippedCatalog.getItemOrdinal(goodItemId);
+            return ordinal >= 0 ? mEquipped.get(ordinal) : mEquippedUnknown.contains(goodItemId);
+        }
+    }
+
+    /**
+     * Retrieves the ordinals of all equipped goods in the current <code>StoreInfo</code>
+     * catalog, see {@link VirtualItem#getOrdinal()}.
+     * Use it to check the equipped state of many goods at once with bit operations.
+     *
+     * @return a copy of the set of equipped ordinals
+     */
+    public BitSet getEquippedOrdinals() {
+        synchronized (mStateLock) {
+            if (!loadEquipped()) {
+                return new BitSet();
+            }
+            return (BitSet) mEquipped.clone();
+        }
     }
 
     /**
@@ -173,9 +212,6 @@ public class VirtualGoodsStorage extends VirtualItemStorage{
      * @param notify if notify is true post event to bus
      */
     public void equip(String goodItemId, boolean notify) {
-        if (isEquipped(goodItemId)) {
-            return;
-        }
         equipPriv(goodItemId, true, notify);
     }
 
@@ -195,10 +231,47 @@ public class VirtualGoodsStorage extends VirtualItemStorage{
      * @param notify if true post event to bus
      */
     public void unequip(String goodItemId, boolean notify) {
-        if (!isEquipped(goodItemId)) {
+        equipPriv(goodItemId, false, notify);
+    }
+
+    /**
+     * Loads the balances and upgrade levels of the given goods, and the equipped state of all
+     * goods.
+     *
+     * @param itemIds the itemIds of the virtual goods whose balances should be loaded
+     */
+    @Override
+    public void warmBalanceCacheByItemIds(List<String> itemIds) {
+        super.warmBalanceCacheByItemIds(itemIds);
+        if (itemIds == null) {
             return;
         }
-        equipPriv(goodItemId, false, notify);
+
+        synchronized (mStateLock) {
+            loadEquipped();
+
+            for (String itemId : itemIds) {
+                if (StoreInfo.hasUpgrades(itemId)) {
+                    loadUpgradeLevel(itemId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the in-memory balance table, equipped state and upgrade levels.
+     */
+    @Override
+    public void clearBalanceCache() {
+        super.clearBalanceCache();
+
+        synchronized (mStateLock) {
+            mEquipped = null;
+            mEquippedUnknown = null;
+            mEquippedCatalog = null;
+            mUpgradeLevels = null;
+            mUpgradeLevelsCatalog = null;
+        }
     }
 
     /**
@@ -218,39 +291,380 @@ public class VirtualGoodsStorage extends VirtualItemStorage{
                 balance, amountAdded));
     }
 
+    Object getStateLock() {
+        return mStateLock;
+    }
+
+    /**
+     * Retrieves the current upgrade level of the given good from the cache, or from the
+     * database if it isn't cached yet. The upgrade is saved by its itemId, so inserting or
+     * reordering upgrades in a chain doesn't change which upgrade a good has, only its level.
+     * An upgrade saved by an earlier version as a level is converted to the itemId at that
+     * level the first time.
+     * Must be called while holding the state lock.
+     *
+     * @param goodItemId the virtual good to retrieve the upgrade level for
+     * @return the current upgrade level of the given good
+     */
+    int loadUpgradeLevel(String goodItemId) {
+        StoreCatalog catalog = StoreInfo.getCatalog();
+        int ordinal = catalog.getItemOrdinal(goodItemId);
+        if (ordinal >= 0 && mUpgradeLevelsCatalog == catalog && ordinal < mUpgradeLevels.length
+                && mUpgradeLevels[ordinal] != LEVEL_NOT_LOADED) {
+            recordCacheLookup(StorageStats.FAMILY_GOOD_UPGRADE, true);
+            return mUpgradeLevels[ordinal];
+        }
+        recordCacheLookup(StorageStats.FAMILY_GOOD_UPGRADE, false);
+
+        int level = 0;
+        String upgradeVGItemId = StorageManager.getValue(keyGoodUpgrade(goodItemId));
+        if (upgradeVGItemId != null) {
+            level = catalog.getUpgradeLevel(upgradeVGItemId);
+            if (level == 0) {
+                // the key is kept, the catalog may know this upgrade again later
+                SoomlaUtils.LogError(mTag, "The current upgrade of " + goodItemId + " ("
+                        + upgradeVGItemId + ") isn't part of its upgrade chain.");
+            }
+        } else {
+            String levelKey = keyGoodUpgradeLevel(goodItemId);
+            String val = StorageManager.getValue(levelKey);
+            if (val != null) {
+                level = migrateUpgradeLevel(catalog, goodItemId, levelKey, val);
+            }
+        }
+
+        cacheUpgradeLevel(goodItemId, level);
+        return level;
+    }
+
+    /**
+     * Caches the given upgrade level, once it was saved. The cache only holds levels in the
+     * current catalog and is dropped when <code>StoreInfo</code> publishes another one.
+     * Must be called while holding the state lock.
+     *
+     * @param goodItemId the virtual good whose upgrade level to cache
+     * @param level the upgrade level of the saved upgrade
+     */
+    void cacheUpgradeLevel(String goodItemId, int level) {
+        StoreCatalog catalog = StoreInfo.getCatalog();
+        int ordinal = catalog.getItemOrdinal(goodItemId);
+        if (ordinal < 0) {
+            return;
+        }
+
+        if (mUpgradeLevelsCatalog != catalog) {
+            mUpgradeLevels = null;
+            mUpgradeLevelsCatalog = catalog;
+        }
+        if (mUpgradeLevels == null || ordinal >= mUpgradeLevels.length) {
+            int size = Math.max(ordinal + 1, catalog.getVirtualItemsCount());
+            int[] levels = new int[size];
+            Arrays.fill(levels, LEVEL_NOT_LOADED);
+            if (mUpgradeLevels != null) {
+                System.arraycopy(mUpgradeLevels, 0, levels, 0, mUpgradeLevels.length);
+            }
+            mUpgradeLevels = levels;
+        }
+        mUpgradeLevels[ordinal] = level;
+    }
+
+    /**
+     * Adds the keys that save the given equipped state changes to the given values, without
+     * applying them. Must be called while holding the state lock.
+     *
+     * @param changes goodItemId -> true to equip, false to unequip
+     * @param values the values to add the keys to
+     */
+    void stageEquipped(Map<String, Boolean> changes, Map<String, String> values) {
+        if (!loadEquipped()) {
+            for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+                values.put(keyGoodEquipped(change.getKey()), change.getValue() ? "" : null);
+            }
+            return;
+        }
+
+        BitSet equipped = (BitSet) mEquipped.clone();
+        Set<String> unknown = new LinkedHashSet<String>(mEquippedUnknown);
+        for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+            mark(mEquippedCatalog, equipped, unknown, change.getKey(), change.getValue());
+        }
+        values.put(KEY_EQUIPPED_GOODS, encodeEquipped(mEquippedCatalog, equipped, unknown));
+    }
+
+    /**
+     * Applies the given equipped state changes, once they were saved, to the in-memory state.
+     * Must be called while holding the state lock.
+     *
+     * @param changes goodItemId -> true to equip, false to unequip
+     */
+    void applyEquipped(Map<String, Boolean> changes) {
+        if (mEquipped == null) {
+            return;
+        }
+        for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+            mark(mEquippedCatalog, mEquipped, mEquippedUnknown, change.getKey(),
+                    change.getValue());
+        }
+    }
+
     /**
      * Helper function for <code>equip</code> and <code>unequip</code> functions.
      */
     private void equipPriv(String goodItemId, boolean equip, boolean notify){
-        SoomlaUtils.LogDebug(mTag, (!equip ? "unequipping " : "equipping ") + goodItemId + ".");
+        synchronized (mStateLock) {
+            if (isEquipped(goodItemId) == equip) {
+                return;
+            }
 
-        String key = keyGoodEquipped(goodItemId);
+            SoomlaUtils.LogDebug(mTag, (!equip ? "unequipping " : "equipping ") + goodItemId + ".");
 
-        if (equip) {
-            KeyValueStorage.setValue(key, "");
-            if (notify) {
+            if (!loadEquipped()) {
+                String key = keyGoodEquipped(goodItemId);
+                if (equip) {
+                    StorageManager.setValue(key, "");
+                } else {
+                    StorageManager.deleteKeyValue(key);
+                }
+            } else {
+                mark(mEquippedCatalog, mEquipped, mEquippedUnknown, goodItemId, equip);
+                StorageManager.setValue(KEY_EQUIPPED_GOODS,
+                        encodeEquipped(mEquippedCatalog, mEquipped, mEquippedUnknown));
+            }
+        }
+
+        if (notify) {
+            if (equip) {
                 BusProvider.getInstance().post(new GoodEquippedEvent(goodItemId));
+            } else {
+                BusProvider.getInstance().post(new GoodUnEquippedEvent(goodItemId));
+            }
+        }
+    }
+
+    /**
+     * Loads the equipped state of all goods into memory, unless it's loaded already, and
+     * resolves it against the current <code>StoreInfo</code> catalog.
+     * The first time, the state is migrated from the old one-key-per-good format: every
+     * equippable good in the catalog is probed once and its key is deleted.
+     * Must be called while holding the state lock.
+     *
+     * @return true if the state is in memory, false if it can't be loaded yet because
+     *     <code>StoreInfo</code> has no goods (in which case the old keys are used directly)
+     */
+    private boolean loadEquipped() {
+        StoreCatalog catalog = StoreInfo.getCatalog();
+        if (mEquipped != null) {
+            if (mEquippedCatalog != catalog) {
+                resolveEquipped(catalog);
+            }
+            return true;
+        }
+
+        String val = StorageManager.getValue(KEY_EQUIPPED_GOODS);
+        if (val == null && catalog.getVirtualItemsCount() == 0) {
+            return false;
+        }
+
+        BitSet equipped = new BitSet(catalog.getVirtualItemsCount());
+        Set<String> unknown = new LinkedHashSet<String>();
+
+        if (val != null) {
+            for (String itemId : decodeEquipped(val)) {
+                mark(catalog, equipped, unknown, itemId, true);
             }
         } else {
-            KeyValueStorage.deleteKeyValue(key);
-            if (notify) {
-                BusProvider.getInstance().post(new GoodUnEquippedEvent(goodItemId));
+            // by itemIds, so lazy catalog goods aren't built just to probe their keys
+            Map<String, String> values = new LinkedHashMap<String, String>();
+            for (String itemId : catalog.getGoodItemIds()) {
+                ItemTraits traits = catalog.getTraits(itemId);
+                if (traits == null || traits.getEquippingModel() == null) {
+                    continue;
+                }
+                String key = keyGoodEquipped(itemId);
+                if (StorageManager.getValue(key) != null) {
+                    mark(catalog, equipped, unknown, itemId, true);
+                    values.put(key, null);
+                }
+            }
+
+            SoomlaUtils.LogDebug(mTag, "migrating " + values.size() + " equipped goods");
+
+            values.put(KEY_EQUIPPED_GOODS, encodeEquipped(catalog, equipped, unknown));
+            StorageManager.setValues(values);
+        }
+
+        mEquipped = equipped;
+        mEquippedUnknown = unknown;
+        mEquippedCatalog = catalog;
+        return true;
+    }
+
+    /**
+     * Moves the equipped state to the ordinals of the given catalog. Goods that were equipped
+     * while they were missing from the catalog get their ordinal once a catalog has them, and
+     * goods that were removed from it are kept by itemId.
+     * Must be called while holding the state lock.
+     */
+    private void resolveEquipped(StoreCatalog catalog) {
+        BitSet equipped = new BitSet(catalog.getVirtualItemsCount());
+        Set<String> unknown = new LinkedHashSet<String>();
+        for (int i = mEquipped.nextSetBit(0); i >= 0; i = mEquipped.nextSetBit(i + 1)) {
+            String itemId = mEquippedCatalog.getItemId(i);
+            if (itemId != null) {
+                mark(catalog, equipped, unknown, itemId, true);
+            }
+        }
+        for (String itemId : mEquippedUnknown) {
+            mark(catalog, equipped, unknown, itemId, true);
+        }
+
+        mEquipped = equipped;
+        mEquippedUnknown = unknown;
+        mEquippedCatalog = catalog;
+    }
+
+    /**
+     * Converts an upgrade saved as a level back to the itemId of the upgrade at that level,
+     * and saves it in place of the level.
+     *
+     * @return the upgrade level, 0 if the level is beyond the good's upgrade chain
+     */
+    private int migrateUpgradeLevel(StoreCatalog catalog, String goodItemId, String levelKey,
+                                    String val) {
+        int level;
+        try {
+            level = Integer.parseInt(val);
+        } catch (NumberFormatException e) {
+            SoomlaUtils.LogError(mTag, "Bad upgrade level of " + goodItemId + ": " + val);
+            return 0;
+        }
+
+        UpgradeVG upgradeVG = catalog.getGoodUpgradeAt(goodItemId, level);
+        if (upgradeVG == null) {
+            // the level key is kept, the catalog may have this level again later
+            SoomlaUtils.LogError(mTag, "The upgrade level of " + goodItemId + " (" + level
+                    + ") is beyond its upgrade chain.");
+            return 0;
+        }
+
+        SoomlaUtils.LogDebug(mTag, "migrating the current upgrade of " + goodItemId);
+
+        Map<String, String> values = new LinkedHashMap<String, String>();
+        values.put(keyGoodUpgrade(goodItemId), upgradeVG.getItemId());
+        values.put(levelKey, null);
+        StorageManager.setValues(values);
+        return level;
+    }
+
+    private static void recordCacheLookup(String family, boolean hit) {
+        if (StorageStats.isEnabled()) {
+            StorageStats.recordCacheLookup(family, hit);
+        }
+    }
+
+    private static void mark(StoreCatalog catalog, BitSet equipped, Set<String> unknown,
+                             String goodItemId, boolean equip) {
+        int ordinal = catalog.getItemOrdinal(goodItemId);
+        if (ordinal >= 0) {
+            equipped.set(ordinal, equip);
+        } else if (equip) {
+            unknown.add(goodItemId);
+        } else {
+            unknown.remove(goodItemId);
+        }
+    }
+
+    /**
+     * Encodes the equipped goods as a JSON array of itemIds. ItemIds are saved rather than
+     * ordinals since ordinals may change when the store's metadata changes.
+     */
+    private static String encodeEquipped(StoreCatalog catalog, BitSet equipped,
+                                         Set<String> unknown) {
+        List<String> itemIds = new ArrayList<String>();
+        for (int i = equipped.nextSetBit(0); i >= 0; i = equipped.nextSetBit(i + 1)) {
+            String itemId = catalog.getItemId(i);
+            if (itemId != null) {
+                itemIds.add(itemId);
+            }
+        }
+        itemIds.addAll(unknown);
+        return encodeEquipped(itemIds);
+    }
+
+    /**
+     * Decodes the itemIds saved by {@link #encodeEquipped(StoreCatalog, BitSet, Set)}.
+     *
+     * @param val the saved JSON array
+     * @return the itemIds of the equipped goods, empty if the value can't be parsed
+     */
+    static List<String> decodeEquipped(String val) {
+        List<String> itemIds = new ArrayList<String>();
+        try {
+            JSONArray array = new JSONArray(val);
+            for (int i = 0; i < array.length(); i++) {
+                itemIds.add(array.getString(i));
             }
+        } catch (JSONException e) {
+            SoomlaUtils.LogError(TAG, "Couldn't parse the equipped goods: " + e.getMessage());
+        }
+        return itemIds;
+    }
+
+    /**
+     * Encodes the given itemIds of equipped goods the way they're saved.
+     *
+     * @param itemIds the itemIds of the equipped goods
+     * @return a JSON array of the itemIds
+     */
+    static String encodeEquipped(Iterable<String> itemIds) {
+        JSONArray array = new JSONArray();
+        for (String itemId : itemIds) {
+            array.put(itemId);
         }
+        return array.toString();
     }
 
 
-    private static String keyGoodBalance(String itemId) {
+    static String keyGoodBalance(String itemId) {
         return DB_KEY_GOOD_PREFIX + itemId + ".balance";
     }
 
-    private static String keyGoodEquipped(String itemId) {
+    static String keyGoodEquipped(String itemId) {
         return DB_KEY_GOOD_PREFIX + itemId + ".equipped";
     }
 
-    private static String keyGoodUpgrade(String itemId) {
+    static String keyGoodUpgrade(String itemId) {
         return DB_KEY_GOOD_PREFIX + itemId + ".currentUpgrade";
     }
 
+    static String keyGoodUpgradeLevel(String itemId) {
+        return DB_KEY_GOOD_PREFIX + itemId + ".upgradeLevel";
+    }
+
     public final static String DB_KEY_GOOD_PREFIX = "good.";
+
+    // holds the itemIds of all equipped goods; an inventory key, see InventorySnapshot
+    static final String KEY_EQUIPPED_GOODS = DB_KEY_GOOD_PREFIX + "equipped.all";
+
+    private static final String TAG = "SOOMLA VirtualGoodsStorage"; //used for Log messages
+
+    private static final int LEVEL_NOT_LOADED = -1;
+
+    // guards the equipped state and the upgrade levels
+    private final Object mStateLock = new Object();
+
+    // the ordinals of equipped goods, null until loaded
+    private BitSet mEquipped;
+
+    // equipped goods that have no ordinal, kept so saving the state doesn't lose them
+    private Set<String> mEquippedUnknown;
+
+    // the catalog whose ordinals mEquipped is by
+    private StoreCatalog mEquippedCatalog;
+
+    // the current upgrade level of each good by ordinal, null until first used
+    private int[] mUpgradeLevels;
+
+    // the catalog whose ordinals and upgrade chains mUpgradeLevels is by
+    private StoreCatalog mUpgradeLevelsCatalog;
 }
@@ -23,10 +23,31 @@
 package com.soomla.store.data;
 
 import com.soomla.SoomlaUtils;
-import com.soomla.data.KeyValueStorage;
+import com.soomla.store.domain.VirtualItem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * This class is an abstract definition of a Virtual Item Storage.
+ *
+ * Balances are kept in an in-memory table which is the authoritative copy while the game
+ * runs: reads are served from memory and every change is written through to the
+ * {@link IBalanceStore} (or batched, see {@link StorageManager#enableWriteBehind}).
+ * The database is read at most once per item.
+ *
+ * The table is a primitive array indexed by the ordinal <code>StoreInfo</code> assigns to
+ * every <code>VirtualItem</code> (see {@link VirtualItem#getOrdinal()}). The ordinal
+ * overloads of the methods below don't build keys or hash strings, which makes them suitable
+ * for per-frame checks.
+ *
+ * Every read-modify-write of a balance (<code>add</code>, <code>remove</code>,
+ * <code>setBalance</code> and the atomic primitives {@link #addAndGet},
+ * {@link #compareAndSet} and {@link #removeIfAtLeast}) runs under a lock striped by item, so
+ * concurrent changes to the same item never lose updates while unrelated items don't contend.
+ * Reads don't take any lock.
  */
 public abstract class VirtualItemStorage {
 
@@ -37,20 +58,22 @@ public abstract class VirtualItemStorage {
      * @return the balance of the required virtual item
      */
     public int getBalance(String itemId){
-        SoomlaUtils.LogDebug(mTag, "fetching balance for virtual item with itemId: "
-                + itemId);
-
-        String key = keyBalance(itemId);
-        String val = KeyValueStorage.getValue(key);
+        return getBalance(StoreInfo.getItemOrdinal(itemId), itemId);
+    }
 
-        int balance = 0;
-        if (val != null) {
-            balance = Integer.parseInt(val);
+    /**
+     * Retrieves the balance of the virtual item with the given ordinal.
+     *
+     * @param ordinal the ordinal <code>StoreInfo</code> assigned to the required virtual item
+     * @return the balance of the required virtual item
+     */
+    public int getBalance(int ordinal) {
+        BalanceTable table = mTable;
+        if (ordinal < table.size && table.loaded.get(ordinal) != 0) {
+            recordCacheLookup(true);
+            return table.balances.get(ordinal);
         }
-
-        SoomlaUtils.LogDebug(mTag, "the balance for " + itemId + " is " + balance);
-
-        return balance;
+        return getBalance(ordinal, itemIdAt(ordinal));
     }
 
     /**
@@ -74,23 +97,20 @@ public abstract class VirtualItemStorage {
      * @return the balance of the required virtual item
      */
     public int setBalance(String itemId, int balance, boolean notify) {
-        SoomlaUtils.LogDebug(mTag, "setting balance " + balance + " to " + itemId + ".");
-
-        int oldBalance = getBalance(itemId);
-        if (oldBalance == balance) {
-            return balance;
-        }
-
-        String balanceStr = "" + balance;
-        String key = keyBalance(itemId);
-
-        KeyValueStorage.setValue(key, balanceStr);
-
-        if (notify) {
-            postBalanceChangeEvent(itemId, balance, 0);
-        }
+        return setBalance(StoreInfo.getItemOrdinal(itemId), itemId, balance, notify);
+    }
 
-        return balance;
+    /**
+     * Sets the balance of the virtual item with the given ordinal to be the given balance, and
+     * if notify is true posts the change in the balance to the event bus.
+     *
+     * @param ordinal the ordinal <code>StoreInfo</code> assigned to the required virtual item
+     * @param balance the new balance to be set
+     * @param notify if notify is true post balance change event
+     * @return the balance of the required virtual item
+     */
+    public int setBalance(int ordinal, int balance, boolean notify) {
+        return setBalance(ordinal, itemIdAt(ordinal), balance, notify);
     }
 
     /**
@@ -114,22 +134,20 @@ public abstract class VirtualItemStorage {
      * @return new balance
      */
     public int add(String itemId, int amount, boolean notify){
-        SoomlaUtils.LogDebug(mTag, "adding " + amount + " " + itemId);
-
-        int balance = getBalance(itemId);
-        if (balance < 0) { /* in case the user "adds" a negative value */
-            balance = 0;
-            amount = 0;
-        }
-        String balanceStr = "" + (balance + amount);
-        String key = keyBalance(itemId);
-        KeyValueStorage.setValue(key, balanceStr);
-
-        if (notify) {
-            postBalanceChangeEvent(itemId, balance+amount, amount);
-        }
+        return add(StoreInfo.getItemOrdinal(itemId), itemId, amount, notify);
+    }
 
-        return balance + amount;
+    /**
+     * Adds the given amount to the balance of the virtual item with the given ordinal, and if
+     * notify is true posts the change in the balance to the event bus.
+     *
+     * @param ordinal the ordinal <code>StoreInfo</code> assigned to the required virtual item
+     * @param amount the amount of items to add
+     * @param notify if true posts balance change event
+     * @return new balance
+     */
+    public int add(int ordinal, int amount, boolean notify) {
+        return add(ordinal, itemIdAt(ordinal), amount, notify);
     }
 
     /**
@@ -153,22 +171,201 @@ public abstract class VirtualItemStorage {
      * @return new balance
      */
     public int remove(String itemId, int amount, boolean notify){
-        SoomlaUtils.LogDebug(mTag, "Removing " + amount + " " + itemId + ".");
+        return remove(StoreInfo.getItemOrdinal(itemId), itemId, amount, notify);
+    }
+
+    /**
+     * Removes the given amount from the balance of the virtual item with the given ordinal, and
+     * if notify is true posts the change in the balance to the event bus.
+     *
+     * @param ordinal the ordinal <code>StoreInfo</code> assigned to the required virtual item
+     * @param amount is the amount to remove
+     * @param notify if notify is true post balance change event
+     * @return new balance
+     */
+    public int remove(int ordinal, int amount, boolean notify) {
+        return remove(ordinal, itemIdAt(ordinal), amount, notify);
+    }
+
+    /**
+     * Atomically adds the given amount (which may be negative) to the balance of the given
+     * virtual item. The balance never drops below 0.
+     *
+     * @param itemId the required virtual item's itemId
+     * @param amount the amount to add
+     * @return the new balance
+     */
+    public int addAndGet(String itemId, int amount) {
+        return addAndGet(itemId, amount, true);
+    }
+
+    /**
+     * Atomically adds the given amount (which may be negative) to the balance of the given
+     * virtual item, and if notify is true posts the change in the balance to the event bus.
+     * The balance never drops below 0.
+     *
+     * @param itemId the required virtual item's itemId
+     * @param amount the amount to add
+     * @param notify if true posts balance change event
+     * @return the new balance
+     */
+    public int addAndGet(String itemId, int amount, boolean notify) {
+        return addAndGet(StoreInfo.getItemOrdinal(itemId), itemId, amount, notify);
+    }
+
+    /**
+     * Works like {@link #addAndGet(String, int, boolean)} for the virtual item with the given
+     * ordinal.
+     *
+     * @param ordinal the ordinal <code>StoreInfo</code> assigned to the required virtual item
+     * @param amount the amount to add
+     * @param notify if true posts balance change event
+     * @return the new balance
+     */
+    public int addAndGet(int ordinal, int amount, boolean notify) {
+        return addAndGet(ordinal, itemIdAt(ordinal), amount, notify);
+    }
 
-        int balance = getBalance(itemId) - amount;
-        if (balance < 0) {
-            balance = 0;
-            amount = 0;
+    /**
+     * Atomically sets the balance of the given virtual item to <code>newBalance</code> if it
+     * currently equals <code>expectedBalance</code>.
+     *
+     * @param itemId the required virtual item's itemId
+     * @param expectedBalance the balance the item is expected to have
+     * @param newBalance the balance to set
+     * @return true if the balance was set, false if the current balance wasn't the expected one
+     */
+    public boolean compareAndSet(String itemId, int expectedBalance, int newBalance) {
+        return compareAndSet(itemId, expectedBalance, newBalance, true);
+    }
+
+    /**
+     * Atomically sets the balance of the given virtual item to <code>newBalance</code> if it
+     * currently equals <code>expectedBalance</code>, and if notify is true posts the change in
+     * the balance to the event bus.
+     *
+     * @param itemId the required virtual item's itemId
+     * @param expectedBalance the balance the item is expected to have
+     * @param newBalance the balance to set
+     * @param notify if true posts balance change event
+     * @return true if the balance was set, false if the current balance wasn't the expected one
+     */
+    public boolean compareAndSet(String itemId, int expectedBalance, int newBalance,
+                                 boolean notify) {
+        return compareAndSet(StoreInfo.getItemOrdinal(itemId), itemId, expectedBalance,
+                newBalance, notify);
+    }
+
+    /**
+     * Works like {@link #compareAndSet(String, int, int, boolean)} for the virtual item with
+     * the given ordinal.
+     *
+     * @param ordinal the ordinal <code>StoreInfo</code> assigned to the required virtual item
+     * @param expectedBalance the balance the item is expected to have
+     * @param newBalance the balance to set
+     * @param notify if true posts balance change event
+     * @return true if the balance was set, false if the current balance wasn't the expected one
+     */
+    public boolean compareAndSet(int ordinal, int expectedBalance, int newBalance,
+                                 boolean notify) {
+        return compareAndSet(ordinal, itemIdAt(ordinal), expectedBalance, newBalance, notify);
+    }
+
+    /**
+     * Atomically removes the given amount from the balance of the given virtual item, but only
+     * if the balance is at least that amount. Use it to spend items: checking the balance and
+     * then calling <code>remove</code> can race with other threads.
+     *
+     * @param itemId the required virtual item's itemId
+     * @param amount the amount to remove
+     * @return true if the amount was removed, false if the balance was too low
+     */
+    public boolean removeIfAtLeast(String itemId, int amount) {
+        return removeIfAtLeast(itemId, amount, true);
+    }
+
+    /**
+     * Atomically removes the given amount from the balance of the given virtual item, but only
+     * if the balance is at least that amount, and if notify is true posts the change in the
+     * balance to the event bus.
+     *
+     * @param itemId the required virtual item's itemId
+     * @param amount the amount to remove
+     * @param notify if true posts balance change event
+     * @return true if the amount was removed, false if the balance was too low
+     */
+    public boolean removeIfAtLeast(String itemId, int amount, boolean notify) {
+        return removeIfAtLeast(StoreInfo.getItemOrdinal(itemId), itemId, amount, notify);
+    }
+
+    /**
+     * Works like {@link #removeIfAtLeast(String, int, boolean)} for the virtual item with the
+     * given ordinal.
+     *
+     * @param ordinal the ordinal <code>StoreInfo</code> assigned to the required virtual item
+     * @param amount the amount to remove
+     * @param notify if true posts balance change event
+     * @return true if the amount was removed, false if the balance was too low
+     */
+    public boolean removeIfAtLeast(int ordinal, int amount, boolean notify) {
+        return removeIfAtLeast(ordinal, itemIdAt(ordinal), amount, notify);
+    }
+
+    /**
+     * Loads the balances of the given virtual items from the database into the in-memory
+     * table. Items that are already loaded are skipped.
+     * <code>StoreInfo</code> calls this once after the metadata is loaded so the first read
+     * of a balance during gameplay doesn't touch the database.
+     *
+     * @param items the virtual items whose balances should be loaded
+     */
+    public void warmBalanceCache(List<? extends VirtualItem> items) {
+        if (items == null) {
+            return;
         }
-        String balanceStr = "" + balance;
-        String key = keyBalance(itemId);
-        KeyValueStorage.setValue(key, balanceStr);
 
-        if (notify) {
-            postBalanceChangeEvent(itemId, balance, -1*amount);
+        List<String> itemIds = new ArrayList<String>(items.size());
+        for (VirtualItem item : items) {
+            itemIds.add(item.getItemId());
         }
+        warmBalanceCacheByItemIds(itemIds);
+    }
 
-        return balance;
+    /**
+     * Works like {@link #warmBalanceCache(List)} for the virtual items with the given itemIds.
+     * Lazy catalog items aren't built by this.
+     *
+     * @param itemIds the itemIds of the virtual items whose balances should be loaded
+     */
+    public void warmBalanceCacheByItemIds(List<String> itemIds) {
+        if (itemIds == null) {
+            return;
+        }
+
+        SoomlaUtils.LogDebug(mTag, "warming balance cache with " + itemIds.size() + " items");
+
+        ensureCapacity(StoreInfo.getVirtualItemsCount());
+        for (String itemId : itemIds) {
+            int ordinal = StoreInfo.getItemOrdinal(itemId);
+            if (ordinal >= 0) {
+                getBalance(ordinal, itemId);
+            }
+        }
+    }
+
+    /**
+     * Drops the in-memory balance table so the next read of each balance goes to the database.
+     * Needed whenever balance keys are changed directly in the {@link IBalanceStore}, or
+     * when <code>StoreInfo</code> reassigns ordinals.
+     */
+    public void clearBalanceCache() {
+        lockAllStripes();
+        try {
+            // the table keeps its size so ordinals that were in range stay in range
+            mTable = new BalanceTable(mTable.size);
+        } finally {
+            unlockAllStripes();
+        }
     }
 
     /**
@@ -189,8 +386,348 @@ public abstract class VirtualItemStorage {
      */
     protected abstract void postBalanceChangeEvent(String itemId, int balance, int amountAdded);
 
+    private String itemIdAt(int ordinal) {
+        String itemId = StoreInfo.getItemIdByOrdinal(ordinal);
+        if (itemId == null) {
+            throw new IllegalArgumentException("No virtual item with ordinal: " + ordinal);
+        }
+        return itemId;
+    }
+
+    private int getBalance(int ordinal, String itemId) {
+        if (ordinal >= 0) {
+            BalanceTable table = mTable;
+            if (ordinal < table.size && table.loaded.get(ordinal) != 0) {
+                recordCacheLookup(true);
+                return table.balances.get(ordinal);
+            }
+        }
+
+        ReentrantLock lock = lockFor(ordinal, itemId);
+        lock.lock();
+        try {
+            return loadBalance(ordinal, itemId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int setBalance(int ordinal, String itemId, int balance, boolean notify) {
+        SoomlaUtils.LogDebug(mTag, "setting balance " + balance + " to " + itemId + ".");
+
+        ReentrantLock lock = lockFor(ordinal, itemId);
+        lock.lock();
+        try {
+            int oldBalance = loadBalance(ordinal, itemId);
+            if (oldBalance == balance) {
+                return balance;
+            }
+
+            writeBalance(ordinal, itemId, balance);
+        } finally {
+            lock.unlock();
+        }
+
+        if (notify) {
+            postBalanceChangeEvent(itemId, balance, 0);
+        }
+
+        return balance;
+    }
+
+    private int add(int ordinal, String itemId, int amount, boolean notify) {
+        SoomlaUtils.LogDebug(mTag, "adding " + amount + " " + itemId);
+
+        int balance;
+        ReentrantLock lock = lockFor(ordinal, itemId);
+        lock.lock();
+        try {
+            balance = loadBalance(ordinal, itemId);
+            if (balance < 0) { /* in case the user "adds" a negative value */
+                balance = 0;
+                amount = 0;
+            }
+            writeBalance(ordinal, itemId, balance + amount);
+        } finally {
+            lock.unlock();
+        }
+
+        if (notify) {
+            postBalanceChangeEvent(itemId, balance+amount, amount);
+        }
+
+        return balance + amount;
+    }
+
+    private int remove(int ordinal, String itemId, int amount, boolean notify) {
+        SoomlaUtils.LogDebug(mTag, "Removing " + amount + " " + itemId + ".");
+
+        int balance;
+        ReentrantLock lock = lockFor(ordinal, itemId);
+        lock.lock();
+        try {
+            balance = loadBalance(ordinal, itemId) - amount;
+            if (balance < 0) {
+                balance = 0;
+                amount = 0;
+            }
+            writeBalance(ordinal, itemId, balance);
+        } finally {
+            lock.unlock();
+        }
+
+        if (notify) {
+            postBalanceChangeEvent(itemId, balance, -1*amount);
+        }
+
+        return balance;
+    }
+
+    private int addAndGet(int ordinal, String itemId, int amount, boolean notify) {
+        int oldBalance;
+        int newBalance;
+        ReentrantLock lock = lockFor(ordinal, itemId);
+        lock.lock();
+        try {
+            oldBalance = loadBalance(ordinal, itemId);
+            newBalance = Math.max(0, oldBalance + amount);
+            if (newBalance != oldBalance) {
+                writeBalance(ordinal, itemId, newBalance);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (notify && newBalance != oldBalance) {
+            postBalanceChangeEvent(itemId, newBalance, newBalance - oldBalance);
+        }
+
+        return newBalance;
+    }
+
+    private boolean compareAndSet(int ordinal, String itemId, int expectedBalance,
+                                  int newBalance, boolean notify) {
+        ReentrantLock lock = lockFor(ordinal, itemId);
+        lock.lock();
+        try {
+            if (loadBalance(ordinal, itemId) != expectedBalance) {
+                return false;
+            }
+            if (newBalance != expectedBalance) {
+                writeBalance(ordinal, itemId, newBalance);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (notify && newBalance != expectedBalance) {
+            postBalanceChangeEvent(itemId, newBalance, newBalance - expectedBalance);
+        }
+
+        return true;
+    }
+
+    private boolean removeIfAtLeast(int ordinal, String itemId, int amount, boolean notify) {
+        int newBalance;
+        ReentrantLock lock = lockFor(ordinal, itemId);
+        lock.lock();
+        try {
+            int balance = loadBalance(ordinal, itemId);
+            if (balance < amount) {
+                return false;
+            }
+            newBalance = balance - amount;
+            writeBalance(ordinal, itemId, newBalance);
+        } finally {
+            lock.unlock();
+        }
+
+        if (notify) {
+            postBalanceChangeEvent(itemId, newBalance, -1*amount);
+        }
+
+        return true;
+    }
+
+    /**
+     * Retrieves the balance of the given virtual item, reading it from the database the first
+     * time. Must be called while holding the item's stripe lock.
+     */
+    int loadBalance(int ordinal, String itemId) {
+        BalanceTable table = mTable;
+        if (ordinal >= 0 && ordinal < table.size && table.loaded.get(ordinal) != 0) {
+            recordCacheLookup(true);
+            return table.balances.get(ordinal);
+        }
+        recordCacheLookup(false);
+
+        SoomlaUtils.LogDebug(mTag, "fetching balance for virtual item with itemId: "
+                + itemId);
+
+        String val = StorageManager.getValue(keyBalance(ordinal, itemId));
+
+        int balance = 0;
+        if (val != null) {
+            balance = Integer.parseInt(val);
+        }
+
+        SoomlaUtils.LogDebug(mTag, "the balance for " + itemId + " is " + balance);
+
+        if (ordinal >= 0) {
+            // not part of the catalog otherwise, so there's no slot to keep it in
+            table.balances.set(ordinal, balance);
+            table.loaded.set(ordinal, 1);
+        }
+        return balance;
+    }
+
+    private void recordCacheLookup(boolean hit) {
+        if (StorageStats.isEnabled()) {
+            // the family is the same for all of this storage's balance keys
+            StorageStats.recordCacheLookup(StorageStats.familyOf(keyBalance("")), hit);
+        }
+    }
+
+    /**
+     * Updates the in-memory balance of the given virtual item and writes it through to the
+     * database. Must be called while holding the item's stripe lock.
+     */
+    private void writeBalance(int ordinal, String itemId, int balance) {
+        cacheBalance(ordinal, balance);
+        StorageManager.setValue(keyBalance(ordinal, itemId), "" + balance);
+    }
+
+    /**
+     * Updates the in-memory balance of the given virtual item without touching the database.
+     * Must be called while holding the item's stripe lock.
+     */
+    void cacheBalance(int ordinal, int balance) {
+        if (ordinal >= 0) {
+            BalanceTable table = mTable;
+            table.balances.set(ordinal, balance);
+            table.loaded.set(ordinal, 1);
+        }
+    }
+
+    /**
+     * Retrieves the balance key of the given virtual item, building it only once per ordinal.
+     */
+    String keyBalance(int ordinal, String itemId) {
+        BalanceTable table = mTable;
+        if (ordinal < 0 || ordinal >= table.size) {
+            return keyBalance(itemId);
+        }
+
+        // racing threads would only build the same string twice
+        String key = table.keys[ordinal];
+        if (key == null) {
+            key = keyBalance(itemId);
+            table.keys[ordinal] = key;
+        }
+        return key;
+    }
+
+    private ReentrantLock lockFor(int ordinal, String itemId) {
+        return mStripes[stripeIndex(ordinal, itemId)];
+    }
+
+    /**
+     * Retrieves the index of the stripe lock guarding the given virtual item, making sure the
+     * table has a slot for it first.
+     * The table is grown here, before any stripe is held, because growing it takes all of them.
+     */
+    int stripeIndex(int ordinal, String itemId) {
+        if (ordinal >= 0) {
+            ensureCapacity(ordinal + 1);
+            return ordinal & (STRIPES_COUNT - 1);
+        }
+
+        int h = itemId.hashCode();
+        h ^= (h >>> 16);
+        return h & (STRIPES_COUNT - 1);
+    }
+
+    ReentrantLock getStripe(int index) {
+        return mStripes[index];
+    }
+
+    /**
+     * Grows the balance table so it can hold the given number of ordinals.
+     */
+    private void ensureCapacity(int size) {
+        if (mTable.size >= size) {
+            return;
+        }
+
+        lockAllStripes();
+        try {
+            BalanceTable old = mTable;
+            if (old.size >= size) {
+                return;
+            }
+
+            int newSize = Math.max(size, Math.max(StoreInfo.getVirtualItemsCount(), old.size * 2));
+            BalanceTable table = new BalanceTable(newSize);
+            for (int i = 0; i < old.size; i++) {
+                table.balances.set(i, old.balances.get(i));
+                table.loaded.set(i, old.loaded.get(i));
+                table.keys[i] = old.keys[i];
+            }
+            mTable = table;
+        } finally {
+            unlockAllStripes();
+        }
+    }
+
+    private void lockAllStripes() {
+        for (ReentrantLock stripe : mStripes) {
+            stripe.lock();
+        }
+    }
+
+    private void unlockAllStripes() {
+        for (int i = mStripes.length - 1; i >= 0; i--) {
+            mStripes[i].unlock();
+        }
+    }
+
+    /**
+     * The balances of all items, indexed by ordinal. A table is replaced as a whole when it has
+     * to grow, so readers always see a consistent set of arrays.
+     */
+    private static class BalanceTable {
+
+        BalanceTable(int size) {
+            this.size = size;
+            balances = new AtomicIntegerArray(size);
+            loaded = new AtomicIntegerArray(size);
+            keys = new String[size];
+        }
+
+        final int size;
+
+        final AtomicIntegerArray balances;
+
+        // 1 for every ordinal whose balance was already read from the database
+        final AtomicIntegerArray loaded;
+
+        // balance keys by ordinal, built on first use
+        final String[] keys;
+    }
+
 
     /** Private Members */
 
     protected String mTag = "SOOMLA VirtualItemStorage"; //used for Log messages
+
+    private static final int STRIPES_COUNT = 64; //must be a power of 2
+
+    private final ReentrantLock[] mStripes = new ReentrantLock[STRIPES_COUNT];
+    {
+        for (int i = 0; i < STRIPES_COUNT; i++) {
+            mStripes[i] = new ReentrantLock();
+        }
+    }
+
+    private volatile BalanceTable mTable = new BalanceTable(0);
 }
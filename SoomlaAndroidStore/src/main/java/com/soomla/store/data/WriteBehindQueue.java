@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.soomla.store.data;
+
+import com.soomla.BusProvider;
+import com.soomla.SoomlaUtils;
+import com.soomla.events.AppToBackgroundEvent;
+import com.squareup.otto.Subscribe;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the writes of the store's storages in memory and persists them to the
+ * {@link IBalanceStore} in batches instead of one database round trip per change.
+ *
+ * Every key is kept once: if a balance changes ten times between two flushes, only its last
+ * value is written. Pending values are visible to reads right away.
+ *
+ * A flush happens:
+ *  1. every <code>flushIntervalMillis</code> (if positive),
+ *  2. as soon as <code>flushThreshold</code> keys are pending (if positive),
+ *  3. when the application goes to the background ({@link AppToBackgroundEvent}), so nothing
+ *     is lost if the process is killed afterwards.
+ *
+ * Use {@link StorageManager#enableWriteBehind(long, int)} to turn this mode on.
+ */
+public class WriteBehindQueue {
+
+    /**
+     * Constructor
+     *
+     * @param flushIntervalMillis time between periodic flushes, 0 or less to disable them
+     * @param flushThreshold number of pending keys that triggers a flush, 0 or less to disable
+     */
+    public WriteBehindQueue(long flushIntervalMillis, int flushThreshold) {
+        mFlushIntervalMillis = flushIntervalMillis;
+        mFlushThreshold = flushThreshold;
+    }
+
+    /**
+     * Starts the periodic flushes and starts listening to the application going to the
+     * background.
+     */
+    public synchronized void start() {
+        if (mStarted) {
+            return;
+        }
+
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SOOMLA WriteBehindQueue");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        if (mFlushIntervalMillis > 0) {
+            mPeriodicFlush = mExecutor.scheduleWithFixedDelay(mFlushRunnable,
+                    mFlushIntervalMillis, mFlushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+
+        BusProvider.getInstance().register(this);
+        synchronized (mLock) {
+            mAccepting = true;
+        }
+        mStarted = true;
+    }
+
+    /**
+     * Stops the periodic flushes and flushes everything that is still pending. From now on
+     * writes that still reach this queue are written to the database right away.
+     */
+    public synchronized void stop() {
+        if (!mStarted) {
+            return;
+        }
+
+        BusProvider.getInstance().unregister(this);
+
+        if (mPeriodicFlush != null) {
+            mPeriodicFlush.cancel(false);
+            mPeriodicFlush = null;
+        }
+        mExecutor.shutdown();
+        mExecutor = null;
+        mStarted = false;
+
+        // writers that got hold of this queue before it was replaced must not queue changes
+        // after the last flush
+        synchronized (mLock) {
+            mAccepting = false;
+        }
+        flush();
+    }
+
+    /**
+     * Retrieves the value of the given key, preferring a pending value over the database.
+     *
+     * @param key the key to retrieve
+     * @return the value of the given key, or null if it doesn't exist (or is pending deletion)
+     */
+    public String getValue(String key) {
+        synchronized (mLock) {
+            if (mPending.containsKey(key)) {
+                return mPending.get(key);
+            }
+            if (mInFlight.containsKey(key)) {
+                return mInFlight.get(key);
+            }
+        }
+        return StorageManager.getStoredValue(key);
+    }
+
+    /**
+     * Marks the given key to be set to the given value on the next flush.
+     *
+     * @param key the key to set
+     * @param val the value to set
+     */
+    public void setValue(String key, String val) {
+        enqueue(key, val);
+    }
+
+    /**
+     * Marks the given key to be deleted on the next flush.
+     *
+     * @param key the key to delete
+     */
+    public void deleteKeyValue(String key) {
+        enqueue(key, null);
+    }
+
+    /**
+     * Marks all the given keys to be written on the next flush. The keys are queued together,
+     * so a flush never writes only part of them. If the queue isn't started, they're written
+     * right away.
+     *
+     * @param values key -> value to write, a null value means the key is to be deleted
+     */
+    public void setValues(Map<String, String> values) {
+        boolean queued;
+        boolean flushNow = false;
+        synchronized (mLock) {
+            queued = mAccepting;
+            if (queued) {
+                for (Map.Entry<String, String> entry : values.entrySet()) {
+                    // re-insert so the key moves to the end and batches keep the order of
+                    // changes
+                    mPending.remove(entry.getKey());
+                    mPending.put(entry.getKey(), entry.getValue());
+                }
+                flushNow = shouldFlushLocked();
+            }
+        }
+
+        if (!queued) {
+            StorageManager.writeBatch(values);
+        } else if (flushNow) {
+            requestFlush();
+        }
+    }
+
+    /**
+     * Writes all pending keys to the {@link IBalanceStore} as one batch (see
+     * {@link StorageManager#writeBatch(Map)}).
+     * Flushes never run concurrently; writes made while a flush is in progress go to the next
+     * one.
+     */
+    public void flush() {
+        synchronized (mFlushLock) {
+            Map<String, String> batch;
+            synchronized (mLock) {
+                if (mPending.isEmpty()) {
+                    return;
+                }
+                batch = mPending;
+                mPending = new LinkedHashMap<String, String>();
+                mInFlight = batch;
+                mFlushRequested = false;
+            }
+
+            SoomlaUtils.LogDebug(TAG, "flushing " + batch.size() + " pending keys");
+
+            try {
+                StorageManager.writeBatch(batch);
+            } catch (RuntimeException e) {
+                SoomlaUtils.LogError(TAG, "flush failed, keeping the batch for the next one: "
+                        + e.getMessage());
+
+                // rewriting the keys that did make it is harmless, newer values win
+                synchronized (mLock) {
+                    for (Map.Entry<String, String> entry : batch.entrySet()) {
+                        if (!mPending.containsKey(entry.getKey())) {
+                            mPending.put(entry.getKey(), entry.getValue());
+                        }
+                    }
+                }
+            } finally {
+                synchronized (mLock) {
+                    mInFlight = new LinkedHashMap<String, String>();
+                }
+            }
+        }
+    }
+
+    /**
+     * Flushes all pending keys before the application can be killed in the background.
+     *
+     * @param appToBackgroundEvent the event posted by the core when the app leaves the screen
+     */
+    @Subscribe
+    public void onAppToBackground(AppToBackgroundEvent appToBackgroundEvent) {
+        SoomlaUtils.LogDebug(TAG, "app went to background, flushing");
+        flush();
+    }
+
+
+    /** Setters and Getters */
+
+    public int getPendingCount() {
+        synchronized (mLock) {
+            return mPending.size();
+        }
+    }
+
+    public long getFlushIntervalMillis() {
+        return mFlushIntervalMillis;
+    }
+
+    public int getFlushThreshold() {
+        return mFlushThreshold;
+    }
+
+    private void enqueue(String key, String val) {
+        setValues(Collections.singletonMap(key, val));
+    }
+
+    private boolean shouldFlushLocked() {
+        if (mFlushThreshold > 0 && mPending.size() >= mFlushThreshold && !mFlushRequested) {
+            mFlushRequested = true;
+            return true;
+        }
+        return false;
+    }
+
+    private void requestFlush() {
+        synchronized (this) {
+            if (mExecutor != null) {
+                mExecutor.execute(mFlushRunnable);
+            } else {
+                flush();
+            }
+        }
+    }
+
+
+    /** Private Members */
+
+    private static final String TAG = "SOOMLA WriteBehindQueue"; //used for Log messages
+
+    private final long mFlushIntervalMillis;
+    private final int mFlushThreshold;
+
+    private final Object mLock = new Object();
+    private final Object mFlushLock = new Object();
+
+    // key -> value waiting for the next flush, a null value means the key is to be deleted
+    private Map<String, String> mPending = new LinkedHashMap<String, String>();
+
+    // the batch currently being written, still served to readers until the write is done
+    private Map<String, String> mInFlight = new LinkedHashMap<String, String>();
+
+    private boolean mFlushRequested = false;
+    private boolean mStarted = false;
+
+    // false while the queue isn't started, writes are then made right away; guarded by mLock
+    private boolean mAccepting = false;
+    private ScheduledExecutorService mExecutor;
+    private ScheduledFuture<?> mPeriodicFlush;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                flush();
+            } catch (Exception e) {
+                SoomlaUtils.LogError(TAG, "flush failed: " + e.getMessage());
+            }
+        }
+    };
+}
@@ -17,6 +17,7 @@
 package com.soomla.store.domain;
 
 import com.soomla.SoomlaEntity;
+import com.soomla.store.data.StorageTransaction;
 import com.soomla.store.data.StoreInfo;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -85,6 +86,17 @@ public abstract class VirtualItem extends SoomlaEntity<VirtualItem> {
      */
     public abstract int give(int amount, boolean notify);
 
+    /**
+     * Works like {@link #give(int)} but only stages the change in the given transaction.
+     * Nothing is saved until the transaction is committed.
+     *
+     * @param amount the amount of the specific item to be given
+     * @param transaction the transaction to stage the change in
+     */
+    public void give(int amount, StorageTransaction transaction) {
+        transaction.credit(this, amount);
+    }
+
     /**
      * Takes from your user the given amount of the specific virtual item.
      * For example, when your user requests a refund, you need to TAKE the item he/she is returning.
@@ -145,8 +157,31 @@ public abstract class VirtualItem extends SoomlaEntity<VirtualItem> {
         return mID;
     }
 
+    /**
+     * Retrieves the dense ordinal <code>StoreInfo</code> assigned to this item when the
+     * metadata was loaded. Ordinals run from 0 to the number of items in the store and can be
+     * used with the ordinal overloads of <code>StoreInventory</code> and the storages.
+     *
+     * @return this item's ordinal, or -1 if this item isn't part of <code>StoreInfo</code>
+     */
+    public int getOrdinal() {
+        return mOrdinal;
+    }
+
+    /**
+     * Sets this item's ordinal. This is done by <code>StoreInfo</code> when it indexes the
+     * store's metadata, don't call it yourself.
+     *
+     * @param ordinal the ordinal assigned to this item
+     */
+    public void setOrdinal(int ordinal) {
+        mOrdinal = ordinal;
+    }
+
 
     /** Private Members **/
 
     private static final String TAG = "SOOMLA VirtualItem"; //used for Log messages
+
+    private int mOrdinal = -1; //the index of this item in StoreInfo's ordinal table
 }
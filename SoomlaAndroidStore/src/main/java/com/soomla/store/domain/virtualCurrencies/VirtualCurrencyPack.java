@@ -18,6 +18,7 @@ package com.soomla.store.domain.virtualCurrencies;
 
 import com.soomla.SoomlaUtils;
 import com.soomla.store.data.StorageManager;
+import com.soomla.store.data.StorageTransaction;
 import com.soomla.store.data.StoreInfo;
 import com.soomla.store.data.StoreJSONConsts;
 import com.soomla.store.domain.PurchasableVirtualItem;
@@ -119,6 +120,22 @@ public class VirtualCurrencyPack extends PurchasableVirtualItem {
                 currency.getItemId(), mCurrencyAmount * amount, notify);
     }
 
+    /**
+     * @{inheritDoc}
+     */
+    @Override
+    public void give(int amount, StorageTransaction transaction) {
+        VirtualCurrency currency = null;
+        try {
+            currency = (VirtualCurrency) StoreInfo.getVirtualItem(mCurrencyItemId);
+        } catch (VirtualItemNotFoundException e) {
+            SoomlaUtils.LogError(TAG, "VirtualCurrency with itemId: " + mCurrencyItemId
+                    + " doesn't exist! Can't give this pack.");
+            return;
+        }
+        transaction.credit(currency, mCurrencyAmount * amount);
+    }
+
     /**
      * @{inheritDoc}
      */
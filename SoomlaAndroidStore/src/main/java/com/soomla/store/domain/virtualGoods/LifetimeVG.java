@@ -18,6 +18,7 @@ package com.soomla.store.domain.virtualGoods;
 
 import com.soomla.SoomlaUtils;
 import com.soomla.store.data.StorageManager;
+import com.soomla.store.data.StorageTransaction;
 import com.soomla.store.domain.PurchasableVirtualItem;
 import com.soomla.store.domain.VirtualItem;
 import com.soomla.store.purchaseTypes.PurchaseType;
@@ -101,6 +102,18 @@ import org.json.JSONObject;
         return 1;
     }
 
+    /**
+     * Stages giving your user exactly one <code>LifetimeVG</code>, unless he/she already has
+     * it.
+     *
+     * @param amount see {@link #give(int, boolean)}
+     * @param transaction the transaction to stage the change in
+     */
+    @Override
+    public void give(int amount, StorageTransaction transaction) {
+        transaction.credit(this, Math.min(amount, 1), 1);
+    }
+
     /**
      * Takes from your user exactly one <code>LifetimeVG</code>.
      *
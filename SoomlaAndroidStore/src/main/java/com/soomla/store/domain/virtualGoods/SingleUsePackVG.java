@@ -18,6 +18,7 @@ package com.soomla.store.domain.virtualGoods;
 
 import com.soomla.SoomlaUtils;
 import com.soomla.store.data.StorageManager;
+import com.soomla.store.data.StorageTransaction;
 import com.soomla.store.data.StoreInfo;
 import com.soomla.store.data.StoreJSONConsts;
 import com.soomla.store.domain.PurchasableVirtualItem;
@@ -121,6 +122,21 @@ public class SingleUsePackVG extends VirtualGood {
         return StorageManager.getVirtualGoodsStorage().add(good.getItemId(), mGoodAmount*amount, notify);
     }
 
+    /**
+     * @{inheritDoc}
+     */
+    @Override
+    public void give(int amount, StorageTransaction transaction) {
+        SingleUseVG good = null;
+        try {
+            good = (SingleUseVG) StoreInfo.getVirtualItem(mGoodItemId);
+        } catch (VirtualItemNotFoundException e) {
+            SoomlaUtils.LogError(TAG, "SingleUseVG with itemId: " + mGoodItemId + " doesn't exist! Can't give this pack.");
+            return;
+        }
+        transaction.credit(good, mGoodAmount*amount);
+    }
+
     /**
      * @{inheritDoc}
      */
@@ -19,6 +19,7 @@ package com.soomla.store.domain.virtualGoods;
 import android.text.TextUtils;
 import com.soomla.SoomlaUtils;
 import com.soomla.store.data.StorageManager;
+import com.soomla.store.data.StorageTransaction;
 import com.soomla.store.data.StoreInfo;
 import com.soomla.store.data.StoreJSONConsts;
 import com.soomla.store.domain.PurchasableVirtualItem;
@@ -151,6 +152,29 @@ public class UpgradeVG extends LifetimeVG {
         return super.give(amount, notify);
     }
 
+    /**
+     * Stages assigning this upgrade to the associated <code>VirtualGood</code> (mGood) in the
+     * given transaction.
+     *
+     * @param amount is NOT USED HERE!
+     * @param transaction the transaction to stage the change in
+     */
+    @Override
+    public void give(int amount, StorageTransaction transaction) {
+        VirtualGood good = null;
+        try {
+            good = (VirtualGood) StoreInfo.getVirtualItem(mGoodItemId);
+        } catch (VirtualItemNotFoundException e) {
+            SoomlaUtils.LogError(TAG, "VirtualGood with itemId: " + mGoodItemId +
+                    " doesn't exist! Can't upgrade.");
+            return;
+        }
+
+        transaction.assignCurrentUpgrade(good.getItemId(), this.getItemId());
+
+        super.give(amount, transaction);
+    }
+
      /**
      * Takes upgrade from the user, or in other words DOWNGRADES the associated
      * <code>VirtualGood</code> (mGood).
@@ -175,32 +199,18 @@ public class UpgradeVG extends LifetimeVG {
             return 0;
         }
 
-        String upgradeVGItemId = StorageManager.getVirtualGoodsStorage().getCurrentUpgrade(good.getItemId());
-        UpgradeVG upgradeVG = null;
-        try {
-            upgradeVG = (UpgradeVG) StoreInfo.getVirtualItem(upgradeVGItemId);
-        } catch (VirtualItemNotFoundException e) {
-            SoomlaUtils.LogDebug(TAG, "This is BAD! Can't find the current upgrade (" + upgradeVGItemId + ") of: " + good.getItemId());
-        }
+        int level = StorageManager.getVirtualGoodsStorage().getCurrentUpgradeLevel(good.getItemId());
 
         // Case: Upgrade is not assigned to this Virtual Good
-        if (upgradeVG != this) {
+        if (level == 0 || StoreInfo.getUpgradeLevel(getItemId()) != level) {
             SoomlaUtils.LogError(TAG, "You can't take an upgrade that's not currently assigned."
                     + "The UpgradeVG " + getName() + " is not assigned to " + "the VirtualGood: "
                     + good.getName());
             return 0;
         }
 
-        if (!TextUtils.isEmpty(mPrevItemId)) {
-            UpgradeVG prevUpgradeVG = null;
-            // Case: downgrade is not possible because previous upgrade does not exist
-            try {
-                prevUpgradeVG = (UpgradeVG)StoreInfo.getVirtualItem(mPrevItemId);
-            } catch (VirtualItemNotFoundException e) {
-                SoomlaUtils.LogError(TAG, "Previous UpgradeVG with itemId: " + mPrevItemId
-                        + " doesn't exist! Can't downgrade.");
-                return 0;
-            }
+        if (level > 1) {
+            UpgradeVG prevUpgradeVG = StoreInfo.getGoodUpgradeAt(good.getItemId(), level - 1);
             // Case: downgrade is successful!
             SoomlaUtils.LogDebug(TAG, "Downgrading " + good.getName() + " to: "
                     + prevUpgradeVG.getName());
@@ -236,18 +246,11 @@ public class UpgradeVG extends LifetimeVG {
             return false;
         }
 
-        String upgradeVGItemId = StorageManager.getVirtualGoodsStorage().getCurrentUpgrade(good.getItemId());
-        UpgradeVG upgradeVG = null;
-        try {
-            upgradeVG = (UpgradeVG) StoreInfo.getVirtualItem(upgradeVGItemId);
-        } catch (VirtualItemNotFoundException e) {
-            SoomlaUtils.LogDebug(TAG, "This is BAD! Can't find the current upgrade (" + upgradeVGItemId + ") of: " + good.getItemId());
-        }
-
+        int level = StorageManager.getVirtualGoodsStorage().getCurrentUpgradeLevel(good.getItemId());
+        int myLevel = StoreInfo.getUpgradeLevel(getItemId());
 
-        return ((upgradeVG == null && TextUtils.isEmpty(mPrevItemId)) ||
-               (upgradeVG != null && ((upgradeVG.getNextItemId().equals(getItemId())) ||
-                       (upgradeVG.getPrevItemId().equals(getItemId())))))
+        // the next upgrade, or the previous one (a downgrade)
+        return myLevel > 0 && (myLevel == level + 1 || myLevel == level - 1)
                 && super.canBuy();
     }
 
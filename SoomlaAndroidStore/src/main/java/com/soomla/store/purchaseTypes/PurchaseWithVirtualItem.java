@@ -18,9 +18,8 @@ package com.soomla.store.purchaseTypes;
 
 import com.soomla.BusProvider;
 import com.soomla.SoomlaUtils;
-import com.soomla.store.data.StorageManager;
+import com.soomla.store.data.StorageTransaction;
 import com.soomla.store.data.StoreInfo;
-import com.soomla.store.data.VirtualItemStorage;
 import com.soomla.store.domain.VirtualItem;
 import com.soomla.store.events.ItemPurchaseStartedEvent;
 import com.soomla.store.events.ItemPurchasedEvent;
@@ -69,17 +68,12 @@ public class PurchaseWithVirtualItem extends PurchaseType {
 
         BusProvider.getInstance().post(new ItemPurchaseStartedEvent(getAssociatedItem().getItemId()));
 
-        VirtualItemStorage storage = StorageManager.getVirtualItemStorage(item);
+        // paying and receiving the item are saved together, or not at all
+        StorageTransaction transaction = new StorageTransaction();
+        transaction.debit(item, mAmount);
+        getAssociatedItem().give(1, transaction);
+        transaction.commit();
 
-        assert storage != null;
-        int balance = storage.getBalance(item.getItemId());
-        if (balance < mAmount){
-            throw new InsufficientFundsException(mTargetItemId);
-        }
-
-        storage.remove(item.getItemId(), mAmount);
-
-        getAssociatedItem().give(1);
         BusProvider.getInstance().post(new ItemPurchasedEvent(getAssociatedItem().getItemId(), payload));
     }
 
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import com.soomla.store.domain.virtualGoods.SingleUseVG;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+import com.soomla.store.purchaseTypes.PurchaseWithVirtualItem;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares reading balances from the in-memory cache of <code>VirtualItemStorage</code> with
+ * reading them the way it used to: from the store, decrypting and parsing each value.
+ *
+ * The store here encrypts its values with AES like <code>KeyValueStorage</code> does, but keeps
+ * them in memory, so the store reads timed here are cheaper than the SQLite reads on a device.
+ */
+public class BalanceCacheBenchmarkTest {
+
+    @Before
+    public void setUp() throws Exception {
+        mStore = new EncryptingBalanceStore();
+        StorageManager.setBalanceStore(mStore);
+
+        mGoods = new ArrayList<VirtualGood>();
+        for (int i = 0; i < GOODS_COUNT; i++) {
+            VirtualGood good = new SingleUseVG("Good " + i, "", "bench_good_" + i,
+                    new PurchaseWithVirtualItem("bench_coin", 1));
+            StoreInfo.replaceVirtualItem(good);
+            mGoods.add(good);
+        }
+
+        VirtualItemStorage goods = StorageManager.getVirtualGoodsStorage();
+        for (int i = 0; i < GOODS_COUNT; i++) {
+            goods.setBalance(mGoods.get(i).getItemId(), i, false);
+        }
+    }
+
+    @Test
+    public void cachedReadsAreFasterThanStoreReads() throws Exception {
+        VirtualItemStorage goods = StorageManager.getVirtualGoodsStorage();
+        String[] keys = new String[GOODS_COUNT];
+        for (int i = 0; i < GOODS_COUNT; i++) {
+            keys[i] = VirtualGoodsStorage.keyGoodBalance(mGoods.get(i).getItemId());
+        }
+
+        // warms up both paths, and the cache
+        long sum = readFromStore(keys, WARMUP_ROUNDS) + readFromCache(goods, WARMUP_ROUNDS);
+
+        int storeReads = mStore.reads.get();
+        long start = System.nanoTime();
+        sum += readFromCache(goods, ROUNDS);
+        long cachedNanos = System.nanoTime() - start;
+        assertEquals("cached reads went to the store", storeReads, mStore.reads.get());
+
+        start = System.nanoTime();
+        sum += readFromStore(keys, ROUNDS);
+        long storeNanos = System.nanoTime() - start;
+
+        int reads = ROUNDS * GOODS_COUNT;
+        System.out.println("balance reads, " + GOODS_COUNT + " goods: store "
+                + storeNanos / reads + " ns/read, cache " + cachedNanos / reads + " ns/read");
+
+        long expected = (long) (2 * WARMUP_ROUNDS + 2 * ROUNDS)
+                * GOODS_COUNT * (GOODS_COUNT - 1) / 2;
+        assertEquals(expected, sum);
+        assertTrue("cached reads took " + cachedNanos + "ns, store reads " + storeNanos + "ns",
+                cachedNanos < storeNanos);
+    }
+
+
+    /** Private Members **/
+
+    /**
+     * Reads all balances through <code>VirtualItemStorage</code> the given number of times.
+     */
+    private long readFromCache(VirtualItemStorage goods, int rounds) {
+        long sum = 0;
+        for (int round = 0; round < rounds; round++) {
+            for (VirtualGood good : mGoods) {
+                sum += goods.getBalance(good.getItemId());
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Reads all balances from the store the given number of times, like
+     * <code>VirtualItemStorage.getBalance</code> did on every call before balances were cached.
+     */
+    private long readFromStore(String[] keys, int rounds) {
+        long sum = 0;
+        for (int round = 0; round < rounds; round++) {
+            for (String key : keys) {
+                String val = mStore.getValue(key);
+                sum += val == null ? 0 : Integer.parseInt(val);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Keeps its values AES encrypted and decrypts one on every read, and counts the reads.
+     */
+    private static class EncryptingBalanceStore extends InMemoryBalanceStore {
+
+        @Override
+        public synchronized String getValue(String key) {
+            reads.incrementAndGet();
+            String val = super.getValue(key);
+            return val == null ? null : crypt(Cipher.DECRYPT_MODE, val);
+        }
+
+        @Override
+        public synchronized void setValue(String key, String val) {
+            super.setValue(key, crypt(Cipher.ENCRYPT_MODE, val));
+        }
+
+        @Override
+        public synchronized void setValues(Map<String, String> values) {
+            Map<String, String> encrypted = new HashMap<String, String>();
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                encrypted.put(entry.getKey(), entry.getValue() == null ? null
+                        : crypt(Cipher.ENCRYPT_MODE, entry.getValue()));
+            }
+            super.setValues(encrypted);
+        }
+
+        private static String crypt(int mode, String val) {
+            try {
+                Cipher cipher = Cipher.getInstance("AES/ECB/PKCS5Padding");
+                cipher.init(mode, new SecretKeySpec(KEY, "AES"));
+                return new String(cipher.doFinal(val.getBytes(ISO_8859_1)), ISO_8859_1);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        final AtomicInteger reads = new AtomicInteger();
+
+        private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+        private static final byte[] KEY = "0123456789abcdef".getBytes(ISO_8859_1);
+    }
+
+    private static final int GOODS_COUNT = 200;
+    private static final int WARMUP_ROUNDS = 50;
+    private static final int ROUNDS = 200;
+
+    private EncryptingBalanceStore mStore;
+    private List<VirtualGood> mGoods;
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that what <code>BalanceJournal</code> appends survives the app dying, including
+ * after an append that failed in the middle of a record.
+ */
+public class BalanceJournalTest {
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("balance", ".journal");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void replayAfterCrash() throws Exception {
+        BalanceJournal journal = openJournal(new InventorySnapshot(new InMemoryBalanceStore()));
+        journal.append(Collections.singletonMap(balanceKey("sword"), "3"));
+        journal.append(Collections.singletonMap(balanceKey("shield"), "1"));
+        journal.append(Collections.singletonMap(balanceKey("sword"), "5"));
+
+        // not closed, as if the app died
+        InventorySnapshot replayed = new InventorySnapshot(new InMemoryBalanceStore());
+        openJournal(replayed);
+        assertEquals("5", replayed.getValue(balanceKey("sword")));
+        assertEquals("1", replayed.getValue(balanceKey("shield")));
+    }
+
+    @Test
+    public void appendDropsTornRecord() throws Exception {
+        BalanceJournal journal = openJournal(new InventorySnapshot(new InMemoryBalanceStore()));
+        journal.append(Collections.singletonMap(balanceKey("sword"), "3"));
+        long end = mFile.length();
+
+        // what an append that failed in the middle of its record leaves behind
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        file.seek(end);
+        file.write(new byte[] { 0, 0, 0, 100, 1, 2, 3 });
+        file.close();
+
+        journal.append(Collections.singletonMap(balanceKey("shield"), "1"));
+        assertTrue(mFile.length() > end);
+
+        InventorySnapshot replayed = new InventorySnapshot(new InMemoryBalanceStore());
+        openJournal(replayed);
+        assertEquals("3", replayed.getValue(balanceKey("sword")));
+        assertEquals("1", replayed.getValue(balanceKey("shield")));
+    }
+
+    @Test
+    public void compactKeepsJournalIfSnapshotIsNotSaved() throws Exception {
+        // a store that loses its writes
+        InMemoryBalanceStore store = new InMemoryBalanceStore() {
+            @Override
+            public synchronized void setValue(String key, String val) {
+            }
+        };
+        BalanceJournal journal = openJournal(new InventorySnapshot(store));
+        journal.append(Collections.singletonMap(balanceKey("sword"), "3"));
+        long size = mFile.length();
+
+        journal.compact();
+        assertEquals(size, mFile.length());
+
+        InventorySnapshot replayed = new InventorySnapshot(new InMemoryBalanceStore());
+        openJournal(replayed);
+        assertEquals("3", replayed.getValue(balanceKey("sword")));
+    }
+
+    @Test
+    public void appendAfterCloseSavesSnapshot() throws Exception {
+        InMemoryBalanceStore store = new InMemoryBalanceStore();
+        BalanceJournal journal = openJournal(new InventorySnapshot(store));
+        journal.append(Collections.singletonMap(balanceKey("sword"), "3"));
+        journal.close();
+
+        // a writer that got hold of the journal before it was turned off
+        journal.append(Collections.singletonMap(balanceKey("shield"), "1"));
+
+        InventorySnapshot reloaded = new InventorySnapshot(store);
+        assertTrue(reloaded.load());
+        assertEquals("3", reloaded.getValue(balanceKey("sword")));
+        assertEquals("1", reloaded.getValue(balanceKey("shield")));
+    }
+
+
+    /** Private Members **/
+
+    private BalanceJournal openJournal(InventorySnapshot snapshot) throws Exception {
+        BalanceJournal journal = new BalanceJournal(mFile, snapshot, 0, 0);
+        journal.open();
+        return journal;
+    }
+
+    private static String balanceKey(String itemId) {
+        return VirtualGoodsStorage.keyGoodBalance(itemId);
+    }
+
+    private File mFile;
+}
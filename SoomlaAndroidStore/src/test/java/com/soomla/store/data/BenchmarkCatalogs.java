@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import com.soomla.store.domain.VirtualCategory;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrencyPack;
+import com.soomla.store.domain.virtualGoods.EquippableVG;
+import com.soomla.store.domain.virtualGoods.LifetimeVG;
+import com.soomla.store.domain.virtualGoods.SingleUseVG;
+import com.soomla.store.purchaseTypes.PurchaseWithMarket;
+import com.soomla.store.purchaseTypes.PurchaseWithVirtualItem;
+
+import java.util.ArrayList;
+
+/**
+ * Builds catalogs of a given size for the load benchmarks, shaped like a real store: a few
+ * currencies and packs, and goods of every kind that are mostly priced in currencies and
+ * grouped in categories.
+ */
+final class BenchmarkCatalogs {
+
+    /**
+     * Builds a catalog with about the given number of items.
+     *
+     * @param size the number of items
+     * @return the catalog
+     */
+    static StoreCatalog build(int size) {
+        StoreCatalog.Builder builder = new StoreCatalog.Builder();
+        String[] currencies = { "coin", "gem", "ticket" };
+        for (String currency : currencies) {
+            builder.addCurrency(new VirtualCurrency(currency, "A currency", currency));
+        }
+        for (String currency : currencies) {
+            for (int amount = 10; amount <= 1000; amount *= 10) {
+                String packId = currency + "_pack_" + amount;
+                builder.addCurrencyPack(new VirtualCurrencyPack(packId, "A pack of " + currency,
+                        packId, amount, currency,
+                        new PurchaseWithMarket("com.example." + packId, amount / 10.0)));
+            }
+        }
+
+        ArrayList<String> categoryGoods = new ArrayList<String>();
+        // each currency comes with three packs
+        int goods = size - currencies.length * 4;
+        for (int i = 0; i < goods; i++) {
+            String itemId = "good_" + i;
+            String name = "Good number " + i;
+            String description = "The description of good number " + i;
+            switch (i % 4) {
+                case 0:
+                    builder.addGood(new LifetimeVG(name, description, itemId,
+                            new PurchaseWithMarket("com.example." + itemId, 0.99)));
+                    break;
+                case 1:
+                    builder.addGood(new EquippableVG(EquippableVG.EquippingModel.CATEGORY,
+                            name, description, itemId,
+                            new PurchaseWithVirtualItem(currencies[i % 3], i % 100)));
+                    break;
+                default:
+                    builder.addGood(new SingleUseVG(name, description, itemId,
+                            new PurchaseWithVirtualItem(currencies[i % 3], i % 100)));
+                    break;
+            }
+
+            categoryGoods.add(itemId);
+            if (categoryGoods.size() == CATEGORY_SIZE || i == goods - 1) {
+                builder.addCategory(new VirtualCategory("category_" + i / CATEGORY_SIZE,
+                        categoryGoods));
+                categoryGoods = new ArrayList<String>();
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Measures how long the given load takes, as the best of a few runs after warming up.
+     *
+     * @param load the load to run
+     * @return the time of the fastest run, in nanoseconds
+     */
+    static long time(Load load) throws Exception {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            load.run();
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            load.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    /**
+     * A catalog load to time.
+     */
+    interface Load {
+        StoreCatalog run() throws Exception;
+    }
+
+
+    /** Private Members **/
+
+    private static final int CATEGORY_SIZE = 50;
+    private static final int WARMUP_RUNS = 3;
+    private static final int RUNS = 5;
+}
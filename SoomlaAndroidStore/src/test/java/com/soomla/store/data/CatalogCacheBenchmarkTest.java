@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import com.soomla.store.domain.VirtualItem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares loading catalogs of 100, 1k and 10k items from the store's item records, parsing
+ * the JSON of each item, with loading them from a compiled <code>CatalogCache</code>, eagerly
+ * and lazily.
+ *
+ * The records are kept in memory here, so the cold loads timed here don't include the
+ * database reads and decryption they take on a device.
+ */
+public class CatalogCacheBenchmarkTest {
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("catalog", ".cache");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void loadFromCacheIsFasterThanFromRecords() throws Exception {
+        for (int size : SIZES) {
+            StoreCatalog catalog = BenchmarkCatalogs.build(size);
+            final InMemoryBalanceStore store = new InMemoryBalanceStore();
+            CatalogRecords.writeAll(catalog, store);
+            final CatalogCache cache = new CatalogCache(mFile);
+            final String hash = cache.compile(catalog, true);
+            assertNotNull(hash);
+
+            long cold = BenchmarkCatalogs.time(new BenchmarkCatalogs.Load() {
+                @Override
+                public StoreCatalog run() throws Exception {
+                    StoreCatalog.Builder builder = new StoreCatalog.Builder();
+                    assertTrue(CatalogRecords.load(builder, false, store));
+                    return builder.build();
+                }
+            });
+            long eager = BenchmarkCatalogs.time(new BenchmarkCatalogs.Load() {
+                @Override
+                public StoreCatalog run() throws Exception {
+                    return loadFromCache(cache, hash, false);
+                }
+            });
+            long lazy = BenchmarkCatalogs.time(new BenchmarkCatalogs.Load() {
+                @Override
+                public StoreCatalog run() throws Exception {
+                    return loadFromCache(cache, hash, true);
+                }
+            });
+
+            System.out.println("catalog load, " + size + " items: records " + cold / 1000
+                    + "us, cache " + eager / 1000 + "us, lazy cache " + lazy / 1000 + "us");
+
+            assertSameItems(catalog, loadFromCache(cache, hash, false));
+            assertSameItems(catalog, loadFromCache(cache, hash, true));
+            assertTrue(size + " items: the cache took " + eager + "ns, the records " + cold
+                    + "ns", eager < cold);
+            assertTrue(size + " items: the lazy cache took " + lazy + "ns, the records " + cold
+                    + "ns", lazy < cold);
+        }
+    }
+
+
+    /** Private Members **/
+
+    private static StoreCatalog loadFromCache(CatalogCache cache, String hash, boolean lazy) {
+        StoreCatalog.Builder builder = new StoreCatalog.Builder();
+        assertTrue(cache.load(builder, true, lazy, hash));
+        return builder.build();
+    }
+
+    private static void assertSameItems(StoreCatalog expected, StoreCatalog actual) {
+        assertEquals(expected.getVirtualItemsCount(), actual.getVirtualItemsCount());
+        assertEquals(expected.getCategories().size(), actual.getCategories().size());
+        for (int ordinal = 0; ordinal < expected.getVirtualItemsCount(); ordinal++) {
+            VirtualItem item = expected.getVirtualItem(ordinal);
+            VirtualItem loaded = actual.getVirtualItem(item.getItemId());
+            assertEquals(item.getClass(), loaded.getClass());
+            assertEquals(item.getDescription(), loaded.getDescription());
+        }
+    }
+
+    private static final int[] SIZES = { 100, 1000, 10000 };
+
+    private File mFile;
+}
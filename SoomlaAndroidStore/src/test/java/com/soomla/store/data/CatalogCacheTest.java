@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualGoods.SingleUseVG;
+import com.soomla.store.purchaseTypes.PurchaseWithVirtualItem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks which cache files <code>CatalogCache</code> loads, that a lazy good whose record
+ * can't be read fails when it's retrieved instead of leaving a null in the catalog, and that
+ * lazy goods are indexed without being built.
+ */
+public class CatalogCacheTest {
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("catalog", ".cache");
+        mCache = new CatalogCache(mFile);
+
+        StoreCatalog.Builder builder = new StoreCatalog.Builder();
+        builder.addCurrency(new VirtualCurrency("Coins", "", "coin"));
+        builder.addGood(new SingleUseVG("Sword", "A sword", "sword",
+                new PurchaseWithVirtualItem("coin", 10)));
+        mHash = mCache.compile(builder.build(), true);
+        assertNotNull(mHash);
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void loadChecksHeader() {
+        assertTrue(mCache.load(new StoreCatalog.Builder(), true, false, mHash));
+        assertFalse(mCache.load(new StoreCatalog.Builder(), true, false, "0000"));
+        assertFalse(mCache.load(new StoreCatalog.Builder(), false, false, mHash));
+    }
+
+    @Test
+    public void brokenLazyGoodThrows() throws Exception {
+        breakSecondRecord();
+
+        StoreCatalog.Builder builder = new StoreCatalog.Builder();
+        assertTrue(mCache.load(builder, true, true, mHash));
+        StoreCatalog catalog = builder.build();
+        assertEquals(1, catalog.getItemOrdinal("sword"));
+
+        try {
+            catalog.getGoods().get(0);
+            fail("a good that can't be built was retrieved");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        // the next start loads the metadata instead
+        assertFalse(mFile.exists());
+    }
+
+    @Test
+    public void lazyGoodsAreIndexedWithoutBuildingThem() throws Exception {
+        breakSecondRecord();
+
+        StoreCatalog.Builder builder = new StoreCatalog.Builder();
+        assertTrue(mCache.load(builder, true, true, mHash));
+        StoreCatalog catalog = builder.build();
+
+        // the queries only read the traits in the sword's record, building it would throw
+        assertEquals(1, catalog.getItemsPricedIn("coin").size());
+        assertEquals(1, catalog.getItemsOfClass(SingleUseVG.class).size());
+        assertEquals(0, catalog.getSubscriptionGoods().size());
+    }
+
+
+    /** Private Members **/
+
+    /**
+     * Points the description of the second record, the sword, at a string that isn't in the
+     * table. Lazy loads skip the description, so only building the sword reads it.
+     */
+    private void breakSecondRecord() throws Exception {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            // magic, version, source, SHA-1 hash and body length
+            file.seek(4 + 1 + 1 + 20 + 4);
+            int strings = file.readInt();
+            for (int i = 0; i < strings; i++) {
+                file.skipBytes(file.readInt());
+            }
+            file.readInt(); // records count
+            file.skipBytes(file.readInt());
+
+            file.readInt(); // the sword's record length
+            file.skipBytes(1 + 4); // type and name
+            file.writeInt(Integer.MAX_VALUE);
+        } finally {
+            file.close();
+        }
+    }
+
+    private File mFile;
+    private CatalogCache mCache;
+    private String mHash;
+}
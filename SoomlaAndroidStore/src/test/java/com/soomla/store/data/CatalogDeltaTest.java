@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import com.soomla.store.domain.VirtualCategory;
+import com.soomla.store.domain.VirtualItem;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrencyPack;
+import com.soomla.store.domain.virtualGoods.LifetimeVG;
+import com.soomla.store.domain.virtualGoods.SingleUsePackVG;
+import com.soomla.store.domain.virtualGoods.SingleUseVG;
+import com.soomla.store.domain.virtualGoods.UpgradeVG;
+import com.soomla.store.purchaseTypes.PurchaseWithMarket;
+import com.soomla.store.purchaseTypes.PurchaseWithVirtualItem;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks how a <code>CatalogDelta</code> is applied to a catalog: what removing an item
+ * cascades to, which deltas are rejected, and that the indexes updated for the changed items
+ * match indexes built from scratch.
+ */
+public class CatalogDeltaTest {
+
+    @Test
+    public void removeGoodRemovesUpgradesAndCategoryEntry() {
+        StoreCatalog base = newCatalog();
+        int shield = base.getItemOrdinal("shield");
+
+        CatalogDelta delta = new CatalogDelta().removeItem("sword");
+        StoreCatalog catalog = apply(base, delta);
+
+        assertNull(catalog.getVirtualItem("sword"));
+        assertNull(catalog.getVirtualItem("sword_1"));
+        assertNull(catalog.getVirtualItem("sword_2"));
+        assertFalse(catalog.hasUpgrades("sword"));
+        assertEquals(shield, catalog.getItemOrdinal("shield"));
+        assertEquals("[shield]", catalog.getCategory("shield").getGoodsItemIds().toString());
+        assertNull(catalog.getCategory("sword"));
+
+        // the follow-up changes are part of the applied delta, so they're saved with it
+        CatalogDelta applied = delta.cascade(base);
+        assertTrue(applied.getItems().containsKey("sword_1"));
+        assertTrue(applied.getCategories().containsKey("weapons"));
+        assertFalse(delta.getItems().containsKey("sword_1"));
+
+        // the base catalog and its category aren't changed
+        assertEquals("[sword, shield]", base.getCategory("sword").getGoodsItemIds().toString());
+        assertEquals(2, base.getGoodUpgrades("sword").size());
+    }
+
+    @Test
+    public void addItemAndCategory() {
+        StoreCatalog base = newCatalog();
+        SingleUseVG bow = new SingleUseVG("Bow", "", "bow", new PurchaseWithVirtualItem("gem", 3));
+
+        StoreCatalog catalog = apply(base, new CatalogDelta()
+                .putItem(bow)
+                .putCategory(new VirtualCategory("ranged",
+                        new ArrayList<String>(Arrays.asList("bow")))));
+
+        assertEquals(base.getVirtualItemsCount(), bow.getOrdinal());
+        assertSame(bow, catalog.getVirtualItem("bow"));
+        assertEquals("ranged", catalog.getCategory("bow").getName());
+        assertEquals("[hat, bow]", itemIds(catalog.getItemsPricedIn("gem")));
+    }
+
+    @Test
+    public void changeClass() {
+        StoreCatalog base = newCatalog();
+        int hat = base.getItemOrdinal("hat");
+
+        StoreCatalog catalog = apply(base, new CatalogDelta().putItem(
+                new LifetimeVG("Hat", "", "hat", new PurchaseWithVirtualItem("gem", 5))));
+
+        assertEquals(hat, catalog.getItemOrdinal("hat"));
+        assertEquals("[hat]", itemIds(catalog.getItemsOfClass(LifetimeVG.class)));
+        assertFalse(itemIds(catalog.getItemsOfClass(SingleUseVG.class)).contains("hat"));
+        assertEquals("misc", catalog.getCategory("hat").getName());
+    }
+
+    @Test
+    public void rejectDanglingReferences() {
+        StoreCatalog base = newCatalog();
+
+        // goods and the coin pack still refer to the currency
+        assertRejected(base, new CatalogDelta().removeItem("coin"));
+        assertRejected(base, new CatalogDelta().removeItem("gem"));
+        // the bundle gives the potion
+        assertRejected(base, new CatalogDelta().removeItem("potion"));
+        // the upgrades are linked to each other
+        assertRejected(base, new CatalogDelta().removeItem("sword_1"));
+
+        assertRejected(base, new CatalogDelta().putItem(new SingleUseVG("Bow", "", "bow",
+                new PurchaseWithVirtualItem("arrow", 1))));
+        assertRejected(base, new CatalogDelta().putItem(new VirtualCurrencyPack("Pack", "",
+                "sword_pack", 10, "sword", new PurchaseWithVirtualItem("coin", 1))));
+        assertRejected(base, new CatalogDelta().putCategory(new VirtualCategory("currencies",
+                new ArrayList<String>(Arrays.asList("coin")))));
+
+        // a good that becomes a currency pack is still in a category and given by the bundle
+        assertRejected(base, new CatalogDelta().putItem(new VirtualCurrencyPack("Potion", "",
+                "potion", 10, "coin", new PurchaseWithMarket("com.example.potion", 0.99))));
+    }
+
+    @Test
+    public void removeReferencesTogether() {
+        StoreCatalog base = newCatalog();
+
+        StoreCatalog catalog = apply(base, new CatalogDelta()
+                .removeItem("gem")
+                .removeItem("hat"));
+
+        assertNull(catalog.getVirtualItem("gem"));
+        assertEquals("[potion, bundle]",
+                catalog.getCategory("potion").getGoodsItemIds().toString());
+    }
+
+    @Test
+    public void rejectDuplicateProductIds() {
+        StoreCatalog base = newCatalog();
+
+        assertRejected(base, new CatalogDelta().putItem(new SingleUseVG("Elixir", "",
+                "elixir", new PurchaseWithMarket("com.example.potion", 2.99))));
+        assertRejected(base, new CatalogDelta()
+                .putItem(new SingleUseVG("Elixir", "", "elixir",
+                        new PurchaseWithMarket("com.example.elixir", 2.99)))
+                .putItem(new SingleUseVG("Tonic", "", "tonic",
+                        new PurchaseWithMarket("com.example.elixir", 2.99))));
+
+        // the product id moves from the potion to the elixir
+        StoreCatalog catalog = apply(base, new CatalogDelta()
+                .putItem(new SingleUseVG("Elixir", "", "elixir",
+                        new PurchaseWithMarket("com.example.potion", 2.99)))
+                .putItem(new SingleUseVG("Potion", "", "potion",
+                        new PurchaseWithMarket("com.example.old_potion", 0.99))));
+        assertEquals("elixir", catalog.getPurchasableItem("com.example.potion").getItemId());
+    }
+
+    @Test
+    public void updatedIndexesMatchNewIndexes() {
+        // the same catalog twice, with indexes built in only one of them
+        StoreCatalog indexed = newCatalog();
+        StoreCatalog plain = newCatalog();
+        for (CatalogQuery.Sort sort : CatalogQuery.Sort.values()) {
+            indexed.indexes().sortedGoods(sort, false);
+            indexed.indexes().sortedGoods(sort, true);
+        }
+
+        CatalogDelta delta = new CatalogDelta()
+                .removeItem("shield")
+                .putItem(new LifetimeVG("Hat", "", "hat", new PurchaseWithVirtualItem("coin", 1)))
+                .putItem(new SingleUseVG("Bow", "", "bow", new PurchaseWithVirtualItem("gem", 7)))
+                .putItem(new SingleUseVG("Potion", "", "potion",
+                        new PurchaseWithMarket("com.example.potion", 0.49)));
+        StoreCatalog updated = apply(indexed, delta);
+        StoreCatalog rebuilt = apply(plain, delta);
+
+        assertEquals(itemIds(rebuilt.getGoods()), itemIds(updated.getGoods()));
+        for (Class<? extends VirtualItem> itemClass : Arrays.asList(VirtualCurrency.class,
+                VirtualCurrencyPack.class, SingleUseVG.class, LifetimeVG.class,
+                SingleUsePackVG.class, UpgradeVG.class)) {
+            assertEquals(itemIds(rebuilt.getItemsOfClass(itemClass)),
+                    itemIds(updated.getItemsOfClass(itemClass)));
+        }
+        for (String itemId : Arrays.asList("coin", "gem")) {
+            assertEquals(itemIds(rebuilt.getItemsPricedIn(itemId)),
+                    itemIds(updated.getItemsPricedIn(itemId)));
+        }
+        assertEquals(itemIds(rebuilt.getItemsByPurchaseType(PurchaseWithMarket.class)),
+                itemIds(updated.getItemsByPurchaseType(PurchaseWithMarket.class)));
+        for (CatalogQuery.Sort sort : CatalogQuery.Sort.values()) {
+            for (boolean descending : new boolean[] { false, true }) {
+                assertEquals(Arrays.toString(rebuilt.indexes().sortedGoods(sort, descending)),
+                        Arrays.toString(updated.indexes().sortedGoods(sort, descending)));
+            }
+        }
+        assertEquals("[hat, bow, sword, bundle]", itemIds(new CatalogQuery()
+                .sortBy(CatalogQuery.Sort.VIRTUAL_PRICE, false)
+                .run(updated, null, 4).getGoods()));
+    }
+
+
+    /** Private Members **/
+
+    /**
+     * Builds a catalog of two currencies, a currency pack, goods priced in each currency and
+     * in the market, a pack of goods, two upgrades and two categories.
+     */
+    private static StoreCatalog newCatalog() {
+        StoreCatalog.Builder builder = new StoreCatalog.Builder();
+        builder.addCurrency(new VirtualCurrency("Coins", "", "coin"));
+        builder.addCurrency(new VirtualCurrency("Gems", "", "gem"));
+        builder.addCurrencyPack(new VirtualCurrencyPack("Coin pack", "", "coin_pack", 100,
+                "coin", new PurchaseWithMarket("com.example.coin_pack", 0.99)));
+        builder.addGood(new SingleUseVG("Sword", "", "sword",
+                new PurchaseWithVirtualItem("coin", 10)));
+        builder.addGood(new SingleUseVG("Shield", "", "shield",
+                new PurchaseWithVirtualItem("coin", 20)));
+        builder.addGood(new SingleUseVG("Potion", "", "potion",
+                new PurchaseWithMarket("com.example.potion", 1.99)));
+        builder.addGood(new SingleUseVG("Hat", "", "hat", new PurchaseWithVirtualItem("gem", 5)));
+        builder.addGood(new SingleUsePackVG("potion", 5, "Bundle", "", "bundle",
+                new PurchaseWithVirtualItem("coin", 30)));
+        builder.addGood(new UpgradeVG("sword", "", "sword_2", "Sword 1", "", "sword_1",
+                new PurchaseWithVirtualItem("coin", 50)));
+        builder.addGood(new UpgradeVG("sword", "sword_1", "", "Sword 2", "", "sword_2",
+                new PurchaseWithVirtualItem("coin", 100)));
+        builder.addCategory(new VirtualCategory("weapons",
+                new ArrayList<String>(Arrays.asList("sword", "shield"))));
+        builder.addCategory(new VirtualCategory("misc",
+                new ArrayList<String>(Arrays.asList("potion", "hat", "bundle"))));
+        return builder.build();
+    }
+
+    /**
+     * Applies the given delta the way <code>StoreInfo.applyDelta</code> does, without saving.
+     */
+    private static StoreCatalog apply(StoreCatalog base, CatalogDelta delta) {
+        CatalogDelta applied = delta.cascade(base);
+        StoreCatalog.Builder builder = new StoreCatalog.Builder(base);
+        builder.applyDelta(applied);
+        StoreCatalog catalog = builder.build();
+        CatalogValidator.validate(base, catalog, applied);
+        return catalog;
+    }
+
+    private static void assertRejected(StoreCatalog base, CatalogDelta delta) {
+        try {
+            apply(base, delta);
+            fail("The delta should have been rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static String itemIds(List<? extends VirtualItem> items) {
+        List<String> itemIds = new ArrayList<String>();
+        for (VirtualItem item : items) {
+            itemIds.add(item.getItemId());
+        }
+        return itemIds.toString();
+    }
+}
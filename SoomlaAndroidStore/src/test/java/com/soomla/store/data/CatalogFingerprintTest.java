@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualGoods.LifetimeVG;
+import com.soomla.store.domain.virtualGoods.SingleUseVG;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+import com.soomla.store.purchaseTypes.PurchaseWithVirtualItem;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Checks that the fingerprint of the assets changes with any change to their items, even one
+ * that keeps the number of items the same.
+ */
+public class CatalogFingerprintTest {
+
+    @Test
+    public void sameAssetsSameFingerprint() {
+        String fingerprint = CatalogFingerprint.of(catalog(new SingleUseVG("Sword", "", "sword",
+                new PurchaseWithVirtualItem("coin", 10))));
+        assertNotNull(fingerprint);
+        assertEquals(fingerprint, CatalogFingerprint.of(catalog(new SingleUseVG("Sword", "",
+                "sword", new PurchaseWithVirtualItem("coin", 10)))));
+    }
+
+    @Test
+    public void changedItemChangesFingerprint() {
+        String fingerprint = CatalogFingerprint.of(catalog(new SingleUseVG("Sword", "", "sword",
+                new PurchaseWithVirtualItem("coin", 10))));
+
+        assertNotEquals(fingerprint, CatalogFingerprint.of(catalog(new SingleUseVG("Sword", "",
+                "sword", new PurchaseWithVirtualItem("coin", 11)))));
+        assertNotEquals(fingerprint, CatalogFingerprint.of(catalog(new SingleUseVG("Sword",
+                "Sharp", "sword", new PurchaseWithVirtualItem("coin", 10)))));
+        assertNotEquals(fingerprint, CatalogFingerprint.of(catalog(new LifetimeVG("Sword", "",
+                "sword", new PurchaseWithVirtualItem("coin", 10)))));
+    }
+
+
+    /** Private Members **/
+
+    private static StoreCatalog catalog(VirtualGood good) {
+        StoreCatalog.Builder builder = new StoreCatalog.Builder();
+        builder.addCurrency(new VirtualCurrency("Coins", "", "coin"));
+        builder.addGood(good);
+        return builder.build();
+    }
+}
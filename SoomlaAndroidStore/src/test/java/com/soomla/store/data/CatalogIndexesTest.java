@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import com.soomla.store.domain.VirtualItem;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrencyPack;
+import com.soomla.store.domain.virtualGoods.EquippableVG;
+import com.soomla.store.domain.virtualGoods.LifetimeVG;
+import com.soomla.store.domain.virtualGoods.SingleUseVG;
+import com.soomla.store.purchaseTypes.PurchaseWithMarket;
+import com.soomla.store.purchaseTypes.PurchaseWithVirtualItem;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that the secondary index queries of <code>StoreCatalog</code> return the matching
+ * items in catalog order, and that their lists are read-only.
+ */
+public class CatalogIndexesTest {
+
+    @Before
+    public void setUp() {
+        StoreCatalog.Builder builder = new StoreCatalog.Builder();
+        builder.addCurrency(new VirtualCurrency("Coins", "", "coin"));
+        builder.addCurrency(new VirtualCurrency("Gems", "", "gem"));
+        builder.addCurrencyPack(new VirtualCurrencyPack("Coin pack", "", "coin_pack", 100,
+                "coin", new PurchaseWithMarket("com.example.coin_pack", 0.99)));
+        builder.addGood(new SingleUseVG("Potion", "", "potion",
+                new PurchaseWithVirtualItem("coin", 5)));
+        builder.addGood(new LifetimeVG("VIP", "", "vip",
+                new PurchaseWithMarket("com.example.vip", 4.99, true)));
+        builder.addGood(new EquippableVG(EquippableVG.EquippingModel.CATEGORY, "hat", "", "hat",
+                new PurchaseWithVirtualItem("gem", 2)));
+        builder.addGood(new EquippableVG(EquippableVG.EquippingModel.GLOBAL, "cape", "", "cape",
+                new PurchaseWithVirtualItem("coin", 30)));
+        builder.addGood(new EquippableVG(EquippableVG.EquippingModel.CATEGORY, "boots", "",
+                "boots", new PurchaseWithMarket("com.example.boots", 1.99)));
+        mCatalog = builder.build();
+    }
+
+    @Test
+    public void itemsOfExactClass() {
+        assertEquals("[potion]", itemIds(mCatalog.getItemsOfClass(SingleUseVG.class)));
+        assertEquals("[vip]", itemIds(mCatalog.getItemsOfClass(LifetimeVG.class)));
+        assertEquals("[hat, cape, boots]",
+                itemIds(mCatalog.getItemsOfClass(EquippableVG.class)));
+        assertEquals("[coin, gem]", itemIds(mCatalog.getItemsOfClass(VirtualCurrency.class)));
+    }
+
+    @Test
+    public void itemsByPurchaseType() {
+        assertEquals("[coin_pack, vip, boots]",
+                itemIds(mCatalog.getItemsByPurchaseType(PurchaseWithMarket.class)));
+        assertEquals("[potion, hat, cape]",
+                itemIds(mCatalog.getItemsByPurchaseType(PurchaseWithVirtualItem.class)));
+    }
+
+    @Test
+    public void itemsPricedIn() {
+        assertEquals("[potion, cape]", itemIds(mCatalog.getItemsPricedIn("coin")));
+        assertEquals("[hat]", itemIds(mCatalog.getItemsPricedIn("gem")));
+        assertEquals("[]", itemIds(mCatalog.getItemsPricedIn("potion")));
+    }
+
+    @Test
+    public void subscriptionAndEquippableGoods() {
+        assertEquals("[vip]", itemIds(mCatalog.getSubscriptionGoods()));
+        assertEquals("[hat, boots]", itemIds(
+                mCatalog.getEquippableGoods(EquippableVG.EquippingModel.CATEGORY)));
+        assertEquals("[cape]", itemIds(
+                mCatalog.getEquippableGoods(EquippableVG.EquippingModel.GLOBAL)));
+        assertEquals("[]", itemIds(
+                mCatalog.getEquippableGoods(EquippableVG.EquippingModel.LOCAL)));
+    }
+
+    @Test
+    public void queriesAreReadOnly() {
+        try {
+            mCatalog.getItemsPricedIn("coin").remove(0);
+            fail("an index query returned a modifiable list");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+
+    /** Private Members **/
+
+    private static String itemIds(List<? extends VirtualItem> items) {
+        List<String> itemIds = new ArrayList<String>();
+        for (VirtualItem item : items) {
+            itemIds.add(item.getItemId());
+        }
+        return itemIds.toString();
+    }
+
+    private StoreCatalog mCatalog;
+}
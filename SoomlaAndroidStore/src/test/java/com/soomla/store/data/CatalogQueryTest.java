@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import com.soomla.store.domain.VirtualCategory;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualGoods.LifetimeVG;
+import com.soomla.store.domain.virtualGoods.SingleUseVG;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+import com.soomla.store.purchaseTypes.PurchaseWithMarket;
+import com.soomla.store.purchaseTypes.PurchaseWithVirtualItem;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that <code>CatalogQuery</code> returns filtered goods in the order of its sort, page
+ * by page, and that it rejects cursors of a catalog that was replaced.
+ */
+public class CatalogQueryTest {
+
+    @Before
+    public void setUp() {
+        StoreCatalog.Builder builder = new StoreCatalog.Builder();
+        builder.addCurrency(new VirtualCurrency("Coins", "", "coin"));
+        ArrayList<String> hats = new ArrayList<String>();
+        for (int i = 0; i < GOODS_COUNT; i++) {
+            String itemId = "good_" + i;
+            if (i % 5 == 0) {
+                builder.addGood(new LifetimeVG(itemId, "", itemId,
+                        new PurchaseWithMarket("com.example." + itemId, (i * 7 % 13) + 0.99)));
+            } else if (i % 2 == 0) {
+                builder.addGood(new LifetimeVG(itemId, "", itemId,
+                        new PurchaseWithVirtualItem("coin", i * 31 % 17)));
+            } else {
+                builder.addGood(new SingleUseVG(itemId, "", itemId,
+                        new PurchaseWithVirtualItem("coin", i * 31 % 17)));
+            }
+            if (i % 3 == 0) {
+                hats.add(itemId);
+            }
+        }
+        // categories may list items that aren't goods in older metadata
+        hats.add("coin");
+        builder.addCategory(new VirtualCategory("Hats", hats));
+        mCatalog = builder.build();
+    }
+
+    @Test
+    public void filteredGoodsInSortOrder() {
+        CatalogIndexes indexes = mCatalog.indexes();
+        for (CatalogQuery.Sort sort : CatalogQuery.Sort.values()) {
+            for (boolean descending : new boolean[] { false, true }) {
+                List<VirtualGood> hats = run(new CatalogQuery().inCategory("Hats")
+                        .ofClass(LifetimeVG.class).sortBy(sort, descending), 1000);
+
+                List<Integer> expected = new ArrayList<Integer>();
+                for (int ordinal : CatalogQuery.sort(indexes, indexes.goods(), sort,
+                        descending)) {
+                    String itemId = mCatalog.getItemId(ordinal);
+                    int i = Integer.parseInt(itemId.substring("good_".length()));
+                    if (i % 3 == 0 && (i % 5 == 0 || i % 2 == 0)) {
+                        expected.add(ordinal);
+                    }
+                }
+                assertEquals(sort + (descending ? " descending" : ""), expected,
+                        ordinals(hats));
+            }
+        }
+    }
+
+    @Test
+    public void pagesCoverAllResults() {
+        CatalogQuery query = new CatalogQuery().ofClass(LifetimeVG.class)
+                .sortBy(CatalogQuery.Sort.VIRTUAL_PRICE, true);
+        List<VirtualGood> all = run(query, 1000);
+        List<VirtualGood> paged = run(query, 7);
+        assertEquals(all, paged);
+    }
+
+    @Test
+    public void rejectsCursorOfReplacedCatalog() {
+        CatalogQuery query = new CatalogQuery().sortBy(CatalogQuery.Sort.MARKET_PRICE, false);
+        CatalogQuery.Page page = query.run(mCatalog, null, 10);
+        String cursor = page.getNextCursor();
+        assertEquals(10, query.run(mCatalog, cursor, 10).getGoods().size());
+
+        StoreCatalog replaced = new StoreCatalog.Builder(mCatalog).build();
+        try {
+            query.run(replaced, cursor, 10);
+            fail("a cursor of a replaced catalog was accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            query.run(mCatalog, "12:34", 10);
+            fail("a malformed cursor was accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+
+    /** Private Members **/
+
+    /**
+     * Runs the given query page by page until the last page.
+     */
+    private List<VirtualGood> run(CatalogQuery query, int limit) {
+        List<VirtualGood> goods = new ArrayList<VirtualGood>();
+        String cursor = null;
+        do {
+            CatalogQuery.Page page = query.run(mCatalog, cursor, limit);
+            goods.addAll(page.getGoods());
+            cursor = page.getNextCursor();
+            assertFalse(page.getGoods().size() > limit);
+        } while (cursor != null);
+        return goods;
+    }
+
+    private List<Integer> ordinals(List<VirtualGood> goods) {
+        List<Integer> ordinals = new ArrayList<Integer>();
+        for (VirtualGood good : goods) {
+            ordinals.add(mCatalog.getItemOrdinal(good.getItemId()));
+        }
+        return ordinals;
+    }
+
+    private static final int GOODS_COUNT = 200;
+
+    private StoreCatalog mCatalog;
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import com.soomla.store.domain.VirtualCategory;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualGoods.LifetimeVG;
+import com.soomla.store.domain.virtualGoods.SingleUseVG;
+import com.soomla.store.domain.virtualGoods.UpgradeVG;
+import com.soomla.store.purchaseTypes.PurchaseWithMarket;
+import com.soomla.store.purchaseTypes.PurchaseWithVirtualItem;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that <code>CatalogRecords</code> loads the catalog it wrote, that bringing the
+ * records up to a changed catalog rewrites only the changed records, and that a missing record
+ * fails the load.
+ */
+public class CatalogRecordsTest {
+
+    @Before
+    public void setUp() {
+        mStore = new CountingBalanceStore();
+
+        StoreCatalog.Builder builder = new StoreCatalog.Builder();
+        builder.addCurrency(new VirtualCurrency("Coins", "", "coin"));
+        builder.addGood(new SingleUseVG("Potion", "", "potion",
+                new PurchaseWithMarket("com.example.potion", 0.99)));
+        builder.addGood(new LifetimeVG("Sword", "", "sword",
+                new PurchaseWithVirtualItem("coin", 50)));
+        builder.addGood(new UpgradeVG("sword", null, null, "Sharp sword", "", "sword_up1",
+                new PurchaseWithVirtualItem("coin", 10)));
+        builder.addCategory(new VirtualCategory("Weapons",
+                new ArrayList<String>(Arrays.asList("sword"))));
+        mCatalog = builder.build();
+    }
+
+    @Test
+    public void loadsWhatWasWritten() throws Exception {
+        CatalogRecords.writeAll(mCatalog, mStore);
+
+        StoreCatalog loaded = load();
+        assertEquals(mCatalog.getVirtualItemsCount(), loaded.getVirtualItemsCount());
+        for (int ordinal = 0; ordinal < mCatalog.getVirtualItemsCount(); ordinal++) {
+            assertEquals(mCatalog.getItemId(ordinal), loaded.getItemId(ordinal));
+            assertEquals(mCatalog.getVirtualItem(ordinal).getClass(),
+                    loaded.getVirtualItem(ordinal).getClass());
+        }
+        assertEquals(1, loaded.getUpgradeLevel("sword_up1"));
+        assertEquals("Weapons", loaded.getCategory("sword").getName());
+        assertEquals("potion", loaded.getPurchasableItem("com.example.potion").getItemId());
+    }
+
+    @Test
+    public void changesRewriteOnlyChangedRecords() throws Exception {
+        CatalogRecords.writeAll(mCatalog, mStore);
+        String manifest = mStore.getValue("meta.catalog");
+
+        StoreCatalog.Builder builder = new StoreCatalog.Builder(mCatalog);
+        builder.replaceVirtualItem(new LifetimeVG("Sword", "", "sword",
+                new PurchaseWithVirtualItem("coin", 75)));
+        StoreCatalog changed = builder.build();
+
+        mStore.writtenKeys = 0;
+        assertEquals(1, CatalogRecords.writeChanges(mCatalog, changed, mStore));
+        assertEquals(1, mStore.writtenKeys);
+        assertEquals(manifest, mStore.getValue("meta.catalog"));
+
+        PurchaseWithVirtualItem price = (PurchaseWithVirtualItem)
+                ((LifetimeVG) load().getVirtualItem("sword")).getPurchaseType();
+        assertEquals(75, price.getAmount());
+    }
+
+    @Test
+    public void missingRecordFailsLoad() throws Exception {
+        CatalogRecords.writeAll(mCatalog, mStore);
+        mStore.deleteKeyValue("meta.catalog.item.sword");
+
+        assertFalse(CatalogRecords.load(new StoreCatalog.Builder(), false, mStore));
+    }
+
+
+    /** Private Members **/
+
+    private StoreCatalog load() throws Exception {
+        StoreCatalog.Builder builder = new StoreCatalog.Builder();
+        assertTrue(CatalogRecords.load(builder, false, mStore));
+        return builder.build();
+    }
+
+    // counts the keys written
+    private static class CountingBalanceStore extends InMemoryBalanceStore {
+
+        @Override
+        public synchronized void setValue(String key, String val) {
+            writtenKeys++;
+            super.setValue(key, val);
+        }
+
+        @Override
+        public synchronized void setValues(Map<String, String> values) {
+            writtenKeys += values.size();
+            super.setValues(values);
+        }
+
+        int writtenKeys;
+    }
+
+    private CountingBalanceStore mStore;
+    private StoreCatalog mCatalog;
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualGoods.EquippableVG;
+import com.soomla.store.purchaseTypes.PurchaseWithVirtualItem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the equipped goods kept by <code>VirtualGoodsStorage</code> go through the
+ * inventory snapshot and the balance journal, and that a good equipped while it was missing
+ * from the catalog is equipped once the catalog has it.
+ */
+public class EquippedGoodsTest {
+
+    @Before
+    public void setUp() throws Exception {
+        mStore = new InMemoryBalanceStore();
+        StorageManager.setBalanceStore(mStore);
+
+        StoreInfo.replaceVirtualItem(new VirtualCurrency("Coins", "", "equipped_coin"));
+        StoreInfo.replaceVirtualItem(equippable("equipped_hat"));
+        StoreInfo.replaceVirtualItem(equippable("equipped_cape"));
+
+        mFile = File.createTempFile("equipped", ".journal");
+    }
+
+    @After
+    public void tearDown() {
+        StorageManager.disableInventorySnapshot();
+        mFile.delete();
+    }
+
+    @Test
+    public void equipSurvivesJournalReplay() throws Exception {
+        StorageManager.enableInventorySnapshot();
+        StorageManager.enableBalanceJournal(mFile, 0, 0);
+
+        VirtualGoodsStorage goods = StorageManager.getVirtualGoodsStorage();
+        goods.equip("equipped_hat", false);
+        goods.equip("equipped_cape", false);
+        goods.unequip("equipped_cape", false);
+
+        // only the journal has the change, the store keeps no key of its own for it
+        assertNull(mStore.getValue(VirtualGoodsStorage.KEY_EQUIPPED_GOODS));
+        assertTrue(mFile.length() > 0);
+
+        // as if the app died and started again
+        InventorySnapshot replayed = new InventorySnapshot(mStore);
+        assertTrue(replayed.load());
+        new BalanceJournal(mFile, replayed, 0, 0).open();
+        assertEquals("[\"equipped_hat\"]",
+                replayed.getValue(VirtualGoodsStorage.KEY_EQUIPPED_GOODS));
+
+        StorageManager.clearBalanceCaches();
+        assertTrue(goods.isEquipped("equipped_hat"));
+        assertFalse(goods.isEquipped("equipped_cape"));
+    }
+
+    @Test
+    public void goodEquippedBeforeCatalogHasItIsEquippedAfter() {
+        VirtualGoodsStorage goods = StorageManager.getVirtualGoodsStorage();
+        goods.equip("equipped_hat", false);
+        goods.equip("equipped_boots", false);
+        assertTrue(goods.isEquipped("equipped_boots"));
+
+        StoreInfo.replaceVirtualItem(equippable("equipped_boots"));
+        int ordinal = StoreInfo.getItemOrdinal("equipped_boots");
+        assertTrue(ordinal >= 0);
+        assertTrue(goods.isEquipped("equipped_boots"));
+        assertTrue(goods.getEquippedOrdinals().get(ordinal));
+        assertTrue(goods.isEquipped("equipped_hat"));
+
+        goods.unequip("equipped_boots", false);
+        StorageManager.clearBalanceCaches();
+        assertFalse(goods.isEquipped("equipped_boots"));
+        assertTrue(goods.isEquipped("equipped_hat"));
+    }
+
+
+    /** Private Members **/
+
+    private static EquippableVG equippable(String itemId) {
+        return new EquippableVG(EquippableVG.EquippingModel.GLOBAL, itemId, "", itemId,
+                new PurchaseWithVirtualItem("equipped_coin", 10));
+    }
+
+    private InMemoryBalanceStore mStore;
+    private File mFile;
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that <code>FileBalanceStore</code> keeps its values, including ones longer than 64KB,
+ * when it's opened again, and that it still reads files of the first format version.
+ */
+public class FileBalanceStoreTest {
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("balances", ".store");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void keepsLargeValues() throws Exception {
+        StringBuilder large = new StringBuilder();
+        while (large.length() < 200 * 1024) {
+            large.append("{\"itemId\":\"good_").append(large.length()).append("\"},é");
+        }
+
+        FileBalanceStore store = new FileBalanceStore(mFile);
+        store.setValue("meta.storeinfo", large.toString());
+        store.setValue("good.sword.balance", "3");
+
+        FileBalanceStore reopened = new FileBalanceStore(mFile);
+        assertEquals(large.toString(), reopened.getValue("meta.storeinfo"));
+        assertEquals("3", reopened.getValue("good.sword.balance"));
+    }
+
+    @Test
+    public void keepsBatchesAndPrefixDeletes() throws Exception {
+        FileBalanceStore store = new FileBalanceStore(mFile);
+        Map<String, String> values = new LinkedHashMap<String, String>();
+        values.put("good.sword.balance", "3");
+        values.put("good.shield.balance", "1");
+        values.put("currency.coin.balance", "50");
+        store.setValues(values);
+        store.setValue("good.shield.balance", null);
+
+        assertEquals(Arrays.asList("good.sword.balance"), store.getKeys("good."));
+
+        store.deleteKeys("good.");
+        FileBalanceStore reopened = new FileBalanceStore(mFile);
+        assertEquals(Arrays.asList("currency.coin.balance"), reopened.getKeys());
+        assertNull(reopened.getValue("good.sword.balance"));
+    }
+
+    @Test
+    public void readsFirstFormatVersion() throws Exception {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(mFile));
+        out.writeInt(0x53424C53);
+        out.writeByte(1);
+        out.writeInt(1);
+        out.writeUTF("good.sword.balance");
+        out.writeUTF("3");
+        out.close();
+
+        FileBalanceStore store = new FileBalanceStore(mFile);
+        assertEquals("3", store.getValue("good.sword.balance"));
+
+        store.setValue("good.shield.balance", "1");
+        FileBalanceStore reopened = new FileBalanceStore(mFile);
+        assertEquals("3", reopened.getValue("good.sword.balance"));
+        assertEquals("1", reopened.getValue("good.shield.balance"));
+    }
+
+
+    /** Private Members **/
+
+    private File mFile;
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that <code>InventorySnapshot</code> saves and loads every kind of inventory key, and
+ * that it migrates the per-item keys into its blob and back.
+ */
+public class InventorySnapshotTest {
+
+    @Before
+    public void setUp() {
+        mStore = new InMemoryBalanceStore();
+    }
+
+    @Test
+    public void savesAndLoadsInventory() {
+        InventorySnapshot snapshot = new InventorySnapshot(mStore);
+        assertTrue(snapshot.load());
+        snapshot.setValues(inventory());
+
+        InventorySnapshot loaded = new InventorySnapshot(mStore);
+        assertTrue(loaded.load());
+        for (Map.Entry<String, String> entry : inventory().entrySet()) {
+            assertEquals(entry.getKey(), entry.getValue(), loaded.getValue(entry.getKey()));
+        }
+        assertEquals("", loaded.getValue(VirtualGoodsStorage.keyGoodEquipped("sword")));
+        assertNull(loaded.getValue(VirtualGoodsStorage.keyGoodEquipped("shield")));
+        assertNull(loaded.getValue(VirtualGoodsStorage.keyGoodBalance("bow")));
+    }
+
+    @Test
+    public void migratesKeysIntoBlobAndBack() {
+        mStore.setValues(inventory());
+        mStore.setValue("meta.other", "kept");
+
+        InventorySnapshot snapshot = new InventorySnapshot(mStore);
+        assertTrue(snapshot.load());
+        for (String key : inventory().keySet()) {
+            assertNull(key, mStore.getValue(key));
+            assertNotNull(key, snapshot.getValue(key));
+        }
+        assertEquals("kept", mStore.getValue("meta.other"));
+
+        snapshot.exportToKeys();
+        for (Map.Entry<String, String> entry : inventory().entrySet()) {
+            assertEquals(entry.getKey(), entry.getValue(), mStore.getValue(entry.getKey()));
+        }
+    }
+
+    @Test
+    public void migratesPerGoodEquippedKeys() {
+        mStore.setValue(VirtualGoodsStorage.keyGoodEquipped("bow"), "");
+
+        InventorySnapshot snapshot = new InventorySnapshot(mStore);
+        assertTrue(snapshot.load());
+        assertEquals("[\"bow\"]", snapshot.getValue(VirtualGoodsStorage.KEY_EQUIPPED_GOODS));
+        assertNull(mStore.getValue(VirtualGoodsStorage.keyGoodEquipped("bow")));
+    }
+
+    @Test
+    public void takesOverEquippedGoodsSavedInStore() {
+        InventorySnapshot snapshot = new InventorySnapshot(mStore);
+        assertTrue(snapshot.load());
+        snapshot.setValues(inventory());
+
+        // saved while the key bypassed the snapshot
+        mStore.setValue(VirtualGoodsStorage.KEY_EQUIPPED_GOODS, "[\"bow\"]");
+
+        InventorySnapshot loaded = new InventorySnapshot(mStore);
+        assertTrue(loaded.load());
+        assertEquals("[\"bow\"]", loaded.getValue(VirtualGoodsStorage.KEY_EQUIPPED_GOODS));
+        assertNull(mStore.getValue(VirtualGoodsStorage.KEY_EQUIPPED_GOODS));
+    }
+
+    @Test
+    public void recognizesInventoryKeys() {
+        for (String key : inventory().keySet()) {
+            assertTrue(key, InventorySnapshot.isInventoryKey(key));
+        }
+        assertTrue(InventorySnapshot.isInventoryKey(VirtualGoodsStorage.keyGoodEquipped("bow")));
+        assertFalse(InventorySnapshot.isInventoryKey("meta.storeinfo"));
+        assertFalse(InventorySnapshot.isInventoryKey("nonconsumable.sword.exists"));
+    }
+
+
+    /** Private Members **/
+
+    private static Map<String, String> inventory() {
+        Map<String, String> values = new LinkedHashMap<String, String>();
+        values.put(VirtualCurrencyStorage.keyCurrencyBalance("coin"), "120");
+        values.put(VirtualGoodsStorage.keyGoodBalance("sword"), "3");
+        values.put(VirtualGoodsStorage.keyGoodBalance("shield"), "0");
+        values.put(VirtualGoodsStorage.KEY_EQUIPPED_GOODS, "[\"sword\"]");
+        values.put(VirtualGoodsStorage.keyGoodUpgradeLevel("sword"), "2");
+        return values;
+    }
+
+    private InMemoryBalanceStore mStore;
+}
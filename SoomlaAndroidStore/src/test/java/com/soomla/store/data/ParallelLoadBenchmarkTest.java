@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import com.soomla.store.domain.VirtualCategory;
+import com.soomla.store.domain.VirtualItem;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares loading catalogs of 1k and 10k items from the store's item records on one thread
+ * with loading them on several, and checks that both loads build the same catalog.
+ *
+ * The records are kept in memory here, so the loads timed here don't include the database
+ * reads and decryption they take on a device, which the parallel load also spreads over its
+ * threads. On a single core the parallel load falls back to the sequential one, so a speedup
+ * is only checked on multi-core machines.
+ */
+public class ParallelLoadBenchmarkTest {
+
+    @Test
+    public void parallelLoadBuildsSameCatalog() throws Exception {
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int size : SIZES) {
+            final InMemoryBalanceStore store = new InMemoryBalanceStore();
+            CatalogRecords.writeAll(BenchmarkCatalogs.build(size), store);
+
+            long sequential = BenchmarkCatalogs.time(new BenchmarkCatalogs.Load() {
+                @Override
+                public StoreCatalog run() throws Exception {
+                    return load(store, false);
+                }
+            });
+            long parallel = BenchmarkCatalogs.time(new BenchmarkCatalogs.Load() {
+                @Override
+                public StoreCatalog run() throws Exception {
+                    return load(store, true);
+                }
+            });
+
+            System.out.println("record load, " + size + " items, " + cores + " cores: "
+                    + "sequential " + sequential / 1000 + "us, parallel " + parallel / 1000
+                    + "us" + (cores > 1 ? "" : " (parallel falls back to sequential)"));
+
+            assertSameCatalog(load(store, false), load(store, true));
+            if (cores > 1 && size >= ASSERTED_SIZE) {
+                assertTrue(size + " items: the parallel load took " + parallel
+                        + "ns, the sequential one " + sequential + "ns", parallel < sequential);
+            }
+        }
+    }
+
+
+    /** Private Members **/
+
+    private static StoreCatalog load(InMemoryBalanceStore store, boolean parallel)
+            throws Exception {
+        StoreCatalog.Builder builder = new StoreCatalog.Builder();
+        assertTrue(CatalogRecords.load(builder, parallel, store));
+        return builder.build();
+    }
+
+    /**
+     * Checks that the given catalogs have the same items at the same ordinals, and the same
+     * categories in the same order.
+     */
+    private static void assertSameCatalog(StoreCatalog expected, StoreCatalog actual) {
+        assertEquals(expected.getVirtualItemsCount(), actual.getVirtualItemsCount());
+        for (int ordinal = 0; ordinal < expected.getVirtualItemsCount(); ordinal++) {
+            VirtualItem item = expected.getVirtualItem(ordinal);
+            VirtualItem loaded = actual.getVirtualItem(ordinal);
+            assertEquals(item.getItemId(), loaded.getItemId());
+            assertEquals(item.getClass(), loaded.getClass());
+        }
+
+        assertEquals(expected.getCategories().size(), actual.getCategories().size());
+        for (int i = 0; i < expected.getCategories().size(); i++) {
+            VirtualCategory category = expected.getCategories().get(i);
+            VirtualCategory loaded = actual.getCategories().get(i);
+            assertEquals(category.getName(), loaded.getName());
+            assertEquals(category.getGoodsItemIds(), loaded.getGoodsItemIds());
+        }
+    }
+
+    private static final int[] SIZES = { 1000, 10000 };
+
+    // smaller catalogs load too fast for the threads to pay off reliably
+    private static final int ASSERTED_SIZE = 10000;
+}
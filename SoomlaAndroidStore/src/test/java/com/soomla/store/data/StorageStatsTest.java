@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that <code>StorageStats</code> counts every kind of store key under its family.
+ */
+public class StorageStatsTest {
+
+    @Before
+    public void setUp() {
+        StorageStats.reset();
+        StorageStats.setEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        StorageStats.setEnabled(false);
+        StorageStats.reset();
+    }
+
+    @Test
+    public void mapsKeysToFamilies() {
+        assertEquals(StorageStats.FAMILY_GOOD_BALANCE,
+                StorageStats.familyOf(VirtualGoodsStorage.keyGoodBalance("sword")));
+        assertEquals(StorageStats.FAMILY_GOOD_EQUIPPED,
+                StorageStats.familyOf(VirtualGoodsStorage.keyGoodEquipped("sword")));
+        assertEquals(StorageStats.FAMILY_GOOD_EQUIPPED,
+                StorageStats.familyOf(VirtualGoodsStorage.KEY_EQUIPPED_GOODS));
+        assertEquals(StorageStats.FAMILY_GOOD_UPGRADE,
+                StorageStats.familyOf(VirtualGoodsStorage.keyGoodUpgrade("sword")));
+        assertEquals(StorageStats.FAMILY_GOOD_UPGRADE,
+                StorageStats.familyOf(VirtualGoodsStorage.keyGoodUpgradeLevel("sword")));
+        assertEquals(StorageStats.FAMILY_CURRENCY,
+                StorageStats.familyOf(VirtualCurrencyStorage.keyCurrencyBalance("coin")));
+        assertEquals(StorageStats.FAMILY_META_STOREINFO, StorageStats.familyOf("meta.storeinfo"));
+        assertEquals(StorageStats.FAMILY_META, StorageStats.familyOf("meta.catalog"));
+        assertEquals(StorageStats.FAMILY_META, StorageStats.familyOf("meta.inventory"));
+        assertEquals(StorageStats.FAMILY_OTHER,
+                StorageStats.familyOf("nonconsumable.sword.exists"));
+        assertEquals(StorageStats.FAMILY_OTHER, StorageStats.familyOf("good.sword.unknown"));
+    }
+
+    @Test
+    public void countsReadsAndWritesPerFamily() {
+        Map<String, String> values = new LinkedHashMap<String, String>();
+        values.put(VirtualGoodsStorage.keyGoodBalance("sword"), "3");
+        values.put(VirtualGoodsStorage.keyGoodBalance("shield"), "10");
+        values.put(VirtualCurrencyStorage.keyCurrencyBalance("coin"), null);
+        StorageStats.recordWrites(values, 3000);
+        StorageStats.recordRead("meta.storeinfo", "{}", 1000);
+
+        Map<String, StorageStats.FamilyStats> snapshot = StorageStats.getSnapshot();
+        assertEquals(Arrays.asList(StorageStats.FAMILY_GOOD_BALANCE,
+                StorageStats.FAMILY_GOOD_EQUIPPED, StorageStats.FAMILY_GOOD_UPGRADE,
+                StorageStats.FAMILY_CURRENCY, StorageStats.FAMILY_META_STOREINFO,
+                StorageStats.FAMILY_META, StorageStats.FAMILY_OTHER),
+                new ArrayList<String>(snapshot.keySet()));
+
+        StorageStats.FamilyStats goods = snapshot.get(StorageStats.FAMILY_GOOD_BALANCE);
+        assertEquals(2, goods.getWrites());
+        assertEquals("good.sword.balance3good.shield.balance10".length(),
+                goods.getWrittenBytes());
+        assertEquals(0, goods.getReads());
+        assertEquals(1, snapshot.get(StorageStats.FAMILY_CURRENCY).getWrites());
+        assertEquals(1, snapshot.get(StorageStats.FAMILY_META_STOREINFO).getReads());
+        assertEquals(0, snapshot.get(StorageStats.FAMILY_META).getReads());
+
+        StorageStats.reset();
+        assertEquals(0,
+                StorageStats.getSnapshot().get(StorageStats.FAMILY_GOOD_BALANCE).getWrites());
+    }
+
+    @Test
+    public void countsCacheLookupsPerFamily() {
+        StorageStats.recordCacheLookup(StorageStats.FAMILY_GOOD_UPGRADE, true);
+        StorageStats.recordCacheLookup(StorageStats.FAMILY_GOOD_UPGRADE, true);
+        StorageStats.recordCacheLookup(StorageStats.FAMILY_GOOD_UPGRADE, false);
+
+        StorageStats.FamilyStats upgrades =
+                StorageStats.getSnapshot().get(StorageStats.FAMILY_GOOD_UPGRADE);
+        assertEquals(2, upgrades.getCacheHits());
+        assertEquals(1, upgrades.getCacheMisses());
+        assertEquals(0,
+                StorageStats.getSnapshot().get(StorageStats.FAMILY_CURRENCY).getCacheHits());
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import com.soomla.store.domain.VirtualItem;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrencyPack;
+import com.soomla.store.domain.virtualGoods.LifetimeVG;
+import com.soomla.store.domain.virtualGoods.SingleUseVG;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+import com.soomla.store.purchaseTypes.PurchaseWithMarket;
+import com.soomla.store.purchaseTypes.PurchaseWithVirtualItem;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Checks that replacing items in a <code>StoreCatalog.Builder</code> keeps the catalog's lists
+ * and lookup tables consistent.
+ */
+public class StoreCatalogBuilderTest {
+
+    @Before
+    public void setUp() {
+        StoreCatalog.Builder builder = new StoreCatalog.Builder();
+        builder.addCurrency(new VirtualCurrency("Coins", "", "coin"));
+        builder.addCurrencyPack(new VirtualCurrencyPack("Coin pack", "", "coin_pack", 100,
+                "coin", new PurchaseWithMarket("com.example.coin_pack", 0.99)));
+        builder.addGood(new SingleUseVG("Potion", "", "potion",
+                new PurchaseWithMarket("com.example.potion", 1.99)));
+        builder.addGood(new SingleUseVG("Sword", "", "sword",
+                new PurchaseWithVirtualItem("coin", 10)));
+        builder.addGood(new SingleUseVG("Shield", "", "shield",
+                new PurchaseWithVirtualItem("coin", 20)));
+        mBase = builder.build();
+    }
+
+    @Test
+    public void replaceKeepsOrdinalAndPlace() {
+        StoreCatalog.Builder builder = new StoreCatalog.Builder(mBase);
+        SingleUseVG sword = new SingleUseVG("Sharp sword", "", "sword",
+                new PurchaseWithVirtualItem("coin", 15));
+        builder.replaceVirtualItem(sword);
+        StoreCatalog catalog = builder.build();
+
+        assertEquals(mBase.getItemOrdinal("sword"), sword.getOrdinal());
+        assertEquals("[potion, sword, shield]", itemIds(catalog.getGoods()));
+        assertSame(sword, catalog.getVirtualItem("sword"));
+
+        // the base catalog doesn't change
+        assertEquals("Sword", mBase.getVirtualItem("sword").getName());
+    }
+
+    @Test
+    public void replaceWithOtherClassInSameList() {
+        StoreCatalog.Builder builder = new StoreCatalog.Builder(mBase);
+        builder.replaceVirtualItem(new LifetimeVG("Sword", "", "sword",
+                new PurchaseWithVirtualItem("coin", 10)));
+        StoreCatalog catalog = builder.build();
+
+        assertEquals("[potion, sword, shield]", itemIds(catalog.getGoods()));
+        assertEquals("[potion, shield]", itemIds(catalog.getItemsOfClass(SingleUseVG.class)));
+        assertEquals("[sword]", itemIds(catalog.getItemsOfClass(LifetimeVG.class)));
+    }
+
+    @Test
+    public void replaceGoodWithCurrencyPack() {
+        StoreCatalog.Builder builder = new StoreCatalog.Builder(mBase);
+        VirtualCurrencyPack pack = new VirtualCurrencyPack("Potion pack", "", "potion", 50,
+                "coin", new PurchaseWithMarket("com.example.potion_pack", 0.99));
+        builder.replaceVirtualItem(pack);
+        StoreCatalog catalog = builder.build();
+
+        assertEquals(mBase.getItemOrdinal("potion"), catalog.getItemOrdinal("potion"));
+        assertEquals("[sword, shield]", itemIds(catalog.getGoods()));
+        assertEquals("[coin_pack, potion]", itemIds(catalog.getCurrencyPacks()));
+
+        // the good's product id went with it
+        assertNull(catalog.getPurchasableItem("com.example.potion"));
+        assertSame(pack, catalog.getPurchasableItem("com.example.potion_pack"));
+    }
+
+    @Test
+    public void replaceCurrencyWithGood() {
+        StoreCatalog.Builder builder = new StoreCatalog.Builder(mBase);
+        builder.replaceVirtualItem(new SingleUseVG("Coin", "", "coin",
+                new PurchaseWithMarket("com.example.coin", 0.99)));
+        StoreCatalog catalog = builder.build();
+
+        assertEquals(0, catalog.getCurrencies().size());
+        assertEquals("[potion, sword, shield, coin]", itemIds(catalog.getGoods()));
+        for (VirtualGood good : catalog.getGoods()) {
+            assertEquals(catalog.getItemOrdinal(good.getItemId()), good.getOrdinal());
+        }
+    }
+
+    @Test
+    public void replaceChangingProductId() {
+        StoreCatalog.Builder builder = new StoreCatalog.Builder(mBase);
+        builder.replaceVirtualItem(new SingleUseVG("Potion", "", "potion",
+                new PurchaseWithMarket("com.example.big_potion", 2.99)));
+        StoreCatalog catalog = builder.build();
+
+        assertNull(catalog.getPurchasableItem("com.example.potion"));
+        assertEquals("potion",
+                catalog.getPurchasableItem("com.example.big_potion").getItemId());
+        assertEquals(2, catalog.getAllProductIds().size());
+    }
+
+
+    /** Private Members **/
+
+    private static String itemIds(List<? extends VirtualItem> items) {
+        List<String> itemIds = new ArrayList<String>();
+        for (VirtualItem item : items) {
+            itemIds.add(item.getItemId());
+        }
+        return itemIds.toString();
+    }
+
+    private StoreCatalog mBase;
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a <code>StoreExecutor</code> task on several items runs in order with the tasks
+ * on each of them, and that such tasks submitted from several threads don't deadlock.
+ */
+public class StoreExecutorTest {
+
+    @Test
+    public void multiItemTaskRunsInOrderOnEveryLane() throws Exception {
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch gate = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+
+        // like a currency given before a purchase paid with it; the two itemIds are on
+        // different lanes with 2, 3 or 4 lanes
+        StoreExecutor.execute("executor_coin", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                order.add("give coin");
+            }
+        });
+        StoreExecutor.execute(Arrays.asList("executor_shield", "executor_coin"), new Runnable() {
+            @Override
+            public void run() {
+                order.add("buy shield");
+            }
+        });
+        StoreExecutor.execute("executor_shield", new Runnable() {
+            @Override
+            public void run() {
+                order.add("take shield");
+                finished.countDown();
+            }
+        });
+
+        Thread.sleep(50);
+        gate.countDown();
+        assertTrue(finished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("give coin", "buy shield", "take shield"), order);
+    }
+
+    @Test
+    public void multiItemTasksFromManyThreadsFinish() throws Exception {
+        final CountDownLatch finished = new CountDownLatch(THREADS * TASKS);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; t++) {
+            final int first = t;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < TASKS; i++) {
+                        List<String> itemIds = Arrays.asList("executor_" + (first + i) % 7,
+                                "executor_" + (first + 3 * i) % 5);
+                        StoreExecutor.execute(itemIds, new Runnable() {
+                            @Override
+                            public void run() {
+                                finished.countDown();
+                            }
+                        });
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue(finished.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+
+    /** Private Members **/
+
+    private static final int THREADS = 4;
+    private static final int TASKS = 200;
+    private static final long TIMEOUT_SECONDS = 10;
+}
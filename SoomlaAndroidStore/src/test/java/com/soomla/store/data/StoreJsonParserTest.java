@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import com.soomla.store.domain.VirtualCategory;
+import com.soomla.store.domain.VirtualItem;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrencyPack;
+import com.soomla.store.domain.virtualGoods.EquippableVG;
+import com.soomla.store.domain.virtualGoods.LifetimeVG;
+import com.soomla.store.domain.virtualGoods.SingleUsePackVG;
+import com.soomla.store.domain.virtualGoods.SingleUseVG;
+import com.soomla.store.domain.virtualGoods.UpgradeVG;
+import com.soomla.store.purchaseTypes.PurchaseWithMarket;
+import com.soomla.store.purchaseTypes.PurchaseWithVirtualItem;
+
+import org.json.JSONException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that <code>StoreJsonParser</code> adds items in dependency order whatever order the
+ * sections of the metadata JSON are in. It runs with Robolectric, since the parser reads the
+ * JSON with the framework's <code>JsonReader</code>.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 23)
+public class StoreJsonParserTest {
+
+    @Test
+    public void addsItemsInDependencyOrder() throws Exception {
+        // every section comes before the ones it depends on
+        String json = "{"
+                + "\"" + StoreJSONConsts.STORE_CATEGORIES + "\":[" + category() + "],"
+                + "\"" + StoreJSONConsts.STORE_GOODS + "\":{"
+                + "\"" + StoreJSONConsts.STORE_GOODS_UP + "\":["
+                + upgrade("sword_up1", null, "sword_up2") + ","
+                + upgrade("sword_up2", "sword_up1", null) + "],"
+                + "\"" + StoreJSONConsts.STORE_GOODS_PA + "\":[" + potionPack() + "],"
+                + "\"" + StoreJSONConsts.STORE_GOODS_EQ + "\":[" + hat() + "],"
+                + "\"" + StoreJSONConsts.STORE_GOODS_LT + "\":[" + sword() + "],"
+                + "\"" + StoreJSONConsts.STORE_GOODS_SU + "\":[" + potion() + "]},"
+                + "\"" + StoreJSONConsts.STORE_CURRENCYPACKS + "\":[" + coinPack() + "],"
+                + "\"" + StoreJSONConsts.STORE_CURRENCIES + "\":[" + coin() + "]}";
+
+        StoreCatalog catalog = StoreJsonParser.parse(new StringReader(json));
+
+        String[] order = { "coin", "coin_pack", "potion", "sword", "hat", "potion_pack",
+                "sword_up1", "sword_up2" };
+        assertEquals(order.length, catalog.getVirtualItemsCount());
+        for (int ordinal = 0; ordinal < order.length; ordinal++) {
+            assertEquals(order[ordinal], catalog.getItemId(ordinal));
+        }
+
+        assertTrue(catalog.getVirtualItem("hat") instanceof EquippableVG);
+        assertTrue(catalog.getVirtualItem("potion_pack") instanceof SingleUsePackVG);
+        assertEquals(2, catalog.getUpgradeLevel("sword_up2"));
+        assertEquals("sword_up1", catalog.getGoodUpgradeAt("sword", 1).getItemId());
+        assertEquals("Weapons", catalog.getCategory("hat").getName());
+        assertEquals("[potion, sword, hat, potion_pack, sword_up1, sword_up2]",
+                catalog.getGoodItemIds().toString());
+    }
+
+    @Test
+    public void itemMissingRequiredFieldFails() {
+        String json = "{\"" + StoreJSONConsts.STORE_CURRENCIES + "\":[{\"name\":\"Coins\"}]}";
+        try {
+            StoreJsonParser.parse(new StringReader(json));
+            fail("a currency without an itemId was parsed");
+        } catch (JSONException e) {
+            // expected
+        }
+    }
+
+
+    /** Private Members **/
+
+    private static String coin() {
+        return json(new VirtualCurrency("Coins", "", "coin"));
+    }
+
+    private static String coinPack() {
+        return json(new VirtualCurrencyPack("Coin pack", "", "coin_pack", 100, "coin",
+                new PurchaseWithMarket("com.example.coin_pack", 0.99)));
+    }
+
+    private static String potion() {
+        return json(new SingleUseVG("Potion", "", "potion",
+                new PurchaseWithVirtualItem("coin", 5)));
+    }
+
+    private static String sword() {
+        return json(new LifetimeVG("Sword", "", "sword",
+                new PurchaseWithVirtualItem("coin", 50)));
+    }
+
+    private static String hat() {
+        return json(new EquippableVG(EquippableVG.EquippingModel.CATEGORY, "Hat", "", "hat",
+                new PurchaseWithVirtualItem("coin", 20)));
+    }
+
+    private static String potionPack() {
+        return json(new SingleUsePackVG("potion", 5, "Potion pack", "", "potion_pack",
+                new PurchaseWithVirtualItem("coin", 20)));
+    }
+
+    private static String upgrade(String itemId, String prevItemId, String nextItemId) {
+        return json(new UpgradeVG("sword", prevItemId, nextItemId, itemId, "", itemId,
+                new PurchaseWithVirtualItem("coin", 10)));
+    }
+
+    private static String category() {
+        return new VirtualCategory("Weapons",
+                new ArrayList<String>(Arrays.asList("sword", "hat"))).toJSONObject().toString();
+    }
+
+    private static String json(VirtualItem item) {
+        return item.toJSONObject().toString();
+    }
+}
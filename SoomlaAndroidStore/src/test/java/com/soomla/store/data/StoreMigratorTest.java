@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import com.soomla.store.domain.virtualGoods.LifetimeVG;
+import com.soomla.store.purchaseTypes.PurchaseWithMarket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that <code>StoreMigrator</code> resumes an interrupted migration from its saved
+ * cursor, and that <code>NonConsumableMigration</code> writes the balances it gives before it
+ * deletes the nonconsumable keys.
+ */
+public class StoreMigratorTest {
+
+    @Before
+    public void setUp() {
+        mStore = new InMemoryBalanceStore();
+        StorageManager.setBalanceStore(mStore);
+    }
+
+    @After
+    public void tearDown() {
+        StorageManager.disableWriteBehind();
+        StorageManager.clearBalanceCaches();
+    }
+
+    @Test
+    public void interruptedMigrationResumesFromCursor() {
+        RecordingMigration migration = new RecordingMigration(
+                Arrays.asList("a", "b", "c", "d", "e"), "d");
+        try {
+            StoreMigrator.runPending(Collections.<StoreMigration>singletonList(migration), 2);
+            fail("the migration should have been interrupted");
+        } catch (IllegalStateException e) {
+            // as if the app died in the middle of the batch
+        }
+        assertEquals(Arrays.asList("a", "b", "c"), migration.migrated);
+
+        // only the interrupted batch is repeated
+        migration.failAt = null;
+        StoreMigrator.runPending(Collections.<StoreMigration>singletonList(migration), 2);
+        assertEquals(Arrays.asList("a", "b", "c", "c", "d", "e"), migration.migrated);
+
+        // done, so it doesn't run again
+        StoreMigrator.runPending(Collections.<StoreMigration>singletonList(migration), 2);
+        assertEquals(6, migration.migrated.size());
+    }
+
+    @Test
+    public void nonconsumablesAreSavedBeforeKeysAreDeleted() {
+        InMemoryBalanceStore legacyStore = new InMemoryBalanceStore();
+        for (int i = 0; i < 5; i++) {
+            String itemId = "migrated_nc_" + i;
+            StoreInfo.replaceVirtualItem(new LifetimeVG(itemId, "", itemId,
+                    new PurchaseWithMarket("com.example." + itemId, 0.99)));
+            legacyStore.setValue(StoreInfo.DB_NONCONSUMABLE_KEY_PREFIX + itemId + ".exists", "");
+        }
+
+        // a long interval and threshold, so nothing is written unless it's flushed
+        StorageManager.enableWriteBehind(60 * 60 * 1000, 1000);
+
+        NonConsumableMigration migration = new NonConsumableMigration(legacyStore);
+        String cursor = migration.migrateBatch(null, 3);
+        assertEquals(StoreInfo.DB_NONCONSUMABLE_KEY_PREFIX + "migrated_nc_2.exists", cursor);
+        assertEquals(2, legacyStore.getKeys(StoreInfo.DB_NONCONSUMABLE_KEY_PREFIX).size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("1", mStore.getValue(VirtualGoodsStorage.keyGoodBalance(
+                    "migrated_nc_" + i)));
+        }
+
+        cursor = migration.migrateBatch(cursor, 3);
+        assertEquals(StoreInfo.DB_NONCONSUMABLE_KEY_PREFIX + "migrated_nc_4.exists", cursor);
+        assertNull(migration.migrateBatch(cursor, 3));
+        assertTrue(legacyStore.getKeys(StoreInfo.DB_NONCONSUMABLE_KEY_PREFIX).isEmpty());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(1, StorageManager.getVirtualGoodsStorage().getBalance(
+                    "migrated_nc_" + i));
+        }
+    }
+
+
+    /** Private Members **/
+
+    // migrates the given sorted items, throwing when it reaches failAt
+    private static class RecordingMigration extends StoreMigration {
+
+        RecordingMigration(List<String> items, String failAt) {
+            super(1, "recording");
+            this.items = items;
+            this.failAt = failAt;
+        }
+
+        @Override
+        public String migrateBatch(String cursor, int batchSize) {
+            String last = null;
+            int count = 0;
+            for (String item : items) {
+                if (cursor != null && item.compareTo(cursor) <= 0) {
+                    continue;
+                }
+                if (count == batchSize) {
+                    break;
+                }
+                if (item.equals(failAt)) {
+                    throw new IllegalStateException("interrupted at " + item);
+                }
+                migrated.add(item);
+                last = item;
+                count++;
+            }
+            return last;
+        }
+
+        final List<String> items;
+        final List<String> migrated = new ArrayList<String>();
+        String failAt;
+    }
+
+    private InMemoryBalanceStore mStore;
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualGoods.LifetimeVG;
+import com.soomla.store.domain.virtualGoods.UpgradeVG;
+import com.soomla.store.purchaseTypes.PurchaseWithVirtualItem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that <code>VirtualGoodsStorage</code> saves the current upgrade of a good by its
+ * itemId, so changing the upgrade chain changes its level but not the upgrade itself, and
+ * that an upgrade saved as a level is converted to its itemId.
+ */
+public class UpgradeLevelTest {
+
+    @Before
+    public void setUp() {
+        mStore = new InMemoryBalanceStore();
+        StorageManager.setBalanceStore(mStore);
+
+        StoreInfo.replaceVirtualItem(new VirtualCurrency("Coins", "", "upgrade_coin"));
+        StoreInfo.replaceVirtualItem(new LifetimeVG("Sword", "", "upgrade_sword",
+                new PurchaseWithVirtualItem("upgrade_coin", 10)));
+        StoreInfo.replaceVirtualItem(upgrade("upgrade_sword_1", null, "upgrade_sword_2"));
+        StoreInfo.replaceVirtualItem(upgrade("upgrade_sword_2", "upgrade_sword_1", null));
+        StorageManager.clearBalanceCaches();
+    }
+
+    @After
+    public void tearDown() {
+        StorageManager.clearBalanceCaches();
+    }
+
+    @Test
+    public void upgradeKeepsItsItemIdWhenChainChanges() {
+        VirtualGoodsStorage goods = StorageManager.getVirtualGoodsStorage();
+        goods.assignCurrentUpgrade("upgrade_sword", "upgrade_sword_2", false);
+        assertEquals(2, goods.getCurrentUpgradeLevel("upgrade_sword"));
+        assertEquals("upgrade_sword_2",
+                mStore.getValue(VirtualGoodsStorage.keyGoodUpgrade("upgrade_sword")));
+
+        // an upgrade inserted in the middle of the chain
+        StoreInfo.replaceVirtualItem(upgrade("upgrade_sword_1", null, "upgrade_sword_1b"));
+        StoreInfo.replaceVirtualItem(upgrade("upgrade_sword_1b", "upgrade_sword_1",
+                "upgrade_sword_2"));
+        StoreInfo.replaceVirtualItem(upgrade("upgrade_sword_2", "upgrade_sword_1b", null));
+
+        assertEquals("upgrade_sword_2", goods.getCurrentUpgrade("upgrade_sword"));
+        assertEquals(3, goods.getCurrentUpgradeLevel("upgrade_sword"));
+
+        goods.removeUpgrades("upgrade_sword", false);
+        assertNull(goods.getCurrentUpgrade("upgrade_sword"));
+        assertNull(mStore.getValue(VirtualGoodsStorage.keyGoodUpgrade("upgrade_sword")));
+    }
+
+    @Test
+    public void transactionSavesUpgradeItemId() throws Exception {
+        StorageTransaction transaction = new StorageTransaction();
+        transaction.assignCurrentUpgrade("upgrade_sword", "upgrade_sword_1");
+        transaction.commit(false);
+
+        assertEquals("upgrade_sword_1",
+                mStore.getValue(VirtualGoodsStorage.keyGoodUpgrade("upgrade_sword")));
+        StorageManager.clearBalanceCaches();
+        assertEquals(1,
+                StorageManager.getVirtualGoodsStorage().getCurrentUpgradeLevel("upgrade_sword"));
+    }
+
+    @Test
+    public void migratesUpgradeSavedAsLevel() {
+        mStore.setValue(VirtualGoodsStorage.keyGoodUpgradeLevel("upgrade_sword"), "2");
+
+        VirtualGoodsStorage goods = StorageManager.getVirtualGoodsStorage();
+        assertEquals("upgrade_sword_2", goods.getCurrentUpgrade("upgrade_sword"));
+        assertEquals("upgrade_sword_2",
+                mStore.getValue(VirtualGoodsStorage.keyGoodUpgrade("upgrade_sword")));
+        assertNull(mStore.getValue(VirtualGoodsStorage.keyGoodUpgradeLevel("upgrade_sword")));
+    }
+
+
+    /** Private Members **/
+
+    private static UpgradeVG upgrade(String itemId, String prevItemId, String nextItemId) {
+        return new UpgradeVG("upgrade_sword", prevItemId, nextItemId, itemId, "", itemId,
+                new PurchaseWithVirtualItem("upgrade_coin", 10));
+    }
+
+    private InMemoryBalanceStore mStore;
+}
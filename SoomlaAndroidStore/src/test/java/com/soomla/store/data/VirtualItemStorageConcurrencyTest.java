@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import com.soomla.store.domain.virtualCurrencies.VirtualCurrency;
+import com.soomla.store.domain.virtualGoods.SingleUseVG;
+import com.soomla.store.domain.virtualGoods.VirtualGood;
+import com.soomla.store.exceptions.InsufficientFundsException;
+import com.soomla.store.purchaseTypes.PurchaseWithVirtualItem;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the atomic balance operations and <code>StorageTransaction</code> from many threads at
+ * once over the same items, and checks that no update is lost.
+ * Balances are kept in an {@link InMemoryBalanceStore} and no events are posted, so this runs
+ * on a plain JVM.
+ */
+public class VirtualItemStorageConcurrencyTest {
+
+    @Before
+    public void setUp() {
+        StorageManager.setBalanceStore(new InMemoryBalanceStore());
+
+        // added in the same order every time, so the ordinals stay the same between tests
+        mCoins = new VirtualCurrency("Coins", "", "test_coin");
+        mGems = new VirtualCurrency("Gems", "", "test_gem");
+        StoreInfo.replaceVirtualItem(mCoins);
+        StoreInfo.replaceVirtualItem(mGems);
+
+        mGoods = new ArrayList<VirtualGood>();
+        for (int i = 0; i <= STRIPES_COUNT; i++) {
+            VirtualGood good = new SingleUseVG("Good " + i, "", "test_good_" + i,
+                    new PurchaseWithVirtualItem(mCoins.getItemId(), 1));
+            StoreInfo.replaceVirtualItem(good);
+            mGoods.add(good);
+        }
+    }
+
+    @Test
+    public void addAndGetOnSharedStripe() throws Exception {
+        final VirtualItemStorage goods = StorageManager.getVirtualGoodsStorage();
+        final VirtualGood first = firstGood();
+        final VirtualGood second = sameStripeGood();
+
+        runThreads(new Worker() {
+            @Override
+            public void run(int thread) {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    goods.addAndGet(first.getOrdinal(), 1, false);
+                    goods.addAndGet(second.getItemId(), 2, false);
+                }
+            }
+        });
+
+        assertEquals(THREADS * ITERATIONS, goods.getBalance(first.getItemId()));
+        assertEquals(2 * THREADS * ITERATIONS, goods.getBalance(second.getItemId()));
+    }
+
+    @Test
+    public void compareAndSetRetries() throws Exception {
+        final VirtualItemStorage goods = StorageManager.getVirtualGoodsStorage();
+        final VirtualGood first = firstGood();
+        final VirtualGood second = sameStripeGood();
+
+        runThreads(new Worker() {
+            @Override
+            public void run(int thread) {
+                // half the threads update each good, half of those by ordinal and half by itemId
+                VirtualGood good = thread % 2 == 0 ? first : second;
+                for (int i = 0; i < ITERATIONS; i++) {
+                    boolean set;
+                    do {
+                        int balance = goods.getBalance(good.getOrdinal());
+                        set = thread % 4 < 2
+                                ? goods.compareAndSet(good.getOrdinal(), balance, balance + 1,
+                                        false)
+                                : goods.compareAndSet(good.getItemId(), balance, balance + 1,
+                                        false);
+                    } while (!set);
+                }
+            }
+        });
+
+        assertEquals(THREADS / 2 * ITERATIONS, goods.getBalance(first.getItemId()));
+        assertEquals(THREADS / 2 * ITERATIONS, goods.getBalance(second.getItemId()));
+    }
+
+    @Test
+    public void removeIfAtLeastWithConcurrentAdds() throws Exception {
+        final VirtualItemStorage currencies = StorageManager.getVirtualCurrencyStorage();
+        final VirtualItemStorage goods = StorageManager.getVirtualGoodsStorage();
+        final VirtualGood first = firstGood();
+        final VirtualGood second = sameStripeGood();
+        final int initial = ITERATIONS;
+        currencies.setBalance(mCoins.getItemId(), initial, false);
+        goods.setBalance(first.getItemId(), initial, false);
+        goods.setBalance(second.getItemId(), initial, false);
+
+        final AtomicInteger coinsRemoved = new AtomicInteger();
+        final AtomicInteger firstRemoved = new AtomicInteger();
+        final AtomicInteger secondRemoved = new AtomicInteger();
+        runThreads(new Worker() {
+            @Override
+            public void run(int thread) {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    if (thread % 2 == 0) {
+                        currencies.addAndGet(mCoins.getOrdinal(), 1, false);
+                        goods.addAndGet(first.getOrdinal(), 1, false);
+                        continue;
+                    }
+                    if (currencies.removeIfAtLeast(mCoins.getItemId(), 3, false)) {
+                        coinsRemoved.addAndGet(3);
+                    }
+                    if (goods.removeIfAtLeast(first.getOrdinal(), 2, false)) {
+                        firstRemoved.addAndGet(2);
+                    }
+                    if (goods.removeIfAtLeast(second.getOrdinal(), 1, false)) {
+                        secondRemoved.incrementAndGet();
+                    }
+                }
+            }
+        });
+
+        int added = THREADS / 2 * ITERATIONS;
+        int coins = currencies.getBalance(mCoins.getItemId());
+        assertTrue(coins >= 0);
+        assertEquals(initial + added - coinsRemoved.get(), coins);
+        int firstBalance = goods.getBalance(first.getItemId());
+        assertTrue(firstBalance >= 0);
+        assertEquals(initial + added - firstRemoved.get(), firstBalance);
+
+        // never added to, so the removals stop exactly at zero
+        assertEquals(initial, secondRemoved.get());
+        assertEquals(0, goods.getBalance(second.getItemId()));
+    }
+
+    @Test
+    public void transactionsAcrossCurrenciesAndGoods() throws Exception {
+        final VirtualItemStorage currencies = StorageManager.getVirtualCurrencyStorage();
+        final VirtualItemStorage goods = StorageManager.getVirtualGoodsStorage();
+        final VirtualGood first = firstGood();
+        final VirtualGood second = sameStripeGood();
+        final int initialCoins = THREADS * ITERATIONS / 2;
+        currencies.setBalance(mCoins.getItemId(), initialCoins, false);
+
+        final AtomicInteger bought = new AtomicInteger();
+        final AtomicInteger sold = new AtomicInteger();
+        final AtomicInteger given = new AtomicInteger();
+        runThreads(new Worker() {
+            @Override
+            public void run(int thread) throws Exception {
+                for (int i = 0; i < ITERATIONS; i++) {
+                    StorageTransaction transaction = new StorageTransaction();
+                    int type = (thread + i) % 3;
+                    switch (type) {
+                        case 0:
+                            // buys a good with coins
+                            transaction.debit(mCoins, 1);
+                            transaction.credit(first, 1);
+                            break;
+                        case 1:
+                            // trades one good for the other, both on the same stripe
+                            transaction.debit(first, 1);
+                            transaction.credit(second, 1);
+                            break;
+                        default:
+                            // sells a good for gems and coins, currencies are locked first
+                            transaction.debit(second, 1);
+                            transaction.credit(mGems, 1);
+                            transaction.credit(mCoins, 1);
+                            break;
+                    }
+                    try {
+                        transaction.commit(false);
+                        if (type == 0) {
+                            bought.incrementAndGet();
+                        } else if (type == 2) {
+                            sold.incrementAndGet();
+                        }
+                    } catch (InsufficientFundsException e) {
+                        // expected while the debited balance is empty
+                    }
+
+                    // plain updates mixed in on the stripes the transactions lock
+                    if (i % 10 == 0) {
+                        goods.addAndGet(first.getOrdinal(), 1, false);
+                        given.incrementAndGet();
+                    }
+                }
+            }
+        });
+
+        int coins = currencies.getBalance(mCoins.getItemId());
+        int gems = currencies.getBalance(mGems.getItemId());
+        int firstBalance = goods.getBalance(first.getItemId());
+        int secondBalance = goods.getBalance(second.getItemId());
+        assertTrue(coins >= 0 && firstBalance >= 0 && secondBalance >= 0);
+
+        assertEquals(initialCoins - bought.get() + sold.get(), coins);
+        assertEquals(sold.get(), gems);
+        assertEquals(initialCoins + given.get(), coins + firstBalance + secondBalance);
+
+        // every balance that was saved is the one that's cached
+        StorageManager.clearBalanceCaches();
+        assertEquals(coins, currencies.getBalance(mCoins.getItemId()));
+        assertEquals(gems, currencies.getBalance(mGems.getItemId()));
+        assertEquals(firstBalance, goods.getBalance(first.getItemId()));
+        assertEquals(secondBalance, goods.getBalance(second.getItemId()));
+    }
+
+
+    /** Private Members **/
+
+    private interface Worker {
+        void run(int thread) throws Exception;
+    }
+
+    private VirtualGood firstGood() {
+        return mGoods.get(0);
+    }
+
+    /**
+     * Retrieves a good on the same stripe as {@link #firstGood()}, so its updates contend on
+     * the same lock while the balances must still stay apart.
+     */
+    private VirtualGood sameStripeGood() {
+        VirtualItemStorage goods = StorageManager.getVirtualGoodsStorage();
+        VirtualGood first = firstGood();
+        VirtualGood second = mGoods.get(STRIPES_COUNT);
+        assertNotEquals(first.getOrdinal(), second.getOrdinal());
+        assertEquals(goods.stripeIndex(first.getOrdinal(), first.getItemId()),
+                goods.stripeIndex(second.getOrdinal(), second.getItemId()));
+        return second;
+    }
+
+    /**
+     * Runs the given worker on all threads at once and rethrows the first failure.
+     */
+    private static void runThreads(final Worker worker) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < THREADS; i++) {
+            final int thread = i;
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        worker.run(thread);
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        Throwable e = failure.get();
+        if (e instanceof Exception) {
+            throw (Exception) e;
+        } else if (e != null) {
+            throw new AssertionError(e);
+        }
+    }
+
+    // the number of lock stripes in VirtualItemStorage
+    private static final int STRIPES_COUNT = 64;
+
+    private static final int THREADS = 8;
+    private static final int ITERATIONS = 2000;
+
+    private VirtualCurrency mCoins;
+    private VirtualCurrency mGems;
+    private List<VirtualGood> mGoods;
+}
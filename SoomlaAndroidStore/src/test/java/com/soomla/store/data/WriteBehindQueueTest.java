@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2012-2014 Soomla Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.soomla.store.data;
+
+import com.soomla.events.AppToBackgroundEvent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks when <code>WriteBehindQueue</code> writes its pending keys to the balance store, that
+ * reads see pending keys, and that a stopped queue doesn't keep writes it will never flush.
+ */
+public class WriteBehindQueueTest {
+
+    @Before
+    public void setUp() {
+        mStore = new InMemoryBalanceStore();
+        StorageManager.setBalanceStore(mStore);
+    }
+
+    @After
+    public void tearDown() {
+        StorageManager.disableWriteBehind();
+        if (mQueue != null) {
+            mQueue.stop();
+        }
+    }
+
+    @Test
+    public void flushesAtThreshold() throws Exception {
+        mQueue = new WriteBehindQueue(0, 3);
+        mQueue.start();
+
+        mQueue.setValue("good.a.balance", "1");
+        mQueue.setValue("good.b.balance", "2");
+        mQueue.setValue("good.a.balance", "3");
+        assertEquals(2, mQueue.getPendingCount());
+        assertNull(mStore.getValue("good.a.balance"));
+
+        mQueue.setValue("good.c.balance", "4");
+        waitForValue("good.c.balance", "4");
+        assertEquals("3", mStore.getValue("good.a.balance"));
+        assertEquals("2", mStore.getValue("good.b.balance"));
+    }
+
+    @Test
+    public void flushesPeriodically() throws Exception {
+        mQueue = new WriteBehindQueue(20, 0);
+        mQueue.start();
+
+        mQueue.setValue("good.a.balance", "1");
+        waitForValue("good.a.balance", "1");
+    }
+
+    @Test
+    public void flushesWhenAppGoesToBackground() {
+        mQueue = new WriteBehindQueue(0, 0);
+        mQueue.start();
+
+        mQueue.setValue("good.a.balance", "1");
+        assertNull(mStore.getValue("good.a.balance"));
+
+        mQueue.onAppToBackground(new AppToBackgroundEvent());
+        assertEquals("1", mStore.getValue("good.a.balance"));
+        assertEquals(0, mQueue.getPendingCount());
+    }
+
+    @Test
+    public void readsSeePendingKeys() {
+        mStore.setValue("good.a.balance", "1");
+        mStore.setValue("good.b.balance", "2");
+        StorageManager.enableWriteBehind(0, 0);
+
+        StorageManager.setValue("good.a.balance", "5");
+        StorageManager.deleteKeyValue("good.b.balance");
+        assertEquals("5", StorageManager.getValue("good.a.balance"));
+        assertNull(StorageManager.getValue("good.b.balance"));
+        assertEquals("1", mStore.getValue("good.a.balance"));
+        assertEquals("2", mStore.getValue("good.b.balance"));
+
+        StorageManager.flush();
+        assertEquals("5", mStore.getValue("good.a.balance"));
+        assertNull(mStore.getValue("good.b.balance"));
+    }
+
+    @Test
+    public void stoppedQueueWritesRightAway() {
+        mQueue = new WriteBehindQueue(0, 0);
+        mQueue.start();
+        mQueue.setValue("good.a.balance", "1");
+        mQueue.stop();
+        assertEquals("1", mStore.getValue("good.a.balance"));
+
+        // a writer that still holds the queue after it was replaced
+        mQueue.setValue("good.b.balance", "2");
+        assertEquals("2", mStore.getValue("good.b.balance"));
+        assertEquals(0, mQueue.getPendingCount());
+    }
+
+
+    /** Private Members **/
+
+    private void waitForValue(String key, String val) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!val.equals(mStore.getValue(key)) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(key + " wasn't flushed", val.equals(mStore.getValue(key)));
+    }
+
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    private InMemoryBalanceStore mStore;
+    private WriteBehindQueue mQueue;
+}